@@ -3,6 +3,7 @@
  */
 package fr.syrdek.ffmpeg.tests.bin;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.InputStream;
@@ -20,12 +21,21 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Transcode des fichiers en parallèle avec l'exécutable ffmpeg, avec les mêmes paramètres que
+ * {@link fr.syrdek.ffmpeg.tests.libav.BatchTranscode}, pour comparer les débits des deux approches.<br>
+ * Le chemin de l'exécutable peut être donné par la propriété système <code>ffmpeg</code> (par défaut
+ * <code>/usr/bin/ffmpeg</code>).
+ *
+ * <pre>
+ * BinTranscode 4 20 target/bin video.mp4
+ * </pre>
+ *
  * @author t0087865
  *
  */
 public class BinTranscode implements Callable<Void> {
   private static final Logger LOG = LoggerFactory.getLogger(BinTranscode.class);
-  private static final String FFMPEG = "/usr/bin/ffmpeg";
+  private static final String FFMPEG = System.getProperty("ffmpeg", "/usr/bin/ffmpeg");
 
   /**
    * @param args
@@ -39,8 +49,9 @@ public class BinTranscode implements Callable<Void> {
 
     final int nbThreads = Integer.parseInt(args[0]);
     final int nbConversions = Integer.parseInt(args[1]);
-    final String outputDirectory = args[2];
+    final File outputDirectory = new File(args[2]);
     final List<String> pathes = Arrays.stream(args).skip(3).collect(Collectors.toList());
+    outputDirectory.mkdirs();
 
     final ExecutorService conversionPool = Executors.newFixedThreadPool(nbThreads);
 
@@ -49,7 +60,7 @@ public class BinTranscode implements Callable<Void> {
     for (int i = 0; i < nbConversions; i++) {
       conversionPool.submit(new BinTranscode(
           pathes.get(i % pathes.size()),
-          outputDirectory));
+          new File(outputDirectory, "result-" + i + ".mkv").getPath()));
     }
 
     conversionPool.shutdown();
@@ -0,0 +1,121 @@
+package fr.syrdek.ffmpeg.tests.libav;
+
+import static fr.syrdek.ffmpeg.libav.java.FFmpegException.checkAllocation;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import org.bytedeco.ffmpeg.avformat.AVIOContext;
+import org.bytedeco.ffmpeg.avformat.Read_packet_Pointer_BytePointer_int;
+import org.bytedeco.ffmpeg.global.avformat;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.bytedeco.javacpp.BytePointer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fr.syrdek.ffmpeg.libav.java.FFmpegNatives;
+import fr.syrdek.ffmpeg.libav.java.io.IOSource;
+
+/**
+ * Compare le débit de lecture d'un fichier par libav via les deux implémentations de {@link IOSource} :
+ * <ul>
+ * <li><b>stream</b> : lecture d'un {@link java.io.InputStream} dans un tableau intermédiaire, recopié dans le buffer
+ * de libav ({@link IOSource#newAvIoStreamReader(java.io.InputStream, int)}),</li>
+ * <li><b>channel</b> : lecture d'un channel directement dans le buffer de libav
+ * ({@link IOSource#newAvIoReader(java.nio.channels.ReadableByteChannel)}).</li>
+ * </ul>
+ * Le fichier est lu via <code>avio_read</code>, sans démultiplexage, pour chaque taille de buffer donnée :
+ *
+ * <pre>
+ * AvioReadBenchmark 5 video.mp4 4096 32768 262144
+ * </pre>
+ *
+ * @author t0087865
+ */
+public class AvioReadBenchmark {
+  private static final Logger LOG = LoggerFactory.getLogger(AvioReadBenchmark.class);
+
+  static {
+    // S'assure que les libs natives soient bien chargées.
+    FFmpegNatives.ensureLoaded();
+  }
+
+  /**
+   * Construit un lecteur libav sur un fichier.
+   */
+  @FunctionalInterface
+  private interface ReaderFactory {
+    Read_packet_Pointer_BytePointer_int open(FileInputStream in, int bufferSize);
+  }
+
+  /**
+   * @param args
+   * @throws IOException
+   */
+  public static void main(final String[] args) throws IOException {
+    if (args.length < 3) {
+      LOG.error("Usage: AvioReadBenchmark NB_PASSES FILE BUFFER_SIZE_1 [BUFFER_SIZE_2 [...]]");
+      System.exit(1);
+    }
+
+    final int nbPasses = Integer.parseInt(args[0]);
+    final String path = args[1];
+
+    for (int i = 2; i < args.length; i++) {
+      final int bufferSize = Integer.parseInt(args[i]);
+      final double stream = measure(path, bufferSize, nbPasses, IOSource::newAvIoStreamReader);
+      final double channel = measure(path, bufferSize, nbPasses, (in, size) -> IOSource.newAvIoReader(in.getChannel()));
+      LOG.info("Buffer de {} octets : stream {} Mo/s, channel {} Mo/s (x{}).", bufferSize, Math.round(stream),
+          Math.round(channel), String.format("%.2f", channel / stream));
+    }
+  }
+
+  /**
+   * Lit plusieurs fois le fichier donné, et retourne le meilleur débit obtenu.
+   *
+   * @return Le débit, en Mo/s.
+   */
+  private static double measure(final String path, final int bufferSize, final int nbPasses,
+      final ReaderFactory factory) throws IOException {
+    double best = 0;
+    // Une première passe, non mesurée, chauffe la JVM et le cache disque.
+    for (int pass = 0; pass <= nbPasses; pass++) {
+      try (final FileInputStream in = new FileInputStream(path)) {
+        final Read_packet_Pointer_BytePointer_int reader = factory.open(in, bufferSize);
+        final long start = System.nanoTime();
+        final long bytes = readAll(reader, bufferSize);
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        if (pass > 0) {
+          best = Math.max(best, bytes / seconds / (1024 * 1024));
+        }
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Lit toutes les données fournies par le lecteur via un contexte AVIO.
+   *
+   * @return Le nombre d'octets lus.
+   */
+  private static long readAll(final Read_packet_Pointer_BytePointer_int reader, final int bufferSize) {
+    final BytePointer ioBuffer = new BytePointer(avutil.av_malloc(bufferSize));
+    final AVIOContext ioCtx = checkAllocation(avformat.avio_alloc_context(ioBuffer, bufferSize, 0, null, reader,
+        null, null), "Impossible d''allouer le contexte de lecture.");
+    final BytePointer destination = new BytePointer(avutil.av_malloc(bufferSize));
+    try {
+      long total = 0;
+      int read;
+      while ((read = avformat.avio_read(ioCtx, destination, bufferSize)) > 0) {
+        total += read;
+      }
+      return total;
+    } finally {
+      avutil.av_free(destination);
+      // Le buffer a pu être réalloué par libav.
+      avutil.av_free(ioCtx.buffer());
+      avformat.avio_context_free(ioCtx);
+      reader.close();
+    }
+  }
+}
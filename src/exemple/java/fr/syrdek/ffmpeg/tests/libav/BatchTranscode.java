@@ -0,0 +1,110 @@
+package fr.syrdek.ffmpeg.tests.libav;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fr.syrdek.ffmpeg.libav.java.FFmpegNatives;
+import fr.syrdek.ffmpeg.libav.java.io.AVChannelLayout;
+import fr.syrdek.ffmpeg.libav.java.io.AVPixFormat;
+import fr.syrdek.ffmpeg.libav.java.io.AVSampleFormat;
+import fr.syrdek.ffmpeg.libav.java.io.SWSInterpolation;
+import fr.syrdek.ffmpeg.libav.java.io.stream.AudioParameters;
+import fr.syrdek.ffmpeg.libav.java.io.stream.VideoParameters;
+import fr.syrdek.ffmpeg.libav.java.transcode.BatchTranscoder;
+import fr.syrdek.ffmpeg.libav.java.transcode.TranscodeJob;
+import fr.syrdek.ffmpeg.libav.java.transcode.TranscodeResult;
+
+/**
+ * Equivalent de {@link fr.syrdek.ffmpeg.tests.bin.BinTranscode} réalisé dans la JVM, via le {@link BatchTranscoder}.
+ * <br>
+ * Prend les mêmes arguments, et produit les mêmes flux (mpeg4 480x320 à 24 FPS, vorbis stéréo 48kHz), afin de
+ * comparer le débit des deux approches :
+ *
+ * <pre>
+ * BinTranscode   4 20 target/bin   video.mp4
+ * BatchTranscode 4 20 target/batch video.mp4
+ * </pre>
+ *
+ * @author t0087865
+ */
+public class BatchTranscode {
+  private static final Logger LOG = LoggerFactory.getLogger(BatchTranscode.class);
+
+  static {
+    // S'assure que les libs natives soient bien chargées.
+    FFmpegNatives.ensureLoaded();
+  }
+
+  /**
+   * @param args
+   */
+  public static void main(final String[] args) {
+    if (args.length < 4) {
+      LOG.error("Usage: BatchTranscode NB_THREADS NB_JOBS OUT_DIR VIDEO_1 [VIDEO_2 [...]]");
+      System.exit(1);
+    }
+
+    final int nbThreads = Integer.parseInt(args[0]);
+    final int nbConversions = Integer.parseInt(args[1]);
+    final File outputDirectory = new File(args[2]);
+    final List<String> pathes = Arrays.stream(args).skip(3).collect(Collectors.toList());
+    outputDirectory.mkdirs();
+
+    final VideoParameters videoParams = new VideoParameters.Builder()
+        .withCodec(avcodec.AV_CODEC_ID_MPEG4)
+        .withBitRate(501000l)
+        .withWidth(480)
+        .withHeight(320)
+        .withFrameRate(24)
+        .withPixFormat(AVPixFormat.FMT_YUV420P)
+        .build();
+
+    final AudioParameters audioParams = new AudioParameters.Builder()
+        .withCodec(avcodec.AV_CODEC_ID_VORBIS)
+        .withBitRate(107246l)
+        .withChannels(2)
+        .withChannelsLayout(AVChannelLayout.LAYOUT_STEREO)
+        .withSampleFormat(AVSampleFormat.FLTP)
+        .withSampleRate(48000)
+        .build();
+
+    final List<TranscodeJob> jobs = new ArrayList<>(nbConversions);
+    for (int i = 0; i < nbConversions; i++) {
+      jobs.add(new TranscodeJob.Builder()
+          .withInput(pathes.get(i % pathes.size()))
+          .withOutput(new File(outputDirectory, "result-" + i + ".mkv").getPath())
+          .withFormat("matroska")
+          .withVideo(videoParams)
+          .withAudio(audioParams)
+          .withScalingMethod(SWSInterpolation.BICUBIC)
+          .build());
+    }
+
+    final long start = System.currentTimeMillis();
+    final List<TranscodeResult> results;
+    try (final BatchTranscoder batch = new BatchTranscoder(nbThreads)) {
+      results = batch.transcodeAll(jobs);
+    }
+    final long duration = System.currentTimeMillis() - start;
+
+    long frames = 0;
+    int failures = 0;
+    for (final TranscodeResult result : results) {
+      LOG.info("{}", result);
+      frames += result.getVideoFrames();
+      if (!result.isSuccess()) {
+        failures++;
+      }
+    }
+    LOG.info("OK, fini en {}ms : {} fichiers ({} échecs), {} images/s.", duration, results.size(), failures,
+        duration > 0 ? frames * 1000 / duration : frames);
+    System.exit(failures == 0 ? 0 : 2);
+  }
+}
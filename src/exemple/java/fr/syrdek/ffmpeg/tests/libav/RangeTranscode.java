@@ -0,0 +1,129 @@
+package fr.syrdek.ffmpeg.tests.libav;
+
+import java.io.File;
+
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVStream;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fr.syrdek.ffmpeg.libav.java.FFmpegNatives;
+import fr.syrdek.ffmpeg.libav.java.Media;
+import fr.syrdek.ffmpeg.libav.java.TimeUtils;
+import fr.syrdek.ffmpeg.libav.java.chain.Demuxer;
+import fr.syrdek.ffmpeg.libav.java.chain.PullIterator;
+import fr.syrdek.ffmpeg.libav.java.io.AVChannelLayout;
+import fr.syrdek.ffmpeg.libav.java.io.AVPixFormat;
+import fr.syrdek.ffmpeg.libav.java.io.AVSampleFormat;
+import fr.syrdek.ffmpeg.libav.java.io.stream.AudioParameters;
+import fr.syrdek.ffmpeg.libav.java.io.stream.VideoParameters;
+import fr.syrdek.ffmpeg.libav.java.transcode.TranscodeJob;
+import fr.syrdek.ffmpeg.libav.java.transcode.TranscodeResult;
+import fr.syrdek.ffmpeg.libav.java.transcode.Transcoder;
+
+/**
+ * Vérifie la synchronisation du son et de l'image lors du transcodage d'un intervalle par le {@link Transcoder}.<br>
+ * L'intervalle donné (en millisecondes) est transcodé avec son flux audio. Les premiers PTS des flux vidéo et audio du
+ * fichier produit ne doivent pas être écartés de plus d'une image et d'un paquet audio : la première image et le
+ * premier paquet audio de l'intervalle sont tous deux à moins d'une durée de frame de son début.
+ *
+ * <pre>
+ * RangeTranscode target/range video.mp4 3000 5000
+ * </pre>
+ *
+ * @author t0087865
+ */
+public class RangeTranscode {
+  private static final Logger LOG = LoggerFactory.getLogger(RangeTranscode.class);
+
+  static {
+    // S'assure que les libs natives soient bien chargées.
+    FFmpegNatives.ensureLoaded();
+  }
+
+  /**
+   * @param args
+   */
+  public static void main(final String[] args) {
+    if (args.length < 4) {
+      LOG.error("Usage: RangeTranscode OUT_DIR VIDEO START_MS END_MS");
+      System.exit(1);
+    }
+
+    final File outputDirectory = new File(args[0]);
+    final String path = args[1];
+    final long start = Long.parseLong(args[2]) * 1000;
+    final long end = Long.parseLong(args[3]) * 1000;
+    outputDirectory.mkdirs();
+
+    final VideoParameters videoParams = new VideoParameters.Builder()
+        .withCodec(avcodec.AV_CODEC_ID_MPEG4)
+        .withBitRate(501000l)
+        .withWidth(480)
+        .withHeight(320)
+        .withFrameRate(24)
+        .withPixFormat(AVPixFormat.FMT_YUV420P)
+        .build();
+
+    final AudioParameters audioParams = new AudioParameters.Builder()
+        .withCodec(avcodec.AV_CODEC_ID_VORBIS)
+        .withBitRate(107246l)
+        .withChannels(2)
+        .withChannelsLayout(AVChannelLayout.LAYOUT_STEREO)
+        .withSampleFormat(AVSampleFormat.FLTP)
+        .withSampleRate(48000)
+        .build();
+
+    final File output = new File(outputDirectory, "range-" + args[2] + "-" + args[3] + ".mkv");
+    final TranscodeResult result = new Transcoder(new TranscodeJob.Builder()
+        .withInput(path)
+        .withOutput(output.getPath())
+        .withFormat("matroska")
+        .withVideo(videoParams)
+        .withAudio(audioParams)
+        .withRange(start, end)
+        .build()).transcode();
+    LOG.info("Transcodage : {}", result);
+    if (!result.isSuccess()) {
+      LOG.error("Transcodage de l'intervalle en échec.", result.getError());
+      System.exit(2);
+    }
+
+    // Premier PTS et durée du premier paquet de chaque flux, en microsecondes.
+    final long[] video = firstPacket(output.getPath(), Media.VIDEO);
+    final long[] audio = firstPacket(output.getPath(), Media.AUDIO);
+    final long gap = Math.abs(video[0] - audio[0]);
+    final long tolerance = video[1] + audio[1];
+    final boolean ok = gap <= tolerance;
+    if (!ok) {
+      LOG.error("Son et image désynchronisés : vidéo à {}µs, audio à {}µs.", video[0], audio[0]);
+    }
+    LOG.info("{} : écart de {}µs entre les débuts des flux vidéo et audio (tolérance {}µs).", ok ? "OK" : "ECHEC",
+        gap, tolerance);
+    System.exit(ok ? 0 : 2);
+  }
+
+  /**
+   * @return Le plus petit PTS des paquets du flux du type donné, et la durée du paquet correspondant, en
+   *         microsecondes.
+   */
+  private static long[] firstPacket(final String path, final Media type) {
+    final long[] first = { Long.MAX_VALUE, 0 };
+    try (final Demuxer demuxer = new Demuxer(path);
+        final PullIterator<AVPacket> packets = demuxer.packets()) {
+      final AVStream stream = demuxer.findBestStream(type);
+      for (final AVPacket packet : packets) {
+        if (packet.stream_index() == stream.index() && packet.pts() != avutil.AV_NOPTS_VALUE) {
+          final long pts = TimeUtils.toMicros(packet.pts(), stream.time_base());
+          if (pts < first[0]) {
+            first[0] = pts;
+            first[1] = TimeUtils.toMicros(packet.duration(), stream.time_base());
+          }
+        }
+      }
+    }
+    return first;
+  }
+}
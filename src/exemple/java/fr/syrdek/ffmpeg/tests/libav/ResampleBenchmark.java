@@ -0,0 +1,238 @@
+package fr.syrdek.ffmpeg.tests.libav;
+
+import static fr.syrdek.ffmpeg.libav.java.FFmpegException.checkAllocation;
+import static fr.syrdek.ffmpeg.libav.java.FFmpegException.checkAndThrow;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.function.Consumer;
+
+import org.bytedeco.ffmpeg.avcodec.AVCodecContext;
+import org.bytedeco.ffmpeg.avutil.AVAudioFifo;
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.bytedeco.ffmpeg.global.swresample;
+import org.bytedeco.ffmpeg.swresample.SwrContext;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.PointerPointer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fr.syrdek.ffmpeg.libav.java.FFmpegNatives;
+import fr.syrdek.ffmpeg.libav.java.chain.Demuxer;
+import fr.syrdek.ffmpeg.libav.java.chain.FramePool;
+import fr.syrdek.ffmpeg.libav.java.chain.Muxer;
+import fr.syrdek.ffmpeg.libav.java.chain.decode.AudioDecoder;
+import fr.syrdek.ffmpeg.libav.java.chain.encode.AudioEncoder;
+import fr.syrdek.ffmpeg.libav.java.chain.process.AudioResampler;
+import fr.syrdek.ffmpeg.libav.java.io.AVChannelLayout;
+import fr.syrdek.ffmpeg.libav.java.io.AVSampleFormat;
+import fr.syrdek.ffmpeg.libav.java.io.stream.AudioParameters;
+
+/**
+ * Mesure le débit de l'{@link AudioResampler} et le nombre d'allocations natives qu'il réalise, comparés à ceux de
+ * l'ancienne implémentation, qui allouait un buffer de conversion et agrandissait la fifo à chaque frame.<br>
+ * Le flux audio du fichier donné est décodé puis rééchantillonné (vorbis stéréo 48kHz), sans encodage, par chacune
+ * des deux implémentations. Le nombre d'allocations est rapporté au nombre de frames décodées.
+ *
+ * <pre>
+ * ResampleBenchmark 10 audio.mkv
+ * </pre>
+ *
+ * @author t0087865
+ */
+public class ResampleBenchmark {
+  private static final Logger LOG = LoggerFactory.getLogger(ResampleBenchmark.class);
+
+  static {
+    // S'assure que les libs natives soient bien chargées.
+    FFmpegNatives.ensureLoaded();
+  }
+
+  /**
+   * @param args
+   * @throws IOException
+   */
+  public static void main(final String[] args) throws IOException {
+    if (args.length < 2) {
+      LOG.error("Usage: ResampleBenchmark NB_PASSES AUDIO");
+      System.exit(1);
+    }
+
+    final int nbPasses = Integer.parseInt(args[0]);
+    final String path = args[1];
+
+    final AudioParameters audioParams = new AudioParameters.Builder()
+        .withCodec(avcodec.AV_CODEC_ID_VORBIS)
+        .withBitRate(107246l)
+        .withChannels(2)
+        .withChannelsLayout(AVChannelLayout.LAYOUT_STEREO)
+        .withSampleFormat(AVSampleFormat.FLTP)
+        .withSampleRate(48000)
+        .build();
+
+    final File output = File.createTempFile("resample", ".mkv");
+    output.deleteOnExit();
+
+    // Les deux implémentations sont mesurées en alternance, pour qu'elles profitent du même cache disque et du même
+    // état du JIT.
+    final Measure before = new Measure("Avant (allocations par frame)");
+    final Measure after = new Measure("Après (buffers conservés)");
+    for (int pass = 0; pass < nbPasses; pass++) {
+      run(path, output, audioParams, true, before);
+      run(path, output, audioParams, false, after);
+    }
+    before.log();
+    after.log();
+  }
+
+  /**
+   * Décode et rééchantillonne le flux audio du fichier donné.
+   *
+   * @param legacy
+   *          <code>true</code> pour utiliser l'ancienne implémentation ({@link LegacyResampler}).
+   * @param measure
+   *          Les mesures à compléter.
+   */
+  private static void run(final String path, final File output, final AudioParameters audioParams,
+      final boolean legacy, final Measure measure) {
+    try (//
+        final Demuxer source = new Demuxer(path);
+        final Muxer destination = new Muxer(output.getPath(), "matroska");
+        final AudioDecoder decoder = source.openAudioDecoder(null, null);
+        final AudioEncoder encoder = new AudioEncoder(audioParams, destination, null);
+        final AudioResampler resampler = legacy ? null
+            : new AudioResampler(decoder.getParameters(), audioParams, encoder);
+        final LegacyResampler legacyResampler = legacy ? new LegacyResampler(decoder.getParameters(), encoder) : null) {
+      final long[] decoded = { 0 };
+      decoder.sendTo(f -> decoded[0]++);
+      decoder.sendTo(legacy ? legacyResampler : resampler);
+
+      final long start = System.nanoTime();
+      while (source.readPacket()) {
+        // Les frames rééchantillonnées ne sont envoyées à aucun consommateur.
+      }
+      decoder.drain();
+      if (legacy) {
+        legacyResampler.finish();
+      } else {
+        resampler.finish();
+      }
+      measure.nanos += System.nanoTime() - start;
+
+      measure.frames += decoded[0];
+      measure.allocations += legacy ? legacyResampler.getAllocations() : resampler.getAllocations();
+    }
+  }
+
+  /**
+   * Mesures cumulées d'une implémentation.
+   */
+  private static final class Measure {
+    private final String name;
+    private long frames = 0;
+    private long allocations = 0;
+    private long nanos = 0;
+
+    private Measure(final String name) {
+      this.name = name;
+    }
+
+    private void log() {
+      final double seconds = nanos / 1e9;
+      LOG.info("{} : {} frames rééchantillonnées en {}ms ({} frames/s).", name, frames, nanos / 1000000,
+          Math.round(frames / seconds));
+      LOG.info("{} : {} allocations ({}/s, {} par frame).", name, allocations, Math.round(allocations / seconds),
+          String.format("%.3f", frames > 0 ? (double) allocations / frames : 0d));
+    }
+  }
+
+  /**
+   * Reproduction du chemin de conversion de l'ancien {@link AudioResampler} : un buffer de conversion est alloué et
+   * libéré à chaque frame, et la fifo est agrandie d'une frame à chaque écriture. Les frames produites proviennent
+   * d'une {@link FramePool}, comme dans l'implémentation actuelle, et ne sont pas comptées.<br>
+   * Seules les allocations sont reproduites : le nombre de samples écrits dans la fifo est celui retourné par
+   * <code>swr_convert</code>.
+   */
+  private static final class LegacyResampler implements Consumer<AVFrame>, AutoCloseable {
+    private final AVCodecContext encoderCtx;
+    private final SwrContext swrCtx;
+    private final AVAudioFifo audioFifo;
+    private final FramePool framePool = new FramePool();
+    private final int planes;
+    // Capacité de la fifo, en samples par channel : av_audio_fifo_realloc ne réalloue que pour l'agrandir.
+    private int fifoCapacity = 1;
+    private long allocations = 0;
+
+    private LegacyResampler(final AudioParameters inParams, final AudioEncoder encoder) {
+      encoderCtx = encoder.getCodecCtx();
+      planes = avutil.av_sample_fmt_is_planar(encoderCtx.sample_fmt()) != 0 ? encoderCtx.channels() : 1;
+      audioFifo = checkAllocation(avutil.av_audio_fifo_alloc(encoderCtx.sample_fmt(), encoderCtx.channels(), 1));
+      allocations++;
+      swrCtx = checkAllocation(swresample.swr_alloc_set_opts(null,
+          encoderCtx.channel_layout(), encoderCtx.sample_fmt(), encoderCtx.sample_rate(),
+          inParams.getChannelsLayout(), inParams.getSampleFormatValue(), inParams.getSampleRate(),
+          0, null));
+      checkAndThrow(swresample.swr_init(swrCtx));
+    }
+
+    @Override
+    public void accept(final AVFrame frame) {
+      // Alloue le tableau de pointeurs et les buffers des samples convertis.
+      final PointerPointer<BytePointer> converted = new PointerPointer<>(planes);
+      allocations++;
+      checkAndThrow(avutil.av_samples_alloc(converted, null, encoderCtx.channels(), frame.nb_samples(),
+          encoderCtx.sample_fmt(), 0));
+      allocations++;
+      final int nbSamples = checkAndThrow(swresample.swr_convert(swrCtx, converted, frame.nb_samples(),
+          frame.extended_data(), frame.nb_samples()));
+
+      // Agrandit la fifo pour contenir les nouveaux samples.
+      final int required = avutil.av_audio_fifo_size(audioFifo) + nbSamples;
+      checkAndThrow(avutil.av_audio_fifo_realloc(audioFifo, required));
+      if (required > fifoCapacity) {
+        fifoCapacity = required;
+        allocations++;
+      }
+      checkAndThrow(avutil.av_audio_fifo_write(audioFifo, converted, nbSamples));
+
+      avutil.av_freep(converted);
+      converted.deallocate();
+      pull(false);
+    }
+
+    private void finish() {
+      pull(true);
+    }
+
+    /**
+     * Dépile les frames complètes de la fifo, ou toute la fifo si <code>untilEnd</code>.
+     */
+    private void pull(final boolean untilEnd) {
+      int fifoSize = avutil.av_audio_fifo_size(audioFifo);
+      while (fifoSize >= encoderCtx.frame_size() || untilEnd && fifoSize > 0) {
+        final int nbSamples = Math.min(fifoSize, encoderCtx.frame_size());
+        final AVFrame frame = framePool.acquireAudio(encoderCtx.sample_fmt(), nbSamples, encoderCtx.channels(),
+            encoderCtx.channel_layout(), encoderCtx.sample_rate());
+        try {
+          checkAndThrow(avutil.av_audio_fifo_read(audioFifo, frame.data(), nbSamples));
+        } finally {
+          framePool.release(frame);
+        }
+        fifoSize = avutil.av_audio_fifo_size(audioFifo);
+      }
+    }
+
+    private long getAllocations() {
+      return allocations;
+    }
+
+    @Override
+    public void close() {
+      avutil.av_audio_fifo_free(audioFifo);
+      swresample.swr_free(swrCtx);
+      framePool.close();
+    }
+  }
+}
@@ -0,0 +1,142 @@
+package fr.syrdek.ffmpeg.tests.libav;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVStream;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fr.syrdek.ffmpeg.libav.java.FFmpegNatives;
+import fr.syrdek.ffmpeg.libav.java.Media;
+import fr.syrdek.ffmpeg.libav.java.chain.Demuxer;
+import fr.syrdek.ffmpeg.libav.java.chain.PullIterator;
+import fr.syrdek.ffmpeg.libav.java.io.AVChannelLayout;
+import fr.syrdek.ffmpeg.libav.java.io.AVPixFormat;
+import fr.syrdek.ffmpeg.libav.java.io.AVSampleFormat;
+import fr.syrdek.ffmpeg.libav.java.io.stream.AudioParameters;
+import fr.syrdek.ffmpeg.libav.java.io.stream.VideoParameters;
+import fr.syrdek.ffmpeg.libav.java.transcode.SegmentTranscoder;
+
+/**
+ * Vérifie le transcodage par segments du {@link SegmentTranscoder}.<br>
+ * Le fichier donné est transcodé d'un seul tenant, puis en NB_SEGMENTS segments. Le fichier segmenté doit contenir
+ * les mêmes images que le fichier de référence, avec les mêmes timestamps : aucune image n'est perdue, dupliquée ou
+ * décalée aux jonctions entre segments.
+ *
+ * <pre>
+ * SegmentTranscode 4 target/segments video.mp4
+ * </pre>
+ *
+ * @author t0087865
+ */
+public class SegmentTranscode {
+  private static final Logger LOG = LoggerFactory.getLogger(SegmentTranscode.class);
+
+  static {
+    // S'assure que les libs natives soient bien chargées.
+    FFmpegNatives.ensureLoaded();
+  }
+
+  /**
+   * @param args
+   * @throws IOException
+   */
+  public static void main(final String[] args) throws IOException {
+    if (args.length < 3) {
+      LOG.error("Usage: SegmentTranscode NB_SEGMENTS OUT_DIR VIDEO");
+      System.exit(1);
+    }
+
+    final int nbSegments = Integer.parseInt(args[0]);
+    final File outputDirectory = new File(args[1]);
+    final String path = args[2];
+    outputDirectory.mkdirs();
+
+    final VideoParameters videoParams = new VideoParameters.Builder()
+        .withCodec(avcodec.AV_CODEC_ID_MPEG4)
+        .withBitRate(501000l)
+        .withWidth(480)
+        .withHeight(320)
+        .withFrameRate(24)
+        .withPixFormat(AVPixFormat.FMT_YUV420P)
+        .build();
+
+    final AudioParameters audioParams = new AudioParameters.Builder()
+        .withCodec(avcodec.AV_CODEC_ID_VORBIS)
+        .withBitRate(107246l)
+        .withChannels(2)
+        .withChannelsLayout(AVChannelLayout.LAYOUT_STEREO)
+        .withSampleFormat(AVSampleFormat.FLTP)
+        .withSampleRate(48000)
+        .build();
+
+    final File reference = new File(outputDirectory, "reference.mkv");
+    final File segmented = new File(outputDirectory, "segments-" + nbSegments + ".mkv");
+    final SegmentTranscoder.Result referenceResult = new SegmentTranscoder(path, reference.getPath(), "matroska",
+        videoParams).withAudio(audioParams).withSegments(1).transcode();
+    final SegmentTranscoder.Result result = new SegmentTranscoder(path, segmented.getPath(), "matroska",
+        videoParams).withAudio(audioParams).withSegments(nbSegments).transcode();
+    LOG.info("Référence : {}", referenceResult);
+    LOG.info("Segments : {}", result);
+
+    final List<Long> referencePts = readVideoPts(reference.getPath());
+    final List<Long> pts = readVideoPts(segmented.getPath());
+
+    int errors = 0;
+    if (!result.isComplete()) {
+      LOG.error("Transcodage par segments incomplet.");
+      errors++;
+    }
+    if (pts.size() != referencePts.size() || pts.size() != result.getWrittenFrames()) {
+      LOG.error("Nombre d'images incorrect : {} au lieu de {} (référence), {} annoncées.", pts.size(),
+          referencePts.size(), result.getWrittenFrames());
+      errors++;
+    }
+    errors += compare(pts, referencePts);
+
+    LOG.info("{} : {} images en {}ms avec {} segments, {}ms d'un seul tenant.", errors == 0 ? "OK" : "ECHEC",
+        pts.size(), result.getDuration(), result.getSegments(), referenceResult.getDuration());
+    System.exit(errors == 0 ? 0 : 2);
+  }
+
+  /**
+   * @return Les PTS des images du flux vidéo du fichier donné, dans l'ordre d'affichage.
+   */
+  private static List<Long> readVideoPts(final String path) {
+    final List<Long> pts = new ArrayList<>();
+    try (final Demuxer demuxer = new Demuxer(path);
+        final PullIterator<AVPacket> packets = demuxer.packets()) {
+      final AVStream video = demuxer.findBestStream(Media.VIDEO);
+      for (final AVPacket packet : packets) {
+        if (packet.stream_index() == video.index() && packet.pts() != avutil.AV_NOPTS_VALUE) {
+          pts.add(packet.pts());
+        }
+      }
+    }
+    Collections.sort(pts);
+    return pts;
+  }
+
+  /**
+   * Compare les PTS triés du fichier segmenté à ceux du fichier de référence.
+   *
+   * @return Le nombre d'images dont le PTS diffère, ou qui sont dupliquées.
+   */
+  private static int compare(final List<Long> pts, final List<Long> referencePts) {
+    int errors = 0;
+    for (int i = 0; i < Math.min(pts.size(), referencePts.size()); i++) {
+      if (!pts.get(i).equals(referencePts.get(i)) || (i > 0 && pts.get(i).equals(pts.get(i - 1)))) {
+        LOG.error("Image {} : PTS {} au lieu de {}.", i, pts.get(i), referencePts.get(i));
+        errors++;
+      }
+    }
+    return errors;
+  }
+}
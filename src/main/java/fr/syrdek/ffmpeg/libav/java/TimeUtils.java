@@ -1,6 +1,7 @@
 package fr.syrdek.ffmpeg.libav.java;
 
 import org.bytedeco.ffmpeg.avutil.AVRational;
+import org.bytedeco.ffmpeg.global.avutil;
 
 /**
  * Outils de gestion des timestamps ffmpeg.
@@ -85,6 +86,22 @@ public class TimeUtils {
     return copy;
   }
 
+  /**
+   * Convertit un timestamp en microsecondes (<code>AV_TIME_BASE</code>).
+   *
+   * @param timestamp
+   *          Le timestamp.
+   * @param timebase
+   *          La base de temps dans laquelle est exprimé le timestamp.
+   * @return Le timestamp en microsecondes, ou <code>AV_NOPTS_VALUE</code> si le timestamp n'est pas défini.
+   */
+  public static long toMicros(final long timestamp, final AVRational timebase) {
+    if (timestamp == avutil.AV_NOPTS_VALUE) {
+      return avutil.AV_NOPTS_VALUE;
+    }
+    return avutil.av_rescale(timestamp, (long) timebase.num() * avutil.AV_TIME_BASE, timebase.den());
+  }
+
   /**
    * Convertit un nombre de secondes en <code>heures:minutes:secondes.millis</code> pour affichage.
    *
@@ -3,20 +3,48 @@ package fr.syrdek.ffmpeg.libav.java.chain;
 import static fr.syrdek.ffmpeg.libav.java.FFmpegException.checkAllocation;
 import static fr.syrdek.ffmpeg.libav.java.FFmpegException.checkAndThrow;
 
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.function.Consumer;
 
+import org.bytedeco.ffmpeg.avcodec.AVCodec;
 import org.bytedeco.ffmpeg.avcodec.AVPacket;
 import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.avformat.AVIOContext;
+import org.bytedeco.ffmpeg.avformat.AVInputFormat;
+import org.bytedeco.ffmpeg.avformat.AVStream;
+import org.bytedeco.ffmpeg.avformat.Read_packet_Pointer_BytePointer_int;
+import org.bytedeco.ffmpeg.avformat.Seek_Pointer_long_int;
 import org.bytedeco.ffmpeg.avutil.AVDictionary;
 import org.bytedeco.ffmpeg.global.avcodec;
 import org.bytedeco.ffmpeg.global.avformat;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.bytedeco.javacpp.BytePointer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import fr.syrdek.ffmpeg.libav.java.CFlag;
+import fr.syrdek.ffmpeg.libav.java.FFmpegException;
 import fr.syrdek.ffmpeg.libav.java.Media;
+import fr.syrdek.ffmpeg.libav.java.TimeUtils;
+import fr.syrdek.ffmpeg.libav.java.chain.async.AsyncStage;
 import fr.syrdek.ffmpeg.libav.java.chain.decode.AudioDecoder;
 import fr.syrdek.ffmpeg.libav.java.chain.decode.Decoder;
 import fr.syrdek.ffmpeg.libav.java.chain.decode.VideoDecoder;
+import fr.syrdek.ffmpeg.libav.java.chain.process.StreamCopier;
+import fr.syrdek.ffmpeg.libav.java.io.AVFormatFlag;
+import fr.syrdek.ffmpeg.libav.java.io.AVSeekFlag;
+import fr.syrdek.ffmpeg.libav.java.io.ByteBufferSource;
+import fr.syrdek.ffmpeg.libav.java.io.IOCallbacks;
+import fr.syrdek.ffmpeg.libav.java.io.IOSource;
+import fr.syrdek.ffmpeg.libav.java.io.PrefetchSource;
+import fr.syrdek.ffmpeg.libav.java.io.stream.ThreadingParameters;
 
 /**
  * Permet de lire un conteneur media.
@@ -26,10 +54,40 @@ import fr.syrdek.ffmpeg.libav.java.chain.decode.VideoDecoder;
 public class Demuxer implements AutoCloseable, Producer<AVPacket> {
   private static final Logger LOG = LoggerFactory.getLogger(Demuxer.class);
 
+  /**
+   * Taille par défaut du buffer de lecture des sources personnalisées.
+   */
+  public static final int DEFAULT_IO_BUFFER_SIZE = 64 * 1024;
+
   private Consumer<AVPacket> consumer;
 
   private final AVFormatContext formatCtx;
   private final AVPacket packet;
+  // Contexte de lecture personnalisé. null si le conteneur est lu via son chemin.
+  private final AVIOContext customIo;
+  // Fonctions appelées par libav via le contexte personnalisé : elles ne doivent pas être collectées avant lui.
+  private final Read_packet_Pointer_BytePointer_int customIoReader;
+  private final Seek_Pointer_long_int customIoSeeker;
+  // Source lue par le contexte personnalisé.
+  private final Object customIoSource;
+
+  // Décodeurs ouverts depuis ce conteneur.
+  private final List<Decoder> decoders = new ArrayList<>();
+  // Flux recopiés sans décodage.
+  private final List<StreamCopier> copiers = new ArrayList<>();
+  // Branches de décodage parallèles, une par décodeur ouvert.
+  private final List<AsyncStage<AVPacket>> branches = new ArrayList<>();
+  // Taille de file de chaque branche parallèle. 0 si le décodage n'est pas parallélisé.
+  private int branchCapacity = 0;
+  // Compte dans lequel sont comptabilisés le conteneur et ses décodeurs. null si la mémoire n'est pas comptée.
+  private MemoryAccount memoryAccount;
+  private MemoryAccount.Charge memory;
+  // Taille du plus grand paquet lu.
+  private int maxPacketSize = 0;
+  // Fin de l'intervalle de lecture, en microsecondes. Long.MAX_VALUE pour lire jusqu'à la fin du conteneur.
+  private long rangeEnd = Long.MAX_VALUE;
+  // Flux dont la lecture n'a pas encore atteint la fin de l'intervalle.
+  private final Set<Integer> rangeStreams = new HashSet<>();
 
   /**
    *
@@ -37,20 +95,275 @@ public class Demuxer implements AutoCloseable, Producer<AVPacket> {
    *          Le chemin vers le fichier a ouvrir.
    */
   public Demuxer(final String filepath) {
-    formatCtx = checkAllocation(avformat.avformat_alloc_context(),
-        "Impossible d''allouer le format du fichier d''entrée");
-    // Ouvre le fichier d'entrée.
-    checkAndThrow(avformat.avformat_open_input(formatCtx, filepath, null, null),
-        "Impossible d''ouvrir le fichier d''entrée {0}", filepath);
-    // Récupère les informations de format du fichier.
-    checkAndThrow(avformat.avformat_find_stream_info(formatCtx, (AVDictionary) null),
-        "Impossible de lire les informations de format du fichier d''entrée {0}", filepath);
+    this(filepath, (ProbeCache) null);
+  }
+
+  /**
+   * Lit un fichier en réutilisant, s'il a déjà été analysé, la description de ses flux conservée dans le cache donné.
+   *
+   * @param filepath
+   *          Le chemin vers le fichier a ouvrir.
+   * @param probeCache
+   *          Le cache des analyses de conteneurs. <code>null</code> pour toujours analyser le fichier.
+   */
+  public Demuxer(final String filepath, final ProbeCache probeCache) {
+    this(filepath, null, null, 0, null, null, probeCache, probeCache == null ? null : ProbeCache.keyOf(filepath));
+  }
+
+  /**
+   * Lit un conteneur depuis un buffer en mémoire ou un fichier projeté en mémoire. La source étant adressable, tous
+   * les formats sont supportés, y compris ceux dont l'index est en fin de fichier.
+   *
+   * @param source
+   *          La source à lire.
+   */
+  public Demuxer(final ByteBufferSource source) {
+    this(source, null);
+  }
+
+  /**
+   * Lit un conteneur depuis un buffer en mémoire ou un fichier projeté en mémoire, en réutilisant, si son contenu a
+   * déjà été analysé, la description de ses flux conservée dans le cache donné.
+   *
+   * @param source
+   *          La source à lire, depuis son début même si elle a déjà été lue.
+   * @param probeCache
+   *          Le cache des analyses de conteneurs. <code>null</code> pour toujours analyser la source.
+   */
+  public Demuxer(final ByteBufferSource source, final ProbeCache probeCache) {
+    this(source.getName(),
+        // La source a pu être lue par un précédent conteneur.
+        source.rewind().reader(),
+        source.seeker(),
+        DEFAULT_IO_BUFFER_SIZE,
+        null,
+        source,
+        probeCache,
+        probeCache == null ? null : ProbeCache.keyOf(source));
+  }
+
+  /**
+   * Lit un conteneur depuis une source lue par anticipation dans un thread dédié : le décodage n'attend pas les
+   * entrées / sorties tant que la source a de l'avance. La source n'est pas adressable : les formats dont l'index est
+   * en fin de fichier ne peuvent pas être lus.
+   *
+   * @param source
+   *          La source à lire. N'est pas fermée par le conteneur.
+   * @param formatHint
+   *          Le nom court du format du conteneur (par exemple "mpegts", "matroska", "mp3"). <code>null</code> pour le
+   *          détecter à partir des premiers octets.
+   */
+  public Demuxer(final PrefetchSource source, final String formatHint) {
+    this(source.getName(),
+        source.reader(),
+        null,
+        DEFAULT_IO_BUFFER_SIZE,
+        findInputFormat(formatHint),
+        source,
+        null,
+        null);
+  }
+
+  /**
+   * Lit un conteneur depuis un flux (socket, pipe, stockage objet, ...), sans fichier temporaire.<br>
+   * Un {@link FileInputStream} est lu via son channel, et est donc adressable. Les autres flux ne le sont pas : les
+   * formats dont l'index est en fin de fichier (MP4 non optimisé pour le streaming, ...) ne peuvent pas être lus.
+   *
+   * @param in
+   *          Le flux à lire. N'est pas fermé par le conteneur.
+   * @param formatHint
+   *          Le nom court du format du conteneur (par exemple "mpegts", "matroska", "mp3"). <code>null</code> pour le
+   *          détecter à partir des premiers octets.
+   */
+  public Demuxer(final InputStream in, final String formatHint) {
+    this(in, DEFAULT_IO_BUFFER_SIZE, formatHint);
+  }
+
+  /**
+   * Lit un conteneur depuis un flux (socket, pipe, stockage objet, ...), sans fichier temporaire.<br>
+   * Un {@link FileInputStream} est lu via son channel, et est donc adressable. Les autres flux ne le sont pas : les
+   * formats dont l'index est en fin de fichier (MP4 non optimisé pour le streaming, ...) ne peuvent pas être lus.
+   *
+   * @param in
+   *          Le flux à lire. N'est pas fermé par le conteneur.
+   * @param bufferSize
+   *          La taille du buffer de lecture de libav, en octets.
+   * @param formatHint
+   *          Le nom court du format du conteneur (par exemple "mpegts", "matroska", "mp3"). <code>null</code> pour le
+   *          détecter à partir des premiers octets.
+   */
+  public Demuxer(final InputStream in, final int bufferSize, final String formatHint) {
+    this(in instanceof FileInputStream ? ((FileInputStream) in).getChannel() : null, in, bufferSize, formatHint);
+  }
+
+  /**
+   * Lit un conteneur depuis un channel, sans fichier temporaire ni copie intermédiaire.<br>
+   * Un {@link SeekableByteChannel} (par exemple un {@link java.nio.channels.FileChannel}) est adressable. Les autres
+   * channels ne le sont pas : les formats dont l'index est en fin de fichier ne peuvent alors pas être lus.
+   *
+   * @param in
+   *          Le channel à lire, en mode bloquant. N'est pas fermé par le conteneur.
+   * @param formatHint
+   *          Le nom court du format du conteneur. <code>null</code> pour le détecter à partir des premiers octets.
+   */
+  public Demuxer(final ReadableByteChannel in, final String formatHint) {
+    this(in, DEFAULT_IO_BUFFER_SIZE, formatHint);
+  }
+
+  /**
+   * Lit un conteneur depuis un channel, sans fichier temporaire ni copie intermédiaire.<br>
+   * Un {@link SeekableByteChannel} (par exemple un {@link java.nio.channels.FileChannel}) est adressable. Les autres
+   * channels ne le sont pas : les formats dont l'index est en fin de fichier ne peuvent alors pas être lus.
+   *
+   * @param in
+   *          Le channel à lire, en mode bloquant. N'est pas fermé par le conteneur.
+   * @param bufferSize
+   *          La taille du buffer de lecture de libav, en octets.
+   * @param formatHint
+   *          Le nom court du format du conteneur. <code>null</code> pour le détecter à partir des premiers octets.
+   */
+  public Demuxer(final ReadableByteChannel in, final int bufferSize, final String formatHint) {
+    this(in, null, bufferSize, formatHint);
+  }
+
+  /**
+   * Lit un conteneur depuis un channel ou, à défaut, depuis un flux.
+   */
+  private Demuxer(final ReadableByteChannel channel, final InputStream stream, final int bufferSize,
+      final String formatHint) {
+    this(channel != null ? "channel" : "stream",
+        channel != null
+            ? IOSource.newAvIoReader(channel)
+            : IOSource.newAvIoStreamReader(stream, bufferSize),
+        channel instanceof SeekableByteChannel ? IOSource.newAvIoSeeker((SeekableByteChannel) channel) : null,
+        bufferSize,
+        findInputFormat(formatHint),
+        channel != null ? channel : stream,
+        null,
+        null);
+  }
+
+  /**
+   * @param filepath
+   *          Le chemin du fichier à ouvrir, ou le nom de la source si un contexte de lecture personnalisé est donné.
+   * @param reader
+   *          La fonction de lecture du contexte de lecture personnalisé. <code>null</code> pour lire le fichier donné.
+   * @param seeker
+   *          La fonction de positionnement du contexte personnalisé. <code>null</code> si la source n'est pas
+   *          adressable.
+   * @param bufferSize
+   *          La taille du buffer du contexte personnalisé, en octets.
+   * @param format
+   *          Le format du conteneur. <code>null</code> pour le détecter.
+   * @param ioSource
+   *          La source lue par le contexte personnalisé.
+   * @param probeCache
+   *          Le cache des analyses de conteneurs. <code>null</code> pour toujours analyser le conteneur.
+   * @param probeKey
+   *          La clé du conteneur dans le cache. <code>null</code> si le conteneur ne peut pas être identifié.
+   */
+  private Demuxer(final String filepath, final Read_packet_Pointer_BytePointer_int reader,
+      final Seek_Pointer_long_int seeker, final int bufferSize, final AVInputFormat format, final Object ioSource,
+      final ProbeCache probeCache, final String probeKey) {
+    final AVIOContext io = reader == null ? null : newIOContext(reader, seeker, bufferSize);
+    customIo = io;
+    customIoReader = reader;
+    customIoSeeker = seeker;
+    customIoSource = ioSource;
+
+    final ProbeCache.ProbeInfo cached = probeCache == null || probeKey == null ? null : probeCache.get(probeKey);
+    AVFormatContext ctx = null;
+    try {
+      if (cached != null) {
+        ctx = openCached(filepath, io, format, probeCache, probeKey, cached);
+      }
+      if (ctx == null) {
+        ctx = open(filepath, io, format, false);
+        if (probeKey != null) {
+          probeCache.put(probeKey, ctx);
+        }
+      }
+    } catch (RuntimeException e) {
+      // Le contexte de lecture personnalisé n'est jamais libéré par libav, même en cas d'échec d'ouverture.
+      if (ctx != null) {
+        avformat.avformat_close_input(ctx);
+      }
+      freeIOContext(io);
+      throw e;
+    }
+    formatCtx = ctx;
 
     // Alloue la frame et le paquet de décodage.
     packet = checkAllocation(avcodec.av_packet_alloc(), "Impossible d''allouer le paquet de décodage.");
     avcodec.av_init_packet(packet);
   }
 
+  /**
+   * Ouvre et analyse un conteneur.
+   *
+   * @param filepath
+   *          Le chemin du fichier à ouvrir, ou le nom de la source si un contexte de lecture personnalisé est donné.
+   * @param io
+   *          Le contexte de lecture personnalisé. <code>null</code> pour lire le fichier donné.
+   * @param format
+   *          Le format du conteneur. <code>null</code> pour le détecter.
+   * @param minimal
+   *          <code>true</code> pour limiter l'analyse au début du conteneur, les paramètres des flux étant déjà connus.
+   * @return Le contexte du conteneur ouvert.
+   */
+  private static AVFormatContext open(final String filepath, final AVIOContext io, final AVInputFormat format,
+      final boolean minimal) {
+    final AVFormatContext ctx = checkAllocation(avformat.avformat_alloc_context(),
+        "Impossible d''allouer le format du fichier d''entrée");
+    if (io != null) {
+      ctx.pb(io);
+      ctx.flags(CFlag.plus(ctx.flags(), AVFormatFlag.CUSTOM_IO));
+    }
+    if (minimal) {
+      ctx.probesize(ProbeCache.CACHED_PROBE_SIZE);
+      ctx.max_analyze_duration(ProbeCache.CACHED_ANALYZE_DURATION);
+    }
+    // Ouvre le fichier d'entrée. En cas d'échec, le contexte est libéré par libav.
+    checkAndThrow(avformat.avformat_open_input(ctx, filepath, format, null),
+        "Impossible d''ouvrir le fichier d''entrée {0}", filepath);
+    try {
+      // Récupère les informations de format du fichier.
+      checkAndThrow(avformat.avformat_find_stream_info(ctx, (AVDictionary) null),
+          "Impossible de lire les informations de format du fichier d''entrée {0}", filepath);
+    } catch (FFmpegException e) {
+      avformat.avformat_close_input(ctx);
+      throw e;
+    }
+    return ctx;
+  }
+
+  /**
+   * Ouvre un conteneur déjà analysé, avec une analyse minimale complétée par le cache.
+   *
+   * @return Le contexte du conteneur ouvert. <code>null</code> si le conteneur ne correspond plus au cache : il doit
+   *         alors être analysé complètement.
+   */
+  private static AVFormatContext openCached(final String filepath, final AVIOContext io, final AVInputFormat format,
+      final ProbeCache probeCache, final String probeKey, final ProbeCache.ProbeInfo cached) {
+    AVFormatContext ctx = null;
+    try {
+      ctx = open(filepath, io, format != null ? format : avformat.av_find_input_format(cached.getFormatName()), true);
+      if (probeCache.restore(probeKey, cached, ctx)) {
+        LOG.debug("Analyse de {} complétée depuis le cache.", filepath);
+        return ctx;
+      }
+      avformat.avformat_close_input(ctx);
+    } catch (FFmpegException e) {
+      LOG.warn("Echec de l'ouverture de {} depuis le cache d'analyse : {}", filepath, e.getMessage());
+      probeCache.invalidate(probeKey);
+    }
+    // Relit le conteneur depuis le début.
+    if (io != null) {
+      avformat.avio_seek(io, 0, IOCallbacks.SEEK_SET);
+    }
+    return null;
+  }
+
   /**
    * Affiche le format du fichier d'entrée.
    */
@@ -58,6 +371,53 @@ public class Demuxer implements AutoCloseable, Producer<AVPacket> {
     avformat.av_dump_format(formatCtx, 0, (String) null, 0);
   }
 
+  /**
+   * Active le décodage parallèle des flux.<br>
+   * Chaque décodeur ouvert après l'appel à cette méthode reçoit ses paquets dans son propre thread, via une file bornée.
+   * Le décodage, et toutes les étapes situées en aval du décodeur, d'un flux ne bloquent alors plus les autres flux.
+   * {@link #read()} attend que toutes les branches aient terminé leur traitement avant de rendre la main.<br>
+   * Les flux parallèles écrivant dans un même {@link Muxer} doivent y être recombinés via un
+   * {@link fr.syrdek.ffmpeg.libav.java.chain.async.Interleaver}.
+   *
+   * @param capacity
+   *          Le nombre maximal de paquets en attente par flux.
+   * @return Cette instance.
+   */
+  public Demuxer enableParallelDecoding(final int capacity) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("La taille de file doit être positive : " + capacity);
+    }
+    branchCapacity = capacity;
+    return this;
+  }
+
+  /**
+   * Comptabilise la mémoire retenue par le conteneur (buffer de lecture, paquet lu) dans le compte donné. Les
+   * décodeurs ouverts depuis ce conteneur, avant ou après l'appel, utilisent le même compte.
+   *
+   * @param account
+   *          Le compte dans lequel comptabiliser la mémoire. Peut être <code>null</code>.
+   * @return Cette instance.
+   */
+  public Demuxer withMemoryAccount(final MemoryAccount account) {
+    if (memory != null) {
+      memory.close();
+    }
+    memoryAccount = account;
+    memory = account == null ? null : account.open("Demuxer");
+    chargeMemory();
+    decoders.forEach(d -> d.withMemoryAccount(account));
+    return this;
+  }
+
+  /**
+   * @return Le compte dans lequel est comptabilisée la mémoire du conteneur. <code>null</code> si elle n'est pas
+   *         comptée.
+   */
+  public MemoryAccount getMemoryAccount() {
+    return memoryAccount;
+  }
+
   /**
    * Ouvre le flux donné
    *
@@ -68,11 +428,53 @@ public class Demuxer implements AutoCloseable, Producer<AVPacket> {
    * @return Le décodeur du flux demandé.
    */
   public Decoder openDecoder(int index, final AVDictionary options) {
-    final Decoder decoder = Decoder.openStreamDecoder(formatCtx, index, options);
-    sendTo(decoder);
+    return openDecoder(index, options, null);
+  }
+
+  /**
+   * Ouvre le flux donné
+   *
+   * @param index
+   *          Le numéro de flux à ouvrir.
+   * @param options
+   *          Les options de décodage. Peut être <code>null</code>.
+   * @param threading
+   *          La parallélisation du décodeur. Peut être <code>null</code>.
+   * @return Le décodeur du flux demandé.
+   */
+  public Decoder openDecoder(int index, final AVDictionary options, final ThreadingParameters threading) {
+    final Decoder decoder = Decoder.openStreamDecoder(formatCtx, index, options, threading);
+    attach(decoder);
     return decoder;
   }
 
+  /**
+   * Recopie un flux dans un conteneur de sortie, sans le décoder.
+   *
+   * @param index
+   *          Le numéro de flux à recopier.
+   * @param destination
+   *          Le conteneur dans lequel recopier le flux. Ses entêtes ne doivent pas encore être écrites.
+   * @return La copie du flux, à fermer après la lecture.
+   */
+  public StreamCopier openStreamCopy(final int index, final Muxer destination) {
+    LOG.debug("Copie du flux {}", index);
+    final StreamCopier copier = new StreamCopier(formatCtx.streams(index), destination);
+    copiers.add(copier);
+    sendTo(copier);
+    return copier;
+  }
+
+  /**
+   * @param type
+   *          Le type de flux recherché.
+   * @return Le flux de ce type de meilleure qualité possible. <code>null</code> si le conteneur n'en contient pas.
+   */
+  public AVStream findBestStream(final Media type) {
+    final int index = avformat.av_find_best_stream(formatCtx, type.value(), -1, -1, (AVCodec) null, 0);
+    return index < 0 ? null : formatCtx.streams(index);
+  }
+
   /**
    * Ouvre le flux vidéo de meilleure qualité possible.
    *
@@ -81,9 +483,22 @@ public class Demuxer implements AutoCloseable, Producer<AVPacket> {
    * @return Le décodeur du meilleur flux vidéo contenu.
    */
   public VideoDecoder openVideoDecoder(final AVDictionary options) {
+    return openVideoDecoder(options, null);
+  }
+
+  /**
+   * Ouvre le flux vidéo de meilleure qualité possible.
+   *
+   * @param options
+   *          Les options de décodage. Peut être <code>null</code>.
+   * @param threading
+   *          La parallélisation du décodeur. Peut être <code>null</code>.
+   * @return Le décodeur du meilleur flux vidéo contenu.
+   */
+  public VideoDecoder openVideoDecoder(final AVDictionary options, final ThreadingParameters threading) {
     LOG.debug("Ouverture d'un flux video");
-    final Decoder decoder = Decoder.openStreamDecoder(formatCtx, Media.VIDEO, options);
-    sendTo(decoder);
+    final Decoder decoder = Decoder.openStreamDecoder(formatCtx, Media.VIDEO, options, threading);
+    attach(decoder);
     return (VideoDecoder) decoder;
   }
 
@@ -95,12 +510,57 @@ public class Demuxer implements AutoCloseable, Producer<AVPacket> {
    * @return Le décodeur du meilleur flux audio contenu.
    */
   public AudioDecoder openAudioDecoder(final AVDictionary options) {
+    return openAudioDecoder(options, null);
+  }
+
+  /**
+   * Ouvre le flux audio de meilleure qualité possible.
+   *
+   * @param options
+   *          Les options de décodage. Peut être <code>null</code>.
+   * @param threading
+   *          La parallélisation du décodeur. Peut être <code>null</code>.
+   * @return Le décodeur du meilleur flux audio contenu.
+   */
+  public AudioDecoder openAudioDecoder(final AVDictionary options, final ThreadingParameters threading) {
     LOG.debug("Ouverture d'un flux audio");
-    final Decoder decoder = Decoder.openStreamDecoder(formatCtx, Media.AUDIO, options);
-    sendTo(decoder);
+    final Decoder decoder = Decoder.openStreamDecoder(formatCtx, Media.AUDIO, options, threading);
+    attach(decoder);
     return (AudioDecoder) decoder;
   }
 
+  /**
+   * Branche le décodeur donné sur les paquets lus. Si le décodage parallèle est activé, le décodeur est placé derrière
+   * une file qui lui est propre.
+   *
+   * @param decoder
+   *          Le décodeur à brancher. Peut être <code>null</code>.
+   */
+  private void attach(final Decoder decoder) {
+    if (decoder == null) {
+      return;
+    }
+    decoders.add(decoder);
+    if (memoryAccount != null) {
+      decoder.withMemoryAccount(memoryAccount);
+    }
+    if (branchCapacity <= 0) {
+      sendTo(decoder);
+      return;
+    }
+
+    final AsyncStage<AVPacket> branch = AsyncStage.ofPackets(
+        decoder.getMedia().name().toLowerCase() + "-" + decoder.getStreamIndex(), branchCapacity);
+    branch.sendTo(decoder);
+    branches.add(branch);
+    // Seuls les paquets du flux décodé sont placés dans la file.
+    sendTo(p -> {
+      if (decoder.isAddressedBy(p)) {
+        branch.accept(p);
+      }
+    });
+  }
+
   /**
    * Decode entièrement les flux du conteneur.<br>
    * Seuls les décodeurs ouverts via {@link Demuxer#openDecoder(int, AVDictionary)},
@@ -112,16 +572,293 @@ public class Demuxer implements AutoCloseable, Producer<AVPacket> {
    */
   public void read() {
     LOG.debug("Lecture du conteneur en entree");
-    while (avformat.av_read_frame(formatCtx, packet) >= 0) {
+    while (readPacket()) {
+      // Les paquets sont dispatchés au fil de la lecture.
+    }
+    // Attend la fin du traitement des branches parallèles.
+    branches.forEach(AsyncStage::finish);
+  }
+
+  /**
+   * Decode un intervalle de temps des flux du conteneur, comme {@link #read()}, sans lire les données situées avant
+   * l'image clé précédant le début de l'intervalle, ni celles situées après sa fin.<br>
+   * Voir {@link #seekRange(long, long)}. Les décodeurs doivent être vidés par l'appelant (via
+   * {@link Decoder#drain()}) : l'intervalle leur reste appliqué.
+   *
+   * @param start
+   *          Le début de l'intervalle, en microsecondes depuis le début du conteneur.
+   * @param end
+   *          La fin de l'intervalle (exclue), en microsecondes depuis le début du conteneur. <code>Long.MAX_VALUE</code>
+   *          pour lire jusqu'à la fin du conteneur.
+   */
+  public void read(final long start, final long end) {
+    seekRange(start, end);
+    read();
+  }
+
+  /**
+   * Lit le prochain paquet du conteneur et l'envoie aux consommateurs.<br>
+   * Permet au code appelant de contrôler la lecture, par exemple pour l'interrompre avant la fin du conteneur.
+   *
+   * @return <code>true</code> si un paquet a été lu, <code>false</code> si la fin du conteneur, ou la fin de
+   *         l'intervalle donné à {@link #seekRange(long, long)}, est atteinte.
+   */
+  public boolean readPacket() {
+    if (!readInRange()) {
+      return false;
+    }
+    try {
       consumer.accept(packet);
+    } finally {
+      // Les consommateurs qui conservent le paquet (branches parallèles, ...) ont pris leur propre référence.
+      avcodec.av_packet_unref(packet);
     }
+    return true;
+  }
+
+  /**
+   * Permet de lire les paquets du conteneur à la demande, sans passer par les consommateurs.<br>
+   * Chaque paquet retourné n'est valide que jusqu'à la lecture du suivant.<br>
+   * Comme {@link #readPacket()}, l'itération s'arrête à la fin de l'intervalle donné à
+   * {@link #seekRange(long, long)}. Les paquets ne sont pas filtrés au début de l'intervalle : le premier est celui de
+   * l'image clé qui le précède.
+   *
+   * @return Un itérateur sur les paquets restants du conteneur, ou de l'intervalle de lecture.
+   */
+  public PullIterator<AVPacket> packets() {
+    return new PullIterator<AVPacket>() {
+      @Override
+      protected AVPacket fetch() {
+        avcodec.av_packet_unref(packet);
+        return readInRange() ? packet : null;
+      }
+
+      @Override
+      protected void onClose() {
+        avcodec.av_packet_unref(packet);
+      }
+    };
+  }
+
+  /**
+   * Se positionne dans le conteneur au timestamp donné, puis réinitialise les décodeurs ouverts.
+   *
+   * @param streamIndex
+   *          L'index du flux dans la base de temps duquel est exprimé le timestamp. -1 pour un timestamp exprimé en
+   *          microsecondes (<code>AV_TIME_BASE</code>).
+   * @param timestamp
+   *          Le timestamp auquel se positionner.
+   * @param flags
+   *          Les drapeaux de positionnement (par exemple {@link AVSeekFlag#AVSEEK_FLAG_BACKWARD} pour se positionner
+   *          sur l'image clé précédant le timestamp).
+   */
+  public void seek(final int streamIndex, final long timestamp, final AVSeekFlag... flags) {
+    int seekFlags = 0;
+    for (final AVSeekFlag flag : flags) {
+      seekFlags = CFlag.plus(seekFlags, flag);
+    }
+
+    LOG.debug("Positionnement au timestamp {} du flux {}.", timestamp, streamIndex);
+    checkAndThrow(avformat.av_seek_frame(formatCtx, streamIndex, timestamp, seekFlags),
+        "Impossible de se positionner au timestamp {0} du flux {1}.", String.valueOf(timestamp), streamIndex);
+
+    // Les données retenues par les décodeurs ne correspondent plus à la nouvelle position.
+    decoders.forEach(Decoder::flush);
+  }
+
+  /**
+   * Se positionne dans le conteneur sur l'image clé précédant le timestamp donné, puis réinitialise les décodeurs
+   * ouverts.
+   *
+   * @param timestamp
+   *          La position à atteindre, en microsecondes depuis le début du conteneur.
+   * @param flags
+   *          Les drapeaux de positionnement. Aucun pour se positionner sur l'image clé suivant le timestamp,
+   *          {@link AVSeekFlag#AVSEEK_FLAG_BACKWARD} pour l'image clé précédente.
+   */
+  public void seek(final long timestamp, final AVSeekFlag... flags) {
+    seek(-1, getStartTime() + timestamp, flags);
+  }
+
+  /**
+   * Prépare la lecture d'un intervalle de temps : se positionne sur l'image clé précédant le début de l'intervalle,
+   * puis limite la lecture via {@link #read()} et {@link #readPacket()} à la fin de l'intervalle.<br>
+   * Les décodeurs déjà ouverts ignorent les frames décodées hors de l'intervalle : les frames situées entre l'image clé
+   * et le début de l'intervalle ne sont décodées que pour reconstruire les suivantes. La lecture s'arrête dès que tous
+   * les flux décodés ou recopiés (ou tous les flux du conteneur si aucun ne l'est) ont atteint la fin de l'intervalle.
+   * Les flux recopiés commencent à l'image clé précédant le début de l'intervalle.
+   *
+   * @param start
+   *          Le début de l'intervalle, en microsecondes depuis le début du conteneur.
+   * @param end
+   *          La fin de l'intervalle (exclue), en microsecondes depuis le début du conteneur. <code>Long.MAX_VALUE</code>
+   *          pour lire jusqu'à la fin du conteneur.
+   */
+  public void seekRange(final long start, final long end) {
+    if (end <= start) {
+      throw new IllegalArgumentException("Intervalle de lecture vide : [" + start + ", " + end + "[");
+    }
+    seek(start, AVSeekFlag.AVSEEK_FLAG_BACKWARD);
+
+    final long offset = getStartTime();
+    rangeEnd = end == Long.MAX_VALUE ? Long.MAX_VALUE : offset + end;
+    rangeStreams.clear();
+    decoders.forEach(d -> rangeStreams.add(d.getStreamIndex()));
+    copiers.forEach(c -> rangeStreams.add(c.getSource().index()));
+    if (rangeStreams.isEmpty()) {
+      for (int i = 0; i < formatCtx.nb_streams(); i++) {
+        rangeStreams.add(i);
+      }
+    }
+    decoders.forEach(d -> d.withRange(offset + start, rangeEnd));
+  }
+
+  /**
+   * @return Le timestamp de début du conteneur, en microsecondes. 0 s'il n'est pas connu.
+   */
+  public long getStartTime() {
+    final long startTime = formatCtx.start_time();
+    return startTime == avutil.AV_NOPTS_VALUE ? 0 : startTime;
+  }
+
+  /**
+   * Lit le prochain paquet du conteneur qui n'est pas situé après la fin de l'intervalle de lecture.
+   *
+   * @return <code>true</code> si un paquet a été lu, <code>false</code> si la fin du conteneur, ou la fin de
+   *         l'intervalle de lecture, est atteinte.
+   */
+  private boolean readInRange() {
+    int ret;
+    while ((ret = avformat.av_read_frame(formatCtx, packet)) >= 0 && isPastRange(packet)) {
+      avcodec.av_packet_unref(packet);
+      if (rangeStreams.isEmpty()) {
+        LOG.debug("Fin de l'intervalle de lecture atteinte.");
+        return false;
+      }
+    }
+    if (ret < 0) {
+      if (ret != avutil.AVERROR_EOF) {
+        FFmpegException.checkAndLogWarn(ret);
+      }
+      return false;
+    }
+    chargePacket();
+    return true;
+  }
+
+  /**
+   * @return <code>true</code> si le paquet lu est situé après la fin de l'intervalle de lecture.
+   */
+  private boolean isPastRange(final AVPacket read) {
+    if (rangeEnd == Long.MAX_VALUE) {
+      return false;
+    }
+    // Le DTS est croissant dans chaque flux : le paquet et les suivants de son flux ne sont pas utiles à l'intervalle.
+    final long ts = TimeUtils.toMicros(read.dts() != avutil.AV_NOPTS_VALUE ? read.dts() : read.pts(),
+        formatCtx.streams(read.stream_index()).time_base());
+    if (ts == avutil.AV_NOPTS_VALUE || ts < rangeEnd) {
+      return false;
+    }
+    rangeStreams.remove(read.stream_index());
+    return true;
   }
 
   @Override
   public void close() {
     LOG.debug("Fermeture du conteneur en entree");
+    branches.forEach(AsyncStage::close);
     packet.close();
     avformat.avformat_close_input(formatCtx);
+    if (customIo != null) {
+      freeIOContext(customIo);
+      LOG.debug("Contexte de lecture de {} libéré.", customIoSource);
+    }
+    if (memory != null) {
+      memory.close();
+    }
+  }
+
+  /**
+   * @return Le contexte du conteneur lu.
+   */
+  public AVFormatContext getFormatCtx() {
+    return formatCtx;
+  }
+
+  /**
+   * @param formatHint
+   *          Le nom court d'un format de conteneur. Peut être <code>null</code>.
+   * @return Le format correspondant. <code>null</code> si aucun nom n'est donné.
+   */
+  private static AVInputFormat findInputFormat(final String formatHint) {
+    if (formatHint == null) {
+      return null;
+    }
+    return checkAllocation(avformat.av_find_input_format(formatHint),
+        "Format de conteneur {0} inconnu.", formatHint);
+  }
+
+  /**
+   * Construit un contexte de lecture personnalisé.
+   *
+   * @param reader
+   *          La fonction de lecture.
+   * @param seeker
+   *          La fonction de positionnement. <code>null</code> si la source n'est pas adressable.
+   * @param bufferSize
+   *          La taille du buffer de lecture.
+   * @return Le contexte de lecture.
+   */
+  private static AVIOContext newIOContext(final Read_packet_Pointer_BytePointer_int reader,
+      final Seek_Pointer_long_int seeker, final int bufferSize) {
+    final BytePointer buffer = checkAllocation(new BytePointer(avutil.av_malloc(bufferSize)),
+        "Impossible d''allouer le buffer de lecture de {0} octets.", bufferSize);
+    final AVIOContext io;
+    try {
+      io = checkAllocation(avformat.avio_alloc_context(buffer, bufferSize, 0, null, reader, null, seeker),
+          "Impossible d''allouer le contexte de lecture.");
+    } catch (FFmpegException e) {
+      avutil.av_free(buffer);
+      throw e;
+    }
+    // Lecture seule.
+    io.write_flag(0);
+    io.seekable(seeker == null ? 0 : avformat.AVIO_SEEKABLE_NORMAL);
+    return io;
+  }
+
+  /**
+   * Libère un contexte de lecture personnalisé et son buffer.
+   *
+   * @param io
+   *          Le contexte à libérer. Peut être <code>null</code>.
+   */
+  private static void freeIOContext(final AVIOContext io) {
+    if (io != null) {
+      // Le buffer a pu être réalloué par libav.
+      avutil.av_free(io.buffer());
+      avformat.avio_context_free(io);
+    }
+  }
+
+  /**
+   * Met à jour l'estimation de la mémoire retenue lorsqu'un paquet plus grand que les précédents est lu.
+   */
+  private void chargePacket() {
+    if (memory != null && packet.size() > maxPacketSize) {
+      maxPacketSize = packet.size();
+      chargeMemory();
+    }
+  }
+
+  /**
+   * Met à jour l'estimation de la mémoire retenue : buffer de lecture et paquet lu.
+   */
+  private void chargeMemory() {
+    if (memory != null) {
+      final AVIOContext pb = formatCtx.pb();
+      memory.set((pb == null || pb.isNull() ? 0 : pb.buffer_size()) + (long) maxPacketSize);
+    }
   }
 
   @Override
@@ -0,0 +1,313 @@
+/**
+ *
+ */
+package fr.syrdek.ffmpeg.libav.java.chain;
+
+import static fr.syrdek.ffmpeg.libav.java.FFmpegException.checkAllocation;
+import static fr.syrdek.ffmpeg.libav.java.FFmpegException.checkAndThrow;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bytedeco.ffmpeg.avutil.AVBufferPool;
+import org.bytedeco.ffmpeg.avutil.AVBufferRef;
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+import org.bytedeco.ffmpeg.avutil.Alloc_int;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fr.syrdek.ffmpeg.libav.java.FFmpegException;
+
+/**
+ * Réserve de frames dont les données sont allouées dans des {@link AVBufferPool}, une réserve par géométrie de frame
+ * (format et dimensions pour la vidéo, format, nombre de samples et channels pour l'audio).<br>
+ * Les frames retournées sont comptées par référence : libérer une frame via {@link #release(AVFrame)} (ou
+ * <code>av_frame_free</code>) rend son buffer à la réserve dès que plus aucune référence (par exemple celle prise par
+ * un encodeur ou une {@link fr.syrdek.ffmpeg.libav.java.chain.async.AsyncStage}) ne le retient. Les frames produites
+ * peuvent donc être référencées sans copie.<br>
+ * Une réserve peut être partagée entre plusieurs étapes et plusieurs threads.<br>
+ * Si un {@link MemoryAccount} est donné, les buffers alloués par la réserve y sont comptés jusqu'à sa fermeture.
+ *
+ * @author t0087865
+ */
+public class FramePool implements AutoCloseable {
+  private static final Logger LOG = LoggerFactory.getLogger(FramePool.class);
+
+  /**
+   * Alignement des lignes des images, compatible avec les optimisations SIMD de libswscale.
+   */
+  public static final int ALIGN = 32;
+
+  // Taille du tableau data d'une AVFrame (AV_NUM_DATA_POINTERS, non exporté par JavaCPP).
+  private static final int NUM_DATA_POINTERS = 8;
+
+  /**
+   * Géométrie des frames d'une réserve.
+   */
+  private static final class Key {
+    private final int format;
+    private final int width;
+    private final int height;
+    private final int samples;
+    private final int channels;
+    private final long layout;
+
+    Key(final int format, final int width, final int height, final int samples, final int channels,
+        final long layout) {
+      this.format = format;
+      this.width = width;
+      this.height = height;
+      this.samples = samples;
+      this.channels = channels;
+      this.layout = layout;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(format, width, height, samples, channels, layout);
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      final Key o = (Key) obj;
+      return format == o.format && width == o.width && height == o.height && samples == o.samples
+          && channels == o.channels && layout == o.layout;
+    }
+  }
+
+  /**
+   * Réserve de buffers d'une géométrie donnée.
+   */
+  private final class Entry {
+    private final int size;
+    private final AVBufferPool pool;
+    // Appelé par libavutil lorsque la réserve est vide. Doit être conservé tant que la réserve existe.
+    private final Alloc_int allocator;
+
+    Entry(final int size) {
+      this.size = size;
+      allocator = new Alloc_int() {
+        @Override
+        public AVBufferRef call(final int s) {
+          misses.incrementAndGet();
+          if (memory != null) {
+            try {
+              memory.add(s);
+            } catch (FFmpegException e) {
+              // Ne pas lever d'exception depuis le code natif : l'erreur est propagée par get().
+              allocFailure.set(e);
+              return null;
+            }
+          }
+          return avutil.av_buffer_alloc(s);
+        }
+      };
+      pool = checkAllocation(avutil.av_buffer_pool_init(size, allocator),
+          "Impossible d''allouer une réserve de buffers de {0} octets.", size);
+    }
+
+    AVBufferRef get() {
+      final AVBufferRef buf = avutil.av_buffer_pool_get(pool);
+      final FFmpegException failure = allocFailure.get();
+      if (failure != null) {
+        allocFailure.remove();
+        throw failure;
+      }
+      return checkAllocation(buf, "Impossible d''obtenir un buffer de {0} octets.", size);
+    }
+
+    void close() {
+      // Les buffers encore référencés seront libérés lors de leur dernier déréférencement.
+      avutil.av_buffer_pool_uninit(pool);
+    }
+  }
+
+  private final Map<Key, Entry> entries = new HashMap<>();
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  // Erreur levée par le compte mémoire lors d'une allocation demandée par libavutil.
+  private final ThreadLocal<FFmpegException> allocFailure = new ThreadLocal<>();
+  private final MemoryAccount.Charge memory;
+  private boolean closed = false;
+
+  /**
+   * Construit une réserve dont la mémoire n'est pas comptée.
+   */
+  public FramePool() {
+    this(null);
+  }
+
+  /**
+   * @param account
+   *          Le compte dans lequel comptabiliser les buffers alloués. Peut être <code>null</code>.
+   */
+  public FramePool(final MemoryAccount account) {
+    memory = account == null ? null : account.open("FramePool");
+  }
+
+  /**
+   * Fournit une frame vidéo dont les données proviennent de la réserve.
+   *
+   * @param format
+   *          Le format de pixel.
+   * @param width
+   *          La largeur d'image.
+   * @param height
+   *          La hauteur d'image.
+   * @return Une frame, à libérer via {@link #release(AVFrame)}.
+   */
+  public AVFrame acquireVideo(final int format, final int width, final int height) {
+    final Entry entry = entry(new Key(format, width, height, 0, 0, 0),
+        () -> avutil.av_image_get_buffer_size(format, width, height, ALIGN));
+    final AVFrame frame = allocFrame();
+    frame.format(format);
+    frame.width(width);
+    frame.height(height);
+
+    final AVBufferRef buf = entry.get();
+    frame.buf(0, buf);
+    checkAndThrow(avutil.av_image_fill_arrays(frame.data(), frame.linesize(), buf.data(), format, width, height,
+        ALIGN), "Impossible de découper une image de {0}x{1} dans un buffer.", width, height);
+    frame.extended_data(frame.data());
+    return frame;
+  }
+
+  /**
+   * Fournit une frame audio dont les données proviennent de la réserve.
+   *
+   * @param format
+   *          Le format de sample.
+   * @param nbSamples
+   *          Le nombre de samples par channel.
+   * @param channels
+   *          Le nombre de channels.
+   * @param layout
+   *          La disposition des channels.
+   * @param sampleRate
+   *          La fréquence d'échantillonnage.
+   * @return Une frame, à libérer via {@link #release(AVFrame)}.
+   */
+  public AVFrame acquireAudio(final int format, final int nbSamples, final int channels, final long layout,
+      final int sampleRate) {
+    final AVFrame frame = allocFrame();
+    frame.format(format);
+    frame.nb_samples(nbSamples);
+    frame.channels(channels);
+    frame.channel_layout(layout);
+    frame.sample_rate(sampleRate);
+
+    if (avutil.av_sample_fmt_is_planar(format) != 0 && channels > NUM_DATA_POINTERS) {
+      // Trop de plans pour le tableau data de la frame : laisse libavutil gérer extended_data.
+      requests.incrementAndGet();
+      misses.incrementAndGet();
+      checkAndThrow(avutil.av_frame_get_buffer(frame, 0));
+      return frame;
+    }
+
+    final Entry entry = entry(new Key(format, 0, 0, nbSamples, channels, layout),
+        () -> avutil.av_samples_get_buffer_size((int[]) null, channels, nbSamples, format, 0));
+    final AVBufferRef buf = entry.get();
+    frame.buf(0, buf);
+    checkAndThrow(avutil.av_samples_fill_arrays(frame.data(), frame.linesize(), buf.data(), channels, nbSamples,
+        format, 0), "Impossible de découper {0} samples dans un buffer.", nbSamples);
+    frame.extended_data(frame.data());
+    return frame;
+  }
+
+  /**
+   * Libère une frame. Son buffer retourne à la réserve dès qu'il n'est plus référencé.
+   *
+   * @param frame
+   *          La frame à libérer.
+   */
+  public void release(final AVFrame frame) {
+    avutil.av_frame_free(frame);
+  }
+
+  /**
+   * @return Le nombre de frames fournies par la réserve.
+   */
+  public long getRequests() {
+    return requests.get();
+  }
+
+  /**
+   * @return Le nombre de frames fournies en réutilisant un buffer de la réserve.
+   */
+  public long getHits() {
+    return requests.get() - misses.get();
+  }
+
+  /**
+   * @return Le nombre de frames pour lesquelles un nouveau buffer a dû être alloué.
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  @Override
+  public synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    LOG.debug("Fermeture de la réserve de frames : {}", this);
+    entries.values().forEach(Entry::close);
+    entries.clear();
+    if (memory != null) {
+      memory.close();
+    }
+  }
+
+  /**
+   * @return Le compte dans lequel sont comptabilisés les buffers alloués. <code>null</code> si la mémoire n'est pas
+   *         comptée.
+   */
+  public MemoryAccount getMemoryAccount() {
+    return memory == null ? null : memory.getAccount();
+  }
+
+  @Override
+  public String toString() {
+    return "FramePool [pools=" + entries.size() + ", requests=" + getRequests() + ", hits=" + getHits() + ", misses="
+        + getMisses() + "]";
+  }
+
+  /**
+   * Calcule la taille des buffers d'une réserve.
+   */
+  @FunctionalInterface
+  private interface SizeComputer {
+    int size();
+  }
+
+  /**
+   * @return La réserve correspondant à la géométrie donnée, créée si besoin.
+   */
+  private synchronized Entry entry(final Key key, final SizeComputer size) {
+    if (closed) {
+      throw new IllegalStateException("La réserve de frames est fermée.");
+    }
+    requests.incrementAndGet();
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      final int bytes = checkAndThrow(size.size(), "Impossible de calculer la taille d''une frame.");
+      entry = new Entry(bytes);
+      entries.put(key, entry);
+    }
+    return entry;
+  }
+
+  /**
+   * @return Une frame vide.
+   */
+  private static AVFrame allocFrame() {
+    return checkAllocation(avutil.av_frame_alloc(), "Impossible d''allouer une frame.");
+  }
+}
@@ -0,0 +1,231 @@
+/**
+ *
+ */
+package fr.syrdek.ffmpeg.libav.java.chain;
+
+import java.text.MessageFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.bytedeco.ffmpeg.avutil.AVBufferRef;
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fr.syrdek.ffmpeg.libav.java.FFmpegException;
+
+/**
+ * Comptabilise la mémoire native retenue par les étapes d'une chaine de traitement (conteneurs, décodeurs,
+ * encodeurs, réserves de frames, fifo audio, ...).<br>
+ * Chaque étape ouvre une {@link Charge} à son nom, et la met à jour lorsqu'elle alloue ou libère des buffers. Le
+ * compte expose la consommation courante et le pic de consommation, au total et par étape.<br>
+ * Un plafond optionnel peut être défini : une étape dont la charge ferait dépasser le plafond échoue immédiatement
+ * avec une {@link FFmpegException}, plutôt que de laisser la mémoire native de la JVM s'épuiser.<br>
+ * Les charges des codecs sont des estimations : libavcodec ne permet pas de connaître précisément la mémoire qu'il
+ * retient. Les contextes swscale et swresample ne sont pas comptés.
+ *
+ * @author t0087865
+ */
+public class MemoryAccount {
+  private static final Logger LOG = LoggerFactory.getLogger(MemoryAccount.class);
+
+  // Taille du tableau buf d'une AVFrame (AV_NUM_DATA_POINTERS, non exporté par JavaCPP).
+  private static final int NUM_DATA_POINTERS = 8;
+
+  /**
+   * Mémoire retenue par une étape de la chaine.
+   */
+  public final class Charge implements AutoCloseable {
+    private final String component;
+    private long bytes = 0;
+
+    private Charge(final String component) {
+      this.component = component;
+    }
+
+    /**
+     * Définit la mémoire retenue par l'étape.
+     *
+     * @param newBytes
+     *          La mémoire retenue, en octets.
+     * @throws FFmpegException
+     *           Si la nouvelle charge fait dépasser le plafond du compte. La charge n'est alors pas modifiée.
+     */
+    public void set(final long newBytes) {
+      update(this, newBytes);
+    }
+
+    /**
+     * Ajoute de la mémoire à celle retenue par l'étape.
+     *
+     * @param delta
+     *          La mémoire ajoutée (ou retirée si négative), en octets.
+     * @throws FFmpegException
+     *           Si la nouvelle charge fait dépasser le plafond du compte. La charge n'est alors pas modifiée.
+     */
+    public void add(final long delta) {
+      synchronized (MemoryAccount.this) {
+        update(this, bytes + delta);
+      }
+    }
+
+    /**
+     * @return La mémoire retenue par l'étape, en octets.
+     */
+    public long get() {
+      synchronized (MemoryAccount.this) {
+        return bytes;
+      }
+    }
+
+    /**
+     * @return Le compte auquel appartient cette charge.
+     */
+    public MemoryAccount getAccount() {
+      return MemoryAccount.this;
+    }
+
+    /**
+     * Libère toute la mémoire retenue par l'étape.
+     */
+    @Override
+    public void close() {
+      set(0);
+    }
+  }
+
+  private final String name;
+  private final long cap;
+  private final Map<String, Long> usage = new LinkedHashMap<>();
+  private long current = 0;
+  private long peak = 0;
+
+  /**
+   * Construit un compte sans plafond.
+   *
+   * @param name
+   *          Le nom du compte (par exemple le nom du fichier traité).
+   */
+  public MemoryAccount(final String name) {
+    this(name, 0);
+  }
+
+  /**
+   * @param name
+   *          Le nom du compte (par exemple le nom du fichier traité).
+   * @param cap
+   *          La mémoire native maximale pouvant être retenue par l'ensemble des étapes, en octets. 0 pour ne pas
+   *          limiter la mémoire.
+   */
+  public MemoryAccount(final String name, final long cap) {
+    if (cap < 0) {
+      throw new IllegalArgumentException("Le plafond mémoire doit être positif : " + cap);
+    }
+    this.name = name;
+    this.cap = cap;
+  }
+
+  /**
+   * Ouvre une charge pour une étape de la chaine. Plusieurs charges peuvent porter le même nom : leurs consommations
+   * sont alors additionnées.
+   *
+   * @param component
+   *          Le nom de l'étape.
+   * @return Une charge vide, à fermer lorsque l'étape libère ses ressources.
+   */
+  public Charge open(final String component) {
+    return new Charge(component);
+  }
+
+  /**
+   * @return La mémoire native retenue, en octets.
+   */
+  public synchronized long getCurrent() {
+    return current;
+  }
+
+  /**
+   * @return La plus grande quantité de mémoire native retenue depuis la construction du compte, en octets.
+   */
+  public synchronized long getPeak() {
+    return peak;
+  }
+
+  /**
+   * @return Le plafond de mémoire native, en octets. 0 si la mémoire n'est pas limitée.
+   */
+  public long getCap() {
+    return cap;
+  }
+
+  /**
+   * @return Le nom du compte.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return La mémoire native retenue par chaque étape, en octets.
+   */
+  public synchronized Map<String, Long> getUsage() {
+    return new LinkedHashMap<>(usage);
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "MemoryAccount [name=" + name + ", current=" + current + ", peak=" + peak + ", cap=" + cap + ", usage="
+        + usage + "]";
+  }
+
+  /**
+   * Calcule la taille des données d'une frame. Pour une frame comptée par référence, la taille des buffers
+   * référencés, sinon la taille de l'image ou des samples décrits par la frame.
+   *
+   * @param frame
+   *          Une frame.
+   * @return La taille des données de la frame, en octets.
+   */
+  public static long sizeOf(final AVFrame frame) {
+    long size = 0;
+    for (int i = 0; i < NUM_DATA_POINTERS; i++) {
+      final AVBufferRef buf = frame.buf(i);
+      if (buf != null && !buf.isNull()) {
+        size += buf.size();
+      }
+    }
+    for (int i = 0; i < frame.nb_extended_buf(); i++) {
+      size += frame.extended_buf(i).size();
+    }
+    if (size > 0) {
+      return size;
+    }
+
+    // Frame non comptée par référence.
+    final int computed = frame.width() > 0
+        ? avutil.av_image_get_buffer_size(frame.format(), frame.width(), frame.height(), 1)
+        : avutil.av_samples_get_buffer_size((int[]) null, frame.channels(), frame.nb_samples(), frame.format(), 1);
+    return Math.max(computed, 0);
+  }
+
+  /**
+   * Modifie une charge en vérifiant le plafond.
+   */
+  private synchronized void update(final Charge charge, final long newBytes) {
+    final long delta = newBytes - charge.bytes;
+    if (delta > 0 && cap > 0 && current + delta > cap) {
+      throw new FFmpegException(MessageFormat.format(
+          "Plafond mémoire du compte {0} dépassé par {1} : {2} octets demandés, {3} / {4} octets utilisés.",
+          name, charge.component, String.valueOf(delta), String.valueOf(current), String.valueOf(cap)));
+    }
+    charge.bytes = newBytes;
+    current += delta;
+    peak = Math.max(peak, current);
+    usage.merge(charge.component, delta, Long::sum);
+    if (delta > 0 && LOG.isTraceEnabled()) {
+      LOG.trace("Compte mémoire {} : +{} octets pour {} ({} octets utilisés).", name, delta, charge.component,
+          current);
+    }
+  }
+}
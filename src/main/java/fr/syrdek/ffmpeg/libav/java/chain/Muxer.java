@@ -8,34 +8,84 @@ import static fr.syrdek.ffmpeg.libav.java.FFmpegException.checkAndThrow;
 import static fr.syrdek.ffmpeg.libav.java.TimeUtils.timestampToHms;
 import static fr.syrdek.ffmpeg.libav.java.TimeUtils.timestampToString;
 
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.bytedeco.ffmpeg.avcodec.AVCodec;
 import org.bytedeco.ffmpeg.avcodec.AVPacket;
 import org.bytedeco.ffmpeg.avformat.AVFormatContext;
 import org.bytedeco.ffmpeg.avformat.AVIOContext;
+import org.bytedeco.ffmpeg.avformat.AVOutputFormat;
 import org.bytedeco.ffmpeg.avformat.AVStream;
+import org.bytedeco.ffmpeg.avformat.Seek_Pointer_long_int;
+import org.bytedeco.ffmpeg.avformat.Write_packet_Pointer_BytePointer_int;
 import org.bytedeco.ffmpeg.avutil.AVDictionary;
+import org.bytedeco.ffmpeg.avutil.AVDictionaryEntry;
 import org.bytedeco.ffmpeg.avutil.AVRational;
+import org.bytedeco.ffmpeg.global.avcodec;
 import org.bytedeco.ffmpeg.global.avformat;
 import org.bytedeco.ffmpeg.global.avutil;
+import org.bytedeco.javacpp.BytePointer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import fr.syrdek.ffmpeg.libav.java.CFlag;
+import fr.syrdek.ffmpeg.libav.java.FFmpegException;
 import fr.syrdek.ffmpeg.libav.java.TimeUtils;
+import fr.syrdek.ffmpeg.libav.java.io.AVFormatFlag;
+import fr.syrdek.ffmpeg.libav.java.io.IOSource;
+import fr.syrdek.ffmpeg.libav.java.io.WriteBehindSink;
 import fr.syrdek.ffmpeg.libav.java.io.stream.CodecContextParameters;
 
 /**
- * Permet d'écrire un conteneur media.
+ * Permet d'écrire un conteneur media.<br>
+ * Les paquets peuvent être reçus depuis plusieurs threads (par exemple depuis des
+ * {@link fr.syrdek.ffmpeg.libav.java.chain.async.AsyncStage}) : les écritures sont sérialisées.<br>
+ * Le conteneur peut être écrit dans un fichier, ou au fil de l'eau dans un {@link OutputStream} ou un
+ * {@link WritableByteChannel} (envoi réseau, upload, ...). Ces derniers n'étant pas adressables, seuls les formats
+ * qui n'ont pas besoin de revenir sur les données déjà écrites sont acceptés : par exemple matroska, mpegts, ou MP4
+ * fragmenté via l'option <code>movflags=frag_keyframe+empty_moov</code>.<br>
+ * Pour que l'encodage n'attende pas les écritures sur disque, le conteneur peut être écrit via une
+ * {@link WriteBehindSink}.
  *
  * @author t0087865
  */
 public class Muxer implements Consumer<AVPacket>, AutoCloseable {
   private static final Logger LOG = LoggerFactory.getLogger(Muxer.class);
 
+  /**
+   * Taille par défaut du buffer d'écriture dans un flux.
+   */
+  public static final int DEFAULT_IO_BUFFER_SIZE = 64 * 1024;
+
+  // Formats de la famille MP4 / quicktime, qui ne peuvent être écrits dans un flux que s'ils sont fragmentés.
+  private static final Set<String> MOV_FORMATS = new HashSet<>(
+      Arrays.asList("mp4", "mov", "ipod", "3gp", "3g2", "psp", "f4v"));
+  // Options movflags fragmentant un MP4.
+  private static final Set<String> MOV_FRAGMENT_FLAGS = new HashSet<>(
+      Arrays.asList("frag_keyframe", "empty_moov", "frag_custom", "frag_every_frame"));
+  // Options fragmentant un MP4 selon la durée ou la taille des fragments.
+  private static final Set<String> MOV_FRAGMENT_OPTIONS = new HashSet<>(
+      Arrays.asList("frag_duration", "frag_size"));
+  // Formats qui réécrivent leur entête (tailles, index) en fin d'écriture lorsque la sortie est adressable.
+  private static final Set<String> HEADER_REWRITING_FORMATS = new HashSet<>(
+      Arrays.asList("avi", "asf", "wav", "w64"));
+  private static final Pattern FLAG = Pattern.compile("([+-]?)([^+-]+)");
+
   /**
    * Représente l'état courant du media.
    *
@@ -50,8 +100,21 @@ public class Muxer implements Consumer<AVPacket>, AutoCloseable {
 
   private final AVFormatContext formatCtx = new AVFormatContext();
   private final AVIOContext io;
+  // Le contexte d'écriture est personnalisé, et écrit dans customIoSink.
+  private final boolean customIo;
+  // Fonctions appelées par libav via le contexte personnalisé : elles ne doivent pas être collectées avant lui.
+  private final Write_packet_Pointer_BytePointer_int customIoWriter;
+  private final Seek_Pointer_long_int customIoSeeker;
+  // Destination écrite par le contexte personnalisé.
+  private final Object customIoSink;
+  private final Map<String, String> options;
   private State state;
 
+  // Mémoire estimée du conteneur. null si elle n'est pas comptée.
+  private MemoryAccount.Charge memory;
+  // Taille du plus grand paquet reçu.
+  private int maxPacketSize = 0;
+
   /**
    * Construit un conteneur audio / video.
    *
@@ -61,7 +124,26 @@ public class Muxer implements Consumer<AVPacket>, AutoCloseable {
    *          Le format du conteneur (par exemple "matroska", "quicktime", "flv", ...).
    */
   public Muxer(final String filepath, final String format) {
+    this(filepath, format, null);
+  }
+
+  /**
+   * Construit un conteneur audio / video.
+   *
+   * @param filepath
+   *          Le chemin vers le fichier a écrire.
+   * @param format
+   *          Le format du conteneur (par exemple "matroska", "quicktime", "flv", ...).
+   * @param options
+   *          Les options du format conteneur (par exemple "movflags" : "faststart"). Peut être <code>null</code>.
+   */
+  public Muxer(final String filepath, final String format, final Map<String, String> options) {
     LOG.debug("Construction du conteneur de sortie {}.", filepath);
+    customIo = false;
+    customIoWriter = null;
+    customIoSeeker = null;
+    customIoSink = null;
+    this.options = copy(options);
 
     // Construit un contexte d'écriture.
     checkAndThrow(avformat.avformat_alloc_output_context2(formatCtx, null, format, filepath),
@@ -77,6 +159,299 @@ public class Muxer implements Consumer<AVPacket>, AutoCloseable {
     state = State.OPEN;
   }
 
+  /**
+   * Ecrit un conteneur dans un flux, sans fichier temporaire.<br>
+   * Un {@link FileOutputStream} est écrit via son channel, sans copie intermédiaire.
+   *
+   * @param out
+   *          Le flux à écrire. N'est pas fermé par le conteneur.
+   * @param format
+   *          Le format du conteneur (par exemple "matroska", "mpegts", "mp4", ...). Obligatoire, il ne peut pas être
+   *          déduit d'un nom de fichier.
+   * @param options
+   *          Les options du format conteneur (par exemple "movflags" : "frag_keyframe+empty_moov"). Peut être
+   *          <code>null</code>.
+   * @throws FFmpegException
+   *           Si le format ne peut pas être écrit dans un flux non adressable avec ces options.
+   */
+  public Muxer(final OutputStream out, final String format, final Map<String, String> options) {
+    this(out, DEFAULT_IO_BUFFER_SIZE, format, options);
+  }
+
+  /**
+   * Ecrit un conteneur dans un flux, sans fichier temporaire.<br>
+   * Un {@link FileOutputStream} est écrit via son channel, sans copie intermédiaire.
+   *
+   * @param out
+   *          Le flux à écrire. N'est pas fermé par le conteneur.
+   * @param bufferSize
+   *          La taille du buffer d'écriture de libav, en octets.
+   * @param format
+   *          Le format du conteneur (par exemple "matroska", "mpegts", "mp4", ...). Obligatoire, il ne peut pas être
+   *          déduit d'un nom de fichier.
+   * @param options
+   *          Les options du format conteneur (par exemple "movflags" : "frag_keyframe+empty_moov"). Peut être
+   *          <code>null</code>.
+   * @throws FFmpegException
+   *           Si le format ne peut pas être écrit dans un flux non adressable avec ces options.
+   */
+  public Muxer(final OutputStream out, final int bufferSize, final String format,
+      final Map<String, String> options) {
+    this("stream", IOSource.newAvIoWriter(out, bufferSize), null, bufferSize, out, format, options);
+  }
+
+  /**
+   * Ecrit un conteneur dans un channel, sans fichier temporaire ni copie intermédiaire.
+   *
+   * @param out
+   *          Le channel à écrire, en mode bloquant. N'est pas fermé par le conteneur.
+   * @param format
+   *          Le format du conteneur (par exemple "matroska", "mpegts", "mp4", ...). Obligatoire, il ne peut pas être
+   *          déduit d'un nom de fichier.
+   * @param options
+   *          Les options du format conteneur (par exemple "movflags" : "frag_keyframe+empty_moov"). Peut être
+   *          <code>null</code>.
+   * @throws FFmpegException
+   *           Si le format ne peut pas être écrit dans un flux non adressable avec ces options.
+   */
+  public Muxer(final WritableByteChannel out, final String format, final Map<String, String> options) {
+    this(out, DEFAULT_IO_BUFFER_SIZE, format, options);
+  }
+
+  /**
+   * Ecrit un conteneur dans un channel, sans fichier temporaire ni copie intermédiaire.
+   *
+   * @param out
+   *          Le channel à écrire, en mode bloquant. N'est pas fermé par le conteneur.
+   * @param bufferSize
+   *          La taille du buffer d'écriture de libav, en octets.
+   * @param format
+   *          Le format du conteneur (par exemple "matroska", "mpegts", "mp4", ...). Obligatoire, il ne peut pas être
+   *          déduit d'un nom de fichier.
+   * @param options
+   *          Les options du format conteneur (par exemple "movflags" : "frag_keyframe+empty_moov"). Peut être
+   *          <code>null</code>.
+   * @throws FFmpegException
+   *           Si le format ne peut pas être écrit dans un flux non adressable avec ces options.
+   */
+  public Muxer(final WritableByteChannel out, final int bufferSize, final String format,
+      final Map<String, String> options) {
+    this("channel", IOSource.newAvIoWriter(out), null, bufferSize, out, format, options);
+  }
+
+  /**
+   * Ecrit un conteneur dans un fichier via une écriture différée : les données sont copiées dans les buffers de la
+   * destination, et écrites dans le fichier par un thread dédié.<br>
+   * La destination étant adressable, tous les formats qui écrivent dans un fichier sont acceptés, sauf l'option
+   * <code>movflags=faststart</code>. {@link #writeTrailer()} attend que toutes les données soient écrites, et les
+   * synchronise sur disque.
+   *
+   * @param sink
+   *          La destination à écrire. N'est pas fermée par le conteneur.
+   * @param format
+   *          Le format du conteneur (par exemple "matroska", "mp4", ...). Obligatoire, il ne peut pas être déduit
+   *          d'un nom de fichier.
+   * @param options
+   *          Les options du format conteneur. Peut être <code>null</code>.
+   */
+  public Muxer(final WriteBehindSink sink, final String format, final Map<String, String> options) {
+    this(sink.getName(), sink.writer(), sink.seeker(), DEFAULT_IO_BUFFER_SIZE, sink, format, options);
+  }
+
+  /**
+   * Construit un conteneur écrit via un contexte d'écriture personnalisé.
+   *
+   * @param name
+   *          Le nom de la destination, pour les traces.
+   * @param writer
+   *          La fonction d'écriture.
+   * @param seeker
+   *          La fonction de positionnement. <code>null</code> si la destination n'est pas adressable.
+   * @param bufferSize
+   *          La taille du buffer d'écriture.
+   * @param sink
+   *          La destination écrite par la fonction d'écriture.
+   */
+  private Muxer(final String name, final Write_packet_Pointer_BytePointer_int writer,
+      final Seek_Pointer_long_int seeker, final int bufferSize, final Object sink, final String format,
+      final Map<String, String> options) {
+    LOG.debug("Construction du conteneur de sortie {} au format {}.", name, format);
+    customIo = true;
+    customIoWriter = writer;
+    customIoSeeker = seeker;
+    customIoSink = sink;
+    this.options = copy(options);
+
+    if (format == null) {
+      throw new IllegalArgumentException("Le format d'un conteneur écrit dans un flux doit être précisé.");
+    }
+    final AVOutputFormat outputFormat = checkAllocation(avformat.av_guess_format(format, null, null),
+        "Format de conteneur {0} inconnu.", format);
+    checkWritable(outputFormat, this.options, seeker != null);
+
+    // Construit un contexte d'écriture.
+    checkAndThrow(avformat.avformat_alloc_output_context2(formatCtx, outputFormat, (String) null, (String) null),
+        "Impossible d''allouer le contexte de sortie.");
+
+    final BytePointer buffer = new BytePointer(avutil.av_malloc(bufferSize));
+    if (buffer.isNull()) {
+      avformat.avformat_free_context(formatCtx);
+      throw new FFmpegException(
+          "Impossible d'allouer le buffer d'écriture de " + bufferSize + " octets.");
+    }
+    io = avformat.avio_alloc_context(buffer, bufferSize, 1, null, null, writer, seeker);
+    if (io == null || io.isNull()) {
+      avutil.av_free(buffer);
+      avformat.avformat_free_context(formatCtx);
+      throw new FFmpegException("Impossible d'allouer le contexte d'écriture.");
+    }
+    io.seekable(seeker == null ? 0 : avformat.AVIO_SEEKABLE_NORMAL);
+    formatCtx.pb(io);
+    formatCtx.flags(CFlag.plus(formatCtx.flags(), AVFormatFlag.CUSTOM_IO));
+
+    state = State.OPEN;
+  }
+
+  /**
+   * Vérifie qu'un format peut être écrit via un contexte d'écriture personnalisé.
+   *
+   * @param format
+   *          Le format à écrire.
+   * @param options
+   *          Les options du format.
+   * @param seekable
+   *          <code>true</code> si la destination est adressable.
+   * @throws FFmpegException
+   *           Si le format ne peut pas être écrit dans la destination.
+   */
+  private static void checkWritable(final AVOutputFormat format, final Map<String, String> options,
+      final boolean seekable) {
+    final String name = format.name().getString();
+    if ((format.flags() & avformat.AVFMT_NOFILE) != 0) {
+      throw new FFmpegException("Le format " + name + " n'écrit pas dans un flux, et ne peut pas être utilisé ici.");
+    }
+
+    if (MOV_FORMATS.contains(name)) {
+      final Set<String> movflags = parseFlags(options.get("movflags"));
+      if (movflags.contains("faststart")) {
+        throw new FFmpegException("L'option movflags=faststart relit le fichier écrit, et ne peut pas être utilisée"
+            + " pour écrire le format " + name + " dans un flux.");
+      }
+      if (!seekable && Collections.disjoint(movflags, MOV_FRAGMENT_FLAGS)
+          && Collections.disjoint(options.keySet(), MOV_FRAGMENT_OPTIONS)) {
+        throw new FFmpegException("Le format " + name + " ne peut être écrit dans un flux que s'il est fragmenté."
+            + " Utiliser par exemple l'option movflags=frag_keyframe+empty_moov.");
+      }
+    } else if (!seekable && HEADER_REWRITING_FORMATS.contains(name)) {
+      LOG.warn("Le format {} complète son entête en fin d'écriture : écrit dans un flux, il sera lisible mais sans"
+          + " durée ni index.", name);
+    }
+  }
+
+  /**
+   * Lit une liste de drapeaux au format libav ("flag1+flag2-flag3"). Les drapeaux retirés sont ignorés.
+   */
+  private static Set<String> parseFlags(final String flags) {
+    final Set<String> result = new HashSet<>();
+    if (flags != null) {
+      final Matcher matcher = FLAG.matcher(flags);
+      while (matcher.find()) {
+        if (!"-".equals(matcher.group(1))) {
+          result.add(matcher.group(2).trim());
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Copie les options données, qui peuvent être <code>null</code>.
+   */
+  private static Map<String, String> copy(final Map<String, String> options) {
+    return options == null ? Collections.emptyMap() : Collections.unmodifiableMap(new LinkedHashMap<>(options));
+  }
+
+  /**
+   * Comptabilise la mémoire retenue par le conteneur dans le compte donné : buffer d'écriture, et paquets retenus
+   * pour l'entrelacement des flux. Les encodeurs construits ensuite sur ce conteneur utilisent le même compte.
+   *
+   * @param account
+   *          Le compte dans lequel comptabiliser la mémoire. Peut être <code>null</code>.
+   * @return Cette instance.
+   */
+  public synchronized Muxer withMemoryAccount(final MemoryAccount account) {
+    if (memory != null) {
+      memory.close();
+    }
+    memory = account == null ? null : account.open("Muxer");
+    chargeMemory();
+    return this;
+  }
+
+  /**
+   * @return Le compte dans lequel est comptabilisée la mémoire du conteneur. <code>null</code> si elle n'est pas
+   *         comptée.
+   */
+  public synchronized MemoryAccount getMemoryAccount() {
+    return memory == null ? null : memory.getAccount();
+  }
+
+  /**
+   * @param codecId
+   *          L'id d'un codec.
+   * @return <code>true</code> si le format du conteneur accepte les flux de ce codec.
+   */
+  public boolean supportsCodec(final int codecId) {
+    // 0 : FF_COMPLIANCE_NORMAL, les codecs expérimentaux ou non officiels pour le format sont refusés.
+    return avformat.avformat_query_codec(formatCtx.oformat(), codecId, 0) == 1;
+  }
+
+  /**
+   * @return <code>true</code> si le format du conteneur exige des DTS strictement croissants dans chaque flux (mp4,
+   *         ...). Les formats qui acceptent des DTS égaux (matroska, ...) ou qui n'écrivent pas de timestamps ne
+   *         l'exigent pas.
+   */
+  public boolean requiresIncreasingDts() {
+    return (formatCtx.oformat().flags() & (avformat.AVFMT_TS_NONSTRICT | avformat.AVFMT_NOTIMESTAMPS)) == 0;
+  }
+
+  /**
+   * Décale les timestamps de tous les paquets écrits. Doit être appelé avant {@link #writeHeaders()}.
+   *
+   * @param offset
+   *          Le décalage, en microsecondes. Par exemple, l'opposé du début de l'intervalle lu pour que le fichier
+   *          produit commence à 0.
+   * @return Cette instance.
+   */
+  public synchronized Muxer withTimestampOffset(final long offset) {
+    formatCtx.output_ts_offset(offset);
+    return this;
+  }
+
+  /**
+   * Modifie la base de temps demandée pour un flux déjà déclaré. Doit être appelé avant {@link #writeHeaders()}.<br>
+   * Le format peut retenir une autre base de temps à l'écriture des entêtes : les paquets reçus doivent ensuite être
+   * exprimés dans celle du flux (<code>AVStream.time_base</code>).
+   *
+   * @param index
+   *          L'index du flux.
+   * @param timebase
+   *          La base de temps demandée.
+   * @return Cette instance.
+   */
+  public synchronized Muxer withTimebase(final int index, final AVRational timebase) {
+    if (State.OPEN != state) {
+      throw new IllegalStateException(
+          "Impossible de modifier la base de temps d'un flux car les entêtes du fichier media ont déjà été écrites.");
+    }
+    streams.get(index).time_base(timebase);
+    final AVRational previous = timebases.set(index, TimeUtils.copy(timebase));
+    if (previous != null) {
+      previous.close();
+    }
+    return this;
+  }
+
   /**
    * Ajoute un flux au conteneur. Equivalent à {@link Muxer#addStream(AVCodec, AVRational)} avec timebase
    * null.
@@ -98,7 +473,7 @@ public class Muxer implements Consumer<AVPacket>, AutoCloseable {
    *          La base de temps du flux. Peut être null.
    * @return Le flux construit.
    */
-  public AVStream addStream(final AVCodec streamCodec, final AVRational timebase) {
+  public synchronized AVStream addStream(final AVCodec streamCodec, final AVRational timebase) {
     if (State.OPEN != state) {
       // Si les entêtes sont écrites, ajouter un nouveau flux peut causer un coredump.
       // On préfère donc l'éviter en levant une exception.
@@ -119,17 +494,59 @@ public class Muxer implements Consumer<AVPacket>, AutoCloseable {
     return stream;
   }
 
+  /**
+   * Ajoute au conteneur un flux recopiant les paramètres de codec du flux donné. Les paquets du flux source peuvent
+   * alors être écrits sans être décodés ni réencodés.
+   *
+   * @param source
+   *          Le flux dont les paramètres sont à recopier.
+   * @return Le flux construit.
+   */
+  public synchronized AVStream addStream(final AVStream source) {
+    if (State.OPEN != state) {
+      throw new IllegalStateException(
+          "Impossible de déclarer un nouveau flux car les entêtes du fichier media ont déjà été écrites.");
+    }
+
+    LOG.debug("Ajout d'une copie du flux {} au conteneur.", source.index());
+
+    final AVStream stream = checkAllocation(avformat.avformat_new_stream(formatCtx, (AVCodec) null),
+        "Impossible de construire une copie du flux {0}.", source.index());
+    checkAndThrow(avcodec.avcodec_parameters_copy(stream.codecpar(), source.codecpar()),
+        "Impossible de copier les paramètres du flux {0}.", source.index());
+    // Le tag du codec dépend du format conteneur, on laisse le muxer le choisir.
+    stream.codecpar().codec_tag(0);
+    stream.index(formatCtx.nb_streams() - 1);
+    stream.time_base(source.time_base());
+
+    timebases.add(TimeUtils.copy(source.time_base()));
+    streams.add(stream);
+    return stream;
+  }
+
   /**
    * Ecrit les entêtes propres au format conteneur.<br>
    * L'entête déclare les différents flux. Il n'est donc dès lors plus possible d'ajouter des flux au format conteneur.
    */
-  public void writeHeaders() {
+  public synchronized void writeHeaders() {
     // On ne peut écrire les entêtes que si elles n'ont pas encore été écrites.
     if (State.OPEN == state) {
       LOG.debug("Ecriture des entetes du conteneur de destination.");
 
-      checkAndThrow(avformat.avformat_write_header(formatCtx, (AVDictionary) null),
-          "Impossible d''écrire les entêtes du fichier de sortie.");
+      final AVDictionary dict = new AVDictionary(null);
+      options.forEach((k, v) -> avutil.av_dict_set(dict, k, v, 0));
+      try {
+        checkAndThrow(avformat.avformat_write_header(formatCtx, dict),
+            "Impossible d''écrire les entêtes du fichier de sortie.");
+        // Les options reconnues par le format ont été retirées du dictionnaire.
+        AVDictionaryEntry unused = null;
+        while ((unused = avutil.av_dict_get(dict, "", unused, avutil.AV_DICT_IGNORE_SUFFIX)) != null) {
+          LOG.warn("Option de conteneur inconnue ignorée : {}={}", unused.key().getString(),
+              unused.value().getString());
+        }
+      } finally {
+        avutil.av_dict_free(dict);
+      }
       state = State.HAS_HEADER;
     }
   }
@@ -138,13 +555,15 @@ public class Muxer implements Consumer<AVPacket>, AutoCloseable {
    * Ecrit la fin du format conteneur.<br>
    * Il n'est alors plus possible d'ajouter des frames sur les différents flux.
    */
-  public void writeTrailer() {
+  public synchronized void writeTrailer() {
     // Ne réécrit pas le trailer s'il a déjà été écrit ou si aucune donnée n'a été positionnée.
     if (State.HAS_DATA == state) {
       LOG.debug("Ecriture de la finalisation du conteneur de destination.");
 
       checkAndThrow(avformat.av_write_trailer(formatCtx),
           "Impossible d''écrire les entêtes du fichier de sortie.");
+      // Attend l'écriture différée des données, et les synchronise sur disque.
+      flushSink(true);
 
       state = State.HAS_TRAILER;
     } else if (State.HAS_TRAILER != state) {
@@ -155,12 +574,71 @@ public class Muxer implements Consumer<AVPacket>, AutoCloseable {
   }
 
   @Override
-  public void close() {
+  public synchronized void close() {
     // S'assure que le trailer a été écrit.
-    writeTrailer();
-    avformat.avio_close(io);
-    avutil.av_free(formatCtx);
-    timebases.stream().filter(Objects::nonNull).forEach(AVRational::close);
+    try {
+      writeTrailer();
+      if (customIo) {
+        avformat.avio_flush(io);
+        flushSink(false);
+      }
+    } finally {
+      if (customIo) {
+        // Le buffer a pu être réalloué par libav.
+        avutil.av_free(io.buffer());
+        avformat.avio_context_free(io);
+        LOG.debug("Contexte d'écriture de {} libéré.", customIoSink);
+      } else {
+        avformat.avio_close(io);
+      }
+      avutil.av_free(formatCtx);
+      timebases.stream().filter(Objects::nonNull).forEach(AVRational::close);
+      if (memory != null) {
+        memory.close();
+      }
+    }
+  }
+
+  /**
+   * Attend que les données confiées à une {@link WriteBehindSink} soient écrites.
+   *
+   * @param sync
+   *          <code>true</code> pour synchroniser les données sur disque.
+   */
+  private void flushSink(final boolean sync) {
+    if (customIoSink instanceof WriteBehindSink) {
+      try {
+        ((WriteBehindSink) customIoSink).flush(sync);
+      } catch (IOException e) {
+        throw new FFmpegException("Echec de l'écriture de " + ((WriteBehindSink) customIoSink).getName(), e);
+      }
+    }
+  }
+
+  /**
+   * @return Le nombre de flux déclarés dans le conteneur.
+   */
+  public synchronized int getStreamCount() {
+    return streams.size();
+  }
+
+  /**
+   * @param index
+   *          L'index du flux.
+   * @return Le flux d'index donné.
+   */
+  public synchronized AVStream getStream(final int index) {
+    return streams.get(index);
+  }
+
+  /**
+   * @param index
+   *          L'index du flux.
+   * @return La base de temps déclarée pour le flux d'index donné, dans laquelle sont exprimés les paquets reçus.
+   */
+  public synchronized AVRational getTimebase(final int index) {
+    final AVRational timebase = timebases.get(index);
+    return timebase != null ? timebase : streams.get(index).time_base();
   }
 
   /**
@@ -171,7 +649,7 @@ public class Muxer implements Consumer<AVPacket>, AutoCloseable {
   }
 
   @Override
-  public void accept(final AVPacket packet) {
+  public synchronized void accept(final AVPacket packet) {
     if (LOG.isDebugEnabled()) {
       final AVStream stream = streams.get(packet.stream_index());
       final AVRational timebase = timebases.get(packet.stream_index());
@@ -185,6 +663,11 @@ public class Muxer implements Consumer<AVPacket>, AutoCloseable {
     // S'assure que les entête sont écrites avant
     writeHeaders();
 
+    if (packet.size() > maxPacketSize) {
+      maxPacketSize = packet.size();
+      chargeMemory();
+    }
+
     // Ecrit le paquet dans le conteneur.
     checkAndThrow(avformat.av_interleaved_write_frame(formatCtx, packet));
 
@@ -198,4 +681,14 @@ public class Muxer implements Consumer<AVPacket>, AutoCloseable {
   public void dumpFormat() {
     avformat.av_dump_format(formatCtx, 0, (String) null, 1);
   }
+
+  /**
+   * Met à jour l'estimation de la mémoire retenue : buffer d'écriture, et un paquet en attente d'entrelacement par
+   * flux.
+   */
+  private void chargeMemory() {
+    if (memory != null) {
+      memory.set(io.buffer_size() + (long) maxPacketSize * Math.max(streams.size(), 1));
+    }
+  }
 }
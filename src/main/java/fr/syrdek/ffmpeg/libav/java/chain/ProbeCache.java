@@ -0,0 +1,574 @@
+/**
+ *
+ */
+package fr.syrdek.ffmpeg.libav.java.chain;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bytedeco.ffmpeg.avcodec.AVCodecParameters;
+import org.bytedeco.ffmpeg.avformat.AVFormatContext;
+import org.bytedeco.ffmpeg.avformat.AVStream;
+import org.bytedeco.ffmpeg.avutil.AVRational;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.bytedeco.javacpp.BytePointer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fr.syrdek.ffmpeg.libav.java.FFmpegException;
+import fr.syrdek.ffmpeg.libav.java.io.ByteBufferSource;
+
+/**
+ * Cache des résultats d'analyse des conteneurs lus par un {@link Demuxer}.<br>
+ * <code>avformat_find_stream_info</code> peut décoder plusieurs secondes de media pour déterminer les paramètres des
+ * flux. Lorsqu'une même source est ouverte plusieurs fois (analyse, vignette, transcodage, contrôle qualité, ...), le
+ * cache conserve la description des flux issue de la première analyse complète. Les ouvertures suivantes se
+ * contentent d'une analyse minimale (<code>probesize</code> et <code>analyzeduration</code> réduits, format connu), et
+ * les paramètres que cette analyse n'a pas pu déterminer sont complétés depuis le cache.<br>
+ * Les sources sont identifiées :
+ * <ul>
+ * <li>pour un fichier, par son chemin, sa taille et sa date de modification ;</li>
+ * <li>pour une {@link ByteBufferSource}, par sa taille et un SHA-256 de tout son contenu. Une collision n'est pas
+ * anodine : les paramètres du cache écrasent ceux de l'analyse minimale (cadences, ...). Le hachage, qui lit la source
+ * déjà en mémoire, reste bien moins coûteux qu'une analyse complète.</li>
+ * </ul>
+ * Si les flux trouvés par l'analyse minimale ne correspondent pas au cache, l'entrée est invalidée et la source est
+ * analysée complètement.<br>
+ * Le cache est borné en nombre d'entrées (les moins récemment utilisées sont évincées), et peut être conservé sur
+ * disque via {@link #save()}. Le fichier est écrit dans un format binaire propre au cache (pas de sérialisation Java) :
+ * un fichier d'une autre version, ou illisible, est ignoré.
+ *
+ * @author t0087865
+ */
+public class ProbeCache implements AutoCloseable {
+  private static final Logger LOG = LoggerFactory.getLogger(ProbeCache.class);
+
+  /**
+   * Nombre maximal d'entrées par défaut.
+   */
+  public static final int DEFAULT_MAX_ENTRIES = 1024;
+
+  /**
+   * Taille des données lues pour détecter le format et les flux lors d'une ouverture depuis le cache.
+   */
+  public static final long CACHED_PROBE_SIZE = 64 * 1024;
+
+  /**
+   * Durée de media analysée lors d'une ouverture depuis le cache, en microsecondes.
+   */
+  public static final long CACHED_ANALYZE_DURATION = avutil.AV_TIME_BASE / 10;
+
+  // Entête et version du format du fichier du cache.
+  private static final int FILE_MAGIC = 0x46465043;
+  private static final int FILE_VERSION = 1;
+
+  /**
+   * Paramètres d'un flux, issus d'une analyse complète.
+   */
+  public static final class StreamProbe {
+    private final int codecType;
+    private final int codecId;
+    private final int format;
+    private final int width;
+    private final int height;
+    private final int sampleRate;
+    private final int channels;
+    private final long channelLayout;
+    private final long bitRate;
+    private final int frameRateNum;
+    private final int frameRateDen;
+    private final int avgFrameRateNum;
+    private final int avgFrameRateDen;
+    private final byte[] extradata;
+
+    private StreamProbe(final AVStream stream) {
+      final AVCodecParameters par = stream.codecpar();
+      codecType = par.codec_type();
+      codecId = par.codec_id();
+      format = par.format();
+      width = par.width();
+      height = par.height();
+      sampleRate = par.sample_rate();
+      channels = par.channels();
+      channelLayout = par.channel_layout();
+      bitRate = par.bit_rate();
+      frameRateNum = stream.r_frame_rate().num();
+      frameRateDen = stream.r_frame_rate().den();
+      avgFrameRateNum = stream.avg_frame_rate().num();
+      avgFrameRateDen = stream.avg_frame_rate().den();
+      extradata = new byte[Math.max(par.extradata_size(), 0)];
+      if (extradata.length > 0) {
+        par.extradata().get(extradata);
+      }
+    }
+
+    private StreamProbe(final DataInput in) throws IOException {
+      codecType = in.readInt();
+      codecId = in.readInt();
+      format = in.readInt();
+      width = in.readInt();
+      height = in.readInt();
+      sampleRate = in.readInt();
+      channels = in.readInt();
+      channelLayout = in.readLong();
+      bitRate = in.readLong();
+      frameRateNum = in.readInt();
+      frameRateDen = in.readInt();
+      avgFrameRateNum = in.readInt();
+      avgFrameRateDen = in.readInt();
+      final int extradataSize = in.readInt();
+      if (extradataSize < 0) {
+        throw new IOException("Taille des données du codec invalide : " + extradataSize);
+      }
+      extradata = new byte[extradataSize];
+      in.readFully(extradata);
+    }
+
+    private void write(final DataOutput out) throws IOException {
+      out.writeInt(codecType);
+      out.writeInt(codecId);
+      out.writeInt(format);
+      out.writeInt(width);
+      out.writeInt(height);
+      out.writeInt(sampleRate);
+      out.writeInt(channels);
+      out.writeLong(channelLayout);
+      out.writeLong(bitRate);
+      out.writeInt(frameRateNum);
+      out.writeInt(frameRateDen);
+      out.writeInt(avgFrameRateNum);
+      out.writeInt(avgFrameRateDen);
+      out.writeInt(extradata.length);
+      out.write(extradata);
+    }
+
+    /**
+     * @return <code>true</code> si le flux donné est du même type et du même codec.
+     */
+    private boolean matches(final AVStream stream) {
+      return stream.codecpar().codec_type() == codecType && stream.codecpar().codec_id() == codecId;
+    }
+
+    /**
+     * Complète les paramètres du flux que l'analyse minimale n'a pas pu déterminer.
+     */
+    private void restoreTo(final AVStream stream) {
+      final AVCodecParameters par = stream.codecpar();
+      if (par.format() < 0) {
+        par.format(format);
+      }
+      if (par.width() == 0 && par.height() == 0) {
+        par.width(width);
+        par.height(height);
+      }
+      if (par.sample_rate() == 0) {
+        par.sample_rate(sampleRate);
+      }
+      if (par.channels() == 0) {
+        par.channels(channels);
+      }
+      if (par.channel_layout() == 0) {
+        par.channel_layout(channelLayout);
+      }
+      if (par.bit_rate() == 0) {
+        par.bit_rate(bitRate);
+      }
+      if (par.extradata_size() <= 0 && extradata.length > 0) {
+        final BytePointer data = new BytePointer(
+            avutil.av_mallocz(extradata.length + avcodec.AV_INPUT_BUFFER_PADDING_SIZE));
+        if (data.isNull()) {
+          throw new FFmpegException("Impossible d'allouer les données du codec (" + extradata.length + " octets).");
+        }
+        data.put(extradata);
+        par.extradata(data);
+        par.extradata_size(extradata.length);
+      }
+      // Les cadences estimées sur une analyse complète sont plus fiables que celles de l'analyse minimale.
+      if (frameRateDen != 0) {
+        stream.r_frame_rate(rational(frameRateNum, frameRateDen));
+      }
+      if (avgFrameRateDen != 0) {
+        stream.avg_frame_rate(rational(avgFrameRateNum, avgFrameRateDen));
+      }
+    }
+
+    private static AVRational rational(final int num, final int den) {
+      return avutil.av_make_q(num, den);
+    }
+
+    /**
+     * @return L'id du codec du flux.
+     */
+    public int getCodecId() {
+      return codecId;
+    }
+
+    /**
+     * @return Le type de media du flux.
+     */
+    public int getCodecType() {
+      return codecType;
+    }
+  }
+
+  /**
+   * Résultat de l'analyse complète d'un conteneur.
+   */
+  public static final class ProbeInfo {
+    private final String formatName;
+    private final long duration;
+    private final long bitRate;
+    private final List<StreamProbe> streams;
+
+    private ProbeInfo(final AVFormatContext formatCtx) {
+      // Le nom d'un format peut être une liste ("mov,mp4,m4a,...") : seul le premier permet de le retrouver.
+      formatName = formatCtx.iformat().name().getString().split(",")[0];
+      duration = formatCtx.duration();
+      bitRate = formatCtx.bit_rate();
+      final List<StreamProbe> list = new ArrayList<>();
+      for (int i = 0; i < formatCtx.nb_streams(); i++) {
+        list.add(new StreamProbe(formatCtx.streams(i)));
+      }
+      streams = Collections.unmodifiableList(list);
+    }
+
+    private ProbeInfo(final DataInput in) throws IOException {
+      formatName = in.readUTF();
+      duration = in.readLong();
+      bitRate = in.readLong();
+      final int count = in.readInt();
+      if (count < 0) {
+        throw new IOException("Nombre de flux invalide : " + count);
+      }
+      final List<StreamProbe> list = new ArrayList<>(count);
+      for (int i = 0; i < count; i++) {
+        list.add(new StreamProbe(in));
+      }
+      streams = Collections.unmodifiableList(list);
+    }
+
+    private void write(final DataOutput out) throws IOException {
+      out.writeUTF(formatName);
+      out.writeLong(duration);
+      out.writeLong(bitRate);
+      out.writeInt(streams.size());
+      for (final StreamProbe stream : streams) {
+        stream.write(out);
+      }
+    }
+
+    /**
+     * Complète un conteneur ouvert avec une analyse minimale.
+     *
+     * @return <code>false</code> si les flux du conteneur ne correspondent pas à ceux du cache.
+     */
+    private boolean restoreTo(final AVFormatContext formatCtx) {
+      if (formatCtx.nb_streams() != streams.size()) {
+        return false;
+      }
+      for (int i = 0; i < streams.size(); i++) {
+        if (!streams.get(i).matches(formatCtx.streams(i))) {
+          return false;
+        }
+      }
+      for (int i = 0; i < streams.size(); i++) {
+        streams.get(i).restoreTo(formatCtx.streams(i));
+      }
+      if (formatCtx.duration() == avutil.AV_NOPTS_VALUE) {
+        formatCtx.duration(duration);
+      }
+      if (formatCtx.bit_rate() == 0) {
+        formatCtx.bit_rate(bitRate);
+      }
+      return true;
+    }
+
+    /**
+     * @return Le nom court du format du conteneur.
+     */
+    public String getFormatName() {
+      return formatName;
+    }
+
+    /**
+     * @return La durée du conteneur, en microsecondes.
+     */
+    public long getDuration() {
+      return duration;
+    }
+
+    /**
+     * @return Les paramètres des flux du conteneur.
+     */
+    public List<StreamProbe> getStreams() {
+      return streams;
+    }
+  }
+
+  private final int maxEntries;
+  private final Path file;
+  private final Map<String, ProbeInfo> entries;
+
+  // Statistiques.
+  private long hits = 0;
+  private long misses = 0;
+  private long invalidations = 0;
+
+  /**
+   * Construit un cache en mémoire.
+   *
+   * @param maxEntries
+   *          Le nombre maximal de conteneurs conservés.
+   */
+  public ProbeCache(final int maxEntries) {
+    this(maxEntries, null);
+  }
+
+  /**
+   * Construit un cache conservé sur disque. Le contenu du fichier est chargé s'il existe.
+   *
+   * @param maxEntries
+   *          Le nombre maximal de conteneurs conservés.
+   * @param file
+   *          Le fichier dans lequel conserver le cache. <code>null</code> pour un cache en mémoire.
+   */
+  public ProbeCache(final int maxEntries, final Path file) {
+    if (maxEntries <= 0) {
+      throw new IllegalArgumentException("Le nombre d'entrées du cache doit être positif : " + maxEntries);
+    }
+    this.maxEntries = maxEntries;
+    this.file = file;
+    entries = new LinkedHashMap<String, ProbeInfo>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<String, ProbeInfo> eldest) {
+        return size() > ProbeCache.this.maxEntries;
+      }
+    };
+    if (file != null && Files.exists(file)) {
+      load();
+    }
+  }
+
+  /**
+   * Calcule la clé d'un fichier.
+   *
+   * @param filepath
+   *          Le chemin du fichier.
+   * @return La clé, ou <code>null</code> si le fichier n'est pas accessible (URL, périphérique, ...).
+   */
+  static String keyOf(final String filepath) {
+    try {
+      final Path path = Paths.get(filepath).toAbsolutePath();
+      if (!Files.isRegularFile(path)) {
+        return null;
+      }
+      return "file:" + path + ":" + Files.size(path) + ":" + Files.getLastModifiedTime(path).toMillis();
+    } catch (IOException | RuntimeException e) {
+      LOG.debug("Impossible d'identifier le fichier {} : {}", filepath, e.toString());
+      return null;
+    }
+  }
+
+  /**
+   * Calcule la clé d'une source en mémoire, à partir de sa taille et d'un SHA-256 de tout son contenu.
+   *
+   * @param source
+   *          La source.
+   * @return La clé.
+   */
+  static String keyOf(final ByteBufferSource source) {
+    try {
+      final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      source.digest(digest);
+
+      final StringBuilder key = new StringBuilder("content:").append(source.getSize()).append(':');
+      for (final byte b : digest.digest()) {
+        key.append(String.format("%02x", b));
+      }
+      return key.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * Recherche le résultat d'analyse d'une source.
+   *
+   * @param key
+   *          La clé de la source.
+   * @return Le résultat d'analyse, ou <code>null</code> si la source n'est pas en cache.
+   */
+  synchronized ProbeInfo get(final String key) {
+    final ProbeInfo info = entries.get(key);
+    if (info != null) {
+      hits++;
+    } else {
+      misses++;
+    }
+    return info;
+  }
+
+  /**
+   * Conserve le résultat de l'analyse complète d'un conteneur.
+   *
+   * @param key
+   *          La clé de la source.
+   * @param formatCtx
+   *          Le conteneur analysé.
+   */
+  synchronized void put(final String key, final AVFormatContext formatCtx) {
+    entries.put(key, new ProbeInfo(formatCtx));
+  }
+
+  /**
+   * Complète un conteneur ouvert avec une analyse minimale.
+   *
+   * @param key
+   *          La clé de la source.
+   * @param info
+   *          Le résultat d'analyse trouvé dans le cache.
+   * @param formatCtx
+   *          Le conteneur ouvert.
+   * @return <code>false</code> si les flux du conteneur ne correspondent pas au cache. L'entrée est alors invalidée.
+   */
+  synchronized boolean restore(final String key, final ProbeInfo info, final AVFormatContext formatCtx) {
+    if (info.restoreTo(formatCtx)) {
+      return true;
+    }
+    LOG.warn("Les flux de {} ne correspondent pas au cache d'analyse, l'entrée est invalidée.", key);
+    entries.remove(key);
+    invalidations++;
+    return false;
+  }
+
+  /**
+   * Retire une source du cache.
+   *
+   * @param key
+   *          La clé de la source.
+   */
+  public synchronized void invalidate(final String key) {
+    entries.remove(key);
+  }
+
+  /**
+   * @return Le nombre d'ouvertures ayant trouvé la source dans le cache.
+   */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /**
+   * @return Le nombre d'ouvertures n'ayant pas trouvé la source dans le cache.
+   */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /**
+   * @return Le nombre d'entrées invalidées parce que les flux ne correspondaient plus.
+   */
+  public synchronized long getInvalidations() {
+    return invalidations;
+  }
+
+  /**
+   * @return Le nombre d'entrées du cache.
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * Ecrit le cache dans son fichier, si un fichier a été donné. L'écriture passe par un fichier temporaire, renommé
+   * une fois complet : le fichier n'est jamais lu à moitié écrit.
+   *
+   * @throws IOException
+   *           Si le fichier ne peut pas être écrit.
+   */
+  public void save() throws IOException {
+    if (file == null) {
+      return;
+    }
+    final LinkedHashMap<String, ProbeInfo> copy;
+    synchronized (this) {
+      copy = new LinkedHashMap<>(entries);
+    }
+    final Path parent = file.toAbsolutePath().getParent();
+    final Path tmp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+    try {
+      try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+        out.writeInt(FILE_MAGIC);
+        out.writeInt(FILE_VERSION);
+        out.writeInt(copy.size());
+        // Les entrées sont écrites de la moins récemment utilisée à la plus récente, et rechargées dans cet ordre.
+        for (final Map.Entry<String, ProbeInfo> entry : copy.entrySet()) {
+          out.writeUTF(entry.getKey());
+          entry.getValue().write(out);
+        }
+      }
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+    LOG.debug("Cache d'analyse écrit dans {} ({} entrées).", file, copy.size());
+  }
+
+  /**
+   * Charge le cache depuis son fichier. Un fichier illisible, ou d'une autre version, est ignoré.
+   */
+  private void load() {
+    try (final DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+      if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+        LOG.warn("Le cache d'analyse {} n'est pas dans le format attendu, il est ignoré.", file);
+        return;
+      }
+      final int count = in.readInt();
+      final Map<String, ProbeInfo> loaded = new LinkedHashMap<>();
+      for (int i = 0; i < count; i++) {
+        final String key = in.readUTF();
+        loaded.put(key, new ProbeInfo(in));
+      }
+      entries.putAll(loaded);
+      LOG.debug("Cache d'analyse chargé depuis {} ({} entrées).", file, entries.size());
+    } catch (IOException e) {
+      LOG.warn("Impossible de lire le cache d'analyse {}, il est ignoré : {}", file, e.toString());
+    }
+  }
+
+  /**
+   * Ecrit le cache dans son fichier, si un fichier a été donné.
+   *
+   * @throws IOException
+   *           Si le fichier ne peut pas être écrit.
+   */
+  @Override
+  public void close() throws IOException {
+    save();
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "ProbeCache [entries=" + entries.size() + "/" + maxEntries + ", hits=" + hits + ", misses=" + misses
+        + ", invalidations=" + invalidations + "]";
+  }
+}
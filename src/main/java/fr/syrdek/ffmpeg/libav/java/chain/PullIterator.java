@@ -0,0 +1,114 @@
+/**
+ *
+ */
+package fr.syrdek.ffmpeg.libav.java.chain;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Itérateur permettant de lire les éléments d'une étape de la chaine à la demande, plutôt que d'être notifié via un
+ * {@link java.util.function.Consumer}.<br>
+ * Le code appelant contrôle le rythme de lecture, et peut s'arrêter à tout moment :
+ *
+ * <pre>
+ * try (final PullIterator&lt;AVFrame&gt; frames = videoDecoder.frames(source)) {
+ *   for (final AVFrame frame : frames) {
+ *     ...
+ *     if (assez) {
+ *       break;
+ *     }
+ *   }
+ * }
+ * </pre>
+ *
+ * Comme pour le reste de la chaine, l'élément retourné par {@link #next()} est réutilisé : il n'est valide que jusqu'au
+ * prochain appel à {@link #hasNext()} ou {@link #next()}. Pour le conserver, il faut le référencer (voir
+ * {@link RefCounter}).<br>
+ * L'itérateur ne peut être parcouru qu'une seule fois.
+ *
+ * @author t0087865
+ * @param <T>
+ *          Le type des éléments lus.
+ */
+public abstract class PullIterator<T> implements Iterator<T>, Iterable<T>, AutoCloseable {
+  private T next;
+  private boolean ready = false;
+  private boolean ended = false;
+  private boolean iterated = false;
+  private boolean closed = false;
+
+  /**
+   * Lit l'élément suivant.
+   *
+   * @return L'élément suivant, ou <code>null</code> s'il n'y en a plus.
+   */
+  protected abstract T fetch();
+
+  /**
+   * Libère les ressources de l'itérateur. Appelé par {@link #close()}. Ne fait rien par défaut.
+   */
+  protected void onClose() {
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (!ready && !ended) {
+      next = fetch();
+      ready = true;
+      ended = next == null;
+    }
+    return !ended;
+  }
+
+  @Override
+  public T next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    ready = false;
+    return next;
+  }
+
+  /**
+   * @return Cet itérateur, afin de pouvoir le parcourir via une boucle <code>for</code>.
+   * @throws IllegalStateException
+   *           Si l'itérateur a déjà été parcouru.
+   */
+  @Override
+  public Iterator<T> iterator() {
+    if (iterated) {
+      throw new IllegalStateException("L'itérateur ne peut être parcouru qu'une seule fois.");
+    }
+    iterated = true;
+    return this;
+  }
+
+  /**
+   * @return Un {@link Stream} séquentiel sur les éléments restants. Fermer le {@link Stream} ferme l'itérateur.
+   */
+  public Stream<T> stream() {
+    return StreamSupport.stream(
+        Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false)
+        .onClose(this::close);
+  }
+
+  /**
+   * Arrête la lecture. Les appels suivants à {@link #hasNext()} retournent <code>false</code>.
+   */
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    ended = true;
+    ready = true;
+    next = null;
+    onClose();
+  }
+}
@@ -0,0 +1,76 @@
+/**
+ *
+ */
+package fr.syrdek.ffmpeg.libav.java.chain;
+
+import static fr.syrdek.ffmpeg.libav.java.FFmpegException.checkAllocation;
+import static fr.syrdek.ffmpeg.libav.java.FFmpegException.checkAndThrow;
+
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.ffmpeg.global.avutil;
+
+/**
+ * Permet de conserver un élément natif au-delà de l'appel au {@link java.util.function.Consumer} qui l'a reçu.<br>
+ * Les étapes de la chaine réutilisent un seul objet natif pour tous les éléments qu'elles produisent. Un consommateur
+ * qui souhaite garder un élément (par exemple pour le traiter dans un autre thread) doit donc en prendre une référence
+ * via {@link #ref(Object)}, puis la libérer via {@link #release(Object)} lorsqu'il n'en a plus besoin.
+ *
+ * @author t0087865
+ */
+public interface RefCounter<T> {
+  /**
+   * Gestion des références de frames, via <code>av_frame_ref</code> / <code>av_frame_free</code>.
+   */
+  RefCounter<AVFrame> FRAME = new RefCounter<AVFrame>() {
+    @Override
+    public AVFrame ref(final AVFrame source) {
+      final AVFrame ref = checkAllocation(avutil.av_frame_alloc(), "Impossible d''allouer une référence de frame.");
+      // Si la frame source n'est pas comptée par référence, libav en fait une copie.
+      checkAndThrow(avutil.av_frame_ref(ref, source), "Impossible de référencer la frame.");
+      return ref;
+    }
+
+    @Override
+    public void release(final AVFrame ref) {
+      avutil.av_frame_free(ref);
+    }
+  };
+
+  /**
+   * Gestion des références de paquets, via <code>av_packet_ref</code> / <code>av_packet_free</code>.
+   */
+  RefCounter<AVPacket> PACKET = new RefCounter<AVPacket>() {
+    @Override
+    public AVPacket ref(final AVPacket source) {
+      final AVPacket ref = checkAllocation(avcodec.av_packet_alloc(), "Impossible d''allouer une référence de paquet.");
+      // Si le paquet source n'est pas compté par référence, libav en fait une copie.
+      checkAndThrow(avcodec.av_packet_ref(ref, source), "Impossible de référencer le paquet.");
+      return ref;
+    }
+
+    @Override
+    public void release(final AVPacket ref) {
+      avcodec.av_packet_free(ref);
+    }
+  };
+
+  /**
+   * Construit une nouvelle référence sur les données de l'élément donné. Les buffers natifs sont partagés, aucune
+   * donnée n'est copiée lorsque l'élément source est compté par référence.
+   *
+   * @param source
+   *          L'élément à référencer.
+   * @return Une nouvelle référence, à libérer via {@link #release(Object)}.
+   */
+  T ref(final T source);
+
+  /**
+   * Libère une référence obtenue via {@link #ref(Object)}.
+   *
+   * @param ref
+   *          La référence à libérer.
+   */
+  void release(final T ref);
+}
@@ -0,0 +1,238 @@
+/**
+ *
+ */
+package fr.syrdek.ffmpeg.libav.java.chain.async;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fr.syrdek.ffmpeg.libav.java.FFmpegException;
+import fr.syrdek.ffmpeg.libav.java.chain.BaseProducer;
+import fr.syrdek.ffmpeg.libav.java.chain.RefCounter;
+
+/**
+ * Etape asynchrone de la chaine de traitement.<br>
+ * Les éléments consommés sont référencés (sans copie des données) et placés dans une file bornée. Un thread dédié les
+ * dépile et les transmet aux consommateurs inscrits via {@link #sendTo(Consumer)}. Les étapes situées en aval
+ * s'exécutent donc dans ce thread, en parallèle des étapes situées en amont.<br>
+ * Lorsque la file est pleine, le producteur en amont est bloqué jusqu'à ce qu'une place se libère.<br>
+ * <br>
+ * Exemple, pour faire tourner le redimensionnement et l'encodage vidéo dans leur propre thread :
+ *
+ * <pre>
+ * final AsyncStage&lt;AVFrame&gt; async = AsyncStage.ofFrames("video", AsyncStage.DEFAULT_CAPACITY);
+ * videoDecoder.sendTo(async);
+ * async.sendTo(videoRescaler);
+ * ...
+ * source.read();
+ * // Attend que toutes les frames en attente aient été traitées.
+ * async.finish();
+ * </pre>
+ *
+ * Les consommateurs en aval qui partagent un même {@link fr.syrdek.ffmpeg.libav.java.chain.Muxer} peuvent être
+ * appelés depuis plusieurs threads, ce que le {@link fr.syrdek.ffmpeg.libav.java.chain.Muxer} supporte.
+ *
+ * @author t0087865
+ */
+public class AsyncStage<T> extends BaseProducer<T> implements Consumer<T>, AutoCloseable {
+  private static final Logger LOG = LoggerFactory.getLogger(AsyncStage.class);
+
+  /**
+   * Taille de file par défaut.
+   */
+  public static final int DEFAULT_CAPACITY = 8;
+
+  // Marqueur de fin de flux placé dans la file.
+  private static final Object END = new Object();
+
+  private final RefCounter<T> refCounter;
+  private final BlockingQueue<Object> queue;
+  private final Thread worker;
+  private final String name;
+
+  // Première erreur rencontrée par le thread de traitement.
+  private volatile RuntimeException failure;
+  private boolean finished = false;
+
+  /**
+   * Construit une étape asynchrone traitant des frames.
+   *
+   * @param name
+   *          Le nom de l'étape, utilisé pour nommer le thread de traitement.
+   * @param capacity
+   *          Le nombre maximal de frames en attente.
+   * @return L'étape construite et démarrée.
+   */
+  public static AsyncStage<AVFrame> ofFrames(final String name, final int capacity) {
+    return new AsyncStage<>(name, capacity, RefCounter.FRAME);
+  }
+
+  /**
+   * Construit une étape asynchrone traitant des paquets.
+   *
+   * @param name
+   *          Le nom de l'étape, utilisé pour nommer le thread de traitement.
+   * @param capacity
+   *          Le nombre maximal de paquets en attente.
+   * @return L'étape construite et démarrée.
+   */
+  public static AsyncStage<AVPacket> ofPackets(final String name, final int capacity) {
+    return new AsyncStage<>(name, capacity, RefCounter.PACKET);
+  }
+
+  /**
+   * Construit une étape asynchrone, et démarre son thread de traitement.
+   *
+   * @param name
+   *          Le nom de l'étape, utilisé pour nommer le thread de traitement.
+   * @param capacity
+   *          Le nombre maximal d'éléments en attente.
+   * @param refCounter
+   *          Permet de référencer les éléments consommés le temps de leur traitement.
+   */
+  public AsyncStage(final String name, final int capacity, final RefCounter<T> refCounter) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("La taille de file doit être positive : " + capacity);
+    }
+    this.name = name;
+    this.refCounter = refCounter;
+    queue = new ArrayBlockingQueue<>(capacity);
+
+    worker = new Thread(this::process, "ffmpeg-async-" + name);
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  /**
+   * Place une référence sur l'élément donné dans la file. Bloque tant que la file est pleine.
+   *
+   * @param t
+   *          L'élément à traiter de manière asynchrone.
+   * @throws FFmpegException
+   *           Si le traitement asynchrone a échoué, ou si le thread appelant est interrompu.
+   */
+  @Override
+  public void accept(final T t) {
+    rethrowFailure();
+    if (finished) {
+      throw new IllegalStateException("L'étape asynchrone " + name + " est terminée.");
+    }
+
+    final T ref = refCounter.ref(t);
+    try {
+      queue.put(ref);
+    } catch (InterruptedException e) {
+      refCounter.release(ref);
+      Thread.currentThread().interrupt();
+      throw new FFmpegException("Interruption pendant l'attente de l'étape asynchrone " + name, e);
+    }
+  }
+
+  /**
+   * Attend que tous les éléments en attente aient été traités, puis arrête le thread de traitement.<br>
+   * Doit être appelé une fois la production en amont terminée, et avant de terminer les étapes en aval (par exemple
+   * {@link fr.syrdek.ffmpeg.libav.java.chain.process.AudioResampler#finish()}).
+   *
+   * @throws FFmpegException
+   *           Si le traitement asynchrone a échoué, ou si le thread appelant est interrompu.
+   */
+  public void finish() {
+    try {
+      if (!finished) {
+        finished = true;
+        queue.put(END);
+      }
+      worker.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new FFmpegException("Interruption pendant l'attente de l'étape asynchrone " + name, e);
+    }
+    rethrowFailure();
+  }
+
+  @Override
+  public void close() {
+    if (!finished) {
+      finished = true;
+      // Arrête le traitement sans attendre les éléments restants.
+      worker.interrupt();
+    }
+    try {
+      worker.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    releaseQueued();
+  }
+
+  /**
+   * @return Le nombre d'éléments en attente de traitement.
+   */
+  public int getQueueSize() {
+    return queue.size();
+  }
+
+  /**
+   * @return Le nom de l'étape.
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Boucle du thread de traitement.
+   */
+  @SuppressWarnings("unchecked")
+  private void process() {
+    LOG.debug("Démarrage de l'étape asynchrone {}.", name);
+    try {
+      Object item;
+      while ((item = queue.take()) != END) {
+        final T t = (T) item;
+        try {
+          // Après une erreur, les éléments sont seulement libérés, afin de ne pas bloquer l'amont.
+          if (failure == null) {
+            publish(t);
+          }
+        } catch (RuntimeException e) {
+          LOG.error("Echec du traitement asynchrone {}.", name, e);
+          failure = e;
+        } finally {
+          refCounter.release(t);
+        }
+      }
+    } catch (InterruptedException e) {
+      LOG.debug("Interruption de l'étape asynchrone {}.", name);
+    }
+    LOG.debug("Arrêt de l'étape asynchrone {}.", name);
+  }
+
+  /**
+   * Libère les éléments restés dans la file.
+   */
+  @SuppressWarnings("unchecked")
+  private void releaseQueued() {
+    Object item;
+    while ((item = queue.poll()) != null) {
+      if (item != END) {
+        refCounter.release((T) item);
+      }
+    }
+  }
+
+  /**
+   * Propage l'erreur rencontrée par le thread de traitement, s'il y en a une.
+   */
+  private void rethrowFailure() {
+    final RuntimeException e = failure;
+    if (e != null) {
+      throw new FFmpegException("Echec de l'étape asynchrone " + name, e);
+    }
+  }
+}
@@ -0,0 +1,157 @@
+/**
+ *
+ */
+package fr.syrdek.ffmpeg.libav.java.chain.async;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fr.syrdek.ffmpeg.libav.java.chain.BaseProducer;
+import fr.syrdek.ffmpeg.libav.java.chain.Muxer;
+import fr.syrdek.ffmpeg.libav.java.chain.RefCounter;
+
+/**
+ * Recombine les paquets de plusieurs flux traités en parallèle, et les transmet par ordre de DTS croissant.<br>
+ * Doit être placé devant le {@link Muxer} lorsque les flux sont encodés dans des threads différents (voir
+ * {@link fr.syrdek.ffmpeg.libav.java.chain.Demuxer#enableParallelDecoding(int)}) :
+ *
+ * <pre>
+ * final Interleaver interleaver = new Interleaver(destination, Interleaver.DEFAULT_MAX_QUEUED);
+ * interleaver.sendTo(destination);
+ * videoTimestamper.sendTo(interleaver);
+ * audioTimestamper.sendTo(interleaver);
+ * ...
+ * source.read();
+ * audioResampler.finish();
+ * interleaver.finish();
+ * destination.writeTrailer();
+ * </pre>
+ *
+ * Un paquet n'est transmis que lorsque chaque flux du conteneur a au moins un paquet en attente, afin de pouvoir
+ * choisir le plus ancien. Si un flux prend trop de retard (plus de <code>maxQueued</code> paquets en attente au
+ * total), le paquet le plus ancien est transmis sans attendre, afin de ne jamais bloquer les autres flux.
+ *
+ * @author t0087865
+ */
+public class Interleaver extends BaseProducer<AVPacket> implements Consumer<AVPacket>, AutoCloseable {
+  private static final Logger LOG = LoggerFactory.getLogger(Interleaver.class);
+
+  /**
+   * Nombre maximal de paquets en attente par défaut.
+   */
+  public static final int DEFAULT_MAX_QUEUED = 256;
+
+  private final Muxer muxer;
+  private final int maxQueued;
+  private final List<ArrayDeque<AVPacket>> queues;
+  private int queued = 0;
+
+  /**
+   * Construit un entrelaceur pour les flux du conteneur donné.<br>
+   * Tous les flux doivent avoir été déclarés dans le conteneur avant la construction.
+   *
+   * @param muxer
+   *          Le conteneur dont les flux sont à entrelacer. Les paquets sont exprimés dans les bases de temps déclarées
+   *          pour ses flux.
+   * @param maxQueued
+   *          Le nombre maximal de paquets en attente, tous flux confondus.
+   */
+  public Interleaver(final Muxer muxer, final int maxQueued) {
+    this.muxer = muxer;
+    this.maxQueued = maxQueued;
+
+    final int nbStreams = muxer.getStreamCount();
+    queues = new ArrayList<>(nbStreams);
+    for (int i = 0; i < nbStreams; i++) {
+      queues.add(new ArrayDeque<>());
+    }
+  }
+
+  @Override
+  public synchronized void accept(final AVPacket packet) {
+    queues.get(packet.stream_index()).addLast(RefCounter.PACKET.ref(packet));
+    queued++;
+
+    while (queued > maxQueued || allStreamsReady()) {
+      if (queued > maxQueued && LOG.isDebugEnabled()) {
+        LOG.debug("Trop de paquets en attente ({}), transmission sans attendre tous les flux.", queued);
+      }
+      publishOldest();
+    }
+  }
+
+  /**
+   * Transmet tous les paquets encore en attente, dans l'ordre. Doit être appelé une fois que tous les flux ont été
+   * entièrement traités.
+   */
+  public synchronized void finish() {
+    while (queued > 0) {
+      publishOldest();
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    for (final ArrayDeque<AVPacket> queue : queues) {
+      AVPacket p;
+      while ((p = queue.pollFirst()) != null) {
+        RefCounter.PACKET.release(p);
+      }
+    }
+    queued = 0;
+  }
+
+  /**
+   * @return <code>true</code> si chaque flux a au moins un paquet en attente.
+   */
+  private boolean allStreamsReady() {
+    for (final ArrayDeque<AVPacket> queue : queues) {
+      if (queue.isEmpty()) {
+        return false;
+      }
+    }
+    return !queues.isEmpty();
+  }
+
+  /**
+   * Transmet le paquet en attente ayant le plus petit DTS, tous flux confondus.
+   */
+  private void publishOldest() {
+    int oldest = -1;
+    for (int i = 0; i < queues.size(); i++) {
+      final AVPacket head = queues.get(i).peekFirst();
+      if (head != null && (oldest < 0 || isBefore(head, i, queues.get(oldest).peekFirst(), oldest))) {
+        oldest = i;
+      }
+    }
+
+    final AVPacket packet = queues.get(oldest).pollFirst();
+    queued--;
+    try {
+      publish(packet);
+    } finally {
+      RefCounter.PACKET.release(packet);
+    }
+  }
+
+  /**
+   * @return <code>true</code> si le paquet a doit être écrit avant le paquet b.
+   */
+  private boolean isBefore(final AVPacket a, final int streamA, final AVPacket b, final int streamB) {
+    return avutil.av_compare_ts(timestamp(a), muxer.getTimebase(streamA), timestamp(b), muxer.getTimebase(streamB)) < 0;
+  }
+
+  /**
+   * @return Le DTS du paquet, ou son PTS s'il n'a pas de DTS.
+   */
+  private static long timestamp(final AVPacket packet) {
+    return packet.dts() != avutil.AV_NOPTS_VALUE ? packet.dts() : packet.pts();
+  }
+}
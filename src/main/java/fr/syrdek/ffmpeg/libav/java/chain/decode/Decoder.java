@@ -9,6 +9,7 @@ import static fr.syrdek.ffmpeg.libav.java.TimeUtils.timestampToHms;
 import static fr.syrdek.ffmpeg.libav.java.TimeUtils.timestampToString;
 
 import java.io.Closeable;
+import java.util.Iterator;
 import java.util.function.Consumer;
 
 import org.bytedeco.ffmpeg.avcodec.AVCodec;
@@ -27,9 +28,30 @@ import org.slf4j.LoggerFactory;
 import fr.syrdek.ffmpeg.libav.java.Media;
 import fr.syrdek.ffmpeg.libav.java.TimeUtils;
 import fr.syrdek.ffmpeg.libav.java.chain.BaseProducer;
+import fr.syrdek.ffmpeg.libav.java.chain.Demuxer;
+import fr.syrdek.ffmpeg.libav.java.chain.MemoryAccount;
+import fr.syrdek.ffmpeg.libav.java.chain.PullIterator;
+import fr.syrdek.ffmpeg.libav.java.chain.RefCounter;
+import fr.syrdek.ffmpeg.libav.java.io.stream.CodecRegistry;
+import fr.syrdek.ffmpeg.libav.java.io.stream.ThreadingParameters;
 
 /**
- * Permet de décoder un flux.
+ * Permet de décoder un flux.<br>
+ * <br>
+ * Propriété des frames produites : le décodeur publie toujours la même {@link AVFrame}, dont les données sont des
+ * buffers comptés par référence appartenant au décodeur (libavcodec les recycle dans ses propres réserves).
+ * <ul>
+ * <li>Un consommateur qui traite la frame pendant l'appel à {@link Consumer#accept(Object)} n'a rien à faire, et ne
+ * coûte aucune copie.</li>
+ * <li>Un consommateur qui souhaite la conserver au-delà de l'appel (traitement dans un autre thread, diffusion à
+ * plusieurs étapes asynchrones) doit en prendre une référence via {@link RefCounter#FRAME} : seuls les compteurs de
+ * références des buffers sont incrémentés, les pixels et samples ne sont pas copiés.</li>
+ * <li>Un consommateur ne doit jamais modifier les données de la frame, partagées avec le décodeur et les autres
+ * consommateurs.</li>
+ * </ul>
+ * Une fois tous les consommateurs notifiés, le décodeur relâche sa propre référence : les buffers retournent à sa
+ * réserve dès que la dernière référence prise par un consommateur est libérée.<br>
+ * La mémoire retenue par le décodeur peut être comptabilisée via {@link #withMemoryAccount(MemoryAccount)}.
  *
  * @author t0087865
  */
@@ -50,15 +72,38 @@ public abstract class Decoder extends BaseProducer<AVFrame> implements Consumer<
    */
   public static Decoder openStreamDecoder(final AVFormatContext inFmtCtx, final int index,
       final AVDictionary options) {
+    return openStreamDecoder(inFmtCtx, index, options, null);
+  }
+
+  /**
+   * Ouvre le décodeur du flux donné.
+   *
+   * @param inFmtCtx
+   *          Le format de fichier contenant le flux.
+   * @param index
+   *          Le numéro du flux à ouvrir.
+   * @param options
+   *          Options a utiliser pour la construction du décodeur. Peut être <code>null</code>.
+   * @param threading
+   *          La parallélisation du décodeur. Peut être <code>null</code> pour garder celle par défaut de libavcodec.
+   * @return Le contexte de décodage à utiliser pour lire le flux. <code>null</code> si aucun flux du type demandé n'a
+   *         été trouvé.
+   */
+  public static Decoder openStreamDecoder(final AVFormatContext inFmtCtx, final int index,
+      final AVDictionary options, final ThreadingParameters threading) {
     /// Ouvre le flux trouvé.
     final AVStream stream = inFmtCtx.streams(index);
     final int codec_id = stream.codecpar().codec_id();
     // Charge le décodeur du flux.
-    final AVCodec decoder = checkAllocation(avcodec.avcodec_find_decoder(codec_id),
-        "Impossible de trouver le décodeur d'id {0}", codec_id);
+    final AVCodec decoder = checkAllocation(CodecRegistry.get().findDecoder(codec_id),
+        "Impossible de trouver le décodeur d''id {0}", codec_id).getNativeCodec();
     final AVCodecContext codecCtx = avcodec.avcodec_alloc_context3(decoder);
     // Donne au codec les paramètres permettant de décoder le flux.
     checkAndThrow(avcodec.avcodec_parameters_to_context(codecCtx, stream.codecpar()));
+    // La parallélisation doit être définie avant l'ouverture du décodeur.
+    if (threading != null) {
+      threading.pushTo(codecCtx);
+    }
 
     // Ouvre le décodeur.
     checkAndThrow(avcodec.avcodec_open2(codecCtx, decoder, options),
@@ -68,9 +113,10 @@ public abstract class Decoder extends BaseProducer<AVFrame> implements Consumer<
     final Media type = Media.of(stream.codecpar().codec_type());
 
     if (LOG.isInfoEnabled()) {
-      LOG.info("Decoder {} [stream TB: {}, codec TB: {}]", type,
+      LOG.info("Decoder {} [stream TB: {}, codec TB: {}, threads: {}]", type,
           TimeUtils.toString(stream.time_base()),
-          TimeUtils.toString(codecCtx.time_base()));
+          TimeUtils.toString(codecCtx.time_base()),
+          codecCtx.thread_count());
     }
 
     switch (type) {
@@ -99,13 +145,33 @@ public abstract class Decoder extends BaseProducer<AVFrame> implements Consumer<
    */
   public static Decoder openStreamDecoder(final AVFormatContext inFmtCtx, final Media type,
       final AVDictionary options) {
+    return openStreamDecoder(inFmtCtx, type, options, null);
+  }
+
+  /**
+   * Ouvre le décodeur du flux donné.
+   *
+   * @param inFmtCtx
+   *          Le format de fichier contenant le flux.
+   * @param type
+   *          Le type de flux à ouvrir.
+   * @param options
+   *          Options a utiliser pour la construction du décodeur. Peut être <code>null</code>.
+   * @param threading
+   *          La parallélisation du décodeur. Peut être <code>null</code> pour garder celle par défaut de libavcodec.
+   * @return Le contexte de décodage à utiliser pour lire le flux. <code>null</code> si aucun flux du type demandé n'a
+   *         été trouvé.
+   */
+  public static Decoder openStreamDecoder(final AVFormatContext inFmtCtx, final Media type,
+      final AVDictionary options, final ThreadingParameters threading) {
     // Récupère le flux demandé.
     int streamIdx = avformat.av_find_best_stream(inFmtCtx, type.value(), -1, -1, (AVCodec) null, 0);
     if (streamIdx < 0) {
       // Il n'y a pas de flux de ce type.
       LOG.warn("Aucun flux {} n'est présent dans le fichier d'entrée", type);
+      return null;
     }
-    return openStreamDecoder(inFmtCtx, streamIdx, options);
+    return openStreamDecoder(inFmtCtx, streamIdx, options, threading);
   }
 
   /**
@@ -119,7 +185,7 @@ public abstract class Decoder extends BaseProducer<AVFrame> implements Consumer<
    *         été trouvé.
    */
   public static Decoder openStreamDecoder(final AVFormatContext inFmtCtx, final Media type) {
-    return openStreamDecoder(inFmtCtx, type);
+    return openStreamDecoder(inFmtCtx, type, null, null);
   }
 
   // Est notifié chaque fois qu'une frame est décodée.
@@ -131,6 +197,15 @@ public abstract class Decoder extends BaseProducer<AVFrame> implements Consumer<
   protected final AVCodec codec;
   protected final AVFrame frame;
 
+  // Mémoire estimée des frames retenues par le décodeur. null si elle n'est pas comptée.
+  private MemoryAccount.Charge memory;
+  // Taille de la plus grande frame décodée.
+  private long maxFrameSize = 0;
+  // Intervalle des frames publiées, en microsecondes. Les frames hors de l'intervalle sont décodées puis ignorées.
+  private long rangeStart = Long.MIN_VALUE;
+  private long rangeEnd = Long.MAX_VALUE;
+  private long droppedFrames = 0;
+
   /**
    *
    * @param formatCtx
@@ -156,6 +231,61 @@ public abstract class Decoder extends BaseProducer<AVFrame> implements Consumer<
    */
   public abstract Media getMedia();
 
+  /**
+   * Comptabilise la mémoire retenue par le décodeur dans le compte donné. La charge est estimée à partir de la taille
+   * des frames décodées, du nombre de frames de référence et du nombre de threads du décodeur.
+   *
+   * @param account
+   *          Le compte dans lequel comptabiliser la mémoire. <code>null</code> pour ne plus la comptabiliser.
+   * @return Cette instance.
+   */
+  public Decoder withMemoryAccount(final MemoryAccount account) {
+    if (memory != null) {
+      memory.close();
+    }
+    memory = account == null ? null : account.open(getMedia() + " decoder #" + getStreamIndex());
+    maxFrameSize = 0;
+    return this;
+  }
+
+  /**
+   * Limite les frames publiées à un intervalle de temps. Les frames décodées avant le début de l'intervalle (frames
+   * nécessaires au décodage après un positionnement sur l'image clé précédente) et à partir de sa fin sont ignorées.
+   * Une frame audio n'est ignorée que si elle se termine avant le début de l'intervalle.
+   *
+   * @param start
+   *          Le début de l'intervalle, en microsecondes, dans la base de temps du conteneur.
+   * @param end
+   *          La fin de l'intervalle (exclue), en microsecondes, dans la base de temps du conteneur.
+   * @return Cette instance.
+   */
+  public Decoder withRange(final long start, final long end) {
+    if (end <= start) {
+      throw new IllegalArgumentException("Intervalle vide : [" + start + ", " + end + "[");
+    }
+    rangeStart = start;
+    rangeEnd = end;
+    return this;
+  }
+
+  /**
+   * Publie à nouveau toutes les frames décodées.
+   *
+   * @return Cette instance.
+   */
+  public Decoder clearRange() {
+    rangeStart = Long.MIN_VALUE;
+    rangeEnd = Long.MAX_VALUE;
+    return this;
+  }
+
+  /**
+   * @return Le nombre de frames décodées puis ignorées car hors de l'intervalle demandé.
+   */
+  public long getDroppedFrames() {
+    return droppedFrames;
+  }
+
   /**
    * Décode le paquet donné.
    */
@@ -175,8 +305,113 @@ public abstract class Decoder extends BaseProducer<AVFrame> implements Consumer<
     }
 
     checkAndThrow(avcodec.avcodec_send_packet(codecCtx, packet),
-        "Impossible d'envoyer le paquet au décodage {0} (codec {1})", getMedia().name(), codec.name().getString());
+        "Impossible d''envoyer le paquet au décodage {0} (codec {1})", getMedia().name(), codec.name().getString());
+
+    receiveFrames();
+  }
+
+  /**
+   * Vide le décodeur en fin de flux : les frames encore retenues par le décodeur (par exemple dans le cas d'une
+   * parallélisation par frame, ou de B-frames) sont décodées et envoyées aux consommateurs.<br>
+   * Le décodeur est ensuite réinitialisé, et peut à nouveau recevoir des paquets.
+   */
+  public void drain() {
+    LOG.debug("Vidage du décodeur {}.", getMedia());
+    checkAndThrow(avcodec.avcodec_send_packet(codecCtx, (AVPacket) null),
+        "Impossible de vider le décodeur {0} (codec {1})", getMedia().name(), codec.name().getString());
+    receiveFrames();
+    flush();
+  }
+
+  /**
+   * Permet de lire les frames décodées à la demande, sans passer par les consommateurs.<br>
+   * Les paquets des autres flux sont ignorés. A la fin des paquets, le décodeur est vidé puis réinitialisé.
+   *
+   * @param source
+   *          Le conteneur duquel lire les paquets.
+   * @return Un itérateur sur les frames décodées. Chaque frame n'est valide que jusqu'à la lecture de la suivante.
+   */
+  public PullIterator<AVFrame> frames(final Demuxer source) {
+    return frames(source.packets());
+  }
+
+  /**
+   * Permet de lire les frames décodées à la demande, sans passer par les consommateurs.<br>
+   * Les paquets des autres flux sont ignorés. A la fin des paquets, le décodeur est vidé puis réinitialisé.
+   *
+   * @param packets
+   *          Les paquets à décoder. Fermés avec l'itérateur retourné s'ils sont {@link AutoCloseable}.
+   * @return Un itérateur sur les frames décodées. Chaque frame n'est valide que jusqu'à la lecture de la suivante.
+   */
+  public PullIterator<AVFrame> frames(final Iterator<AVPacket> packets) {
+    return new PullIterator<AVFrame>() {
+      private boolean draining = false;
+
+      @Override
+      protected AVFrame fetch() {
+        while (true) {
+          final int ret = avcodec.avcodec_receive_frame(codecCtx, frame);
+          if (ret >= 0) {
+            chargeFrame(frame);
+            return frame;
+          }
+          if (ret == avutil.AVERROR_EOF) {
+            flush();
+            return null;
+          }
+          if (ret != avutil.AVERROR_EAGAIN()) {
+            checkAndThrow(ret, "Erreur inattendue lors du décodage du paquet {0} (codec {1})", getMedia().name(),
+                codec.name().getString());
+          }
+
+          // Le décodeur a besoin d'un nouveau paquet.
+          if (draining) {
+            // Ne devrait pas arriver : un décodeur vidé retourne EOF.
+            flush();
+            return null;
+          }
+          if (packets.hasNext()) {
+            final AVPacket packet = packets.next();
+            if (isAddressedBy(packet)) {
+              checkAndThrow(avcodec.avcodec_send_packet(codecCtx, packet),
+                  "Impossible d''envoyer le paquet au décodage {0} (codec {1})", getMedia().name(),
+                  codec.name().getString());
+            }
+          } else {
+            draining = true;
+            checkAndThrow(avcodec.avcodec_send_packet(codecCtx, (AVPacket) null),
+                "Impossible de vider le décodeur {0} (codec {1})", getMedia().name(), codec.name().getString());
+          }
+        }
+      }
+
+      @Override
+      protected void onClose() {
+        // En cas d'arrêt anticipé, les données retenues par le décodeur sont abandonnées.
+        flush();
+        if (packets instanceof AutoCloseable) {
+          try {
+            ((AutoCloseable) packets).close();
+          } catch (Exception e) {
+            LOG.warn("Impossible de fermer la source de paquets du décodeur {}.", getMedia(), e);
+          }
+        }
+      }
+    };
+  }
+
+  /**
+   * Réinitialise le décodeur sans décoder les données qu'il retient. Doit être appelé après un repositionnement dans le
+   * flux.
+   */
+  public void flush() {
+    avcodec.avcodec_flush_buffers(codecCtx);
+  }
 
+  /**
+   * Récupère toutes les frames disponibles dans le décodeur, et les envoie aux consommateurs.
+   */
+  private void receiveFrames() {
     int ret;
     do {
       ret = avcodec.avcodec_receive_frame(codecCtx, frame);
@@ -185,8 +420,18 @@ public abstract class Decoder extends BaseProducer<AVFrame> implements Consumer<
         checkAndThrow(ret, "Erreur inattendue lors du décodage du paquet {0} (codec {1})", getMedia().name(),
             codec.name().toString());
 
-        // Envoie la frame.
-        publish(frame);
+        // Envoie la frame, puis relâche la référence du décodeur sur ses buffers : ils ne restent retenus que par les
+        // consommateurs qui en ont pris une référence.
+        try {
+          if (isInRange(frame)) {
+            chargeFrame(frame);
+            publish(frame);
+          } else {
+            droppedFrames++;
+          }
+        } finally {
+          avutil.av_frame_unref(frame);
+        }
       }
       // Ici, les seuls codes erreur possible sont :
       // - Soit EOF : Toutes les données ont été traitées.
@@ -195,6 +440,43 @@ public abstract class Decoder extends BaseProducer<AVFrame> implements Consumer<
     } while (ret >= 0);
   }
 
+  /**
+   * @return <code>true</code> si la frame décodée est dans l'intervalle demandé. Les frames sans timestamp sont
+   *         conservées.
+   */
+  private boolean isInRange(final AVFrame decoded) {
+    if (rangeStart == Long.MIN_VALUE && rangeEnd == Long.MAX_VALUE) {
+      return true;
+    }
+    final long ts = TimeUtils.toMicros(decoded.best_effort_timestamp(), stream.time_base());
+    if (ts == avutil.AV_NOPTS_VALUE) {
+      return true;
+    }
+    if (ts >= rangeEnd) {
+      return false;
+    }
+    if (getMedia() == Media.AUDIO && decoded.sample_rate() > 0) {
+      return ts + (long) decoded.nb_samples() * avutil.AV_TIME_BASE / decoded.sample_rate() > rangeStart;
+    }
+    return ts >= rangeStart;
+  }
+
+  /**
+   * Met à jour l'estimation de la mémoire retenue par le décodeur lorsqu'une frame plus grande que les précédentes est
+   * décodée.
+   */
+  private void chargeFrame(final AVFrame decoded) {
+    if (memory == null) {
+      return;
+    }
+    final long size = MemoryAccount.sizeOf(decoded);
+    if (size > maxFrameSize) {
+      maxFrameSize = size;
+      // Frames de référence, frames en cours de décodage dans chaque thread, et frame publiée.
+      memory.set(size * (Math.max(codecCtx.refs(), 1) + Math.max(codecCtx.thread_count(), 1) + 1));
+    }
+  }
+
   /**
    * Libère les ressources.
    */
@@ -202,6 +484,9 @@ public abstract class Decoder extends BaseProducer<AVFrame> implements Consumer<
   public void close() {
     avcodec.avcodec_free_context(codecCtx);
     avutil.av_frame_free(frame);
+    if (memory != null) {
+      memory.close();
+    }
   }
 
   /**
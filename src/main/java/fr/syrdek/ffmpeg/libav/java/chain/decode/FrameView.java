@@ -0,0 +1,304 @@
+/**
+ *
+ */
+package fr.syrdek.ffmpeg.libav.java.chain.decode;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+import org.bytedeco.ffmpeg.avutil.AVPixFmtDescriptor;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.bytedeco.javacpp.BytePointer;
+
+import fr.syrdek.ffmpeg.libav.java.FFmpegException;
+import fr.syrdek.ffmpeg.libav.java.Media;
+import fr.syrdek.ffmpeg.libav.java.chain.RefCounter;
+import fr.syrdek.ffmpeg.libav.java.io.AVPixFormat;
+import fr.syrdek.ffmpeg.libav.java.io.AVSampleFormat;
+
+/**
+ * Donne accès aux données d'une {@link AVFrame} depuis Java, sans copie : chaque plan (plan de luminance et de
+ * chrominance d'une image, channel d'un son planaire, ou unique plan d'un format entrelacé) est exposé sous la forme
+ * d'un {@link ByteBuffer} direct pointant sur la mémoire native de la frame, dans l'ordre d'octets de la machine.<br>
+ * <br>
+ * Durée de validité : les buffers ne sont valides que tant que la frame n'est ni libérée, ni réutilisée.
+ * <ul>
+ * <li>Une vue construite via {@link #of(AVFrame)} ne doit être utilisée que pendant l'appel au consommateur qui a reçu
+ * la frame (voir le contrat de propriété des frames de {@link Decoder}).</li>
+ * <li>Une vue construite via {@link #retain(AVFrame)} prend sa propre référence sur les buffers de la frame, et reste
+ * valide jusqu'à son {@link #close()}.</li>
+ * </ul>
+ * Après {@link #close()}, la vue refuse de fournir de nouveaux buffers, mais les buffers déjà obtenus ne peuvent pas
+ * être invalidés : ils ne doivent plus être lus.<br>
+ * <br>
+ * Exemple :
+ *
+ * <pre>
+ * decoder.sendTo(frame -&gt; {
+ *   try (final FrameView view = FrameView.of(frame)) {
+ *     final ByteBuffer luma = view.plane(0);
+ *     final int stride = view.getLinesize(0);
+ *     ...
+ *   }
+ * });
+ * </pre>
+ *
+ * @author t0087865
+ */
+public final class FrameView implements AutoCloseable {
+  // Taille d'une palette (AVPALETTE_SIZE, non exporté par JavaCPP).
+  private static final int PALETTE_SIZE = 1024;
+
+  private final AVFrame frame;
+  private final boolean owned;
+  private final boolean writable;
+  private final Media media;
+  private final int planes;
+  private boolean closed = false;
+
+  private FrameView(final AVFrame frame, final boolean owned, final boolean writable) {
+    this.frame = frame;
+    this.owned = owned;
+    this.writable = writable;
+    media = frame.nb_samples() > 0 ? Media.AUDIO : Media.VIDEO;
+    if (media == Media.AUDIO) {
+      planes = avutil.av_sample_fmt_is_planar(frame.format()) != 0 ? frame.channels() : 1;
+    } else {
+      final int count = FFmpegException.checkAndThrow(avutil.av_pix_fmt_count_planes(frame.format()),
+          "Format de pixel {0} inconnu.", frame.format());
+      // La palette des formats indexés est stockée dans un plan supplémentaire.
+      final boolean palette = (avutil.av_pix_fmt_desc_get(frame.format()).flags() & avutil.AV_PIX_FMT_FLAG_PAL) != 0;
+      planes = palette ? count + 1 : count;
+    }
+  }
+
+  /**
+   * Construit une vue en lecture seule sur une frame, valide tant que la frame n'est ni libérée ni réutilisée.
+   *
+   * @param frame
+   *          La frame à lire.
+   * @return La vue.
+   */
+  public static FrameView of(final AVFrame frame) {
+    return new FrameView(frame, false, false);
+  }
+
+  /**
+   * Construit une vue en écriture sur une frame, valide tant que la frame n'est ni libérée ni réutilisée.<br>
+   * La frame doit être la seule à référencer ses buffers (voir <code>av_frame_is_writable</code>) : les frames
+   * publiées par un décodeur, partagées avec les autres consommateurs, ne peuvent pas être modifiées.
+   *
+   * @param frame
+   *          La frame à modifier.
+   * @return La vue.
+   * @throws FFmpegException
+   *           Si les buffers de la frame sont partagés.
+   */
+  public static FrameView writable(final AVFrame frame) {
+    if (avutil.av_frame_is_writable(frame) == 0) {
+      throw new FFmpegException("Les données de la frame sont partagées et ne peuvent pas être modifiées.");
+    }
+    return new FrameView(frame, false, true);
+  }
+
+  /**
+   * Construit une vue en lecture seule qui conserve les données de la frame jusqu'à son {@link #close()}, même si la
+   * frame source est réutilisée entre temps. Seule une référence est prise sur les buffers de la frame : les données
+   * ne sont pas copiées.
+   *
+   * @param frame
+   *          La frame à lire.
+   * @return La vue, qui doit être fermée.
+   */
+  public static FrameView retain(final AVFrame frame) {
+    return new FrameView(RefCounter.FRAME.ref(frame), true, false);
+  }
+
+  /**
+   * @return Le type de données de la frame.
+   */
+  public Media getMedia() {
+    return media;
+  }
+
+  /**
+   * @return Le nombre de plans de la frame.
+   */
+  public int getPlaneCount() {
+    return planes;
+  }
+
+  /**
+   * Donne accès aux données d'un plan, sans copie.<br>
+   * Pour une image, le buffer contient les lignes du plan, séparées de {@link #getLinesize(int)} octets : la ligne
+   * <code>y</code> commence à <code>position() + y * getLinesize(index)</code>. Une image stockée de bas en haut a un
+   * linesize négatif : ses lignes sont rangées en mémoire de la dernière à la première, et le buffer, qui couvre tout
+   * le plan, est positionné sur la première ligne. Pour un son, le buffer contient exactement les samples de la frame.
+   *
+   * @param index
+   *          L'index du plan.
+   * @return Un buffer direct sur les données du plan, positionné sur sa première ligne. En lecture seule, sauf pour une
+   *         vue construite via {@link #writable(AVFrame)}.
+   */
+  public ByteBuffer plane(final int index) {
+    if (closed) {
+      throw new IllegalStateException("La vue de la frame est fermée.");
+    }
+    if (index < 0 || index >= planes) {
+      throw new IndexOutOfBoundsException("Plan " + index + " inexistant (" + planes + " plans).");
+    }
+
+    final BytePointer data = media == Media.AUDIO ? frame.extended_data(index) : frame.data(index);
+    final ByteBuffer buffer;
+    if (media == Media.VIDEO && !isPalette(index) && frame.linesize(index) < 0) {
+      // La première ligne est à la fin de la zone mémoire du plan, qui commence à la dernière ligne.
+      final long firstRow = (long) -frame.linesize(index) * (planeHeight(index) - 1);
+      buffer = new PlanePointer(data.address() - firstRow, planeSize(index)).asByteBuffer();
+      buffer.position((int) firstRow);
+    } else {
+      buffer = new BytePointer(data).capacity(planeSize(index)).asByteBuffer();
+    }
+    buffer.order(ByteOrder.nativeOrder());
+    return writable ? buffer : buffer.asReadOnlyBuffer().order(ByteOrder.nativeOrder());
+  }
+
+  /**
+   * @param index
+   *          L'index du plan.
+   * @return La taille en octets d'une ligne du plan, marge d'alignement comprise, négative pour une image stockée de
+   *         bas en haut. Pour un son, la taille du plan alloué.
+   */
+  public int getLinesize(final int index) {
+    return frame.linesize(media == Media.AUDIO ? 0 : index);
+  }
+
+  /**
+   * @return La largeur de l'image. 0 pour un son.
+   */
+  public int getWidth() {
+    return frame.width();
+  }
+
+  /**
+   * @return La hauteur de l'image. 0 pour un son.
+   */
+  public int getHeight() {
+    return frame.height();
+  }
+
+  /**
+   * @return Le format de l'image. <code>null</code> pour un son.
+   */
+  public AVPixFormat getPixFormat() {
+    return media == Media.VIDEO ? AVPixFormat.get(frame.format()) : null;
+  }
+
+  /**
+   * @return Le nombre de samples par channel. 0 pour une image.
+   */
+  public int getNbSamples() {
+    return frame.nb_samples();
+  }
+
+  /**
+   * @return Le nombre de channels. 0 pour une image.
+   */
+  public int getChannels() {
+    return frame.channels();
+  }
+
+  /**
+   * @return La fréquence d'échantillonnage. 0 pour une image.
+   */
+  public int getSampleRate() {
+    return frame.sample_rate();
+  }
+
+  /**
+   * @return Le format des samples. <code>null</code> pour une image.
+   */
+  public AVSampleFormat getSampleFormat() {
+    return media == Media.AUDIO ? AVSampleFormat.get(frame.format()) : null;
+  }
+
+  /**
+   * @return La taille en octets d'un sample d'un channel. 0 pour une image.
+   */
+  public int getBytesPerSample() {
+    return media == Media.AUDIO ? avutil.av_get_bytes_per_sample(frame.format()) : 0;
+  }
+
+  /**
+   * @return Le timestamp de présentation de la frame.
+   */
+  public long getPts() {
+    return frame.pts();
+  }
+
+  /**
+   * @return La frame lue.
+   */
+  public AVFrame getFrame() {
+    return frame;
+  }
+
+  /**
+   * Ferme la vue. Si elle a été construite via {@link #retain(AVFrame)}, libère sa référence sur les données de la
+   * frame.
+   */
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (owned) {
+      RefCounter.FRAME.release(frame);
+    }
+  }
+
+  /**
+   * @return La taille en octets du plan donné.
+   */
+  private int planeSize(final int index) {
+    if (media == Media.AUDIO) {
+      final int samples = frame.nb_samples() * avutil.av_get_bytes_per_sample(frame.format());
+      return planes == 1 ? samples * frame.channels() : samples;
+    }
+
+    if (isPalette(index)) {
+      return PALETTE_SIZE;
+    }
+    return Math.abs(frame.linesize(index)) * planeHeight(index);
+  }
+
+  /**
+   * @return <code>true</code> si le plan donné est la palette d'une image au format indexé.
+   */
+  private boolean isPalette(final int index) {
+    return index == 1 && (avutil.av_pix_fmt_desc_get(frame.format()).flags() & avutil.AV_PIX_FMT_FLAG_PAL) != 0;
+  }
+
+  /**
+   * @return Le nombre de lignes du plan d'image donné.
+   */
+  private int planeHeight(final int index) {
+    final AVPixFmtDescriptor desc = avutil.av_pix_fmt_desc_get(frame.format());
+    // Les plans 1 et 2 sont ceux de chrominance, éventuellement sous-échantillonnés verticalement.
+    final int shift = index == 1 || index == 2 ? desc.log2_chroma_h() : 0;
+    return -(-frame.height() >> shift);
+  }
+
+  /**
+   * Pointeur sur une zone mémoire native donnée par son adresse, pour les plans dont le début ne peut pas être atteint
+   * en avançant depuis <code>AVFrame.data</code>.
+   */
+  private static final class PlanePointer extends BytePointer {
+    private PlanePointer(final long address, final long size) {
+      this.address = address;
+      this.limit = size;
+      this.capacity = size;
+    }
+  }
+}
@@ -15,7 +15,11 @@ import fr.syrdek.ffmpeg.libav.java.Media;
 import fr.syrdek.ffmpeg.libav.java.io.stream.VideoParameters;
 
 /**
- * Permet de décoder un flux.
+ * Permet de décoder un flux.<br>
+ * Les images décodées sont écrites par libavcodec dans ses propres buffers, comptés par référence. La frame publiée
+ * n'est valide que pendant l'appel au consommateur : un consommateur qui souhaite conserver l'image au-delà doit en
+ * prendre une référence via {@link fr.syrdek.ffmpeg.libav.java.chain.RefCounter#FRAME}, sans copie des pixels. Les
+ * pixels sont partagés avec le décodeur et les autres consommateurs, et ne doivent pas être modifiés.
  *
  * @author t0087865
  */
@@ -38,19 +42,8 @@ public class VideoDecoder extends Decoder {
   public VideoDecoder(final AVFormatContext formatCtx, final AVStream stream, final AVCodec codec,
       final AVCodecContext codecCtx) {
     super(formatCtx, stream, codec, codecCtx);
-    // Construit une frame vidéo (= une image).
-    frame.format(codecCtx.pix_fmt());
-    frame.width(codecCtx.width());
-    frame.height(codecCtx.height());
-
-    // Alloue suffisemment d'espace pour contenir les données de l'image.
-    bufsize = avutil.av_image_alloc(
-        frame.data(),
-        frame.linesize(),
-        frame.width(),
-        frame.height(),
-        frame.format(),
-        1);
+    // Aucun buffer n'est alloué pour la frame : avcodec_receive_frame y place les buffers du décodeur.
+    bufsize = avutil.av_image_get_buffer_size(codecCtx.pix_fmt(), codecCtx.width(), codecCtx.height(), 1);
   }
 
   @Override
@@ -68,7 +61,7 @@ public class VideoDecoder extends Decoder {
   }
 
   /**
-   * @return the bufsize
+   * @return La taille en octets d'une image décodée, sans alignement des lignes.
    */
   public int getBufsize() {
     return bufsize;
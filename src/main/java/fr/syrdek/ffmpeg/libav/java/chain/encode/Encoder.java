@@ -9,6 +9,7 @@ import static fr.syrdek.ffmpeg.libav.java.TimeUtils.timestampToHms;
 import static fr.syrdek.ffmpeg.libav.java.TimeUtils.timestampToString;
 
 import java.io.Closeable;
+import java.util.Iterator;
 import java.util.function.Consumer;
 
 import org.bytedeco.ffmpeg.avcodec.AVCodec;
@@ -26,12 +27,16 @@ import org.slf4j.LoggerFactory;
 import fr.syrdek.ffmpeg.libav.java.Media;
 import fr.syrdek.ffmpeg.libav.java.TimeUtils;
 import fr.syrdek.ffmpeg.libav.java.chain.BaseProducer;
+import fr.syrdek.ffmpeg.libav.java.chain.MemoryAccount;
 import fr.syrdek.ffmpeg.libav.java.chain.Muxer;
+import fr.syrdek.ffmpeg.libav.java.chain.PullIterator;
 import fr.syrdek.ffmpeg.libav.java.io.AVEncodingCompliance;
 import fr.syrdek.ffmpeg.libav.java.io.stream.CodecContextParameters;
 
 /**
- * Permet d'encoder un flux.
+ * Permet d'encoder un flux.<br>
+ * Si le {@link Muxer} de destination est associé à un {@link MemoryAccount}, la mémoire estimée des frames retenues
+ * par l'encodeur y est comptabilisée.
  *
  * @author t0087865
  */
@@ -46,6 +51,11 @@ public abstract class Encoder extends BaseProducer<AVPacket> implements Consumer
 
   protected final AVPacket packet;
 
+  // Mémoire estimée des frames retenues par l'encodeur. null si elle n'est pas comptée.
+  private final MemoryAccount.Charge memory;
+  // Taille de la plus grande frame reçue.
+  private long maxFrameSize = 0;
+
   /**
    * Construit l'encodeur.
    *
@@ -73,7 +83,8 @@ public abstract class Encoder extends BaseProducer<AVPacket> implements Consumer
     // Construit le contexte d'encodage.
     codecCtx = checkAllocation(avcodec.avcodec_alloc_context3(codec));
 
-    // Copie les paramètres dans le contexte d'encodage.
+    // Copie les paramètres dans le contexte d'encodage (y compris la parallélisation, qui doit être définie avant
+    // l'ouverture du codec).
     params.pushTo(codecCtx);
 
     // Conserve une copie de la timebase car l'originale peut être modifiée par ffmpeg.
@@ -96,11 +107,15 @@ public abstract class Encoder extends BaseProducer<AVPacket> implements Consumer
     // Copie les paramètres du flux dans le contexte d'encodage.
     checkAndThrow(avcodec.avcodec_parameters_from_context(stream.codecpar(), codecCtx));
 
+    final MemoryAccount account = container.getMemoryAccount();
+    memory = account == null ? null : account.open(getMedia() + " encoder #" + stream.index());
+
     // TODO DEBUG
     if (LOG.isInfoEnabled()) {
-      LOG.info("Encoder {} [TB: {}, codec TB: {}]", getMedia(),
+      LOG.info("Encoder {} [TB: {}, codec TB: {}, threads: {}]", getMedia(),
           TimeUtils.toString(stream.time_base()),
-          TimeUtils.toString(codecCtx.time_base()));
+          TimeUtils.toString(codecCtx.time_base()),
+          codecCtx.thread_count());
     }
   }
 
@@ -129,8 +144,100 @@ public abstract class Encoder extends BaseProducer<AVPacket> implements Consumer
     packet.size(0);
     avcodec.av_init_packet(packet);
 
+    chargeFrame(frame);
     checkAndThrow(avcodec.avcodec_send_frame(codecCtx, frame));
 
+    receivePackets();
+  }
+
+  /**
+   * Met à jour l'estimation de la mémoire retenue par l'encodeur lorsqu'une frame plus grande que les précédentes est
+   * reçue.
+   */
+  private void chargeFrame(final AVFrame frame) {
+    if (memory == null) {
+      return;
+    }
+    final long size = MemoryAccount.sizeOf(frame);
+    if (size > maxFrameSize) {
+      maxFrameSize = size;
+      // Copie de la frame reçue, B-frames en attente, et frames en cours d'encodage dans chaque thread.
+      memory.set(size * (1 + Math.max(codecCtx.max_b_frames(), 0) + Math.max(codecCtx.thread_count(), 1)));
+    }
+  }
+
+  /**
+   * Vide l'encodeur en fin de flux : les paquets encore retenus par l'encodeur sont envoyés aux consommateurs.<br>
+   * L'encodeur ne peut plus recevoir de frame ensuite.
+   */
+  public void drain() {
+    LOG.debug("Vidage de l'encodeur {}.", getMedia());
+    checkAndThrow(avcodec.avcodec_send_frame(codecCtx, (AVFrame) null),
+        "Impossible de vider l''encodeur {0}.", getMedia());
+    receivePackets();
+  }
+
+  /**
+   * Permet de lire les paquets encodés à la demande, sans passer par les consommateurs.<br>
+   * A la fin des frames, l'encodeur est vidé : il ne peut plus recevoir de frame ensuite.
+   *
+   * @param frames
+   *          Les frames à encoder. Fermées avec l'itérateur retourné si elles sont {@link AutoCloseable}.
+   * @return Un itérateur sur les paquets encodés. Chaque paquet n'est valide que jusqu'à la lecture du suivant.
+   */
+  public PullIterator<AVPacket> packets(final Iterator<AVFrame> frames) {
+    return new PullIterator<AVPacket>() {
+      private boolean draining = false;
+
+      @Override
+      protected AVPacket fetch() {
+        while (true) {
+          final int ret = avcodec.avcodec_receive_packet(codecCtx, packet);
+          if (ret >= 0) {
+            packet.stream_index(stream.index());
+            return packet;
+          }
+          if (ret == avutil.AVERROR_EOF) {
+            return null;
+          }
+          if (ret != avutil.AVERROR_EAGAIN()) {
+            checkAndThrow(ret);
+          }
+
+          // L'encodeur a besoin d'une nouvelle frame.
+          if (draining) {
+            return null;
+          }
+          if (frames.hasNext()) {
+            final AVFrame frame = frames.next();
+            chargeFrame(frame);
+            checkAndThrow(avcodec.avcodec_send_frame(codecCtx, frame));
+          } else {
+            draining = true;
+            checkAndThrow(avcodec.avcodec_send_frame(codecCtx, (AVFrame) null),
+                "Impossible de vider l''encodeur {0}.", getMedia());
+          }
+        }
+      }
+
+      @Override
+      protected void onClose() {
+        avcodec.av_packet_unref(packet);
+        if (frames instanceof AutoCloseable) {
+          try {
+            ((AutoCloseable) frames).close();
+          } catch (Exception e) {
+            LOG.warn("Impossible de fermer la source de frames de l'encodeur {}.", getMedia(), e);
+          }
+        }
+      }
+    };
+  }
+
+  /**
+   * Récupère tous les paquets disponibles dans l'encodeur, et les envoie aux consommateurs.
+   */
+  private void receivePackets() {
     int ret = 0;
     do {
       ret = avcodec.avcodec_receive_packet(codecCtx, packet);
@@ -155,6 +262,9 @@ public abstract class Encoder extends BaseProducer<AVPacket> implements Consumer
 
   @Override
   public void close() {
+    if (memory != null) {
+      memory.close();
+    }
     packet.close();
     codec.close();
     stream.close();
@@ -0,0 +1,133 @@
+/**
+ *
+ */
+package fr.syrdek.ffmpeg.libav.java.chain.flow;
+
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fr.syrdek.ffmpeg.libav.java.chain.Demuxer;
+
+/**
+ * Publie les paquets d'un {@link Demuxer} au rythme demandé par son abonné.<br>
+ * Le conteneur n'est lu que lorsque l'abonné a exprimé une demande : chaque appel à
+ * {@link Flow.Subscription#request(long)} lit au plus autant de paquets que demandé, dans le thread appelant.<br>
+ * Le publieur remplace les consommateurs du {@link Demuxer} : les décodeurs doivent être branchés en aval via
+ * {@link FlowAdapters#decoder(fr.syrdek.ffmpeg.libav.java.chain.decode.Decoder)}, et non via
+ * {@link Demuxer#openVideoDecoder(org.bytedeco.ffmpeg.avutil.AVDictionary)}.<br>
+ * Comme pour le reste de la chaine, le paquet transmis n'est valide que pendant l'appel à
+ * {@link Flow.Subscriber#onNext(Object)}. Un abonné qui souhaite le conserver doit le référencer (voir
+ * {@link fr.syrdek.ffmpeg.libav.java.chain.RefCounter#PACKET}).<br>
+ * <br>
+ * Un seul abonné est accepté, et il reçoit les paquets de tous les flux du conteneur : les abonnés suivants reçoivent
+ * une {@link IllegalStateException} via {@link Flow.Subscriber#onError(Throwable)}. Les paquets sont lus dans l'ordre
+ * du fichier, et un abonné par flux imposerait de retenir en mémoire les paquets d'un flux tant que son abonné ne les
+ * demande pas, ce que le publieur évite justement de faire.<br>
+ * Pour traiter plusieurs flux au rythme de la lecture, l'abonné unique doit répartir les paquets selon
+ * <code>AVPacket.stream_index</code>, et exprimer la demande pour l'ensemble des flux. Sinon, les flux peuvent être
+ * traités en mode push, en branchant directement les décodeurs sur le {@link Demuxer}.
+ *
+ * @author t0087865
+ */
+public class DemuxerPublisher implements Flow.Publisher<AVPacket> {
+  private static final Logger LOG = LoggerFactory.getLogger(DemuxerPublisher.class);
+
+  private final Demuxer demuxer;
+  private Flow.Subscriber<? super AVPacket> subscriber;
+
+  // Nombre de paquets demandés et non encore transmis.
+  private long demand = 0;
+  // Compte les demandes reçues pendant la lecture, pour ne pas lire de manière récursive.
+  private int wip = 0;
+  private boolean cancelled = false;
+  private boolean done = false;
+
+  /**
+   * @param demuxer
+   *          Le conteneur à publier.
+   */
+  public DemuxerPublisher(final Demuxer demuxer) {
+    this.demuxer = demuxer;
+  }
+
+  @Override
+  public synchronized void subscribe(final Flow.Subscriber<? super AVPacket> subscriber) {
+    if (this.subscriber != null) {
+      subscriber.onSubscribe(FlowAdapters.EMPTY_SUBSCRIPTION);
+      subscriber.onError(new IllegalStateException(
+          "Le conteneur a déjà un abonné : un seul abonné peut recevoir les paquets de tous ses flux."));
+      return;
+    }
+    this.subscriber = subscriber;
+    demuxer.setConsumer(this::emit);
+
+    subscriber.onSubscribe(new Flow.Subscription() {
+      @Override
+      public void request(final long n) {
+        DemuxerPublisher.this.request(n);
+      }
+
+      @Override
+      public void cancel() {
+        DemuxerPublisher.this.cancel();
+      }
+    });
+  }
+
+  /**
+   * Transmet un paquet lu à l'abonné.
+   */
+  private void emit(final AVPacket packet) {
+    if (demand != Long.MAX_VALUE) {
+      demand--;
+    }
+    subscriber.onNext(packet);
+  }
+
+  private synchronized void request(final long n) {
+    if (done || cancelled) {
+      return;
+    }
+    if (n <= 0) {
+      cancelled = true;
+      subscriber.onError(new IllegalArgumentException("La demande doit être positive : " + n));
+      return;
+    }
+    demand = FlowAdapters.addDemand(demand, n);
+    drain();
+  }
+
+  private synchronized void cancel() {
+    LOG.debug("Abonnement au conteneur annulé.");
+    cancelled = true;
+  }
+
+  /**
+   * Lit des paquets tant que l'abonné en demande.
+   */
+  private void drain() {
+    if (wip++ != 0) {
+      // Une lecture est déjà en cours plus haut dans la pile. Elle prendra la nouvelle demande en compte.
+      return;
+    }
+    do {
+      while (demand > 0 && !cancelled && !done) {
+        final boolean read;
+        try {
+          read = demuxer.readPacket();
+        } catch (RuntimeException e) {
+          done = true;
+          subscriber.onError(e);
+          return;
+        }
+        if (!read) {
+          done = true;
+          LOG.debug("Fin du conteneur atteinte.");
+          subscriber.onComplete();
+          return;
+        }
+      }
+    } while (--wip != 0);
+  }
+}
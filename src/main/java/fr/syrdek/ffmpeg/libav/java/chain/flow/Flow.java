@@ -0,0 +1,106 @@
+/**
+ *
+ */
+package fr.syrdek.ffmpeg.libav.java.chain.flow;
+
+/**
+ * Interfaces des flux réactifs avec contre-pression (Reactive Streams).<br>
+ * Reprend à l'identique les signatures de <code>java.util.concurrent.Flow</code>, absent de Java 8 : passer à la
+ * version du JDK ne nécessitera que de changer les imports.<br>
+ * <br>
+ * Un {@link Subscriber} indique combien d'éléments il peut recevoir via {@link Subscription#request(long)}. Le
+ * {@link Publisher} ne lui en envoie jamais davantage : c'est le consommateur le plus lent qui fixe le rythme de la
+ * production.
+ *
+ * @author t0087865
+ */
+public final class Flow {
+
+  private Flow() {
+  }
+
+  /**
+   * Produit des éléments à destination d'un {@link Subscriber}, au rythme demandé par celui-ci.
+   *
+   * @param <T>
+   *          Le type des éléments produits.
+   */
+  @FunctionalInterface
+  public static interface Publisher<T> {
+    /**
+     * Inscrit un abonné. Celui-ci reçoit un appel à {@link Subscriber#onSubscribe(Subscription)}, puis des éléments
+     * selon la demande exprimée.
+     *
+     * @param subscriber
+     *          L'abonné.
+     */
+    void subscribe(Subscriber<? super T> subscriber);
+  }
+
+  /**
+   * Reçoit des éléments d'un {@link Publisher}.
+   *
+   * @param <T>
+   *          Le type des éléments reçus.
+   */
+  public static interface Subscriber<T> {
+    /**
+     * Appelé à l'inscription, avant tout autre appel.
+     *
+     * @param subscription
+     *          L'abonnement, permettant de demander des éléments.
+     */
+    void onSubscribe(Subscription subscription);
+
+    /**
+     * Reçoit un élément demandé.
+     *
+     * @param item
+     *          L'élément.
+     */
+    void onNext(T item);
+
+    /**
+     * Appelé lorsque la production échoue. Aucun autre appel ne suit.
+     *
+     * @param throwable
+     *          L'erreur.
+     */
+    void onError(Throwable throwable);
+
+    /**
+     * Appelé lorsque tous les éléments ont été produits. Aucun autre appel ne suit.
+     */
+    void onComplete();
+  }
+
+  /**
+   * Lien entre un {@link Publisher} et un {@link Subscriber}.
+   */
+  public static interface Subscription {
+    /**
+     * Demande des éléments supplémentaires.
+     *
+     * @param n
+     *          Le nombre d'éléments supplémentaires pouvant être reçus. Doit être positif. {@link Long#MAX_VALUE} pour
+     *          une demande illimitée.
+     */
+    void request(long n);
+
+    /**
+     * Arrête la production. Des éléments déjà demandés peuvent encore être reçus.
+     */
+    void cancel();
+  }
+
+  /**
+   * Etape de traitement, à la fois abonnée à une étape en amont et productrice pour une étape en aval.
+   *
+   * @param <T>
+   *          Le type des éléments reçus.
+   * @param <R>
+   *          Le type des éléments produits.
+   */
+  public static interface Processor<T, R> extends Subscriber<T>, Publisher<R> {
+  }
+}
@@ -0,0 +1,132 @@
+/**
+ *
+ */
+package fr.syrdek.ffmpeg.libav.java.chain.flow;
+
+import java.util.function.Consumer;
+
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+
+import fr.syrdek.ffmpeg.libav.java.chain.Demuxer;
+import fr.syrdek.ffmpeg.libav.java.chain.Muxer;
+import fr.syrdek.ffmpeg.libav.java.chain.Producer;
+import fr.syrdek.ffmpeg.libav.java.chain.RefCounter;
+import fr.syrdek.ffmpeg.libav.java.chain.decode.Decoder;
+import fr.syrdek.ffmpeg.libav.java.chain.encode.Encoder;
+
+/**
+ * Adapte les étapes de la chaine aux interfaces {@link Flow}.<br>
+ * <br>
+ * Exemple, pour réencoder un flux vidéo au rythme de l'écriture :
+ *
+ * <pre>
+ * final Flow.Publisher&lt;AVPacket&gt; packets = FlowAdapters.publisher(source);
+ * final Flow.Processor&lt;AVPacket, AVFrame&gt; frames = FlowAdapters.decoder(videoDecoder);
+ * final Flow.Processor&lt;AVFrame, AVFrame&gt; scaled = FlowAdapters.frames(videoRescaler, null);
+ * final Flow.Processor&lt;AVFrame, AVPacket&gt; encoded = FlowAdapters.encoder(videoEncoder);
+ * final Flow.Processor&lt;AVPacket, AVPacket&gt; timestamped = FlowAdapters.packets(videoTimestamper, null);
+ * final MuxerSubscriber sink = FlowAdapters.subscriber(destination, 16);
+ *
+ * timestamped.subscribe(sink);
+ * encoded.subscribe(timestamped);
+ * scaled.subscribe(encoded);
+ * frames.subscribe(scaled);
+ * packets.subscribe(frames);
+ * sink.getCompletion().join();
+ * </pre>
+ *
+ * L'abonnement se fait de l'aval vers l'amont : la lecture du conteneur démarre lorsque le publieur du conteneur reçoit
+ * son abonné, et se fait dans le thread qui exprime la demande.
+ *
+ * @author t0087865
+ */
+public final class FlowAdapters {
+
+  /**
+   * Abonnement sans effet, transmis aux abonnés refusés avant de leur signaler l'erreur.
+   */
+  static final Flow.Subscription EMPTY_SUBSCRIPTION = new Flow.Subscription() {
+    @Override
+    public void request(final long n) {
+    }
+
+    @Override
+    public void cancel() {
+    }
+  };
+
+  private FlowAdapters() {
+  }
+
+  /**
+   * @param demuxer
+   *          Le conteneur à lire.
+   * @return Un publieur des paquets de tous les flux du conteneur, n'acceptant qu'un seul abonné.
+   */
+  public static DemuxerPublisher publisher(final Demuxer demuxer) {
+    return new DemuxerPublisher(demuxer);
+  }
+
+  /**
+   * @param decoder
+   *          Le décodeur à adapter. Les paquets des autres flux sont ignorés.
+   * @return Une étape décodant les paquets reçus. Le décodeur est vidé à la fin du flux amont.
+   */
+  public static Flow.Processor<AVPacket, AVFrame> decoder(final Decoder decoder) {
+    return new StageProcessor<>(decoder, decoder, RefCounter.FRAME, decoder::drain);
+  }
+
+  /**
+   * @param encoder
+   *          L'encodeur à adapter.
+   * @return Une étape encodant les frames reçues. L'encodeur est vidé à la fin du flux amont.
+   */
+  public static Flow.Processor<AVFrame, AVPacket> encoder(final Encoder encoder) {
+    return new StageProcessor<>(encoder, encoder, RefCounter.PACKET, encoder::drain);
+  }
+
+  /**
+   * @param stage
+   *          Une étape traitant des frames (rescaler, resampler, ...).
+   * @param finisher
+   *          Appelé à la fin du flux amont (par exemple
+   *          {@link fr.syrdek.ffmpeg.libav.java.chain.process.AudioResampler#finish()}). Peut être <code>null</code>.
+   * @return L'étape adaptée.
+   */
+  public static <S extends Consumer<AVFrame> & Producer<AVFrame>> Flow.Processor<AVFrame, AVFrame> frames(
+      final S stage, final Runnable finisher) {
+    return new StageProcessor<>(stage, stage, RefCounter.FRAME, finisher);
+  }
+
+  /**
+   * @param stage
+   *          Une étape traitant des paquets (timestamper, ...).
+   * @param finisher
+   *          Appelé à la fin du flux amont. Peut être <code>null</code>.
+   * @return L'étape adaptée.
+   */
+  public static <S extends Consumer<AVPacket> & Producer<AVPacket>> Flow.Processor<AVPacket, AVPacket> packets(
+      final S stage, final Runnable finisher) {
+    return new StageProcessor<>(stage, stage, RefCounter.PACKET, finisher);
+  }
+
+  /**
+   * @param muxer
+   *          Le conteneur dans lequel écrire.
+   * @param batchSize
+   *          Le nombre de paquets demandés à la fois.
+   * @return Un abonné écrivant les paquets reçus dans le conteneur.
+   */
+  public static MuxerSubscriber subscriber(final Muxer muxer, final int batchSize) {
+    return new MuxerSubscriber(muxer, batchSize);
+  }
+
+  /**
+   * Ajoute une demande à une demande en cours, sans dépasser {@link Long#MAX_VALUE}.
+   */
+  static long addDemand(final long current, final long n) {
+    final long sum = current + n;
+    return sum < 0 ? Long.MAX_VALUE : sum;
+  }
+}
@@ -0,0 +1,108 @@
+/**
+ *
+ */
+package fr.syrdek.ffmpeg.libav.java.chain.flow;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fr.syrdek.ffmpeg.libav.java.chain.Muxer;
+
+/**
+ * Ecrit dans un {@link Muxer} les paquets reçus d'un {@link Flow.Publisher}.<br>
+ * Les paquets sont demandés par lots : un nouveau lot n'est demandé qu'une fois le précédent écrit. Les entêtes sont
+ * écrites à l'abonnement, et la fin du conteneur à la fin du flux.<br>
+ * La fin de l'écriture peut être attendue via {@link #getCompletion()}.
+ *
+ * @author t0087865
+ */
+public class MuxerSubscriber implements Flow.Subscriber<AVPacket> {
+  private static final Logger LOG = LoggerFactory.getLogger(MuxerSubscriber.class);
+
+  private final Muxer muxer;
+  private final int batchSize;
+  private final CompletableFuture<Void> completion = new CompletableFuture<>();
+
+  private Flow.Subscription subscription;
+  // Nombre de paquets reçus dans le lot en cours.
+  private int received = 0;
+
+  /**
+   * @param muxer
+   *          Le conteneur dans lequel écrire les paquets.
+   * @param batchSize
+   *          Le nombre de paquets demandés à la fois.
+   */
+  public MuxerSubscriber(final Muxer muxer, final int batchSize) {
+    if (batchSize <= 0) {
+      throw new IllegalArgumentException("La taille de lot doit être positive : " + batchSize);
+    }
+    this.muxer = muxer;
+    this.batchSize = batchSize;
+  }
+
+  @Override
+  public void onSubscribe(final Flow.Subscription subscription) {
+    if (this.subscription != null) {
+      subscription.cancel();
+      return;
+    }
+    this.subscription = subscription;
+    try {
+      muxer.writeHeaders();
+    } catch (RuntimeException e) {
+      subscription.cancel();
+      completion.completeExceptionally(e);
+      return;
+    }
+    subscription.request(batchSize);
+  }
+
+  @Override
+  public void onNext(final AVPacket packet) {
+    if (completion.isDone()) {
+      return;
+    }
+    try {
+      muxer.accept(packet);
+    } catch (RuntimeException e) {
+      LOG.error("Echec de l'écriture d'un paquet, abandon du flux.", e);
+      subscription.cancel();
+      completion.completeExceptionally(e);
+      return;
+    }
+    if (++received == batchSize) {
+      received = 0;
+      subscription.request(batchSize);
+    }
+  }
+
+  @Override
+  public void onError(final Throwable throwable) {
+    LOG.error("Le flux de paquets a échoué.", throwable);
+    completion.completeExceptionally(throwable);
+  }
+
+  @Override
+  public void onComplete() {
+    if (completion.isDone()) {
+      return;
+    }
+    try {
+      muxer.writeTrailer();
+      completion.complete(null);
+    } catch (RuntimeException e) {
+      completion.completeExceptionally(e);
+    }
+  }
+
+  /**
+   * @return Terminé lorsque la fin du conteneur a été écrite, ou en erreur si le flux a échoué.
+   */
+  public CompletableFuture<Void> getCompletion() {
+    return completion;
+  }
+}
@@ -0,0 +1,226 @@
+/**
+ *
+ */
+package fr.syrdek.ffmpeg.libav.java.chain.flow;
+
+import java.util.ArrayDeque;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fr.syrdek.ffmpeg.libav.java.chain.Producer;
+import fr.syrdek.ffmpeg.libav.java.chain.RefCounter;
+
+/**
+ * Adapte une étape de la chaine (décodeur, encodeur, rescaler, ...) en {@link Flow.Processor}.<br>
+ * Un élément n'est demandé en amont que lorsque l'aval a une demande en cours et que tous les éléments produits par
+ * l'élément précédent ont été transmis. Les éléments produits en rafale par un même élément reçu (plusieurs frames
+ * pour un paquet, ...) sont référencés dans une file, dont la taille est donc bornée par ce que l'étape produit pour un
+ * seul élément.<br>
+ * Les éléments transmis en aval ne sont valides que pendant l'appel à {@link Flow.Subscriber#onNext(Object)}.
+ *
+ * @author t0087865
+ * @param <I>
+ *          Le type des éléments reçus.
+ * @param <O>
+ *          Le type des éléments produits.
+ */
+public class StageProcessor<I, O> implements Flow.Processor<I, O> {
+  private static final Logger LOG = LoggerFactory.getLogger(StageProcessor.class);
+
+  private final Consumer<I> input;
+  private final RefCounter<O> refCounter;
+  private final Runnable finisher;
+  private final ArrayDeque<O> buffer = new ArrayDeque<>();
+
+  private Flow.Subscription upstream;
+  private Flow.Subscriber<? super O> downstream;
+
+  // Nombre d'éléments demandés par l'aval et non encore transmis.
+  private long demand = 0;
+  // Compte les appels à drain() reçus pendant un drain() en cours.
+  private int wip = 0;
+  // Un élément a été demandé en amont et n'a pas encore été reçu.
+  private boolean pending = false;
+  private boolean upstreamDone = false;
+  private boolean terminated = false;
+  private boolean cancelled = false;
+  private Throwable error;
+
+  /**
+   * @param input
+   *          L'étape recevant les éléments de l'amont.
+   * @param output
+   *          L'étape produisant les éléments transmis à l'aval. Généralement la même que <code>input</code>.
+   * @param refCounter
+   *          Permet de référencer les éléments produits en attendant leur transmission.
+   * @param finisher
+   *          Appelé à la fin du flux amont, pour purger les éléments retenus par l'étape (par exemple
+   *          {@link fr.syrdek.ffmpeg.libav.java.chain.decode.Decoder#drain()}). Peut être <code>null</code>.
+   */
+  public StageProcessor(final Consumer<I> input, final Producer<O> output, final RefCounter<O> refCounter,
+      final Runnable finisher) {
+    this.input = input;
+    this.refCounter = refCounter;
+    this.finisher = finisher;
+    output.sendTo(o -> buffer.addLast(refCounter.ref(o)));
+  }
+
+  @Override
+  public synchronized void subscribe(final Flow.Subscriber<? super O> subscriber) {
+    if (downstream != null) {
+      subscriber.onSubscribe(FlowAdapters.EMPTY_SUBSCRIPTION);
+      subscriber.onError(new IllegalStateException("L'étape a déjà un abonné."));
+      return;
+    }
+    downstream = subscriber;
+    subscriber.onSubscribe(new Flow.Subscription() {
+      @Override
+      public void request(final long n) {
+        StageProcessor.this.request(n);
+      }
+
+      @Override
+      public void cancel() {
+        StageProcessor.this.cancel();
+      }
+    });
+  }
+
+  @Override
+  public synchronized void onSubscribe(final Flow.Subscription subscription) {
+    if (upstream != null) {
+      subscription.cancel();
+      return;
+    }
+    upstream = subscription;
+    drain();
+  }
+
+  @Override
+  public synchronized void onNext(final I item) {
+    pending = false;
+    if (cancelled || upstreamDone) {
+      return;
+    }
+    try {
+      input.accept(item);
+    } catch (RuntimeException e) {
+      upstream.cancel();
+      fail(e);
+      return;
+    }
+    drain();
+  }
+
+  @Override
+  public synchronized void onError(final Throwable throwable) {
+    fail(throwable);
+  }
+
+  @Override
+  public synchronized void onComplete() {
+    if (upstreamDone) {
+      return;
+    }
+    if (finisher != null) {
+      try {
+        finisher.run();
+      } catch (RuntimeException e) {
+        fail(e);
+        return;
+      }
+    }
+    upstreamDone = true;
+    drain();
+  }
+
+  private synchronized void request(final long n) {
+    if (terminated || cancelled) {
+      return;
+    }
+    if (n <= 0) {
+      cancel();
+      terminated = true;
+      downstream.onError(new IllegalArgumentException("La demande doit être positive : " + n));
+      return;
+    }
+    demand = FlowAdapters.addDemand(demand, n);
+    drain();
+  }
+
+  private synchronized void cancel() {
+    if (cancelled) {
+      return;
+    }
+    LOG.debug("Abonnement à l'étape annulé.");
+    cancelled = true;
+    if (upstream != null) {
+      upstream.cancel();
+    }
+    releaseBuffer();
+  }
+
+  /**
+   * Termine le flux en erreur. Les éléments en attente sont abandonnés.
+   */
+  private void fail(final Throwable throwable) {
+    if (upstreamDone) {
+      return;
+    }
+    error = throwable;
+    upstreamDone = true;
+    releaseBuffer();
+    drain();
+  }
+
+  /**
+   * Transmet les éléments en attente selon la demande, et demande un nouvel élément en amont si nécessaire.
+   */
+  private void drain() {
+    if (wip++ != 0) {
+      return;
+    }
+    do {
+      while (demand > 0 && !buffer.isEmpty() && !cancelled) {
+        final O item = buffer.pollFirst();
+        if (demand != Long.MAX_VALUE) {
+          demand--;
+        }
+        try {
+          downstream.onNext(item);
+        } finally {
+          refCounter.release(item);
+        }
+      }
+
+      if (!cancelled && buffer.isEmpty() && downstream != null) {
+        if (upstreamDone) {
+          if (!terminated) {
+            terminated = true;
+            if (error != null) {
+              downstream.onError(error);
+            } else {
+              downstream.onComplete();
+            }
+          }
+        } else if (demand > 0 && !pending && upstream != null) {
+          pending = true;
+          // Peut rappeler onNext() dans le même thread : l'élément sera transmis au tour de boucle suivant.
+          upstream.request(1);
+        }
+      }
+    } while (--wip != 0);
+  }
+
+  /**
+   * Libère les éléments en attente.
+   */
+  private void releaseBuffer() {
+    O item;
+    while ((item = buffer.pollFirst()) != null) {
+      refCounter.release(item);
+    }
+  }
+}
@@ -23,24 +23,50 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import fr.syrdek.ffmpeg.libav.java.chain.BaseProducer;
+import fr.syrdek.ffmpeg.libav.java.chain.FramePool;
+import fr.syrdek.ffmpeg.libav.java.chain.MemoryAccount;
 import fr.syrdek.ffmpeg.libav.java.chain.encode.AudioEncoder;
 import fr.syrdek.ffmpeg.libav.java.io.stream.AudioParameters;
 
 /**
  * Fifo permettant de bufferiser les trames audio pour gérer la conversion entre des codec n'utilisant pas la même
- * taille de frame.
+ * taille de frame.<br>
+ * Les frames produites proviennent d'une {@link FramePool} : elles ne sont valides que pendant leur transmission aux
+ * consommateurs, qui doivent les référencer pour les conserver.<br>
+ * Le buffer de conversion et la fifo ne font que grandir : une fois dimensionnés pour les plus grandes frames reçues,
+ * plus aucune allocation n'est faite par frame.<br>
+ * Si la {@link FramePool} utilisée est associée à un {@link MemoryAccount}, la fifo et le buffer de conversion y sont
+ * également comptés.
  *
  * @author t0087865
  */
-public class AudioResampler extends BaseProducer<AVFrame> implements Consumer<AVFrame> {
+public class AudioResampler extends BaseProducer<AVFrame> implements Consumer<AVFrame>, AutoCloseable {
   private static final Logger LOG = LoggerFactory.getLogger(AudioResampler.class);
 
+  // Taille de frame supposée pour les codecs acceptant des frames de taille variable (frame_size à 0).
+  private static final int DEFAULT_FRAME_SIZE = 1024;
+  // Nombre de frames que peut contenir la fifo à sa construction.
+  private static final int FIFO_FRAMES = 4;
+
   private final AVCodecContext encoderCtx;
   private final AudioParameters outParams;
   private final AVAudioFifo audioFifo;
   private final AVRational timebase;
   private final SwrContext swrCtx;
   private final String codecName;
+  private final FramePool framePool;
+  // La réserve a été construite par ce resampler, et doit être fermée avec lui.
+  private final boolean ownsPool;
+
+  // Buffer recevant les samples convertis, avant leur écriture dans la fifo.
+  private final PointerPointer<BytePointer> convertBuffer;
+  // Nombre de samples (par channel) que peut recevoir convertBuffer.
+  private int convertCapacity = 0;
+  // Nombre d'allocations natives faites par le resampler (buffer de conversion et fifo).
+  private long allocations = 0;
+  // Capacité de la fifo, en samples par channel.
+  private int fifoCapacity = 0;
+  private final MemoryAccount.Charge memory;
 
   /**
    * Construit un resampler audio.
@@ -50,13 +76,44 @@ public class AudioResampler extends BaseProducer<AVFrame> implements Consumer<AV
    * @param encoder
    */
   public AudioResampler(final AudioParameters inParams, final AudioParameters outParams, final AudioEncoder encoder) {
+    this(inParams, outParams, encoder, null);
+  }
+
+  /**
+   * Construit un resampler audio.
+   *
+   * @param inParams
+   * @param outParams
+   * @param encoder
+   * @param framePool
+   *          La réserve fournissant les frames produites. Si <code>null</code>, une réserve propre au resampler est
+   *          utilisée.
+   */
+  public AudioResampler(final AudioParameters inParams, final AudioParameters outParams, final AudioEncoder encoder,
+      final FramePool framePool) {
+    ownsPool = framePool == null;
+    this.framePool = ownsPool ? new FramePool() : framePool;
+    final MemoryAccount account = this.framePool.getMemoryAccount();
+    memory = account == null ? null : account.open("AudioResampler");
     timebase = encoder.getCodecCtx().time_base();
     encoderCtx = encoder.getCodecCtx();
     this.outParams = outParams;
     codecName = inParams.getCodecName();
 
-    audioFifo = checkAllocation(
-        avutil.av_audio_fifo_alloc(outParams.getSampleFormatValue(), outParams.getChannels(), 1));
+    // Un plan par channel pour les formats planaires, un seul plan sinon.
+    final int planes = avutil.av_sample_fmt_is_planar(outParams.getSampleFormatValue()) != 0
+        ? outParams.getChannels()
+        : 1;
+    convertBuffer = new PointerPointer<>(Math.max(planes, 1));
+
+    // La fifo contient au plus une frame encodeur incomplète et une frame convertie : la pré-dimensionne pour
+    // quelques frames, afin de ne pas avoir à l'agrandir en régime établi.
+    final int initialCapacity = Math.max(encoderCtx.frame_size(), DEFAULT_FRAME_SIZE) * FIFO_FRAMES;
+    chargeMemory(initialCapacity, 0);
+    audioFifo = checkAllocation(avutil.av_audio_fifo_alloc(outParams.getSampleFormatValue(), outParams.getChannels(),
+        initialCapacity));
+    fifoCapacity = initialCapacity;
+    allocations++;
 
     swrCtx = checkAllocation(swresample.swr_alloc_set_opts(null,
         encoderCtx.channel_layout(), encoderCtx.sample_fmt(), encoderCtx.sample_rate(),
@@ -79,38 +136,125 @@ public class AudioResampler extends BaseProducer<AVFrame> implements Consumer<AV
   }
 
   /**
-   * Purge la FIFO et envoie les paquets à l'encodeur.
+   * Purge les samples retenus par le resampler et la FIFO, et envoie les paquets à l'encodeur.
    */
   public void finish() {
+    // Récupère les samples encore retenus par le filtre de rééchantillonnage.
+    final int delayed = swresample.swr_get_out_samples(swrCtx, 0);
+    if (delayed > 0) {
+      ensureConvertCapacity(delayed);
+      final int converted = checkAndThrow(
+          swresample.swr_convert(swrCtx, convertBuffer, convertCapacity, (PointerPointer<?>) null, 0));
+      writeToFifo(converted);
+    }
     pullFromFifoToEncoder(true);
   }
 
+  @Override
+  public void close() {
+    LOG.debug("Fermeture du resampler audio : {}", framePool);
+    avutil.av_audio_fifo_free(audioFifo);
+    swresample.swr_free(swrCtx);
+    if (convertCapacity > 0) {
+      avutil.av_freep(convertBuffer);
+    }
+    convertBuffer.deallocate();
+    if (ownsPool) {
+      framePool.close();
+    }
+    if (memory != null) {
+      memory.close();
+    }
+  }
+
+  /**
+   * @return La réserve fournissant les frames produites.
+   */
+  public FramePool getFramePool() {
+    return framePool;
+  }
+
+  /**
+   * @return Le nombre d'allocations natives faites par le resampler depuis sa construction (buffer de conversion et
+   *         fifo). Hors frames produites, comptées par la {@link FramePool}.
+   */
+  public long getAllocations() {
+    return allocations;
+  }
+
   /**
-   * Convertit la frame et la pousse dans la fifo. TODO: Beaucoup d'allocations à chaque frame, il faudrait peut-être
-   * garder des buffers. Ne pas garder dans le framework.
+   * Convertit la frame et la pousse dans la fifo.
    *
    * @param frame
    *          La frame à traiter et enregistrer dans la fifo.
    */
   private void resampleAndPushToFifo(final AVFrame frame) {
-    // Alloue un tableau de pointeurs sur les données des channels audio à convertir.
-    final PointerPointer<BytePointer> convertedInputSamples = new PointerPointer<>(2);
-    // Demande à libav d'allouer les buffers pour les samples et de remplir notre tableau avec les adresses de ces
-    // buffers.
-    checkAndThrow(avutil.av_samples_alloc(convertedInputSamples, null, outParams.getChannels(), frame.nb_samples(),
-        outParams.getSampleFormatValue(), 0));
+    // Nombre maximal de samples produits, en tenant compte de ceux retenus par le filtre et du changement de fréquence.
+    ensureConvertCapacity(checkAndThrow(swresample.swr_get_out_samples(swrCtx, frame.nb_samples())));
     // Convertit les frames au format cible.
-    checkAndThrow(swresample.swr_convert(swrCtx, convertedInputSamples, frame.nb_samples(), frame.extended_data(),
-        frame.nb_samples()));
+    final int converted = checkAndThrow(swresample.swr_convert(swrCtx, convertBuffer, convertCapacity,
+        frame.extended_data(), frame.nb_samples()));
+    writeToFifo(converted);
+  }
 
-    // Aggrandit la fifo pour contenir les nouveaux samples.
-    avutil.av_audio_fifo_realloc(audioFifo, avutil.av_audio_fifo_size(audioFifo) + frame.nb_samples());
-    // Ecrit la nouvelle donnée dans la fifo.
-    avutil.av_audio_fifo_write(audioFifo, convertedInputSamples, frame.nb_samples());
+  /**
+   * Agrandit si besoin le buffer de conversion. Le buffer n'est jamais réduit.
+   *
+   * @param nbSamples
+   *          Le nombre de samples (par channel) que doit pouvoir recevoir le buffer.
+   */
+  private void ensureConvertCapacity(final int nbSamples) {
+    if (nbSamples <= convertCapacity) {
+      return;
+    }
+    // Prévoit de la marge pour ne pas réallouer à chaque légère variation de taille de frame.
+    final int capacity = Math.max(nbSamples, convertCapacity + convertCapacity / 2);
+    chargeMemory(fifoCapacity, capacity);
+    if (convertCapacity > 0) {
+      avutil.av_freep(convertBuffer);
+    }
+    checkAndThrow(avutil.av_samples_alloc(convertBuffer, null, outParams.getChannels(), capacity,
+        outParams.getSampleFormatValue(), 0));
+    convertCapacity = capacity;
+    allocations++;
+    LOG.debug("Buffer de conversion [{}] agrandi à {} samples.", codecName, capacity);
+  }
 
-    // Nettoie les buffers temporaires.
-    avutil.av_freep(convertedInputSamples);
-    convertedInputSamples.deallocate();
+  /**
+   * Ecrit les samples convertis dans la fifo, en l'agrandissant si besoin.
+   *
+   * @param nbSamples
+   *          Le nombre de samples (par channel) présents dans le buffer de conversion.
+   */
+  private void writeToFifo(final int nbSamples) {
+    if (nbSamples <= 0) {
+      return;
+    }
+    final int space = avutil.av_audio_fifo_space(audioFifo);
+    if (space < nbSamples) {
+      final int size = avutil.av_audio_fifo_size(audioFifo);
+      final int capacity = Math.max(size + nbSamples, 2 * (size + space));
+      chargeMemory(capacity, convertCapacity);
+      checkAndThrow(avutil.av_audio_fifo_realloc(audioFifo, capacity));
+      fifoCapacity = capacity;
+      allocations++;
+    }
+    checkAndThrow(avutil.av_audio_fifo_write(audioFifo, convertBuffer, nbSamples));
+  }
+
+  /**
+   * Comptabilise la mémoire de la fifo et du buffer de conversion, avant leur allocation.
+   *
+   * @param fifoSamples
+   *          La capacité de la fifo, en samples par channel.
+   * @param convertSamples
+   *          La capacité du buffer de conversion, en samples par channel.
+   */
+  private void chargeMemory(final int fifoSamples, final int convertSamples) {
+    if (memory != null) {
+      memory.set((long) (fifoSamples + convertSamples) * outParams.getChannels()
+          * avutil.av_get_bytes_per_sample(outParams.getSampleFormatValue()));
+    }
   }
 
   /**
@@ -130,18 +274,17 @@ public class AudioResampler extends BaseProducer<AVFrame> implements Consumer<AV
         // Dépile jusqu'au bout.
         || untilEnd && fifoSize > 0) {
 
-      // TODO: allouer la frame de sortie une fois et la réutiliser.
-      final AVFrame frame = checkAllocation(avutil.av_frame_alloc());
-      frame.nb_samples(encoderCtx.frame_size());
-      frame.channel_layout(encoderCtx.channel_layout());
-      frame.format(encoderCtx.sample_fmt());
-      frame.sample_rate(encoderCtx.sample_rate());
-
-      checkAndThrow(avutil.av_frame_get_buffer(frame, 0));
-
-      checkAndThrow(avutil.av_audio_fifo_read(audioFifo, frame.data(), encoderCtx.frame_size()));
-
-      publish(frame);
+      // La dernière frame peut être incomplète.
+      final int nbSamples = Math.min(fifoSize, encoderCtx.frame_size());
+      final AVFrame frame = framePool.acquireAudio(encoderCtx.sample_fmt(), nbSamples, encoderCtx.channels(),
+          encoderCtx.channel_layout(), encoderCtx.sample_rate());
+      try {
+        checkAndThrow(avutil.av_audio_fifo_read(audioFifo, frame.data(), nbSamples));
+        publish(frame);
+      } finally {
+        // Le buffer retourne à la réserve dès que l'encodeur ne le référence plus.
+        framePool.release(frame);
+      }
       fifoSize = avutil.av_audio_fifo_size(audioFifo);
     }
   }
@@ -21,6 +21,19 @@ public class AudioTimestamper extends BaseProducer<AVPacket> implements Consumer
 
   private long currentTs = 0l;
 
+  /**
+   * Fixe le timestamp du prochain paquet, pour que les paquets numérotés suivent ceux du flux source (par exemple
+   * lorsque la lecture commence au milieu du fichier).
+   *
+   * @param timestamp
+   *          Le timestamp du prochain paquet, dans la base de temps des paquets.
+   * @return Cet objet.
+   */
+  public AudioTimestamper startAt(final long timestamp) {
+    currentTs = timestamp;
+    return this;
+  }
+
   @Override
   public void accept(final AVPacket packet) {
     if (LOG.isDebugEnabled()) {
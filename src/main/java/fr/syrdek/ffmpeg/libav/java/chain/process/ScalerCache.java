@@ -0,0 +1,297 @@
+/**
+ *
+ */
+package fr.syrdek.ffmpeg.libav.java.chain.process;
+
+import static fr.syrdek.ffmpeg.libav.java.FFmpegException.checkAllocation;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import org.bytedeco.ffmpeg.global.swscale;
+import org.bytedeco.ffmpeg.swscale.SwsContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fr.syrdek.ffmpeg.libav.java.io.AVPixFormat;
+
+/**
+ * Réserve de contextes de redimensionnement swscale, partagée entre redimensionneurs et transcodages.<br>
+ * Construire un contexte swscale (calcul des tables et filtres d'interpolation) est coûteux : les contextes rendus à
+ * la réserve sont conservés, indexés par géométrie source et destination et par méthode d'interpolation, et réutilisés
+ * par les redimensionnements suivants de même géométrie.<br>
+ * Un contexte swscale ne peut pas être utilisé par deux threads à la fois : chaque {@link Scaler} obtenu via
+ * {@link #acquire(AVPixFormat, int, int, AVPixFormat, int, int, int)} est réservé à son utilisateur jusqu'à son
+ * {@link Scaler#close()}.<br>
+ * Le nombre de contextes inutilisés conservés est borné : au-delà, le plus ancien est recyclé via
+ * <code>sws_getCachedContext</code> pour construire le suivant.
+ *
+ * @author t0087865
+ */
+public class ScalerCache implements AutoCloseable {
+  private static final Logger LOG = LoggerFactory.getLogger(ScalerCache.class);
+
+  /**
+   * Nombre par défaut de contextes inutilisés conservés.
+   */
+  public static final int DEFAULT_MAX_IDLE = 16;
+
+  private static final ScalerCache DEFAULT = new ScalerCache(DEFAULT_MAX_IDLE);
+
+  /**
+   * Géométrie d'un redimensionnement.
+   */
+  private static final class Key {
+    private final int srcFormat;
+    private final int srcWidth;
+    private final int srcHeight;
+    private final int dstFormat;
+    private final int dstWidth;
+    private final int dstHeight;
+    private final int flags;
+
+    private Key(final int srcFormat, final int srcWidth, final int srcHeight, final int dstFormat,
+        final int dstWidth, final int dstHeight, final int flags) {
+      this.srcFormat = srcFormat;
+      this.srcWidth = srcWidth;
+      this.srcHeight = srcHeight;
+      this.dstFormat = dstFormat;
+      this.dstWidth = dstWidth;
+      this.dstHeight = dstHeight;
+      this.flags = flags;
+    }
+
+    @Override
+    public int hashCode() {
+      int h = srcFormat;
+      h = 31 * h + srcWidth;
+      h = 31 * h + srcHeight;
+      h = 31 * h + dstFormat;
+      h = 31 * h + dstWidth;
+      h = 31 * h + dstHeight;
+      return 31 * h + flags;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      final Key o = (Key) obj;
+      return srcFormat == o.srcFormat && srcWidth == o.srcWidth && srcHeight == o.srcHeight
+          && dstFormat == o.dstFormat && dstWidth == o.dstWidth && dstHeight == o.dstHeight && flags == o.flags;
+    }
+
+    @Override
+    public String toString() {
+      return srcWidth + "x" + srcHeight + "[" + AVPixFormat.get(srcFormat) + "] --" + flags + "--> " + dstWidth + "x"
+          + dstHeight + "[" + AVPixFormat.get(dstFormat) + "]";
+    }
+  }
+
+  /**
+   * Contexte de redimensionnement réservé par un utilisateur de la réserve.
+   */
+  public final class Scaler implements AutoCloseable {
+    private final Key key;
+    private SwsContext context;
+
+    private Scaler(final Key key, final SwsContext context) {
+      this.key = key;
+      this.context = context;
+    }
+
+    /**
+     * @return Le contexte swscale. Ne doit pas être libéré par l'appelant.
+     */
+    public SwsContext getContext() {
+      if (context == null) {
+        throw new IllegalStateException("Le contexte de redimensionnement " + key + " a été rendu à la réserve.");
+      }
+      return context;
+    }
+
+    /**
+     * Rend le contexte à la réserve.
+     */
+    @Override
+    public void close() {
+      if (context != null) {
+        release(key, context);
+        context = null;
+      }
+    }
+  }
+
+  // Contextes inutilisés, du plus récemment rendu au plus ancien.
+  private final LinkedList<Scaler> idle = new LinkedList<>();
+  private final int maxIdle;
+  private boolean closed = false;
+
+  // Statistiques.
+  private long hits = 0;
+  private long misses = 0;
+  private long initNanos = 0;
+
+  /**
+   * @param maxIdle
+   *          Le nombre maximal de contextes inutilisés conservés.
+   */
+  public ScalerCache(final int maxIdle) {
+    if (maxIdle < 0) {
+      throw new IllegalArgumentException("Le nombre de contextes conservés doit être positif : " + maxIdle);
+    }
+    this.maxIdle = maxIdle;
+  }
+
+  /**
+   * @return La réserve partagée par défaut entre tous les redimensionneurs.
+   */
+  public static ScalerCache getDefault() {
+    return DEFAULT;
+  }
+
+  /**
+   * Réserve un contexte de redimensionnement. Un contexte inutilisé de même géométrie est réutilisé s'il en existe un,
+   * sinon un nouveau contexte est construit.
+   *
+   * @param srcFormat
+   *          Le format d'image source.
+   * @param srcWidth
+   *          La largeur d'image source.
+   * @param srcHeight
+   *          La hauteur de l'image source.
+   * @param dstFormat
+   *          Le format d'image à construire.
+   * @param dstWidth
+   *          La largeur d'image à construire.
+   * @param dstHeight
+   *          La hauteur de l'image à construire.
+   * @param flags
+   *          La méthode d'interpolation et les options de swscale.
+   * @return Le contexte réservé, à rendre via {@link Scaler#close()}.
+   * @throws fr.syrdek.ffmpeg.libav.java.FFmpegException
+   *           Si le contexte ne peut pas être construit.
+   */
+  public Scaler acquire(final AVPixFormat srcFormat, final int srcWidth, final int srcHeight,
+      final AVPixFormat dstFormat, final int dstWidth, final int dstHeight, final int flags) {
+    final Key key = new Key(srcFormat.value(), srcWidth, srcHeight, dstFormat.value(), dstWidth, dstHeight, flags);
+
+    SwsContext recycled = null;
+    synchronized (this) {
+      final Iterator<Scaler> it = idle.iterator();
+      while (it.hasNext()) {
+        final Scaler scaler = it.next();
+        if (scaler.key.equals(key)) {
+          it.remove();
+          hits++;
+          return new Scaler(key, scaler.context);
+        }
+      }
+      misses++;
+      // Réserve pleine : le plus ancien contexte inutilisé est recyclé.
+      if (!idle.isEmpty() && idle.size() >= maxIdle) {
+        recycled = idle.removeLast().context;
+      }
+    }
+
+    final long start = System.nanoTime();
+    // Libère le contexte recyclé, dont la géométrie est différente, et en construit un nouveau.
+    final SwsContext context = checkAllocation(swscale.sws_getCachedContext(recycled,
+        srcWidth, srcHeight, srcFormat.value(),
+        dstWidth, dstHeight, dstFormat.value(),
+        flags, null, null, (double[]) null),
+        "Impossible de construire le contexte de redimensionnement vidéo {0}.", key);
+    final long elapsed = System.nanoTime() - start;
+    synchronized (this) {
+      initNanos += elapsed;
+    }
+    LOG.debug("Construction du contexte de redimensionnement vidéo {} en {} µs.", key, elapsed / 1000);
+    return new Scaler(key, context);
+  }
+
+  /**
+   * Rend un contexte à la réserve.
+   */
+  private void release(final Key key, final SwsContext context) {
+    SwsContext evicted = null;
+    synchronized (this) {
+      if (closed || maxIdle == 0) {
+        evicted = context;
+      } else {
+        idle.addFirst(new Scaler(key, context));
+        if (idle.size() > maxIdle) {
+          evicted = idle.removeLast().context;
+        }
+      }
+    }
+    if (evicted != null) {
+      swscale.sws_freeContext(evicted);
+    }
+  }
+
+  /**
+   * @return Le nombre de réservations ayant réutilisé un contexte existant.
+   */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /**
+   * @return Le nombre de réservations ayant construit un nouveau contexte.
+   */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /**
+   * @return La proportion de réservations ayant réutilisé un contexte existant, entre 0 et 1.
+   */
+  public synchronized double getHitRate() {
+    final long total = hits + misses;
+    return total == 0 ? 0 : (double) hits / total;
+  }
+
+  /**
+   * @return Le temps total passé à construire des contextes, en nanosecondes.
+   */
+  public synchronized long getInitNanos() {
+    return initNanos;
+  }
+
+  /**
+   * @return Le nombre de contextes inutilisés conservés.
+   */
+  public synchronized int getIdleCount() {
+    return idle.size();
+  }
+
+  /**
+   * Libère les contextes inutilisés. Les contextes encore réservés sont libérés lorsqu'ils sont rendus.
+   */
+  @Override
+  public void close() {
+    synchronized (this) {
+      closed = true;
+    }
+    clear();
+  }
+
+  /**
+   * Libère les contextes inutilisés, sans fermer la réserve.
+   */
+  public void clear() {
+    final LinkedList<Scaler> freed;
+    synchronized (this) {
+      freed = new LinkedList<>(idle);
+      idle.clear();
+    }
+    freed.forEach(s -> swscale.sws_freeContext(s.context));
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "ScalerCache [hits=" + hits + ", misses=" + misses + ", initMs=" + initNanos / 1_000_000 + ", idle="
+        + idle.size() + "/" + maxIdle + "]";
+  }
+}
@@ -0,0 +1,239 @@
+/**
+ *
+ */
+package fr.syrdek.ffmpeg.libav.java.chain.process;
+
+import static fr.syrdek.ffmpeg.libav.java.FFmpegException.checkAllocation;
+import static fr.syrdek.ffmpeg.libav.java.FFmpegException.checkAndThrow;
+
+import java.io.Closeable;
+import java.util.function.Consumer;
+
+import org.bytedeco.ffmpeg.avcodec.AVCodecParameters;
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVStream;
+import org.bytedeco.ffmpeg.avutil.AVRational;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fr.syrdek.ffmpeg.libav.java.FFmpegException;
+import fr.syrdek.ffmpeg.libav.java.TimeUtils;
+import fr.syrdek.ffmpeg.libav.java.chain.Muxer;
+import fr.syrdek.ffmpeg.libav.java.io.stream.AudioParameters;
+import fr.syrdek.ffmpeg.libav.java.io.stream.CodecContextParameters;
+import fr.syrdek.ffmpeg.libav.java.io.stream.VideoParameters;
+
+/**
+ * Recopie les paquets d'un flux du conteneur lu dans un flux du conteneur écrit, sans les décoder ni les réencoder
+ * (remux).<br>
+ * Le flux écrit reprend les paramètres de codec du flux lu (via <code>avcodec_parameters_copy</code>). Seuls les
+ * timestamps des paquets sont recalculés dans la base de temps du flux écrit, choisie par le muxer à l'écriture des
+ * entêtes. Un DTS qui n'est pas strictement croissant est remplacé par le PTS si le flux ne réordonne pas ses images.
+ * Un flux avec images B n'est recopié que si le conteneur écrit accepte des DTS égaux.<br>
+ * {@link #isCompatible(AVStream, CodecContextParameters, Muxer)} permet de savoir si un flux peut être recopié au
+ * lieu d'être transcodé vers les paramètres demandés.
+ *
+ * @author t0087865
+ */
+public class StreamCopier implements Consumer<AVPacket>, Closeable {
+  private static final Logger LOG = LoggerFactory.getLogger(StreamCopier.class);
+
+  // Ecart relatif toléré entre la cadence du flux lu et la cadence demandée.
+  private static final double FRAME_RATE_TOLERANCE = 0.001;
+
+  private final AVStream source;
+  private final AVStream target;
+  private final Muxer destination;
+  private final AVRational sourceTimeBase;
+  // Vrai si le décodage réordonne les images (images B) : le DTS d'un paquet ne peut pas être déduit de son PTS.
+  private final boolean reordered;
+  // Vrai si le conteneur écrit refuse deux DTS égaux dans un même flux.
+  private final boolean increasingDts;
+  // Référence sur le paquet en cours de copie, dont le muxer prend possession à l'écriture.
+  private final AVPacket packet;
+  private long packetCount = 0;
+  // Dernier DTS écrit, dans la base de temps du flux écrit.
+  private long lastDts = Long.MIN_VALUE;
+
+  /**
+   * Ajoute au conteneur écrit une copie du flux donné.
+   *
+   * @param source
+   *          Le flux à recopier.
+   * @param destination
+   *          Le conteneur dans lequel recopier le flux. Ses entêtes ne doivent pas encore être écrites.
+   */
+  public StreamCopier(final AVStream source, final Muxer destination) {
+    this.source = source;
+    this.destination = destination;
+    target = destination.addStream(source);
+    sourceTimeBase = TimeUtils.copy(source.time_base());
+    reordered = source.codecpar().video_delay() > 0;
+    increasingDts = destination.requiresIncreasingDts();
+    packet = checkAllocation(avcodec.av_packet_alloc(), "Impossible d''allouer le paquet de copie du flux {0}.",
+        source.index());
+  }
+
+  /**
+   * Détermine si un flux peut être recopié tel quel au lieu d'être transcodé : le codec, la géométrie et le format
+   * d'image (ou la fréquence, le nombre de canaux et le format des samples) doivent être identiques à ceux demandés, et
+   * le conteneur écrit doit accepter le codec.<br>
+   * Le débit du flux lu ne doit pas dépasser le débit demandé. Un débit inconnu (fréquent dans les conteneurs qui ne le
+   * déclarent pas par flux) est considéré comme compatible.
+   *
+   * @param source
+   *          Le flux lu.
+   * @param params
+   *          Les paramètres d'encodage demandés.
+   * @param destination
+   *          Le conteneur écrit.
+   * @return <code>true</code> si le flux peut être recopié.
+   */
+  public static boolean isCompatible(final AVStream source, final CodecContextParameters params,
+      final Muxer destination) {
+    final AVCodecParameters par = source.codecpar();
+    if (par.codec_id() != params.getCodec()) {
+      return mismatch(source, "codec", par.codec_id(), params.getCodec());
+    }
+    if (!destination.supportsCodec(par.codec_id())) {
+      return mismatch(source, "codec accepté par le conteneur", false, true);
+    }
+    // Les DTS des images B, déduits des PTS par libavformat pour les conteneurs qui ne les stockent pas, peuvent se
+    // répéter : ils ne peuvent être ni corrigés sans décaler les PTS, ni écrits dans un conteneur qui les exige
+    // strictement croissants.
+    if (par.video_delay() > 0 && destination.requiresIncreasingDts()) {
+      return mismatch(source, "images B vers un conteneur exigeant des DTS strictement croissants", true, false);
+    }
+    if (params.getBitRate() != null && par.bit_rate() > params.getBitRate()) {
+      return mismatch(source, "débit", par.bit_rate(), params.getBitRate());
+    }
+    if (params instanceof VideoParameters) {
+      return isCompatible(source, (VideoParameters) params);
+    }
+    if (params instanceof AudioParameters) {
+      return isCompatible(source, (AudioParameters) params);
+    }
+    return false;
+  }
+
+  /**
+   * Compare les paramètres propres aux flux vidéo.
+   */
+  private static boolean isCompatible(final AVStream source, final VideoParameters params) {
+    final AVCodecParameters par = source.codecpar();
+    if (params.getWidth() != null && par.width() != params.getWidth()) {
+      return mismatch(source, "largeur", par.width(), params.getWidth());
+    }
+    if (params.getHeight() != null && par.height() != params.getHeight()) {
+      return mismatch(source, "hauteur", par.height(), params.getHeight());
+    }
+    if (params.getPixFormat() != null && par.format() != params.getPixFormat().value()) {
+      return mismatch(source, "format d'image", par.format(), params.getPixFormat().value());
+    }
+    if (params.getFrameRate() != null) {
+      final AVRational rate = source.avg_frame_rate().num() != 0 ? source.avg_frame_rate() : source.r_frame_rate();
+      final double actual = rate.den() == 0 ? 0 : avutil.av_q2d(rate);
+      if (Math.abs(actual - params.getFrameRate()) > params.getFrameRate() * FRAME_RATE_TOLERANCE) {
+        return mismatch(source, "cadence", actual, params.getFrameRate());
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Compare les paramètres propres aux flux audio.
+   */
+  private static boolean isCompatible(final AVStream source, final AudioParameters params) {
+    final AVCodecParameters par = source.codecpar();
+    if (params.getSampleRate() != null && par.sample_rate() != params.getSampleRate()) {
+      return mismatch(source, "fréquence", par.sample_rate(), params.getSampleRate());
+    }
+    if (params.getChannels() != null && par.channels() != params.getChannels()) {
+      return mismatch(source, "nombre de canaux", par.channels(), params.getChannels());
+    }
+    if (params.getChannelsLayout() != null && par.channel_layout() != 0
+        && par.channel_layout() != params.getChannelsLayout()) {
+      return mismatch(source, "disposition des canaux", par.channel_layout(), params.getChannelsLayout());
+    }
+    if (params.getSampleFormat() != null && par.format() != params.getSampleFormat().value()) {
+      return mismatch(source, "format des samples", par.format(), params.getSampleFormat().value());
+    }
+    return true;
+  }
+
+  /**
+   * Trace la différence empêchant la copie d'un flux.
+   *
+   * @return <code>false</code>.
+   */
+  private static boolean mismatch(final AVStream source, final String what, final Object actual,
+      final Object expected) {
+    LOG.debug("Le flux {} doit être transcodé : {} {} au lieu de {}.", source.index(), what, actual, expected);
+    return false;
+  }
+
+  @Override
+  public void accept(final AVPacket read) {
+    if (read.stream_index() != source.index()) {
+      return;
+    }
+    checkAndThrow(avcodec.av_packet_ref(packet, read), "Impossible de référencer le paquet du flux {0}.",
+        source.index());
+    try {
+      // La base de temps du flux écrit n'est connue qu'une fois les entêtes écrites.
+      destination.writeHeaders();
+      avcodec.av_packet_rescale_ts(packet, sourceTimeBase, target.time_base());
+      packet.stream_index(target.index());
+      packet.pos(-1);
+
+      // Certains conteneurs ne stockent que les PTS : les DTS déduits par libavformat peuvent se répéter, ce que
+      // refusent les muxers qui les écrivent (mp4, ...). Sans réordonnancement des images, le DTS est égal au PTS.
+      // Les flux avec images B ne sont recopiés que vers les conteneurs acceptant des DTS égaux (voir isCompatible) :
+      // un DTS décroissant y reste une erreur.
+      if (packet.dts() != avutil.AV_NOPTS_VALUE) {
+        if (packet.dts() <= lastDts && !reordered && packet.pts() != avutil.AV_NOPTS_VALUE
+            && packet.pts() > lastDts) {
+          packet.dts(packet.pts());
+        }
+        if (packet.dts() < lastDts || (packet.dts() == lastDts && increasingDts)) {
+          throw new FFmpegException("DTS non croissant dans le flux recopié " + source.index() + " : " + packet.dts()
+              + " après " + lastDts + ". Le flux doit être transcodé.");
+        }
+        lastDts = packet.dts();
+      }
+      destination.accept(packet);
+      packetCount++;
+    } finally {
+      avcodec.av_packet_unref(packet);
+    }
+  }
+
+  /**
+   * @return Le flux lu.
+   */
+  public AVStream getSource() {
+    return source;
+  }
+
+  /**
+   * @return Le flux écrit.
+   */
+  public AVStream getTarget() {
+    return target;
+  }
+
+  /**
+   * @return Le nombre de paquets recopiés.
+   */
+  public long getPacketCount() {
+    return packetCount;
+  }
+
+  @Override
+  public void close() {
+    avcodec.av_packet_free(packet);
+    sourceTimeBase.close();
+  }
+}
@@ -75,7 +75,7 @@ public class TimestampScaler extends BaseProducer<AVPacket> implements Consumer<
 
   @Override
   public void accept(final AVPacket packet) {
-    if (scalingIsNeeded && packet.pts() > 0) {
+    if (scalingIsNeeded) {
       long oldDts = packet.dts();
       long oldPts = packet.pts();
 
@@ -89,9 +89,9 @@ public class TimestampScaler extends BaseProducer<AVPacket> implements Consumer<
             TimeUtils.timestampToHms(packet.dts(), targetTimeBase), oldDts, packet.dts(),
             TimeUtils.timestampToHms(packet.pts(), targetTimeBase), oldPts, packet.pts());
       }
-
-      publish(packet);
     }
+    // Les paquets dont les timestamps n'ont pas à être modifiés sont transmis tels quels.
+    publish(packet);
   }
 
   @Override
@@ -3,19 +3,18 @@
  */
 package fr.syrdek.ffmpeg.libav.java.chain.process;
 
-import static fr.syrdek.ffmpeg.libav.java.FFmpegException.checkAllocation;
 import static fr.syrdek.ffmpeg.libav.java.FFmpegException.checkAndThrow;
 
 import java.util.function.Consumer;
 
 import org.bytedeco.ffmpeg.avutil.AVFrame;
-import org.bytedeco.ffmpeg.global.avutil;
 import org.bytedeco.ffmpeg.global.swscale;
 import org.bytedeco.ffmpeg.swscale.SwsContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import fr.syrdek.ffmpeg.libav.java.chain.BaseProducer;
+import fr.syrdek.ffmpeg.libav.java.chain.FramePool;
 import fr.syrdek.ffmpeg.libav.java.chain.Producer;
 import fr.syrdek.ffmpeg.libav.java.io.AVPixFormat;
 import fr.syrdek.ffmpeg.libav.java.io.SWSInterpolation;
@@ -24,7 +23,12 @@ import fr.syrdek.ffmpeg.libav.java.io.stream.VideoParameters;
 /**
  * Permet de redimentionner les images d'une vidéo.<br>
  * Les images consommées ne sont pas modifiées, mais une copie est créée et produite en sortie. Les consommateurs
- * inscrits via {@link Producer#sendTo(Consumer)} recevront la copie redimensionnée des frames de la vidéo.
+ * inscrits via {@link Producer#sendTo(Consumer)} recevront la copie redimensionnée des frames de la vidéo.<br>
+ * Les copies proviennent d'une {@link FramePool} : elles ne sont valides que pendant leur transmission aux
+ * consommateurs, qui doivent les référencer (sans copie des données) pour les conserver.<br>
+ * Les contextes swscale proviennent d'une {@link ScalerCache}, par défaut partagée entre tous les redimensionneurs.
+ * La géométrie de chaque image reçue est vérifiée : si la résolution ou le format de la source change en cours de
+ * flux, le redimensionneur change de contexte, et les images produites gardent la géométrie de destination.
  *
  * @author t0087865
  */
@@ -41,8 +45,17 @@ public class VideoRescaler extends BaseProducer<AVFrame> implements Consumer<AVF
 
   private final SWSInterpolation scalingMethod;
 
-  private final SwsContext context;
-  private final AVFrame dstFrame;
+  private final ScalerCache scalerCache;
+  // Contexte correspondant à la géométrie des dernières images reçues.
+  private ScalerCache.Scaler scaler;
+  private int currentFormat;
+  private int currentWidth;
+  private int currentHeight;
+  private long geometryChanges = 0;
+
+  private final FramePool framePool;
+  // La réserve a été construite par ce redimensionneur, et doit être fermée avec lui.
+  private final boolean ownsPool;
 
   /**
    * Construit un redimensionneur de vidéo.
@@ -64,6 +77,62 @@ public class VideoRescaler extends BaseProducer<AVFrame> implements Consumer<AVF
    */
   public VideoRescaler(AVPixFormat srcFormat, int srcWidth, int srcHeight, AVPixFormat dstFormat, int dstWidth,
       int dstHeight, SWSInterpolation scalingMethod) {
+    this(srcFormat, srcWidth, srcHeight, dstFormat, dstWidth, dstHeight, scalingMethod, null);
+  }
+
+  /**
+   * Construit un redimensionneur de vidéo.
+   *
+   * @param srcFormat
+   *          Le format d'image source.
+   * @param srcWidth
+   *          La largeur d'image source.
+   * @param srcHeight
+   *          La hauteur de l'image source.
+   * @param dstFormat
+   *          Le format d'image à construire.
+   * @param dstWidth
+   *          La largeur d'image à construire.
+   * @param dstHeight
+   *          La hauteur de l'image à construire.
+   * @param scalingMethod
+   *          La méthode d'interpolation à utiliser pour redimensionner l'image.
+   * @param framePool
+   *          La réserve fournissant les images construites. Si <code>null</code>, une réserve propre au
+   *          redimensionneur est utilisée.
+   */
+  public VideoRescaler(AVPixFormat srcFormat, int srcWidth, int srcHeight, AVPixFormat dstFormat, int dstWidth,
+      int dstHeight, SWSInterpolation scalingMethod, FramePool framePool) {
+    this(srcFormat, srcWidth, srcHeight, dstFormat, dstWidth, dstHeight, scalingMethod, framePool,
+        ScalerCache.getDefault());
+  }
+
+  /**
+   * Construit un redimensionneur de vidéo.
+   *
+   * @param srcFormat
+   *          Le format d'image source attendu.
+   * @param srcWidth
+   *          La largeur d'image source attendue.
+   * @param srcHeight
+   *          La hauteur de l'image source attendue.
+   * @param dstFormat
+   *          Le format d'image à construire.
+   * @param dstWidth
+   *          La largeur d'image à construire.
+   * @param dstHeight
+   *          La hauteur de l'image à construire.
+   * @param scalingMethod
+   *          La méthode d'interpolation à utiliser pour redimensionner l'image.
+   * @param framePool
+   *          La réserve fournissant les images construites. Si <code>null</code>, une réserve propre au
+   *          redimensionneur est utilisée.
+   * @param scalerCache
+   *          La réserve fournissant les contextes de redimensionnement. Si <code>null</code>, la réserve partagée par
+   *          défaut est utilisée.
+   */
+  public VideoRescaler(AVPixFormat srcFormat, int srcWidth, int srcHeight, AVPixFormat dstFormat, int dstWidth,
+      int dstHeight, SWSInterpolation scalingMethod, FramePool framePool, ScalerCache scalerCache) {
     this.srcFormat = srcFormat;
     this.srcHeight = srcHeight;
     this.srcWidth = srcWidth;
@@ -81,31 +150,13 @@ public class VideoRescaler extends BaseProducer<AVFrame> implements Consumer<AVF
           dstWidth, dstHeight, dstFormat);
     }
 
-    // On construit une frame qui contiendra l'image redimensionnée.
-    dstFrame = checkAllocation(avutil.av_frame_alloc(),
-        "Impossible d'allouer une nouvelle frame pour le redimensionnement vidéo.");
-    dstFrame.format(dstFormat.value());
-    dstFrame.height(dstHeight);
-    dstFrame.width(dstWidth);
-
-    // Alloue le tableau d'octets de l'image.
-    checkAndThrow(
-        avutil.av_image_alloc(dstFrame.data(), dstFrame.linesize(), dstFrame.width(), dstFrame.height(),
-            dstFrame.format(),
-            32),
-        "Impossible d'allouer une image de {}x{}[{}].", dstFrame.width(), dstFrame.height(),
-        dstFormat);
-
-    // Construit le contexte qui sera utilisé pour procéder au redimensionnement.
-    context = checkAllocation(swscale.sws_getContext(
-        srcWidth, srcHeight, srcFormat.value(),
-        dstWidth, dstHeight, dstFormat.value(),
-        this.scalingMethod.value(), null, null, (double[]) null),
-        "Impossible de construire le contexte de redimensionnement vidéo {}x{} [{}] --{}--> {}x{} [{}].",
-        srcWidth, srcHeight, srcFormat,
-        this.scalingMethod,
-        dstWidth, dstHeight, dstFormat);
+    // Les images redimensionnées sont construites dans des buffers réutilisés.
+    ownsPool = framePool == null;
+    this.framePool = ownsPool ? new FramePool() : framePool;
 
+    // Réserve dès maintenant le contexte de la géométrie attendue, pour échouer au plus tôt.
+    this.scalerCache = scalerCache == null ? ScalerCache.getDefault() : scalerCache;
+    selectScaler(srcFormat.value(), srcWidth, srcHeight);
   }
 
   /**
@@ -120,6 +171,45 @@ public class VideoRescaler extends BaseProducer<AVFrame> implements Consumer<AVF
    */
   public VideoRescaler(final VideoParameters src, final VideoParameters destination,
       final SWSInterpolation scalingMethod) {
+    this(src, destination, scalingMethod, null);
+  }
+
+  /**
+   * Construit un redimensionneur de vidéo.
+   *
+   * @param src
+   *          Les paramètres des images source.
+   * @param destination
+   *          Les paramètres d'image recherchés.
+   * @param scalingMethod
+   *          La méthode d'interpolation à utiliser pour redimensionner l'image.
+   * @param framePool
+   *          La réserve fournissant les images construites. Si <code>null</code>, une réserve propre au
+   *          redimensionneur est utilisée.
+   */
+  public VideoRescaler(final VideoParameters src, final VideoParameters destination,
+      final SWSInterpolation scalingMethod, final FramePool framePool) {
+    this(src, destination, scalingMethod, framePool, null);
+  }
+
+  /**
+   * Construit un redimensionneur de vidéo.
+   *
+   * @param src
+   *          Les paramètres des images source attendues.
+   * @param destination
+   *          Les paramètres d'image recherchés.
+   * @param scalingMethod
+   *          La méthode d'interpolation à utiliser pour redimensionner l'image.
+   * @param framePool
+   *          La réserve fournissant les images construites. Si <code>null</code>, une réserve propre au
+   *          redimensionneur est utilisée.
+   * @param scalerCache
+   *          La réserve fournissant les contextes de redimensionnement. Si <code>null</code>, la réserve partagée par
+   *          défaut est utilisée.
+   */
+  public VideoRescaler(final VideoParameters src, final VideoParameters destination,
+      final SWSInterpolation scalingMethod, final FramePool framePool, final ScalerCache scalerCache) {
     this(
         src.getPixFormat(),
         src.getWidth(),
@@ -127,35 +217,93 @@ public class VideoRescaler extends BaseProducer<AVFrame> implements Consumer<AVF
         destination.getPixFormat(),
         destination.getWidth(),
         destination.getHeight(),
-        scalingMethod);
+        scalingMethod,
+        framePool,
+        scalerCache);
   }
 
   @Override
   public void accept(final AVFrame frame) {
-    // Construit une version redimensionnée de frame dans dstFrame.
-    checkAndThrow(
-        swscale.sws_scale(context,
-            frame.data(), frame.linesize(), 0, frame.height(),
-            dstFrame.data(), dstFrame.linesize()),
-        "Impossible de redimensionner l'image source.");
+    if (frame.width() != currentWidth || frame.height() != currentHeight || frame.format() != currentFormat) {
+      LOG.info("Changement de géométrie de la vidéo source : {}x{}[{}] -> {}x{}[{}].",
+          currentWidth, currentHeight, AVPixFormat.get(currentFormat),
+          frame.width(), frame.height(), AVPixFormat.get(frame.format()));
+      selectScaler(frame.format(), frame.width(), frame.height());
+      geometryChanges++;
+    }
+
+    final AVFrame dstFrame = framePool.acquireVideo(dstFormat.value(), dstWidth, dstHeight);
+    try {
+      // Construit une version redimensionnée de frame dans dstFrame.
+      checkAndThrow(
+          swscale.sws_scale(scaler.getContext(),
+              frame.data(), frame.linesize(), 0, frame.height(),
+              dstFrame.data(), dstFrame.linesize()),
+          "Impossible de redimensionner l''image source.");
 
-    // Copie les DTS / PTS dans la frame redimensionnée.
-    dstFrame.pts(frame.pts());
-    dstFrame.pkt_dts(frame.pkt_dts());
-    dstFrame.pkt_duration(frame.pkt_duration());
-    dstFrame.best_effort_timestamp(frame.best_effort_timestamp());
+      // Copie les DTS / PTS dans la frame redimensionnée.
+      dstFrame.pts(frame.pts());
+      dstFrame.pkt_dts(frame.pkt_dts());
+      dstFrame.pkt_duration(frame.pkt_duration());
+      dstFrame.best_effort_timestamp(frame.best_effort_timestamp());
 
-    publish(dstFrame);
+      publish(dstFrame);
+    } finally {
+      // Le buffer retourne à la réserve dès que plus aucun consommateur ne le référence.
+      framePool.release(dstFrame);
+    }
   }
 
   @Override
   public void close() {
-    avutil.av_frame_free(dstFrame);
-    swscale.sws_freeContext(context);
+    LOG.debug("Fermeture du redimensionneur vidéo : {}, {}", framePool, scalerCache);
+    if (scaler != null) {
+      scaler.close();
+      scaler = null;
+    }
+    if (ownsPool) {
+      framePool.close();
+    }
+  }
+
+  /**
+   * Rend le contexte courant à la réserve, et réserve celui de la géométrie source donnée.
+   */
+  private void selectScaler(final int format, final int width, final int height) {
+    final ScalerCache.Scaler next = scalerCache.acquire(AVPixFormat.get(format), width, height,
+        dstFormat, dstWidth, dstHeight, scalingMethod.value());
+    if (scaler != null) {
+      scaler.close();
+    }
+    scaler = next;
+    currentFormat = format;
+    currentWidth = width;
+    currentHeight = height;
+  }
+
+  /**
+   * @return La réserve fournissant les contextes de redimensionnement.
+   */
+  public ScalerCache getScalerCache() {
+    return scalerCache;
+  }
+
+  /**
+   * @return Le nombre de changements de géométrie de la source rencontrés en cours de flux.
+   */
+  public long getGeometryChanges() {
+    return geometryChanges;
+  }
+
+  /**
+   * @return La réserve fournissant les images construites.
+   */
+  public FramePool getFramePool() {
+    return framePool;
   }
 
   /**
-   * @return the srcFormat
+   * @return Le format d'image source attendu. Voir {@link #getGeometryChanges()}.
    */
   public AVPixFormat getSrcFormat() {
     return srcFormat;
@@ -204,9 +352,9 @@ public class VideoRescaler extends BaseProducer<AVFrame> implements Consumer<AVF
   }
 
   /**
-   * @return the context
+   * @return Le contexte correspondant à la géométrie des dernières images reçues.
    */
   public SwsContext getContext() {
-    return context;
+    return scaler.getContext();
   }
 }
@@ -9,6 +9,22 @@ import fr.syrdek.ffmpeg.libav.java.CFlag;
  * @author Syrdek
  */
 public enum AVSeekFlag implements CFlag {
+  /**
+   * Seek backward: seek to the closest keyframe before the requested timestamp.
+   */
+  AVSEEK_FLAG_BACKWARD(0x1),
+  /**
+   * Seeking based on position in bytes.
+   */
+  AVSEEK_FLAG_BYTE(0x2),
+  /**
+   * Seek to any frame, even non-keyframes.
+   */
+  AVSEEK_FLAG_ANY(0x4),
+  /**
+   * Seeking based on frame number.
+   */
+  AVSEEK_FLAG_FRAME(0x8),
   /**
    * Passing this as the "whence" parameter to a seek function causes it to return the filesize without seeking anywhere.
    * If it is not supported then the seek function will return <0.
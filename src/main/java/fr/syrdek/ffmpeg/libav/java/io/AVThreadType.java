@@ -0,0 +1,31 @@
+package fr.syrdek.ffmpeg.libav.java.io;
+
+import fr.syrdek.ffmpeg.libav.java.CFlag;
+
+/**
+ * Méthodes de parallélisation utilisables par un codec.
+ *
+ * @see https://www.ffmpeg.org/doxygen/4.1/structAVCodecContext.html#a7651614f4309122981d70e06a4b42fcb
+ *
+ * @author Syrdek
+ */
+public enum AVThreadType implements CFlag {
+  /**
+   * Decode more than one frame at once.
+   */
+  FRAME(0x1),
+  /**
+   * Decode more than one part of a single frame at once.
+   */
+  SLICE(0x2);
+
+  private final int value;
+
+  AVThreadType(int value) {
+    this.value = value;
+  }
+
+  public int value() {
+    return value;
+  }
+}
@@ -0,0 +1,245 @@
+package fr.syrdek.ffmpeg.libav.java.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bytedeco.ffmpeg.avformat.Read_packet_Pointer_BytePointer_int;
+import org.bytedeco.ffmpeg.avformat.Seek_Pointer_long_int;
+import org.bytedeco.ffmpeg.global.avformat;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.Pointer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Source de données ffmpeg adressable, lue depuis un ou plusieurs {@link ByteBuffer} : un buffer en mémoire, ou un
+ * fichier projeté en mémoire via {@link FileChannel#map(MapMode, long, long)}.<br>
+ * Contrairement aux lecteurs de flux de {@link IOSource}, la source supporte le positionnement (y compris
+ * <code>AVSEEK_SIZE</code>) : les formats dont l'index est en fin de fichier (MP4 avec l'atome moov à la fin, ...)
+ * peuvent être lus sans charger tout le fichier. Une lecture n'est qu'une copie mémoire vers le buffer de libav, depuis
+ * le buffer donné ou depuis le cache de pages du système.<br>
+ * Une source ne peut être utilisée que par un seul contexte de lecture à la fois. Elle peut être relue par un nouveau
+ * contexte une fois le précédent fermé : la position de lecture est remise au début à la création de chaque contexte
+ * (voir {@link #rewind()}).
+ *
+ * @author Syrdek
+ */
+public class ByteBufferSource {
+  private static final Logger LOG = LoggerFactory.getLogger(ByteBufferSource.class);
+
+  // Taille maximale d'une projection de fichier en mémoire (un ByteBuffer est indexé par un int).
+  private static final long MAP_CHUNK = 1l << 30;
+
+  private final ByteBuffer[] segments;
+  private final long size;
+  private final String name;
+  private long position = 0;
+
+  // Vue sur le buffer de libav, réutilisée tant que libav fournit le même buffer.
+  private final IOCallbacks.BufferView bufferView = new IOCallbacks.BufferView();
+
+  private final Read_packet_Pointer_BytePointer_int reader = new Read_packet_Pointer_BytePointer_int() {
+    @Override
+    public int call(final Pointer opaque, final BytePointer buffer, final int len) {
+      return read(buffer, len);
+    }
+  };
+
+  private final Seek_Pointer_long_int seeker = new Seek_Pointer_long_int() {
+    @Override
+    public long call(final Pointer opaque, final long offset, final int whence) {
+      return seek(offset, whence);
+    }
+  };
+
+  /**
+   * Construit une source lisant le contenu d'un buffer, entre sa position et sa limite. Le buffer n'est pas modifié.
+   *
+   * @param buffer
+   *          Le buffer à lire.
+   */
+  public ByteBufferSource(final ByteBuffer buffer) {
+    this(split(buffer.slice()), "buffer");
+  }
+
+  private ByteBufferSource(final ByteBuffer[] segments, final String name) {
+    this.segments = segments;
+    this.name = name;
+    long total = 0;
+    for (final ByteBuffer segment : segments) {
+      total += segment.remaining();
+    }
+    size = total;
+  }
+
+  /**
+   * Construit une source lisant un fichier projeté en mémoire. Les fichiers de plus de 1Go sont projetés en plusieurs
+   * morceaux. La projection reste valide après la construction, le fichier n'a pas besoin de rester ouvert.
+   *
+   * @param path
+   *          Le fichier à lire.
+   * @return La source.
+   * @throws IOException
+   *           Si le fichier ne peut pas être projeté en mémoire.
+   */
+  public static ByteBufferSource map(final Path path) throws IOException {
+    try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      final long length = channel.size();
+      final List<ByteBuffer> segments = new ArrayList<>();
+      for (long offset = 0; offset < length; offset += MAP_CHUNK) {
+        segments.add(channel.map(MapMode.READ_ONLY, offset, Math.min(MAP_CHUNK, length - offset)));
+      }
+      LOG.debug("Projection en mémoire de {} ({} octets, {} morceaux).", path, length, segments.size());
+      return new ByteBufferSource(segments.toArray(new ByteBuffer[segments.size()]), path.toString());
+    }
+  }
+
+  /**
+   * Découpe un buffer en morceaux de la taille des projections de fichiers.
+   */
+  private static ByteBuffer[] split(final ByteBuffer buffer) {
+    final int count = (int) Math.max(1, (buffer.remaining() + MAP_CHUNK - 1) / MAP_CHUNK);
+    final ByteBuffer[] segments = new ByteBuffer[count];
+    for (int i = 0; i < count; i++) {
+      final ByteBuffer segment = buffer.duplicate();
+      segment.position((int) (i * MAP_CHUNK));
+      segment.limit((int) Math.min(buffer.remaining(), (i + 1) * MAP_CHUNK));
+      segments[i] = segment.slice();
+    }
+    return segments;
+  }
+
+  /**
+   * @return La fonction de lecture à donner à <code>avio_alloc_context</code>.
+   */
+  public Read_packet_Pointer_BytePointer_int reader() {
+    return reader;
+  }
+
+  /**
+   * @return La fonction de positionnement à donner à <code>avio_alloc_context</code>.
+   */
+  public Seek_Pointer_long_int seeker() {
+    return seeker;
+  }
+
+  /**
+   * Replace la position de lecture au début des données, pour qu'un nouveau contexte de lecture lise la source depuis
+   * son début. Doit être appelé avant de créer le contexte de lecture.
+   *
+   * @return Cette instance.
+   */
+  public synchronized ByteBufferSource rewind() {
+    position = 0;
+    return this;
+  }
+
+  /**
+   * @return La taille des données, en octets.
+   */
+  public long getSize() {
+    return size;
+  }
+
+  /**
+   * @return La position de lecture courante.
+   */
+  public synchronized long getPosition() {
+    return position;
+  }
+
+  /**
+   * @return Le nom de la source (chemin du fichier projeté, ou "buffer").
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Ajoute la totalité des données de la source à une empreinte, sans les copier dans le tas ni modifier la position
+   * de lecture de la source.
+   *
+   * @param digest
+   *          L'empreinte à compléter.
+   */
+  public void digest(final MessageDigest digest) {
+    for (final ByteBuffer segment : segments) {
+      digest.update(segment.duplicate());
+    }
+  }
+
+  /**
+   * Copie des données à partir d'une position donnée, sans modifier la position de lecture de la source.
+   *
+   * @param offset
+   *          La position des données à copier.
+   * @param dst
+   *          Le buffer de destination, rempli au plus jusqu'à sa limite.
+   * @return Le nombre d'octets copiés.
+   */
+  public int get(final long offset, final ByteBuffer dst) {
+    if (offset < 0) {
+      throw new IllegalArgumentException("Position négative : " + offset);
+    }
+    final int start = dst.position();
+    long position = offset;
+    while (dst.hasRemaining() && position < size) {
+      final ByteBuffer segment = segments[(int) (position / MAP_CHUNK)].duplicate();
+      final int segmentOffset = (int) (position % MAP_CHUNK);
+      segment.position(segmentOffset);
+      segment.limit((int) Math.min(segment.limit(), segmentOffset + (long) dst.remaining()));
+      position += segment.remaining();
+      dst.put(segment);
+    }
+    return dst.position() - start;
+  }
+
+  /**
+   * Copie au plus <code>len</code> octets dans le buffer de libav.
+   *
+   * @return Le nombre d'octets copiés, ou <code>AVERROR_EOF</code> à la fin des données.
+   */
+  private synchronized int read(final BytePointer buffer, final int len) {
+    if (position >= size) {
+      return avutil.AVERROR_EOF;
+    }
+    final ByteBuffer view = bufferView.of(buffer, len);
+    view.limit((int) Math.min(len, size - position));
+
+    while (view.hasRemaining()) {
+      final ByteBuffer segment = segments[(int) (position / MAP_CHUNK)].duplicate();
+      final int offset = (int) (position % MAP_CHUNK);
+      segment.position(offset);
+      segment.limit(Math.min(segment.limit(), offset + view.remaining()));
+      position += segment.remaining();
+      view.put(segment);
+    }
+    return view.position();
+  }
+
+  /**
+   * Se positionne dans les données.
+   *
+   * @return La nouvelle position, la taille des données pour <code>AVSEEK_SIZE</code>, ou une erreur.
+   */
+  private synchronized long seek(final long offset, final int whence) {
+    if (IOCallbacks.isSizeQuery(whence)) {
+      return size;
+    }
+
+    final long target = IOCallbacks.seekTarget(offset, whence, position, size);
+    if (target < 0) {
+      return target;
+    }
+    position = target;
+    return position;
+  }
+}
@@ -0,0 +1,108 @@
+package fr.syrdek.ffmpeg.libav.java.io;
+
+import java.nio.ByteBuffer;
+
+import org.bytedeco.ffmpeg.global.avformat;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.bytedeco.javacpp.BytePointer;
+
+/**
+ * Classe statique regroupant le code commun aux fonctions de lecture, d'écriture et de positionnement passées à un
+ * <code>AVIOContext</code> (voir {@link IOSource}, {@link ByteBufferSource}, {@link PrefetchSource},
+ * {@link WriteBehindSink}).
+ *
+ * @author t0087865
+ */
+public final class IOCallbacks {
+  /**
+   * Positionnement par rapport au début des données (<code>SEEK_SET</code> de stdio.h).
+   */
+  public static final int SEEK_SET = 0;
+
+  /**
+   * Positionnement par rapport à la position courante (<code>SEEK_CUR</code> de stdio.h).
+   */
+  public static final int SEEK_CUR = 1;
+
+  /**
+   * Positionnement par rapport à la fin des données (<code>SEEK_END</code> de stdio.h).
+   */
+  public static final int SEEK_END = 2;
+
+  /**
+   * Classe statique, pas de constructeur.
+   */
+  private IOCallbacks() {
+    super();
+  }
+
+  /**
+   * @param whence
+   *          Le mode de positionnement reçu par la fonction de positionnement.
+   * @return <code>true</code> si libavformat demande la taille des données (<code>AVSEEK_SIZE</code>) plutôt qu'un
+   *         positionnement.
+   */
+  public static boolean isSizeQuery(final int whence) {
+    return (whence & avformat.AVSEEK_SIZE) != 0;
+  }
+
+  /**
+   * Calcule la position demandée à une fonction de positionnement. <code>AVSEEK_FORCE</code> est ignoré.
+   *
+   * @param offset
+   *          Le décalage demandé.
+   * @param whence
+   *          Le mode de positionnement : {@link #SEEK_SET}, {@link #SEEK_CUR} ou {@link #SEEK_END}.
+   * @param position
+   *          La position courante.
+   * @param size
+   *          La taille des données.
+   * @return La position demandée. <code>AVERROR(EINVAL)</code> si le mode est inconnu ou si la position demandée est
+   *         négative.
+   */
+  public static long seekTarget(final long offset, final int whence, final long position, final long size) {
+    final long target;
+    switch (whence & ~avformat.AVSEEK_FORCE) {
+    case SEEK_SET:
+      target = offset;
+      break;
+    case SEEK_CUR:
+      target = position + offset;
+      break;
+    case SEEK_END:
+      target = size + offset;
+      break;
+    default:
+      return avutil.AVERROR_EINVAL();
+    }
+    return target < 0 ? avutil.AVERROR_EINVAL() : target;
+  }
+
+  /**
+   * Vue {@link ByteBuffer} directe sur le buffer d'un <code>AVIOContext</code>.<br>
+   * libavformat passe le plus souvent le même buffer à chaque appel : la vue est réutilisée tant que son adresse ne
+   * change pas et qu'elle est assez grande, pour ne pas construire un objet Java par appel.<br>
+   * Une vue n'est utilisable que par un seul thread à la fois, comme le contexte dont elle reçoit les buffers.
+   */
+  public static final class BufferView {
+    private ByteBuffer view;
+    private long viewAddress;
+
+    /**
+     * @param buffer
+     *          Le buffer reçu par la fonction de lecture ou d'écriture.
+     * @param len
+     *          Le nombre d'octets à lire ou à écrire.
+     * @return Une vue sur les <code>len</code> premiers octets du buffer, positionnée au début (limite
+     *         <code>len</code>). Valide jusqu'au prochain appel.
+     */
+    public ByteBuffer of(final BytePointer buffer, final int len) {
+      if (view == null || viewAddress != buffer.address() || view.capacity() < len) {
+        view = new BytePointer(buffer).capacity(len).asByteBuffer();
+        viewAddress = buffer.address();
+      }
+      view.clear().limit(len);
+      return view;
+    }
+  }
+}
@@ -1,11 +1,19 @@
 package fr.syrdek.ffmpeg.libav.java.io;
 
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 import org.bytedeco.ffmpeg.avformat.Read_packet_Pointer_BytePointer_int;
+import org.bytedeco.ffmpeg.avformat.Seek_Pointer_long_int;
 import org.bytedeco.ffmpeg.avformat.Write_packet_Pointer_BytePointer_int;
+import org.bytedeco.ffmpeg.global.avformat;
 import org.bytedeco.ffmpeg.global.avutil;
 import org.bytedeco.javacpp.BytePointer;
 import org.bytedeco.javacpp.Pointer;
@@ -31,13 +39,117 @@ public class IOSource {
   }
 
   /**
-   * Construit un pointeur de fonction de lecture de flux.
+   * Construit un pointeur de fonction de lecture de flux.<br>
+   * Un {@link FileInputStream} est lu via son channel, sans copie intermédiaire (voir
+   * {@link #newAvIoReader(ReadableByteChannel)}). Les autres flux sont lus via un tableau intermédiaire de
+   * <code>bufferSize</code> octets.
    *
    * @param in
    *          Le flux à lire.
+   * @param bufferSize
+   *          La taille du tableau intermédiaire.
    * @return Le pointeur de fonction permettant de remplir un buffer de lecture.
    */
   public static final Read_packet_Pointer_BytePointer_int newAvIoReader(final InputStream in, int bufferSize) {
+    if (in instanceof FileInputStream) {
+      return newAvIoReader(((FileInputStream) in).getChannel());
+    }
+    return newAvIoStreamReader(in, bufferSize);
+  }
+
+  /**
+   * Construit un pointeur de fonction de lecture de channel.<br>
+   * Les données sont lues directement dans le buffer de libav, vu comme un {@link ByteBuffer} direct : aucun tableau
+   * intermédiaire n'est utilisé, et aucune donnée n'est copiée côté Java. Le channel doit être bloquant.<br>
+   * Chaque appel ne fait qu'une lecture dans le channel, et retourne les données obtenues, sans attendre que le buffer
+   * de libav soit plein : libav peut ainsi traiter les données disponibles pendant que le channel se remplit.
+   *
+   * @param in
+   *          Le channel à lire.
+   * @return Le pointeur de fonction permettant de remplir un buffer de lecture.
+   */
+  public static final Read_packet_Pointer_BytePointer_int newAvIoReader(final ReadableByteChannel in) {
+    return new Read_packet_Pointer_BytePointer_int() {
+      // Vue sur le buffer de libav, réutilisée tant que libav fournit le même buffer.
+      private final IOCallbacks.BufferView bufferView = new IOCallbacks.BufferView();
+
+      /**
+       * Remplit le buffer avec au plus <code>len</code> octets.<br>
+       *
+       * @return Le nombre d'octets lus. <code>avutil.AVERROR_EOF</code> si le channel est terminé.
+       *         <code>avutil.AVERROR_EIO</code> Si une erreur de lecture est survenue.
+       */
+      @Override
+      public int call(final Pointer opaque, final BytePointer buffer, int len) {
+        try {
+          final ByteBuffer view = bufferView.of(buffer, len);
+
+          int nb;
+          do {
+            nb = in.read(view);
+          } while (nb == 0 && len > 0);
+
+          if (nb < 0) {
+            LOG.debug("Fin de lecture");
+            // Informe ffmpeg que le flux est terminé.
+            return avutil.AVERROR_EOF;
+          }
+          return nb;
+        } catch (IOException e) {
+          LOG.error("Echec lors de la lecture du flux", e);
+          // Informe FFMPEG que la lecture a échoué.
+          return avutil.AVERROR_EIO();
+        }
+      }
+    };
+  }
+
+  /**
+   * Construit un pointeur de fonction de positionnement dans un channel. Permet de lire les formats dont l'index est en
+   * fin de fichier.
+   *
+   * @param in
+   *          Le channel dans lequel se positionner.
+   * @return Le pointeur de fonction de positionnement.
+   */
+  public static final Seek_Pointer_long_int newAvIoSeeker(final SeekableByteChannel in) {
+    return new Seek_Pointer_long_int() {
+      /**
+       * Se positionne dans le channel.
+       *
+       * @return La nouvelle position, la taille du channel pour <code>AVSEEK_SIZE</code>, ou une erreur.
+       */
+      @Override
+      public long call(final Pointer opaque, final long offset, final int whence) {
+        try {
+          if (IOCallbacks.isSizeQuery(whence)) {
+            return in.size();
+          }
+          final long target = IOCallbacks.seekTarget(offset, whence, in.position(), in.size());
+          if (target < 0) {
+            return target;
+          }
+          in.position(target);
+          return target;
+        } catch (IOException e) {
+          LOG.error("Echec lors du positionnement dans le flux", e);
+          return avutil.AVERROR_EIO();
+        }
+      }
+    };
+  }
+
+  /**
+   * Construit un pointeur de fonction de lecture de flux, passant par un tableau intermédiaire.
+   *
+   * @param in
+   *          Le flux à lire.
+   * @param bufferSize
+   *          La taille du tableau intermédiaire.
+   * @return Le pointeur de fonction permettant de remplir un buffer de lecture.
+   */
+  public static final Read_packet_Pointer_BytePointer_int newAvIoStreamReader(final InputStream in,
+      int bufferSize) {
     return new Read_packet_Pointer_BytePointer_int() {
       private final byte[] dataBuffer = new byte[bufferSize];
 
@@ -69,7 +181,8 @@ public class IOSource {
               // Informe ffmpeg que le flux est terminé.
               return avutil.AVERROR_EOF;
             }
-            buffer.put(dataBuffer);
+            // N'écrit que les octets lus, à la suite de ceux déjà écrits.
+            buffer.position(read).put(dataBuffer, 0, nb);
             read += nb;
           }
           return read;
@@ -83,23 +196,30 @@ public class IOSource {
   }
 
   /**
-   * Construit un pointeur de fonction de lecture de flux.<br>
+   * Construit un pointeur de fonction d'écriture de flux.<br>
+   * Un {@link FileOutputStream} est écrit via son channel, sans copie intermédiaire (voir
+   * {@link #newAvIoWriter(WritableByteChannel)}). Les autres flux sont écrits via un tableau intermédiaire de
+   * <code>bufferSize</code> octets.<br>
    * <b>Attention :</b> Il est préférable d'utiliser un buffer de la même taille que celui utilisé par libav, car le
-   * remplissage est extrèmement lent sinon.
+   * vidage est extrèmement lent sinon.
    *
-   * @param in
-   *          Le flux à lire.
-   * @return Le pointeur de fonction permettant de remplir un buffer de lecture.
+   * @param out
+   *          Le flux à écrire.
+   * @param bufferSize
+   *          La taille du tableau intermédiaire.
+   * @return Le pointeur de fonction permettant de vider un buffer d'écriture.
    */
   public static final Write_packet_Pointer_BytePointer_int newAvIoWriter(final OutputStream out, int bufferSize) {
+    if (out instanceof FileOutputStream) {
+      return newAvIoWriter(((FileOutputStream) out).getChannel());
+    }
     return new Write_packet_Pointer_BytePointer_int() {
       private final byte[] dataBuffer = new byte[bufferSize];
 
       /**
-       * Remplit le buffer avec les <code>len</code> prochains octets.<br>
+       * Envoie les <code>len</code> premiers octets du buffer dans le flux.<br>
        *
-       * @return Le nombre d'octets lus. <code>avutil.AVERROR_EOF</code> si le fichier est terminé.
-       *         <code>avutil.AVERROR_EIO</code> Si une erreur de lecture est survenue.
+       * @return Le nombre d'octets écrits. <code>avutil.AVERROR_EIO</code> Si une erreur d'écriture est survenue.
        */
       @Override
       public int call(final Pointer opaque, final BytePointer buffer, int len) {
@@ -110,7 +230,7 @@ public class IOSource {
             int toWrite = Math.min(len - written, dataBuffer.length);
 
             // Récupère les données depuis le buffer de libav
-            buffer.get(dataBuffer, written, toWrite);
+            buffer.position(written).get(dataBuffer, 0, toWrite);
 
             // Envoie les données dans le flux de sortie.
             out.write(dataBuffer, 0, toWrite);
@@ -119,7 +239,44 @@ public class IOSource {
           return written;
         } catch (Exception e) {
           LOG.error("Echec lors de l'ecriture du flux", e);
-          // Informe FFMPEG que la lecture a échoué.
+          // Informe FFMPEG que l'écriture a échoué.
+          return avutil.AVERROR_EIO();
+        }
+      }
+    };
+  }
+
+  /**
+   * Construit un pointeur de fonction d'écriture de channel.<br>
+   * Les données sont écrites directement depuis le buffer de libav, vu comme un {@link ByteBuffer} direct : aucun
+   * tableau intermédiaire n'est utilisé. Le channel doit être bloquant. Le positionnement n'étant pas supporté, le
+   * format écrit doit pouvoir l'être dans un flux non adressable.
+   *
+   * @param out
+   *          Le channel à écrire.
+   * @return Le pointeur de fonction permettant de vider un buffer d'écriture.
+   */
+  public static final Write_packet_Pointer_BytePointer_int newAvIoWriter(final WritableByteChannel out) {
+    return new Write_packet_Pointer_BytePointer_int() {
+      // Vue sur le buffer de libav, réutilisée tant que libav fournit le même buffer.
+      private final IOCallbacks.BufferView bufferView = new IOCallbacks.BufferView();
+
+      /**
+       * Envoie les <code>len</code> premiers octets du buffer dans le channel.<br>
+       *
+       * @return Le nombre d'octets écrits. <code>avutil.AVERROR_EIO</code> Si une erreur d'écriture est survenue.
+       */
+      @Override
+      public int call(final Pointer opaque, final BytePointer buffer, int len) {
+        try {
+          final ByteBuffer view = bufferView.of(buffer, len);
+          while (view.hasRemaining()) {
+            out.write(view);
+          }
+          return len;
+        } catch (IOException e) {
+          LOG.error("Echec lors de l'ecriture du flux", e);
+          // Informe FFMPEG que l'écriture a échoué.
           return avutil.AVERROR_EIO();
         }
       }
@@ -0,0 +1,350 @@
+package fr.syrdek.ffmpeg.libav.java.io;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.bytedeco.ffmpeg.avformat.Read_packet_Pointer_BytePointer_int;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.Pointer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Source de données ffmpeg lue par anticipation.<br>
+ * Un thread dédié lit le flux en avance dans des morceaux hors tas, tant que la mémoire allouée à la source n'est pas
+ * pleine. La fonction de lecture de libav ne fait que copier les morceaux déjà lus : le décodage n'est bloqué par les
+ * entrées / sorties (latence réseau, disque lent, ...) que si le thread de lecture n'a plus d'avance.<br>
+ * Les statistiques permettent de savoir si un traitement est limité par les entrées / sorties ou par le calcul :
+ * <ul>
+ * <li>{@link #getUnderruns()} / {@link #getUnderrunNanos()} : nombre et durée des attentes de libav, faute de
+ * données lues en avance. Elevés si la lecture est trop lente.</li>
+ * <li>{@link #getFullNanos()} : durée pendant laquelle le thread de lecture a attendu que libav libère de la place.
+ * Elevée si le décodage est trop lent.</li>
+ * </ul>
+ * La source n'est pas adressable : les formats dont l'index est en fin de fichier ne peuvent pas être lus. Elle ne
+ * peut être utilisée que par un seul contexte de lecture à la fois.
+ *
+ * @author Syrdek
+ */
+public class PrefetchSource implements AutoCloseable {
+  private static final Logger LOG = LoggerFactory.getLogger(PrefetchSource.class);
+
+  /**
+   * Taille par défaut d'un morceau.
+   */
+  public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+  /**
+   * Mémoire maximale par défaut allouée à la lecture anticipée.
+   */
+  public static final int DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+
+  // Taille maximale du tableau intermédiaire de lecture d'un InputStream.
+  private static final int STREAM_COPY_SIZE = 64 * 1024;
+
+  // Marqueurs placés dans les files : fin du flux, et réveil du thread de lecture.
+  private static final ByteBuffer END = ByteBuffer.allocate(0);
+  private static final ByteBuffer WAKE_UP = ByteBuffer.allocate(0);
+
+  /**
+   * Lecture d'un morceau depuis la source.
+   */
+  @FunctionalInterface
+  private interface ChunkReader {
+    /**
+     * @return Le nombre d'octets lus, -1 à la fin du flux.
+     */
+    int read(ByteBuffer chunk) throws IOException;
+  }
+
+  private final ChunkReader input;
+  private final String name;
+  private final int chunkSize;
+  private final int chunkCount;
+  private final BlockingQueue<ByteBuffer> free;
+  private final BlockingQueue<ByteBuffer> ready;
+  private final Thread worker;
+
+  // Morceau en cours de lecture par libav.
+  private ByteBuffer current;
+  private boolean eof = false;
+  private volatile boolean closed = false;
+  // Première erreur rencontrée par le thread de lecture.
+  private volatile IOException failure;
+
+  // Statistiques. Chacune n'est modifiée que par un seul thread (libav, ou le thread de lecture pour fullNanos), et
+  // peut être lue par les autres sans verrou, y compris pendant une attente de libav.
+  private volatile long bytesRead = 0;
+  private volatile long underruns = 0;
+  private volatile long underrunNanos = 0;
+  private volatile long fullNanos = 0;
+
+  // Vue sur le buffer de libav, réutilisée tant que libav fournit le même buffer.
+  private final IOCallbacks.BufferView bufferView = new IOCallbacks.BufferView();
+
+  private final Read_packet_Pointer_BytePointer_int reader = new Read_packet_Pointer_BytePointer_int() {
+    @Override
+    public int call(final Pointer opaque, final BytePointer buffer, final int len) {
+      return read(buffer, len);
+    }
+  };
+
+  /**
+   * Construit une source lisant un channel par anticipation, avec les tailles par défaut.
+   *
+   * @param in
+   *          Le channel à lire, en mode bloquant. N'est pas fermé par la source.
+   */
+  public PrefetchSource(final ReadableByteChannel in) {
+    this(in, DEFAULT_CHUNK_SIZE, DEFAULT_MAX_BYTES);
+  }
+
+  /**
+   * Construit une source lisant un channel par anticipation.
+   *
+   * @param in
+   *          Le channel à lire, en mode bloquant. N'est pas fermé par la source.
+   * @param chunkSize
+   *          La taille d'un morceau lu en avance, en octets.
+   * @param maxBytes
+   *          La mémoire maximale allouée aux morceaux, en octets. Doit permettre au moins deux morceaux.
+   */
+  public PrefetchSource(final ReadableByteChannel in, final int chunkSize, final int maxBytes) {
+    this(in::read, "channel", chunkSize, maxBytes);
+  }
+
+  /**
+   * Construit une source lisant un flux par anticipation, avec les tailles par défaut.
+   *
+   * @param in
+   *          Le flux à lire. N'est pas fermé par la source.
+   */
+  public PrefetchSource(final InputStream in) {
+    this(in, DEFAULT_CHUNK_SIZE, DEFAULT_MAX_BYTES);
+  }
+
+  /**
+   * Construit une source lisant un flux par anticipation.<br>
+   * Un {@link FileInputStream} est lu via son channel. Les autres flux sont lus via un tableau intermédiaire, par le
+   * thread de lecture.
+   *
+   * @param in
+   *          Le flux à lire. N'est pas fermé par la source.
+   * @param chunkSize
+   *          La taille d'un morceau lu en avance, en octets.
+   * @param maxBytes
+   *          La mémoire maximale allouée aux morceaux, en octets. Doit permettre au moins deux morceaux.
+   */
+  public PrefetchSource(final InputStream in, final int chunkSize, final int maxBytes) {
+    this(in instanceof FileInputStream ? ((FileInputStream) in).getChannel()::read : streamReader(in, chunkSize),
+        "stream", chunkSize, maxBytes);
+  }
+
+  private PrefetchSource(final ChunkReader input, final String name, final int chunkSize, final int maxBytes) {
+    if (chunkSize <= 0) {
+      throw new IllegalArgumentException("La taille des morceaux doit être positive : " + chunkSize);
+    }
+    if (maxBytes / chunkSize < 2) {
+      throw new IllegalArgumentException(
+          "La mémoire maximale (" + maxBytes + " octets) doit permettre au moins deux morceaux de " + chunkSize
+              + " octets.");
+    }
+    this.input = input;
+    this.name = name;
+    this.chunkSize = chunkSize;
+    chunkCount = maxBytes / chunkSize;
+    // Une place de plus pour les marqueurs.
+    free = new ArrayBlockingQueue<>(chunkCount + 1);
+    ready = new ArrayBlockingQueue<>(chunkCount + 1);
+    for (int i = 0; i < chunkCount; i++) {
+      free.add(ByteBuffer.allocateDirect(chunkSize));
+    }
+
+    worker = new Thread(this::prefetch, "ffmpeg-prefetch-" + name);
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  /**
+   * Construit la lecture d'un flux via un tableau intermédiaire.
+   */
+  private static ChunkReader streamReader(final InputStream in, final int chunkSize) {
+    final byte[] copy = new byte[Math.min(chunkSize, STREAM_COPY_SIZE)];
+    return chunk -> {
+      final int nb = in.read(copy, 0, Math.min(copy.length, chunk.remaining()));
+      if (nb > 0) {
+        chunk.put(copy, 0, nb);
+      }
+      return nb;
+    };
+  }
+
+  /**
+   * @return La fonction de lecture à donner à <code>avio_alloc_context</code>.
+   */
+  public Read_packet_Pointer_BytePointer_int reader() {
+    return reader;
+  }
+
+  /**
+   * @return Le nom de la source ("channel" ou "stream").
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return La mémoire allouée aux morceaux lus en avance, en octets.
+   */
+  public long getCapacity() {
+    return (long) chunkCount * chunkSize;
+  }
+
+  /**
+   * @return Le nombre d'octets transmis à libav.
+   */
+  public long getBytesRead() {
+    return bytesRead;
+  }
+
+  /**
+   * @return Le nombre de fois où libav a dû attendre des données, faute d'avance, attente en cours comprise.
+   */
+  public long getUnderruns() {
+    return underruns;
+  }
+
+  /**
+   * @return Le temps total passé par libav à attendre des données, en nanosecondes.
+   */
+  public long getUnderrunNanos() {
+    return underrunNanos;
+  }
+
+  /**
+   * @return Le temps total passé par le thread de lecture à attendre de la place, la mémoire allouée étant pleine, en
+   *         nanosecondes.
+   */
+  public long getFullNanos() {
+    return fullNanos;
+  }
+
+  /**
+   * Arrête la lecture anticipée. Le thread de lecture s'arrête au plus tard à la fin de sa lecture en cours : le flux
+   * lu ne doit être fermé qu'après la source.
+   */
+  @Override
+  public void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    free.offer(WAKE_UP);
+    LOG.debug("Fermeture de {}", this);
+  }
+
+  @Override
+  public String toString() {
+    return "PrefetchSource [name=" + name + ", bytesRead=" + bytesRead + ", underruns=" + underruns
+        + ", underrunMs=" + underrunNanos / 1_000_000 + ", fullMs=" + fullNanos / 1_000_000 + "]";
+  }
+
+  /**
+   * Copie au plus <code>len</code> octets lus en avance dans le buffer de libav.
+   *
+   * @return Le nombre d'octets copiés, <code>AVERROR_EOF</code> à la fin du flux, ou <code>AVERROR_EIO</code> si la
+   *         lecture a échoué.
+   */
+  private synchronized int read(final BytePointer buffer, final int len) {
+    try {
+      while (current == null || !current.hasRemaining()) {
+        if (eof) {
+          return failure != null ? avutil.AVERROR_EIO() : avutil.AVERROR_EOF;
+        }
+        if (current != null) {
+          current.clear();
+          free.add(current);
+          current = null;
+        }
+        ByteBuffer next = ready.poll();
+        if (next == null) {
+          // Le thread de lecture n'a plus d'avance.
+          underruns++;
+          final long start = System.nanoTime();
+          next = ready.take();
+          underrunNanos += System.nanoTime() - start;
+        }
+        if (next == END) {
+          eof = true;
+        } else {
+          current = next;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      LOG.error("Interruption pendant la lecture de {}", name, e);
+      return avutil.AVERROR_EIO();
+    }
+
+    final ByteBuffer view = bufferView.of(buffer, len);
+    view.limit(Math.min(len, current.remaining()));
+
+    final int limit = current.limit();
+    current.limit(current.position() + view.remaining());
+    view.put(current);
+    current.limit(limit);
+    bytesRead += view.position();
+    return view.position();
+  }
+
+  /**
+   * Boucle du thread de lecture.
+   */
+  private void prefetch() {
+    LOG.debug("Démarrage de la lecture anticipée de {}.", name);
+    try {
+      while (!closed) {
+        ByteBuffer chunk = free.poll();
+        if (chunk == null) {
+          // La mémoire allouée est pleine : libav est en retard sur la lecture.
+          final long start = System.nanoTime();
+          chunk = free.take();
+          fullNanos += System.nanoTime() - start;
+        }
+        if (chunk == WAKE_UP) {
+          break;
+        }
+
+        // Remplit le morceau tant que libav a des données d'avance, pour limiter le nombre de morceaux partiels.
+        int nb = 0;
+        do {
+          nb = input.read(chunk);
+        } while (nb >= 0 && chunk.hasRemaining() && !ready.isEmpty() && !closed);
+
+        if (chunk.position() > 0) {
+          chunk.flip();
+          ready.put(chunk);
+        } else {
+          free.put(chunk);
+        }
+        if (nb < 0) {
+          break;
+        }
+      }
+    } catch (IOException e) {
+      LOG.error("Echec de la lecture anticipée de {}", name, e);
+      failure = e;
+    } catch (InterruptedException e) {
+      LOG.debug("Interruption de la lecture anticipée de {}.", name);
+    } finally {
+      ready.offer(END);
+    }
+    LOG.debug("Arrêt de la lecture anticipée de {}.", name);
+  }
+}
@@ -0,0 +1,435 @@
+package fr.syrdek.ffmpeg.libav.java.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.bytedeco.ffmpeg.avformat.Seek_Pointer_long_int;
+import org.bytedeco.ffmpeg.avformat.Write_packet_Pointer_BytePointer_int;
+import org.bytedeco.ffmpeg.global.avformat;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.Pointer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Destination d'écriture ffmpeg différée vers un {@link FileChannel}.<br>
+ * La fonction d'écriture ne fait que copier les données de libav dans un buffer hors tas. Lorsqu'un buffer est plein,
+ * il est confié à un thread dédié qui l'écrit dans le fichier, pendant que l'écriture se poursuit dans un autre
+ * buffer : le thread d'encodage n'attend les entrées / sorties que si tous les buffers sont en attente d'écriture.<br>
+ * Chaque buffer est écrit à sa position dans le fichier : la destination est adressable, et convient aussi aux formats
+ * qui complètent leur entête en fin d'écriture (MP4 non fragmenté, avi, ...). Elle ne supporte pas la relecture des
+ * données écrites (option <code>movflags=faststart</code>).<br>
+ * Les données ne sont garanties écrites qu'après {@link #flush(boolean)}, appelé par
+ * {@link fr.syrdek.ffmpeg.libav.java.chain.Muxer#writeTrailer()}.<br>
+ * Une destination ne peut être utilisée que par un seul contexte d'écriture à la fois.
+ *
+ * @author Syrdek
+ */
+public class WriteBehindSink implements AutoCloseable {
+  private static final Logger LOG = LoggerFactory.getLogger(WriteBehindSink.class);
+
+  /**
+   * Nombre de buffers par défaut.
+   */
+  public static final int DEFAULT_BUFFER_COUNT = 2;
+
+  /**
+   * Taille par défaut d'un buffer.
+   */
+  public static final int DEFAULT_BUFFER_SIZE = 4 * 1024 * 1024;
+
+  /**
+   * Buffer plein, à écrire à une position du fichier.
+   */
+  private static final class Block {
+    private final ByteBuffer data;
+    private final long position;
+
+    private Block(final ByteBuffer data, final long position) {
+      this.data = data;
+      this.position = position;
+    }
+  }
+
+  // Marqueur d'arrêt placé dans la file d'écriture.
+  private static final Block END = new Block(null, -1);
+
+  private final FileChannel channel;
+  private final boolean ownsChannel;
+  private final String name;
+  private final int bufferCount;
+  private final BlockingQueue<ByteBuffer> free;
+  private final BlockingQueue<Block> pending;
+  private final Thread worker;
+
+  // Buffer en cours de remplissage, et position de son début dans le fichier.
+  private ByteBuffer current;
+  private long base = 0;
+  // Taille du fichier une fois les buffers en attente écrits.
+  private long size = 0;
+
+  // Nombre de buffers confiés au thread d'écriture et pas encore écrits.
+  private int inFlight = 0;
+  // Des données ont été écrites depuis la dernière synchronisation sur disque.
+  private boolean dirty = false;
+  private boolean closed = false;
+  // Première erreur rencontrée par le thread d'écriture.
+  private volatile IOException failure;
+
+  // Statistiques.
+  private long bytesWritten = 0;
+  private long waitNanos = 0;
+  private long waits = 0;
+
+  // Vue sur le buffer de libav, réutilisée tant que libav fournit le même buffer.
+  private final IOCallbacks.BufferView bufferView = new IOCallbacks.BufferView();
+
+  private final Write_packet_Pointer_BytePointer_int writer = new Write_packet_Pointer_BytePointer_int() {
+    @Override
+    public int call(final Pointer opaque, final BytePointer buffer, final int len) {
+      return write(buffer, len);
+    }
+  };
+
+  private final Seek_Pointer_long_int seeker = new Seek_Pointer_long_int() {
+    @Override
+    public long call(final Pointer opaque, final long offset, final int whence) {
+      return seek(offset, whence);
+    }
+  };
+
+  /**
+   * Construit une destination écrivant dans un channel. Le channel n'est pas fermé par la destination.
+   *
+   * @param channel
+   *          Le channel à écrire, ouvert en écriture.
+   * @param bufferCount
+   *          Le nombre de buffers, au moins 2.
+   * @param bufferSize
+   *          La taille de chaque buffer, en octets.
+   */
+  public WriteBehindSink(final FileChannel channel, final int bufferCount, final int bufferSize) {
+    this(channel, false, "channel", bufferCount, bufferSize);
+  }
+
+  private WriteBehindSink(final FileChannel channel, final boolean ownsChannel, final String name,
+      final int bufferCount, final int bufferSize) {
+    if (bufferCount < 2) {
+      throw new IllegalArgumentException("Au moins deux buffers sont nécessaires : " + bufferCount);
+    }
+    if (bufferSize <= 0) {
+      throw new IllegalArgumentException("La taille des buffers doit être positive : " + bufferSize);
+    }
+    this.channel = channel;
+    this.ownsChannel = ownsChannel;
+    this.name = name;
+    this.bufferCount = bufferCount;
+    free = new ArrayBlockingQueue<>(bufferCount);
+    pending = new ArrayBlockingQueue<>(bufferCount + 1);
+    current = ByteBuffer.allocateDirect(bufferSize);
+    for (int i = 1; i < bufferCount; i++) {
+      free.add(ByteBuffer.allocateDirect(bufferSize));
+    }
+
+    worker = new Thread(this::process, "ffmpeg-write-" + name);
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  /**
+   * Ouvre un fichier en écriture, en écrasant son contenu, avec les buffers par défaut.
+   *
+   * @param path
+   *          Le fichier à écrire.
+   * @return La destination, qui ferme le fichier à son {@link #close()}.
+   * @throws IOException
+   *           Si le fichier ne peut pas être ouvert.
+   */
+  public static WriteBehindSink open(final Path path) throws IOException {
+    return open(path, DEFAULT_BUFFER_COUNT, DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * Ouvre un fichier en écriture, en écrasant son contenu.
+   *
+   * @param path
+   *          Le fichier à écrire.
+   * @param bufferCount
+   *          Le nombre de buffers, au moins 2.
+   * @param bufferSize
+   *          La taille de chaque buffer, en octets.
+   * @return La destination, qui ferme le fichier à son {@link #close()}.
+   * @throws IOException
+   *           Si le fichier ne peut pas être ouvert.
+   */
+  public static WriteBehindSink open(final Path path, final int bufferCount, final int bufferSize)
+      throws IOException {
+    final FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING);
+    try {
+      return new WriteBehindSink(channel, true, path.toString(), bufferCount, bufferSize);
+    } catch (RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * @return La fonction d'écriture à donner à <code>avio_alloc_context</code>.
+   */
+  public Write_packet_Pointer_BytePointer_int writer() {
+    return writer;
+  }
+
+  /**
+   * @return La fonction de positionnement à donner à <code>avio_alloc_context</code>.
+   */
+  public Seek_Pointer_long_int seeker() {
+    return seeker;
+  }
+
+  /**
+   * Confie le buffer en cours au thread d'écriture, attend que toutes les données aient été écrites dans le fichier,
+   * et les synchronise éventuellement sur disque.
+   *
+   * @param sync
+   *          <code>true</code> pour synchroniser les données et métadonnées du fichier sur disque (fsync).
+   * @throws IOException
+   *           Si une écriture a échoué.
+   */
+  public synchronized void flush(final boolean sync) throws IOException {
+    rethrowFailure();
+    if (current.position() > 0) {
+      handOver();
+    }
+    try {
+      while (inFlight > 0 && failure == null) {
+        wait();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interruption pendant l'écriture de " + name, e);
+    }
+    rethrowFailure();
+    if (sync && dirty) {
+      channel.force(true);
+      dirty = false;
+      LOG.debug("Données de {} synchronisées sur disque ({} octets).", name, size);
+    }
+  }
+
+  /**
+   * Ecrit les données en attente, arrête le thread d'écriture et ferme le fichier s'il a été ouvert par
+   * {@link #open(Path)}. Les données ne sont pas synchronisées sur disque.
+   *
+   * @throws IOException
+   *           Si une écriture a échoué.
+   */
+  @Override
+  public void close() throws IOException {
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+    }
+    try {
+      flush(false);
+    } finally {
+      pending.add(END);
+      try {
+        worker.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      LOG.debug("Fermeture de {} : {} octets écrits, {} attentes ({} ms).", name, bytesWritten, waits,
+          waitNanos / 1_000_000);
+      if (ownsChannel) {
+        channel.close();
+      }
+    }
+  }
+
+  /**
+   * @return Le nombre d'octets écrits dans le fichier par le thread d'écriture.
+   */
+  public synchronized long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  /**
+   * @return Le nombre de fois où l'écriture a dû attendre qu'un buffer soit écrit.
+   */
+  public synchronized long getWaits() {
+    return waits;
+  }
+
+  /**
+   * @return Le temps total passé à attendre qu'un buffer soit écrit, en nanosecondes.
+   */
+  public synchronized long getWaitNanos() {
+    return waitNanos;
+  }
+
+  /**
+   * @return Le nombre de buffers.
+   */
+  public int getBufferCount() {
+    return bufferCount;
+  }
+
+  /**
+   * @return Le nom de la destination (chemin du fichier, ou "channel").
+   */
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "WriteBehindSink [name=" + name + ", size=" + size + ", bytesWritten=" + bytesWritten + ", waits=" + waits
+        + ", waitMs=" + waitNanos / 1_000_000 + "]";
+  }
+
+  /**
+   * Copie les <code>len</code> premiers octets du buffer de libav dans les buffers d'écriture.
+   *
+   * @return Le nombre d'octets copiés, ou <code>AVERROR_EIO</code> si une écriture a échoué.
+   */
+  private synchronized int write(final BytePointer buffer, final int len) {
+    if (failure != null || closed) {
+      return avutil.AVERROR_EIO();
+    }
+    final ByteBuffer view = bufferView.of(buffer, len);
+
+    try {
+      while (view.hasRemaining()) {
+        if (!current.hasRemaining()) {
+          handOver();
+        }
+        final int n = Math.min(view.remaining(), current.remaining());
+        view.limit(view.position() + n);
+        current.put(view);
+        view.limit(len);
+      }
+    } catch (IOException e) {
+      LOG.error("Echec lors de l'ecriture de {}", name, e);
+      return avutil.AVERROR_EIO();
+    }
+    return len;
+  }
+
+  /**
+   * Se positionne dans le fichier. Le buffer en cours est confié au thread d'écriture, et le remplissage reprend à la
+   * nouvelle position.
+   *
+   * @return La nouvelle position, la taille du fichier pour <code>AVSEEK_SIZE</code>, ou une erreur.
+   */
+  private synchronized long seek(final long offset, final int whence) {
+    final long position = base + current.position();
+    final long length = Math.max(size, position);
+    if (IOCallbacks.isSizeQuery(whence)) {
+      return length;
+    }
+
+    final long target = IOCallbacks.seekTarget(offset, whence, position, length);
+    if (target < 0) {
+      return target;
+    }
+    if (target != position) {
+      try {
+        if (current.position() > 0) {
+          handOver();
+        }
+      } catch (IOException e) {
+        LOG.error("Echec lors du positionnement dans {}", name, e);
+        return avutil.AVERROR_EIO();
+      }
+      base = target;
+    }
+    return target;
+  }
+
+  /**
+   * Confie le buffer en cours au thread d'écriture, et prend un buffer libre. Attend si aucun buffer n'est libre.
+   */
+  private void handOver() throws IOException {
+    current.flip();
+    final long length = current.remaining();
+    pending.add(new Block(current, base));
+    inFlight++;
+    dirty = true;
+    base += length;
+    size = Math.max(size, base);
+
+    current = free.poll();
+    if (current == null) {
+      final long start = System.nanoTime();
+      try {
+        // Ne bloque pas le thread d'écriture, qui doit pouvoir signaler la fin de ses écritures.
+        while ((current = free.poll()) == null) {
+          wait();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interruption pendant l'attente d'un buffer libre de " + name, e);
+      } finally {
+        waits++;
+        waitNanos += System.nanoTime() - start;
+      }
+    }
+  }
+
+  /**
+   * Boucle du thread d'écriture.
+   */
+  private void process() {
+    LOG.debug("Démarrage de l'écriture différée de {}.", name);
+    try {
+      Block block;
+      while ((block = pending.take()) != END) {
+        int length = 0;
+        try {
+          // Après une erreur, les buffers sont seulement recyclés, afin de ne pas bloquer l'écriture.
+          if (failure == null) {
+            long position = block.position;
+            while (block.data.hasRemaining()) {
+              position += channel.write(block.data, position);
+            }
+            length = (int) (position - block.position);
+          }
+        } catch (IOException e) {
+          LOG.error("Echec de l'écriture différée de {}.", name, e);
+          failure = e;
+        } finally {
+          block.data.clear();
+          synchronized (this) {
+            free.add(block.data);
+            inFlight--;
+            bytesWritten += length;
+            notifyAll();
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      LOG.debug("Interruption de l'écriture différée de {}.", name);
+    }
+    LOG.debug("Arrêt de l'écriture différée de {}.", name);
+  }
+
+  /**
+   * Propage l'erreur rencontrée par le thread d'écriture, s'il y en a une.
+   */
+  private void rethrowFailure() throws IOException {
+    final IOException e = failure;
+    if (e != null) {
+      throw new IOException("Echec de l'écriture différée de " + name, e);
+    }
+  }
+}
@@ -23,6 +23,7 @@ public class AudioParameters implements CodecContextParameters {
   private final Integer sampleRate;
   private final Long bitRate;
   private final AVSampleFormat sampleFormat;
+  private final ThreadingParameters threading;
 
   /**
    * Construit un nouveau AudioParameters
@@ -39,16 +40,19 @@ public class AudioParameters implements CodecContextParameters {
    *          Le bitRate
    * @param sampleFormat
    *          Le sampleFormat
+   * @param threading
+   *          Le threading
    */
   private AudioParameters(final int codecId, final Integer channels,
       final Long channelsLayout, final Integer sampleRate, final Long bitRate,
-      final AVSampleFormat sampleFormat) {
+      final AVSampleFormat sampleFormat, final ThreadingParameters threading) {
     codec = codecId;
     this.channels = channels;
     this.channelsLayout = channelsLayout;
     this.sampleRate = sampleRate;
     this.bitRate = bitRate;
     this.sampleFormat = sampleFormat;
+    this.threading = threading;
   }
 
   /**
@@ -105,6 +109,15 @@ public class AudioParameters implements CodecContextParameters {
     return bitRate;
   }
 
+  /**
+   * @return La parallélisation de l'encodeur, poussée dans le contexte d'encodage par {@link #pushTo(AVCodecContext)}.
+   *         <code>null</code> pour garder celle par défaut de libavcodec.
+   */
+  @Override
+  public ThreadingParameters getThreading() {
+    return threading;
+  }
+
   @Override
   public void pushTo(AVCodecContext context) {
     context.codec_id(codec);
@@ -113,6 +126,9 @@ public class AudioParameters implements CodecContextParameters {
     context.sample_rate(sampleRate);
     context.sample_fmt(getSampleFormatValue());
     CodecContextParameters.computeTimeBase(sampleRate, context.time_base());
+    if (threading != null) {
+      threading.pushTo(context);
+    }
   }
 
   /**
@@ -125,6 +141,7 @@ public class AudioParameters implements CodecContextParameters {
     private Integer sampleRate;
     private Long bitRate;
     private AVSampleFormat sampleFormat;
+    private ThreadingParameters threading;
 
     /**
      * @param codec
@@ -189,12 +206,25 @@ public class AudioParameters implements CodecContextParameters {
       return this;
     }
 
+    /**
+     * Définit la parallélisation de l'encodeur. N'est pas récupérée par {@link #pullFrom(AVCodecContext)} : la
+     * parallélisation d'un décodeur n'est pas reportée sur l'encodeur construit à partir de ses paramètres.
+     *
+     * @param threading
+     *          La parallélisation de l'encodeur. <code>null</code> pour garder celle par défaut de libavcodec.
+     * @return Cette instance.
+     */
+    public final Builder withThreading(final ThreadingParameters threading) {
+      this.threading = threading;
+      return this;
+    }
+
     /**
      * @return Le AudioParameters construit a partir des paramètres donnés
      */
     public final AudioParameters build() {
       validate();
-      return new AudioParameters(codec, channels, channelsLayout, sampleRate, bitRate, sampleFormat);
+      return new AudioParameters(codec, channels, channelsLayout, sampleRate, bitRate, sampleFormat, threading);
     }
 
     /**
@@ -207,7 +237,9 @@ public class AudioParameters implements CodecContextParameters {
     }
 
     /**
-     * Récupère les paramètres depuis le contexte audio donné.
+     * Récupère les paramètres depuis le contexte audio donné.<br>
+     * La parallélisation du contexte (<code>thread_count</code>, <code>thread_type</code>) n'est pas récupérée : elle
+     * est propre au codec du contexte, et doit être donnée via {@link #withThreading(ThreadingParameters)}.
      *
      * @param context
      *          Le contexte duquel extraire les paramètres audio.
@@ -232,7 +264,7 @@ public class AudioParameters implements CodecContextParameters {
   @Override
   public String toString() {
     return MessageFormat.format(
-        "AudioParameters [codec={0}({1}), channels={2}, channelsLayout={3}, sampleRate={4}, bitRate={5}, sampleFormat={6}]",
-        getCodecName(), codec, channels, channelsLayout, sampleRate, bitRate, sampleFormat);
+        "AudioParameters [codec={0}({1}), channels={2}, channelsLayout={3}, sampleRate={4}, bitRate={5}, sampleFormat={6}, threading={7}]",
+        getCodecName(), codec, channels, channelsLayout, sampleRate, bitRate, sampleFormat, threading);
   }
 }
@@ -5,7 +5,8 @@ import static fr.syrdek.ffmpeg.libav.java.FFmpegException.checkAllocation;
 import org.bytedeco.ffmpeg.avcodec.AVCodec;
 import org.bytedeco.ffmpeg.avcodec.AVCodecContext;
 import org.bytedeco.ffmpeg.avutil.AVRational;
-import org.bytedeco.ffmpeg.global.avcodec;
+
+import fr.syrdek.ffmpeg.libav.java.io.stream.CodecRegistry.CodecInfo;
 
 /**
  * Paramètres d'un contexte d'encodage / décodage.
@@ -28,31 +29,31 @@ public interface CodecContextParameters {
   }
 
   /**
-   * Trouve l'id d'un codec à partir de son nom.
+   * Trouve l'id d'un codec à partir du nom de son encodeur. Le nom est recherché dans le {@link CodecRegistry}.
    *
    * @param codec
-   *          L'id du codec.
+   *          Le nom de l'encodeur.
    * @return L'id du codec.
    */
   public static int codecIdFromName(final String codec) {
-    try (final AVCodec c = checkAllocation(avcodec.avcodec_find_encoder_by_name(codec),
-        "Impossible de trouver le codec {0}.", codec)) {
-      return c.id();
-    }
+    return checkAllocation(CodecRegistry.get().findEncoder(codec),
+        "Impossible de trouver le codec {0}.", codec).getId();
   }
 
   /**
+   * Retrouve le nom d'un codec dans le {@link CodecRegistry}, sans appel natif.
+   *
    * @param id
    *          L'id du codec pour lequel retrouver le nom.
-   * @return Le nom du codec. <code>null</code> si le codec est introuvable.
+   * @return Le nom de l'encodeur du codec, ou à défaut celui de son décodeur. <code>null</code> si le codec est
+   *         introuvable.
    */
   public static String codecNameFromId(final int id) {
-    try (final AVCodec c = avcodec.avcodec_find_encoder(id)) {
-      if (c != null) {
-        return c.name().getString();
-      }
-      return null;
+    CodecInfo info = CodecRegistry.get().findEncoder(id);
+    if (info == null) {
+      info = CodecRegistry.get().findDecoder(id);
     }
+    return info == null ? null : info.getName();
   }
 
   /**
@@ -60,11 +61,29 @@ public interface CodecContextParameters {
    */
   int getCodec();
 
+  /**
+   * @return La description de l'encodeur du codec.
+   * @throws fr.syrdek.ffmpeg.libav.java.FFmpegException
+   *           Si le codec est introuvable.
+   */
+  public default CodecInfo getCodecInfo() {
+    final int codecId = getCodec();
+    return checkAllocation(CodecRegistry.get().findEncoder(codecId),
+        "Impossible de trouver le codec {0}.", codecId);
+  }
+
   /**
    * @return bitRate Le bitRate
    */
   Long getBitRate();
 
+  /**
+   * @return La parallélisation du codec. <code>null</code> (par défaut) pour garder celle par défaut de libavcodec.
+   */
+  public default ThreadingParameters getThreading() {
+    return null;
+  }
+
   /**
    * Pousse les paramètres vidéo dans un contexte d'encodage.
    *
@@ -85,8 +104,6 @@ public interface CodecContextParameters {
    *         utilisation pour libérer la mémoire.
    */
   public default AVCodec getNativeCodec() {
-    final int codecId = getCodec();
-    return checkAllocation(avcodec.avcodec_find_encoder(codecId),
-        "Impossible de trouver le codec {0}.", codecId);
+    return getCodecInfo().getNativeCodec();
   }
 }
@@ -0,0 +1,268 @@
+package fr.syrdek.ffmpeg.libav.java.io.stream;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bytedeco.ffmpeg.avcodec.AVCodec;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.bytedeco.javacpp.IntPointer;
+import org.bytedeco.javacpp.Pointer;
+import org.bytedeco.javacpp.PointerPointer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fr.syrdek.ffmpeg.libav.java.Media;
+import fr.syrdek.ffmpeg.libav.java.io.AVPixFormat;
+import fr.syrdek.ffmpeg.libav.java.io.AVSampleFormat;
+
+/**
+ * Registre des codecs disponibles dans libavcodec.<br>
+ * Les codecs sont énumérés une seule fois (via <code>av_codec_iterate</code>), au premier accès au registre, et
+ * indexés par id et par nom dans des tables immuables. Les recherches ne font donc plus d'appel natif, et peuvent être
+ * faites à chaque paquet ou frame (traces de debug, ...).<br>
+ * Les recherches par id suivent les règles de <code>avcodec_find_encoder</code> / <code>avcodec_find_decoder</code>
+ * : le premier codec non expérimental est préféré, sinon le premier codec expérimental.
+ *
+ * @author t0087865
+ */
+public final class CodecRegistry {
+  private static final Logger LOG = LoggerFactory.getLogger(CodecRegistry.class);
+
+  /**
+   * Description immuable d'un codec.
+   */
+  public static final class CodecInfo {
+    private final AVCodec codec;
+    private final int id;
+    private final String name;
+    private final String longName;
+    private final Media media;
+    private final boolean encoder;
+    private final boolean experimental;
+    private final List<AVPixFormat> pixFormats;
+    private final List<AVSampleFormat> sampleFormats;
+    private final List<Integer> sampleRates;
+
+    private CodecInfo(final AVCodec codec) {
+      this.codec = codec;
+      id = codec.id();
+      name = codec.name().getString();
+      longName = codec.long_name() == null ? name : codec.long_name().getString();
+      media = Media.of(codec.type());
+      encoder = avcodec.av_codec_is_encoder(codec) != 0;
+      experimental = (codec.capabilities() & avcodec.AV_CODEC_CAP_EXPERIMENTAL) != 0;
+
+      final List<AVPixFormat> pix = new ArrayList<>();
+      for (final int value : readList(codec.pix_fmts(), avutil.AV_PIX_FMT_NONE)) {
+        final AVPixFormat format = AVPixFormat.get(value);
+        if (format != AVPixFormat.FMT_NONE) {
+          pix.add(format);
+        }
+      }
+      pixFormats = Collections.unmodifiableList(pix);
+
+      final List<AVSampleFormat> samples = new ArrayList<>();
+      for (final int value : readList(codec.sample_fmts(), avutil.AV_SAMPLE_FMT_NONE)) {
+        final AVSampleFormat format = AVSampleFormat.get(value);
+        if (format != null) {
+          samples.add(format);
+        }
+      }
+      sampleFormats = Collections.unmodifiableList(samples);
+      sampleRates = Collections.unmodifiableList(readList(codec.supported_samplerates(), 0));
+    }
+
+    /**
+     * Lit une liste native terminée par la valeur donnée.
+     */
+    private static List<Integer> readList(final IntPointer list, final int terminator) {
+      final List<Integer> values = new ArrayList<>();
+      if (list != null && !list.isNull()) {
+        for (int i = 0; list.get(i) != terminator; i++) {
+          values.add(list.get(i));
+        }
+      }
+      return values;
+    }
+
+    /**
+     * @return L'id du codec.
+     */
+    public int getId() {
+      return id;
+    }
+
+    /**
+     * @return Le nom court du codec.
+     */
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * @return Le nom complet du codec.
+     */
+    public String getLongName() {
+      return longName;
+    }
+
+    /**
+     * @return Le type de media traité par le codec.
+     */
+    public Media getMedia() {
+      return media;
+    }
+
+    /**
+     * @return <code>true</code> pour un encodeur, <code>false</code> pour un décodeur.
+     */
+    public boolean isEncoder() {
+      return encoder;
+    }
+
+    /**
+     * @return <code>true</code> si le codec est expérimental.
+     */
+    public boolean isExperimental() {
+      return experimental;
+    }
+
+    /**
+     * @return Les formats d'image supportés. Vide si le codec ne les déclare pas, ou ne traite pas d'images.
+     */
+    public List<AVPixFormat> getPixFormats() {
+      return pixFormats;
+    }
+
+    /**
+     * @return Les formats de samples supportés. Vide si le codec ne les déclare pas, ou ne traite pas de son.
+     */
+    public List<AVSampleFormat> getSampleFormats() {
+      return sampleFormats;
+    }
+
+    /**
+     * @return Les fréquences d'échantillonnage supportées. Vide si le codec les supporte toutes, ou ne traite pas de
+     *         son.
+     */
+    public List<Integer> getSampleRates() {
+      return sampleRates;
+    }
+
+    /**
+     * @return Le codec natif. Le codec est statique dans libavcodec : le fermer ne libère pas de mémoire, et
+     *         n'invalide pas les autres instances.
+     */
+    public AVCodec getNativeCodec() {
+      return new AVCodec(codec);
+    }
+
+    @Override
+    public String toString() {
+      return "CodecInfo [name=" + name + ", id=" + id + ", media=" + media + ", encoder=" + encoder + "]";
+    }
+  }
+
+  /**
+   * Construit le registre au premier accès.
+   */
+  private static final class Holder {
+    private static final CodecRegistry INSTANCE = new CodecRegistry();
+  }
+
+  private final Map<Integer, CodecInfo> encodersById;
+  private final Map<String, CodecInfo> encodersByName;
+  private final Map<Integer, CodecInfo> decodersById;
+  private final Map<String, CodecInfo> decodersByName;
+
+  private CodecRegistry() {
+    final Map<Integer, CodecInfo> encById = new HashMap<>();
+    final Map<String, CodecInfo> encByName = new LinkedHashMap<>();
+    final Map<Integer, CodecInfo> decById = new HashMap<>();
+    final Map<String, CodecInfo> decByName = new LinkedHashMap<>();
+
+    // Etat opaque de l'itération, initialisé à NULL.
+    final PointerPointer<Pointer> iterator = new PointerPointer<>(1L).put(0, new Pointer());
+    AVCodec codec;
+    while ((codec = avcodec.av_codec_iterate(iterator)) != null && !codec.isNull()) {
+      final CodecInfo info = new CodecInfo(codec);
+      final Map<Integer, CodecInfo> byId = info.isEncoder() ? encById : decById;
+      final CodecInfo previous = byId.get(info.getId());
+      // Un codec expérimental n'est retenu que s'il est le seul de son id.
+      if (previous == null || (previous.isExperimental() && !info.isExperimental())) {
+        byId.put(info.getId(), info);
+      }
+      (info.isEncoder() ? encByName : decByName).putIfAbsent(info.getName(), info);
+    }
+    iterator.close();
+
+    encodersById = Collections.unmodifiableMap(encById);
+    encodersByName = Collections.unmodifiableMap(encByName);
+    decodersById = Collections.unmodifiableMap(decById);
+    decodersByName = Collections.unmodifiableMap(decByName);
+    LOG.debug("Registre des codecs : {} encodeurs, {} décodeurs.", encodersByName.size(), decodersByName.size());
+  }
+
+  /**
+   * @return Le registre des codecs, construit au premier appel.
+   */
+  public static CodecRegistry get() {
+    return Holder.INSTANCE;
+  }
+
+  /**
+   * @param id
+   *          L'id du codec.
+   * @return L'encodeur correspondant. <code>null</code> s'il est introuvable.
+   */
+  public CodecInfo findEncoder(final int id) {
+    return encodersById.get(id);
+  }
+
+  /**
+   * @param name
+   *          Le nom court de l'encodeur (par exemple "libx264", "aac").
+   * @return L'encodeur correspondant. <code>null</code> s'il est introuvable.
+   */
+  public CodecInfo findEncoder(final String name) {
+    return name == null ? null : encodersByName.get(name);
+  }
+
+  /**
+   * @param id
+   *          L'id du codec.
+   * @return Le décodeur correspondant. <code>null</code> s'il est introuvable.
+   */
+  public CodecInfo findDecoder(final int id) {
+    return decodersById.get(id);
+  }
+
+  /**
+   * @param name
+   *          Le nom court du décodeur (par exemple "h264", "aac").
+   * @return Le décodeur correspondant. <code>null</code> s'il est introuvable.
+   */
+  public CodecInfo findDecoder(final String name) {
+    return name == null ? null : decodersByName.get(name);
+  }
+
+  /**
+   * @return Les encodeurs disponibles, dans l'ordre de libavcodec.
+   */
+  public Collection<CodecInfo> getEncoders() {
+    return encodersByName.values();
+  }
+
+  /**
+   * @return Les décodeurs disponibles, dans l'ordre de libavcodec.
+   */
+  public Collection<CodecInfo> getDecoders() {
+    return decodersByName.values();
+  }
+}
@@ -0,0 +1,127 @@
+/**
+ *
+ */
+package fr.syrdek.ffmpeg.libav.java.io.stream;
+
+import java.text.MessageFormat;
+
+import org.bytedeco.ffmpeg.avcodec.AVCodecContext;
+
+import fr.syrdek.ffmpeg.libav.java.CFlag;
+import fr.syrdek.ffmpeg.libav.java.io.AVThreadType;
+
+/**
+ * Classe immuable décrivant la parallélisation interne d'un codec (paramètres <code>thread_count</code> et
+ * <code>thread_type</code> du contexte de codec).<br>
+ * Par défaut, libavcodec n'utilise qu'un seul thread par codec.
+ *
+ * @author Syrdek
+ */
+public class ThreadingParameters {
+  /**
+   * Laisse libavcodec choisir le nombre de threads en fonction du nombre de coeurs de la machine.
+   */
+  public static final ThreadingParameters AUTO = new ThreadingParameters(0, 0);
+
+  /**
+   * Un seul thread par codec. C'est le comportement par défaut de libavcodec.
+   */
+  public static final ThreadingParameters SINGLE = new ThreadingParameters(1, 0);
+
+  private final int threadCount;
+  private final int threadType;
+
+  /**
+   * Calcule un nombre de threads par codec adapté au nombre de traitements exécutés simultanément, afin de ne pas
+   * utiliser plus de threads que la machine n'a de coeurs.
+   *
+   * @param concurrentJobs
+   *          Le nombre de traitements exécutés simultanément.
+   * @return Les paramètres de parallélisation.
+   */
+  public static ThreadingParameters auto(final int concurrentJobs) {
+    final int cores = Runtime.getRuntime().availableProcessors();
+    return fixed(Math.max(1, cores / Math.max(1, concurrentJobs)));
+  }
+
+  /**
+   * @param threadCount
+   *          Le nombre de threads a utiliser par codec.
+   * @return Les paramètres de parallélisation.
+   */
+  public static ThreadingParameters fixed(final int threadCount) {
+    if (threadCount <= 0) {
+      throw new IllegalArgumentException("Le nombre de threads doit être positif : " + threadCount);
+    }
+    return new ThreadingParameters(threadCount, 0);
+  }
+
+  /**
+   * @param threadCount
+   *          Le nombre de threads. 0 pour laisser libavcodec choisir.
+   * @param threadType
+   *          Les méthodes de parallélisation autorisées. 0 pour laisser le codec choisir.
+   */
+  private ThreadingParameters(final int threadCount, final int threadType) {
+    this.threadCount = threadCount;
+    this.threadType = threadType;
+  }
+
+  /**
+   * Restreint les méthodes de parallélisation utilisables par le codec.<br>
+   * La parallélisation par frame ({@link AVThreadType#FRAME}) augmente la latence d'une frame par thread, la
+   * parallélisation par slice ({@link AVThreadType#SLICE}) n'est efficace que si le flux est découpé en slices.
+   *
+   * @param types
+   *          Les méthodes de parallélisation autorisées.
+   * @return Une copie de ces paramètres, restreinte aux méthodes données.
+   */
+  public ThreadingParameters withType(final AVThreadType... types) {
+    int flags = 0;
+    for (final AVThreadType type : types) {
+      flags = CFlag.plus(flags, type);
+    }
+    return new ThreadingParameters(threadCount, flags);
+  }
+
+  /**
+   * @return Le nombre de threads. 0 si libavcodec le choisit.
+   */
+  public int getThreadCount() {
+    return threadCount;
+  }
+
+  /**
+   * @return Les méthodes de parallélisation autorisées, sous forme de drapeaux {@link AVThreadType}. 0 si le codec les
+   *         choisit.
+   */
+  public int getThreadType() {
+    return threadType;
+  }
+
+  /**
+   * Pousse les paramètres de parallélisation dans un contexte de codec. Doit être appelé avant l'ouverture du codec.
+   *
+   * @param context
+   *          Le contexte dans lequel copier les paramètres.
+   */
+  public void pushTo(final AVCodecContext context) {
+    context.thread_count(threadCount);
+    if (threadType != 0) {
+      context.thread_type(threadType);
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return MessageFormat.format("ThreadingParameters [threadCount={0}, frame={1}, slice={2}]",
+        threadCount == 0 ? "auto" : threadCount,
+        CFlag.isIn(threadType, AVThreadType.FRAME),
+        CFlag.isIn(threadType, AVThreadType.SLICE));
+  }
+}
@@ -22,6 +22,7 @@ public class VideoParameters implements CodecContextParameters {
   private final Integer height;
   private final Integer frameRate;
   private final AVPixFormat pixFormat;
+  private final ThreadingParameters threading;
 
   /**
    * Construit un nouveau VideoParameters
@@ -38,15 +39,18 @@ public class VideoParameters implements CodecContextParameters {
    *          Le frameRate
    * @param pixFormat
    *          Le pixFormat
+   * @param threading
+   *          Le threading
    */
   private VideoParameters(final int codecId, final Long bitRate, final Integer width, final Integer height,
-      final Integer frameRate, final AVPixFormat pixFormat) {
+      final Integer frameRate, final AVPixFormat pixFormat, final ThreadingParameters threading) {
     codec = codecId;
     this.bitRate = bitRate;
     this.width = width;
     this.height = height;
     this.frameRate = frameRate;
     this.pixFormat = pixFormat;
+    this.threading = threading;
   }
 
   /**
@@ -105,6 +109,15 @@ public class VideoParameters implements CodecContextParameters {
     return pixFormat;
   }
 
+  /**
+   * @return La parallélisation de l'encodeur, poussée dans le contexte d'encodage par {@link #pushTo(AVCodecContext)}.
+   *         <code>null</code> pour garder celle par défaut de libavcodec.
+   */
+  @Override
+  public ThreadingParameters getThreading() {
+    return threading;
+  }
+
   /**
    * Pousse les paramètres vidéo dans un contexte d'encodage.
    *
@@ -119,6 +132,9 @@ public class VideoParameters implements CodecContextParameters {
     context.width(width);
     CodecContextParameters.computeTimeBase(frameRate, context.time_base());
     context.pix_fmt(pixFormat.value());
+    if (threading != null) {
+      threading.pushTo(context);
+    }
   }
 
   /**
@@ -131,6 +147,7 @@ public class VideoParameters implements CodecContextParameters {
     private Integer height;
     private Integer frameRate;
     private AVPixFormat pixFormat;
+    private ThreadingParameters threading;
 
     /**
      *
@@ -210,7 +227,22 @@ public class VideoParameters implements CodecContextParameters {
     }
 
     /**
-     * Récupère les paramètres depuis le contexte vidéo donné.
+     * Définit la parallélisation de l'encodeur. N'est pas récupérée par {@link #pullFrom(AVCodecContext)} : la
+     * parallélisation d'un décodeur n'est pas reportée sur l'encodeur construit à partir de ses paramètres.
+     *
+     * @param threading
+     *          La parallélisation de l'encodeur. <code>null</code> pour garder celle par défaut de libavcodec.
+     * @return Cette instance.
+     */
+    public final Builder withThreading(final ThreadingParameters threading) {
+      this.threading = threading;
+      return this;
+    }
+
+    /**
+     * Récupère les paramètres depuis le contexte vidéo donné.<br>
+     * La parallélisation du contexte (<code>thread_count</code>, <code>thread_type</code>) n'est pas récupérée : elle
+     * est propre au codec du contexte, et doit être donnée via {@link #withThreading(ThreadingParameters)}.
      *
      * @param context
      *          Le contexte duquel extraire les paramètres vidéo.
@@ -231,7 +263,7 @@ public class VideoParameters implements CodecContextParameters {
      */
     public final VideoParameters build() {
       validate();
-      return new VideoParameters(codec, bitRate, width, height, frameRate, pixFormat);
+      return new VideoParameters(codec, bitRate, width, height, frameRate, pixFormat, threading);
     }
 
     /**
@@ -255,7 +287,7 @@ public class VideoParameters implements CodecContextParameters {
   @Override
   public String toString() {
     return MessageFormat.format(
-        "VideoParameters [codec={0}({1}), bitRate={2}, width={3}, height={4}, frameRate={5}, pixFormat={6}]",
-        getCodecName(), codec, bitRate, width, height, frameRate, pixFormat);
+        "VideoParameters [codec={0}({1}), bitRate={2}, width={3}, height={4}, frameRate={5}, pixFormat={6}, threading={7}]",
+        getCodecName(), codec, bitRate, width, height, frameRate, pixFormat, threading);
   }
 }
\ No newline at end of file
@@ -0,0 +1,135 @@
+/**
+ *
+ */
+package fr.syrdek.ffmpeg.libav.java.transcode;
+
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+import org.bytedeco.ffmpeg.global.avutil;
+
+import fr.syrdek.ffmpeg.libav.java.chain.FramePool;
+import fr.syrdek.ffmpeg.libav.java.chain.Muxer;
+import fr.syrdek.ffmpeg.libav.java.chain.decode.AudioDecoder;
+import fr.syrdek.ffmpeg.libav.java.chain.encode.AudioEncoder;
+import fr.syrdek.ffmpeg.libav.java.chain.process.AudioResampler;
+import fr.syrdek.ffmpeg.libav.java.chain.process.AudioTimestamper;
+import fr.syrdek.ffmpeg.libav.java.chain.process.TimestampScaler;
+import fr.syrdek.ffmpeg.libav.java.io.stream.AudioParameters;
+
+/**
+ * Chaine de transcodage d'un flux audio : Decoder → AudioResampler → AudioEncoder → AudioTimestamper →
+ * TimestampScaler → Muxer, partagée par les différents modes de transcodage.<br>
+ * La construction déclare le flux encodé dans le conteneur de sortie, et branche la chaine sur les frames du
+ * décodeur. {@link #start()}, une fois les entêtes du conteneur écrites, branche les paquets encodés sur le
+ * conteneur.<br>
+ * La chaine possède le décodeur donné, et le ferme avec ses autres étapes.
+ *
+ * @author t0087865
+ */
+final class AudioChain implements AutoCloseable {
+  private final AudioDecoder decoder;
+  private final Muxer destination;
+  private final AudioEncoder encoder;
+  private final AudioResampler resampler;
+  // Les paquets rééchantillonnés n'ont plus de timestamps : ils sont numérotés dans la base de temps du codec, à
+  // partir du timestamp de la première frame décodée.
+  private final AudioTimestamper sampleCounter = new AudioTimestamper();
+  private TimestampScaler timestamper;
+  private long frames = 0;
+
+  /**
+   * @param decoder
+   *          Le décodeur du flux à transcoder.
+   * @param params
+   *          Les paramètres d'encodage.
+   * @param framePool
+   *          La réserve de frames du rééchantillonneur. Peut être <code>null</code>.
+   * @param destination
+   *          Le conteneur de sortie. Ses entêtes ne doivent pas encore être écrites.
+   */
+  AudioChain(final AudioDecoder decoder, final AudioParameters params, final FramePool framePool,
+      final Muxer destination) {
+    this.decoder = decoder;
+    this.destination = destination;
+    AudioEncoder e = null;
+    try {
+      e = new AudioEncoder(params, destination, null);
+      resampler = new AudioResampler(decoder.getParameters(), params, e, framePool);
+    } catch (RuntimeException ex) {
+      if (e != null) {
+        e.close();
+      }
+      decoder.close();
+      throw ex;
+    }
+    encoder = e;
+
+    decoder.sendTo(f -> {
+      if (frames++ == 0) {
+        startAt(f);
+      }
+    });
+    decoder.sendTo(resampler);
+    resampler.sendTo(encoder);
+    encoder.sendTo(sampleCounter);
+  }
+
+  /**
+   * Aligne la numérotation des paquets encodés sur la première frame décodée, pour que le son reste synchronisé avec
+   * les autres flux, qui conservent les timestamps du fichier lu (y compris lorsque la lecture commence au milieu du
+   * fichier).
+   */
+  private void startAt(final AVFrame first) {
+    final long pts = first.best_effort_timestamp();
+    if (pts != avutil.AV_NOPTS_VALUE) {
+      sampleCounter.startAt(avutil.av_rescale_q(pts, decoder.getStream().time_base(),
+          encoder.getCodecCtx().time_base()));
+    }
+  }
+
+  /**
+   * Demande au conteneur de sortie d'écrire le flux dans la base de temps du codec, dans laquelle les paquets encodés
+   * sont numérotés. Doit être appelé avant l'écriture des entêtes du conteneur.
+   */
+  void keepTimebase() {
+    destination.withTimebase(encoder.getStream().index(), encoder.getCodecCtx().time_base());
+  }
+
+  /**
+   * Branche les paquets encodés sur le conteneur de sortie. Doit être appelé une fois les entêtes du conteneur
+   * écrites : les paquets sont convertis dans la base de temps retenue par le format pour le flux.
+   */
+  void start() {
+    timestamper = new TimestampScaler(encoder.getCodecCtx().time_base(), encoder.getStream().time_base());
+    sampleCounter.sendTo(timestamper);
+    timestamper.sendTo(destination);
+  }
+
+  /**
+   * Purge les frames, samples et paquets encore retenus dans la chaine, en fin de lecture.
+   */
+  void drain() {
+    decoder.drain();
+    resampler.finish();
+    encoder.drain();
+  }
+
+  /**
+   * @return Le décodeur du flux.
+   */
+  AudioDecoder getDecoder() {
+    return decoder;
+  }
+
+  /**
+   * @return Le nombre de frames décodées.
+   */
+  long getFrames() {
+    return frames;
+  }
+
+  @Override
+  public void close() {
+    // Ferme les étapes dans l'ordre inverse de leur construction.
+    Stages.closeAll(timestamper, resampler, encoder, decoder);
+  }
+}
@@ -0,0 +1,195 @@
+/**
+ *
+ */
+package fr.syrdek.ffmpeg.libav.java.transcode;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fr.syrdek.ffmpeg.libav.java.FFmpegException;
+import fr.syrdek.ffmpeg.libav.java.io.stream.ThreadingParameters;
+
+/**
+ * Transcode des fichiers en parallèle, dans la JVM courante, sur un pool de threads partagé.<br>
+ * Chaque {@link TranscodeJob} est exécuté par un {@link Transcoder} dans un des threads du pool. Un job en échec
+ * n'interrompt pas les autres : son erreur est retournée dans son {@link TranscodeResult}.<br>
+ * <br>
+ * Exemple :
+ *
+ * <pre>
+ * try (final BatchTranscoder batch = new BatchTranscoder(4)) {
+ *   for (final TranscodeResult result : batch.transcodeAll(jobs)) {
+ *     ...
+ *   }
+ * }
+ * </pre>
+ *
+ * Par défaut, les décodeurs se partagent les coeurs de la machine entre les jobs exécutés simultanément (voir
+ * {@link ThreadingParameters#auto(int)}).
+ *
+ * @author t0087865
+ */
+public class BatchTranscoder implements AutoCloseable {
+  private static final Logger LOG = LoggerFactory.getLogger(BatchTranscoder.class);
+
+  private final ExecutorService pool;
+  private final int nbThreads;
+  private ThreadingParameters decoderThreading;
+  private TranscodeCache cache;
+
+  /**
+   * @param nbThreads
+   *          Le nombre de jobs exécutés simultanément.
+   */
+  public BatchTranscoder(final int nbThreads) {
+    if (nbThreads <= 0) {
+      throw new IllegalArgumentException("Le nombre de threads doit être positif : " + nbThreads);
+    }
+    this.nbThreads = nbThreads;
+    decoderThreading = ThreadingParameters.auto(nbThreads);
+
+    final AtomicInteger counter = new AtomicInteger();
+    final ThreadFactory factory = r -> {
+      final Thread t = new Thread(r, "ffmpeg-batch-" + counter.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    };
+    pool = Executors.newFixedThreadPool(nbThreads, factory);
+  }
+
+  /**
+   * @param decoderThreading
+   *          La parallélisation des décodeurs de chaque job.
+   * @return Cette instance.
+   */
+  public BatchTranscoder withDecoderThreading(final ThreadingParameters decoderThreading) {
+    this.decoderThreading = decoderThreading;
+    return this;
+  }
+
+  /**
+   * @param cache
+   *          Le cache des fichiers transcodés, partagé par tous les jobs. Par défaut, aucun cache n'est utilisé.
+   * @return Cette instance.
+   */
+  public BatchTranscoder withCache(final TranscodeCache cache) {
+    this.cache = cache;
+    return this;
+  }
+
+  /**
+   * Planifie un transcodage.<br>
+   * Le {@link Future} retourné ne lève jamais d'exception : les échecs sont décrits par le {@link TranscodeResult}.
+   * Annuler le {@link Future} interrompt le transcodage en cours.
+   *
+   * @param job
+   *          Le transcodage à réaliser.
+   * @return Le résultat à venir du transcodage.
+   */
+  public Future<TranscodeResult> submit(final TranscodeJob job) {
+    final ThreadingParameters threading = decoderThreading;
+    final TranscodeCache jobCache = cache;
+    return pool.submit(() -> run(job, threading, jobCache));
+  }
+
+  /**
+   * Réalise les transcodages donnés, et attend leur fin.
+   *
+   * @param jobs
+   *          Les transcodages à réaliser.
+   * @return Les résultats des transcodages, dans l'ordre des jobs donnés.
+   */
+  public List<TranscodeResult> transcodeAll(final Collection<TranscodeJob> jobs) {
+    final long start = System.currentTimeMillis();
+    LOG.info("Transcodage de {} fichiers sur {} threads...", jobs.size(), nbThreads);
+
+    final List<TranscodeJob> submitted = new ArrayList<>(jobs);
+    final List<Future<TranscodeResult>> futures = new ArrayList<>(submitted.size());
+    for (final TranscodeJob job : submitted) {
+      futures.add(submit(job));
+    }
+
+    final List<TranscodeResult> results = new ArrayList<>(futures.size());
+    int failures = 0;
+    for (int i = 0; i < futures.size(); i++) {
+      final TranscodeResult result = await(submitted.get(i), futures.get(i));
+      if (!result.isSuccess()) {
+        failures++;
+      }
+      results.add(result);
+    }
+
+    LOG.info("{} fichiers transcodés en {}ms ({} échecs).", results.size(), System.currentTimeMillis() - start,
+        failures);
+    return results;
+  }
+
+  /**
+   * Arrête le pool après la fin des transcodages en cours.
+   */
+  @Override
+  public void close() {
+    pool.shutdown();
+    try {
+      if (!pool.awaitTermination(1l, TimeUnit.DAYS)) {
+        pool.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      pool.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Exécute un job en isolant ses erreurs.
+   */
+  static TranscodeResult run(final TranscodeJob job, final ThreadingParameters threading) {
+    return run(job, threading, null);
+  }
+
+  /**
+   * Exécute un job en isolant ses erreurs, en passant par le cache donné s'il n'est pas <code>null</code>.
+   */
+  static TranscodeResult run(final TranscodeJob job, final ThreadingParameters threading,
+      final TranscodeCache cache) {
+    final long start = System.currentTimeMillis();
+    try {
+      return new Transcoder(job).withDecoderThreading(threading).withCache(cache).transcode();
+    } catch (CancellationException e) {
+      LOG.warn("Transcodage de {} annulé.", job.getInputFile());
+      return TranscodeResult.cancelled(job, System.currentTimeMillis() - start);
+    } catch (RuntimeException e) {
+      LOG.error("Echec du transcodage de {}.", job.getInputFile(), e);
+      return TranscodeResult.failure(job, System.currentTimeMillis() - start, e);
+    }
+  }
+
+  /**
+   * Attend le résultat d'un job.
+   */
+  private static TranscodeResult await(final TranscodeJob job, final Future<TranscodeResult> future) {
+    try {
+      return future.get();
+    } catch (CancellationException e) {
+      return TranscodeResult.cancelled(job, 0);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new FFmpegException("Interruption pendant l'attente des transcodages", e);
+    } catch (ExecutionException e) {
+      // Les erreurs sont capturées par run(). Seules les Error peuvent arriver ici.
+      return TranscodeResult.failure(job, 0, e.getCause());
+    }
+  }
+}
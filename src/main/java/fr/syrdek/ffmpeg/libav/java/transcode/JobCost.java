@@ -0,0 +1,198 @@
+/**
+ *
+ */
+package fr.syrdek.ffmpeg.libav.java.transcode;
+
+import java.text.MessageFormat;
+
+import org.bytedeco.ffmpeg.avutil.AVRational;
+import org.bytedeco.ffmpeg.global.avutil;
+
+import fr.syrdek.ffmpeg.libav.java.chain.Demuxer;
+import fr.syrdek.ffmpeg.libav.java.chain.decode.AudioDecoder;
+import fr.syrdek.ffmpeg.libav.java.chain.decode.VideoDecoder;
+import fr.syrdek.ffmpeg.libav.java.io.stream.AudioParameters;
+import fr.syrdek.ffmpeg.libav.java.io.stream.VideoParameters;
+
+/**
+ * Estimation de la mémoire native et du CPU consommés par un transcodage.<br>
+ * L'estimation est volontairement grossière : elle sert à ne pas lancer simultanément plus de transcodages que la
+ * machine ne peut en supporter, pas à mesurer précisément leur consommation.<br>
+ * <ul>
+ * <li>Mémoire : taille d'une image décodée (et d'une image à encoder) multipliée par le nombre d'images retenues par
+ * les codecs, plus une seconde de samples audio et un forfait pour les contextes et paquets. La parallélisation
+ * s'ajoute au nombre d'images retenues, sans le multiplier : chaque thread supplémentaire traite une image de plus,
+ * les images de référence restant partagées.</li>
+ * <li>CPU : nombre de pixels traités par seconde, rapporté à ce qu'un coeur décode et encode en 1080p à 30 images par
+ * seconde.</li>
+ * </ul>
+ *
+ * @author t0087865
+ */
+public class JobCost {
+  /**
+   * Nombre d'images retenues par un décodeur (images de référence, B-frames, ...), hors parallélisation.
+   */
+  public static final int DECODER_FRAMES = 16;
+
+  /**
+   * Nombre d'images retenues par un encodeur, hors parallélisation.
+   */
+  public static final int ENCODER_FRAMES = 8;
+
+  /**
+   * Mémoire consommée par un transcodage indépendamment de ses flux (contextes, paquets, tampons d'E/S).
+   */
+  public static final long FIXED_MEMORY = 16l * 1024 * 1024;
+
+  /**
+   * Nombre de pixels par seconde qu'un coeur peut décoder puis réencoder.
+   */
+  public static final double PIXELS_PER_CORE = 1920d * 1080 * 30;
+
+  /**
+   * CPU minimal attribué à un transcodage, même audio seul.
+   */
+  public static final double MIN_CPU = 0.25;
+
+  private final long memory;
+  private final double cpu;
+
+  /**
+   * @param memory
+   *          La mémoire native estimée, en octets.
+   * @param cpu
+   *          Le nombre de coeurs estimé.
+   */
+  public JobCost(final long memory, final double cpu) {
+    this.memory = memory;
+    this.cpu = cpu;
+  }
+
+  /**
+   * Estime le coût d'un transcodage en lisant les paramètres des flux du fichier d'entrée.
+   *
+   * @param job
+   *          Le transcodage à estimer.
+   * @return Le coût estimé.
+   */
+  public static JobCost probe(final TranscodeJob job) {
+    try (final Demuxer source = new Demuxer(job.getInputFile());
+        final VideoDecoder video = job.getVideoParams() == null ? null : source.openVideoDecoder(null);
+        final AudioDecoder audio = job.getAudioParams() == null ? null : source.openAudioDecoder(null)) {
+
+      double fps = 0;
+      if (video != null) {
+        final AVRational rate = video.getStream().avg_frame_rate();
+        fps = rate.den() > 0 && rate.num() > 0 ? avutil.av_q2d(rate) : 25;
+      }
+      return estimate(
+          video == null ? null : video.getParameters(), fps, job.getVideoParams(),
+          audio == null ? null : audio.getParameters(), job.getAudioParams());
+    }
+  }
+
+  /**
+   * Estime le coût d'un transcodage à partir des paramètres de ses flux.
+   *
+   * @param videoIn
+   *          Les paramètres du flux vidéo lu. <code>null</code> s'il n'y a pas de flux vidéo.
+   * @param fpsIn
+   *          Le nombre d'images par seconde du flux vidéo lu.
+   * @param videoOut
+   *          Les paramètres du flux vidéo écrit. Les dimensions et le format de pixel absents sont ceux du flux lu.
+   * @param audioIn
+   *          Les paramètres du flux audio lu. <code>null</code> s'il n'y a pas de flux audio.
+   * @param audioOut
+   *          Les paramètres du flux audio écrit.
+   * @return Le coût estimé.
+   */
+  public static JobCost estimate(final VideoParameters videoIn, final double fpsIn, final VideoParameters videoOut,
+      final AudioParameters audioIn, final AudioParameters audioOut) {
+    long memory = FIXED_MEMORY;
+    double pixelsPerSecond = 0;
+
+    if (videoIn != null && videoOut != null) {
+      final int width = valueOr(videoOut.getWidth(), videoIn.getWidth());
+      final int height = valueOr(videoOut.getHeight(), videoIn.getHeight());
+      final int pixFmtIn = videoIn.getPixFormat() == null ? avutil.AV_PIX_FMT_YUV420P : videoIn.getPixFormat().value();
+      final int pixFmtOut = videoOut.getPixFormat() == null ? pixFmtIn : videoOut.getPixFormat().value();
+
+      memory += (long) frameSize(pixFmtIn, videoIn.getWidth(), videoIn.getHeight())
+          * (DECODER_FRAMES + threads(videoIn));
+      memory += (long) frameSize(pixFmtOut, width, height) * (ENCODER_FRAMES + threads(videoOut));
+
+      final double fpsOut = videoOut.getFrameRate() == null ? fpsIn : Math.min(fpsIn, videoOut.getFrameRate());
+      pixelsPerSecond += (double) videoIn.getWidth() * videoIn.getHeight() * fpsIn;
+      pixelsPerSecond += (double) width * height * fpsOut;
+    }
+
+    if (audioIn != null && audioOut != null) {
+      memory += samplesSize(audioIn) + samplesSize(audioOut);
+    }
+
+    // Le décodage et l'encodage comptent chacun pour moitié dans la référence.
+    final double cpu = Math.max(MIN_CPU, pixelsPerSecond / (2 * PIXELS_PER_CORE));
+    return new JobCost(memory, cpu);
+  }
+
+  /**
+   * @return La mémoire native estimée, en octets.
+   */
+  public long getMemory() {
+    return memory;
+  }
+
+  /**
+   * @return Le nombre de coeurs estimé.
+   */
+  public double getCpu() {
+    return cpu;
+  }
+
+  /**
+   * @return La taille d'une image, en octets.
+   */
+  private static int frameSize(final int pixFmt, final int width, final int height) {
+    final int size = avutil.av_image_get_buffer_size(pixFmt, width, height, 1);
+    // Format inconnu : compte 4 octets par pixel.
+    return size > 0 ? size : width * height * 4;
+  }
+
+  /**
+   * @return La taille d'une seconde de samples, en octets.
+   */
+  private static long samplesSize(final AudioParameters params) {
+    final int channels = valueOr(params.getChannels(), 2);
+    final int rate = valueOr(params.getSampleRate(), 48000);
+    final int format = valueOr(params.getSampleFormatValue(), avutil.AV_SAMPLE_FMT_FLTP);
+    final int bytes = avutil.av_get_bytes_per_sample(format);
+    return (long) channels * rate * (bytes > 0 ? bytes : 4);
+  }
+
+  /**
+   * @return Le nombre de threads du codec, 1 si inconnu. Ajouté aux images retenues par le codec : chaque thread
+   *         retient l'image qu'il traite.
+   */
+  private static int threads(final VideoParameters params) {
+    if (params.getThreading() == null || params.getThreading().getThreadCount() <= 0) {
+      return 1;
+    }
+    return params.getThreading().getThreadCount();
+  }
+
+  private static int valueOr(final Integer value, final int defaultValue) {
+    return value == null || value <= 0 ? defaultValue : value;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return MessageFormat.format("JobCost [memory={0}Mo, cpu={1}]", memory / (1024 * 1024),
+        String.format("%.2f", cpu));
+  }
+}
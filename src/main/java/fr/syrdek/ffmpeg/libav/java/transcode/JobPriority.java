@@ -0,0 +1,25 @@
+/**
+ *
+ */
+package fr.syrdek.ffmpeg.libav.java.transcode;
+
+/**
+ * Classes de priorité des transcodages planifiés par le {@link JobScheduler}, de la plus prioritaire à la moins
+ * prioritaire.
+ *
+ * @author t0087865
+ */
+public enum JobPriority {
+  /**
+   * Flux en direct : tout retard est visible par l'utilisateur.
+   */
+  LIVE,
+  /**
+   * Transcodage attendu par un utilisateur.
+   */
+  INTERACTIVE,
+  /**
+   * Traitement de fond, sans contrainte de délai.
+   */
+  BATCH;
+}
@@ -0,0 +1,349 @@
+/**
+ *
+ */
+package fr.syrdek.ffmpeg.libav.java.transcode;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fr.syrdek.ffmpeg.libav.java.io.stream.ThreadingParameters;
+
+/**
+ * Planifie des transcodages en fonction de leur coût estimé et de leur priorité.<br>
+ * Chaque job est associé à un {@link JobCost} (mémoire native et CPU). Un job n'est démarré que si son coût tient
+ * dans le budget restant : la mémoire native de la JVM ne peut ainsi plus être épuisée par un trop grand nombre de
+ * transcodages simultanés.<br>
+ * Les jobs en attente sont démarrés par ordre de priorité ({@link JobPriority#LIVE} d'abord), puis par ordre
+ * d'arrivée. Un job qui ne tient pas dans le budget bloque ceux qui le suivent, afin de ne pas être indéfiniment
+ * doublé par des jobs plus petits. Un job dont le coût dépasse à lui seul le budget est démarré lorsqu'aucun autre job
+ * ne tourne.<br>
+ * <br>
+ * Exemple :
+ *
+ * <pre>
+ * try (final JobScheduler scheduler = new JobScheduler(2l * 1024 * 1024 * 1024, 8, 16)) {
+ *   final CompletableFuture&lt;TranscodeResult&gt; result = scheduler.submit(job, JobPriority.INTERACTIVE);
+ *   ...
+ * }
+ * </pre>
+ *
+ * @author t0087865
+ */
+public class JobScheduler implements AutoCloseable {
+  private static final Logger LOG = LoggerFactory.getLogger(JobScheduler.class);
+
+  /**
+   * Un job en attente.
+   */
+  private static class Pending implements Comparable<Pending> {
+    private final TranscodeJob job;
+    private final JobPriority priority;
+    private final JobCost cost;
+    private final long sequence;
+    private final long submitted = System.currentTimeMillis();
+    private final CompletableFuture<TranscodeResult> result = new CompletableFuture<>();
+
+    Pending(final TranscodeJob job, final JobPriority priority, final JobCost cost, final long sequence) {
+      this.job = job;
+      this.priority = priority;
+      this.cost = cost;
+      this.sequence = sequence;
+    }
+
+    @Override
+    public int compareTo(final Pending o) {
+      final int byPriority = priority.compareTo(o.priority);
+      return byPriority != 0 ? byPriority : Long.compare(sequence, o.sequence);
+    }
+  }
+
+  /**
+   * Statistiques d'attente d'une classe de priorité.
+   */
+  private static class WaitStats {
+    private int queued = 0;
+    private long started = 0;
+    private long totalWait = 0;
+    private long maxWait = 0;
+  }
+
+  private final long memoryBudget;
+  private final double cpuBudget;
+  private final int maxRunning;
+  private final ExecutorService pool;
+  private final PriorityQueue<Pending> queue = new PriorityQueue<>();
+  private final Map<JobPriority, WaitStats> stats = new EnumMap<>(JobPriority.class);
+
+  private ThreadingParameters decoderThreading;
+  private long sequence = 0;
+  private long memoryInUse = 0;
+  private double cpuInUse = 0;
+  private int running = 0;
+  private boolean closed = false;
+
+  /**
+   * @param memoryBudget
+   *          La mémoire native pouvant être consommée par l'ensemble des transcodages en cours, en octets.
+   * @param cpuBudget
+   *          Le nombre de coeurs pouvant être consommés par l'ensemble des transcodages en cours.
+   * @param maxRunning
+   *          Le nombre maximal de transcodages simultanés, quel que soit leur coût.
+   */
+  public JobScheduler(final long memoryBudget, final double cpuBudget, final int maxRunning) {
+    if (memoryBudget <= 0 || cpuBudget <= 0 || maxRunning <= 0) {
+      throw new IllegalArgumentException("Les budgets doivent être positifs.");
+    }
+    this.memoryBudget = memoryBudget;
+    this.cpuBudget = cpuBudget;
+    this.maxRunning = maxRunning;
+    decoderThreading = ThreadingParameters.auto(maxRunning);
+    for (final JobPriority priority : JobPriority.values()) {
+      stats.put(priority, new WaitStats());
+    }
+
+    final AtomicInteger counter = new AtomicInteger();
+    pool = Executors.newFixedThreadPool(maxRunning, r -> {
+      final Thread t = new Thread(r, "ffmpeg-scheduler-" + counter.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  /**
+   * @param decoderThreading
+   *          La parallélisation des décodeurs de chaque job.
+   * @return Cette instance.
+   */
+  public JobScheduler withDecoderThreading(final ThreadingParameters decoderThreading) {
+    this.decoderThreading = decoderThreading;
+    return this;
+  }
+
+  /**
+   * Planifie un transcodage, dont le coût est estimé en lisant les paramètres du fichier d'entrée (voir
+   * {@link JobCost#probe(TranscodeJob)}). La lecture est faite dans le thread appelant.
+   *
+   * @param job
+   *          Le transcodage à réaliser.
+   * @param priority
+   *          La priorité du transcodage.
+   * @return Le résultat à venir du transcodage. Ne se termine jamais en erreur : les échecs sont décrits par le
+   *         {@link TranscodeResult}. Annuler un job qui n'a pas encore démarré le retire de la file.
+   */
+  public CompletableFuture<TranscodeResult> submit(final TranscodeJob job, final JobPriority priority) {
+    final JobCost cost;
+    try {
+      cost = JobCost.probe(job);
+    } catch (RuntimeException e) {
+      LOG.error("Impossible d'estimer le coût du transcodage de {}.", job.getInputFile(), e);
+      return CompletableFuture.completedFuture(TranscodeResult.failure(job, 0, e));
+    }
+    return submit(job, priority, cost);
+  }
+
+  /**
+   * Planifie un transcodage dont le coût est connu.
+   *
+   * @param job
+   *          Le transcodage à réaliser.
+   * @param priority
+   *          La priorité du transcodage.
+   * @param cost
+   *          Le coût du transcodage.
+   * @return Le résultat à venir du transcodage. Ne se termine jamais en erreur : les échecs sont décrits par le
+   *         {@link TranscodeResult}. Annuler un job qui n'a pas encore démarré le retire de la file.
+   */
+  public synchronized CompletableFuture<TranscodeResult> submit(final TranscodeJob job, final JobPriority priority,
+      final JobCost cost) {
+    if (closed) {
+      throw new RejectedExecutionException("Le planificateur est arrêté.");
+    }
+    final Pending pending = new Pending(job, priority, cost, sequence++);
+    queue.add(pending);
+    stats.get(priority).queued++;
+    LOG.debug("Job {} planifié en priorité {} ({}).", job.getInputFile(), priority, cost);
+
+    pending.result.whenComplete((r, e) -> {
+      if (pending.result.isCancelled()) {
+        cancelled(pending);
+      }
+    });
+    dispatch();
+    return pending.result;
+  }
+
+  /**
+   * @return Le nombre de jobs en attente.
+   */
+  public synchronized int getQueueDepth() {
+    return queue.size();
+  }
+
+  /**
+   * @param priority
+   *          Une classe de priorité.
+   * @return Le nombre de jobs de cette priorité en attente.
+   */
+  public synchronized int getQueueDepth(final JobPriority priority) {
+    return stats.get(priority).queued;
+  }
+
+  /**
+   * @return Le nombre de jobs en cours.
+   */
+  public synchronized int getRunningCount() {
+    return running;
+  }
+
+  /**
+   * @return La mémoire native estimée des jobs en cours, en octets.
+   */
+  public synchronized long getMemoryInUse() {
+    return memoryInUse;
+  }
+
+  /**
+   * @return Le nombre de coeurs estimé des jobs en cours.
+   */
+  public synchronized double getCpuInUse() {
+    return cpuInUse;
+  }
+
+  /**
+   * @param priority
+   *          Une classe de priorité.
+   * @return Le temps d'attente moyen avant démarrage des jobs de cette priorité, en millisecondes.
+   */
+  public synchronized long getAverageWait(final JobPriority priority) {
+    final WaitStats s = stats.get(priority);
+    return s.started == 0 ? 0 : s.totalWait / s.started;
+  }
+
+  /**
+   * @param priority
+   *          Une classe de priorité.
+   * @return Le temps d'attente maximal avant démarrage des jobs de cette priorité, en millisecondes.
+   */
+  public synchronized long getMaxWait(final JobPriority priority) {
+    return stats.get(priority).maxWait;
+  }
+
+  /**
+   * Attend la fin des jobs en attente et en cours, puis arrête le planificateur.
+   */
+  @Override
+  public void close() {
+    synchronized (this) {
+      closed = true;
+      while (!queue.isEmpty() || running > 0) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+    }
+    pool.shutdown();
+    try {
+      pool.awaitTermination(1l, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Démarre les jobs en attente tant qu'ils tiennent dans le budget.
+   */
+  private void dispatch() {
+    Pending next;
+    while ((next = queue.peek()) != null && running < maxRunning && fits(next.cost)) {
+      queue.poll();
+      start(next);
+    }
+    notifyAll();
+  }
+
+  /**
+   * @return <code>true</code> si le coût donné tient dans le budget restant.
+   */
+  private boolean fits(final JobCost cost) {
+    if (running == 0) {
+      // Un job plus gros que le budget complet doit pouvoir tourner seul.
+      if (cost.getMemory() > memoryBudget || cost.getCpu() > cpuBudget) {
+        LOG.warn("Le coût estimé d'un job ({}) dépasse le budget, il est démarré seul.", cost);
+      }
+      return true;
+    }
+    return memoryInUse + cost.getMemory() <= memoryBudget && cpuInUse + cost.getCpu() <= cpuBudget;
+  }
+
+  /**
+   * Démarre un job.
+   */
+  private void start(final Pending pending) {
+    final WaitStats s = stats.get(pending.priority);
+    s.queued--;
+    if (pending.result.isDone()) {
+      // Annulé avant son démarrage.
+      return;
+    }
+
+    final long wait = System.currentTimeMillis() - pending.submitted;
+    s.started++;
+    s.totalWait += wait;
+    s.maxWait = Math.max(s.maxWait, wait);
+
+    running++;
+    memoryInUse += pending.cost.getMemory();
+    cpuInUse += pending.cost.getCpu();
+    LOG.debug("Démarrage du job {} après {}ms d'attente ({} en cours).", pending.job.getInputFile(), wait, running);
+
+    final ThreadingParameters threading = decoderThreading;
+    pool.execute(() -> {
+      TranscodeResult result = null;
+      try {
+        result = BatchTranscoder.run(pending.job, threading);
+      } finally {
+        finished(pending);
+        if (result != null) {
+          pending.result.complete(result);
+        } else {
+          pending.result.complete(TranscodeResult.failure(pending.job, 0,
+              new IllegalStateException("Le transcodage s'est arrêté sans résultat.")));
+        }
+      }
+    });
+  }
+
+  /**
+   * Libère le budget d'un job terminé, et démarre les jobs suivants.
+   */
+  private synchronized void finished(final Pending pending) {
+    running--;
+    memoryInUse -= pending.cost.getMemory();
+    cpuInUse -= pending.cost.getCpu();
+    dispatch();
+  }
+
+  /**
+   * Retire un job annulé de la file.
+   */
+  private synchronized void cancelled(final Pending pending) {
+    if (queue.remove(pending)) {
+      stats.get(pending.priority).queued--;
+      LOG.debug("Job {} annulé avant son démarrage.", pending.job.getInputFile());
+      dispatch();
+    }
+  }
+}
@@ -0,0 +1,144 @@
+/**
+ *
+ */
+package fr.syrdek.ffmpeg.libav.java.transcode;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.bytedeco.ffmpeg.avcodec.AVCodec;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.ffmpeg.global.avformat;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fr.syrdek.ffmpeg.libav.java.FFmpegException;
+import fr.syrdek.ffmpeg.libav.java.chain.Demuxer;
+
+/**
+ * Index des images clés du flux vidéo d'un fichier.<br>
+ * Construit en lisant les paquets du fichier, sans les décoder.
+ *
+ * @author t0087865
+ */
+public class KeyframeIndex {
+  private static final Logger LOG = LoggerFactory.getLogger(KeyframeIndex.class);
+
+  private final int streamIndex;
+  private final List<Long> keyframes;
+  private final long frameCount;
+  private final long lastTimestamp;
+
+  /**
+   * Indexe les images clés du meilleur flux vidéo du fichier donné.
+   *
+   * @param filepath
+   *          Le chemin vers le fichier à indexer.
+   * @return L'index construit.
+   */
+  public static KeyframeIndex scan(final String filepath) {
+    try (final Demuxer demuxer = new Demuxer(filepath)) {
+      final int streamIndex = avformat.av_find_best_stream(demuxer.getFormatCtx(), avutil.AVMEDIA_TYPE_VIDEO, -1, -1,
+          (AVCodec) null, 0);
+      if (streamIndex < 0) {
+        throw new FFmpegException("Aucun flux vidéo n'est présent dans le fichier " + filepath);
+      }
+
+      final List<Long> keyframes = new ArrayList<>();
+      final long[] stats = { 0, Long.MIN_VALUE };
+      demuxer.setConsumer(p -> {
+        if (p.stream_index() != streamIndex) {
+          return;
+        }
+        final long ts = p.pts() != avutil.AV_NOPTS_VALUE ? p.pts() : p.dts();
+        if ((p.flags() & avcodec.AV_PKT_FLAG_KEY) != 0 && ts != avutil.AV_NOPTS_VALUE) {
+          keyframes.add(ts);
+        }
+        stats[0]++;
+        stats[1] = Math.max(stats[1], ts);
+      });
+      demuxer.read();
+
+      Collections.sort(keyframes);
+      LOG.debug("Fichier {} indexé : {} images clés pour {} images.", filepath, keyframes.size(), stats[0]);
+      return new KeyframeIndex(streamIndex, keyframes, stats[0], stats[1]);
+    }
+  }
+
+  /**
+   * @param streamIndex
+   *          L'index du flux vidéo indexé.
+   * @param keyframes
+   *          Les timestamps des images clés, triés.
+   * @param frameCount
+   *          Le nombre de paquets du flux vidéo.
+   * @param lastTimestamp
+   *          Le plus grand timestamp rencontré.
+   */
+  private KeyframeIndex(final int streamIndex, final List<Long> keyframes, final long frameCount,
+      final long lastTimestamp) {
+    this.streamIndex = streamIndex;
+    this.keyframes = Collections.unmodifiableList(keyframes);
+    this.frameCount = frameCount;
+    this.lastTimestamp = lastTimestamp;
+  }
+
+  /**
+   * Découpe le flux en segments de durées proches, commençant chacun sur une image clé.
+   *
+   * @param nbSegments
+   *          Le nombre de segments souhaité.
+   * @return Les timestamps de début de chaque segment, dans la base de temps du flux. Peut contenir moins de
+   *         <code>nbSegments</code> éléments si le flux n'a pas assez d'images clés.
+   */
+  public List<Long> split(final int nbSegments) {
+    final List<Long> starts = new ArrayList<>();
+    if (keyframes.isEmpty()) {
+      return starts;
+    }
+
+    final long first = keyframes.get(0);
+    final double span = (double) (lastTimestamp - first) / Math.max(1, nbSegments);
+    starts.add(first);
+
+    int k = 0;
+    for (int i = 1; i < nbSegments; i++) {
+      final double target = first + i * span;
+      // Première image clé située après la cible.
+      while (k < keyframes.size() && keyframes.get(k) < target) {
+        k++;
+      }
+      if (k >= keyframes.size()) {
+        break;
+      }
+      final long start = keyframes.get(k);
+      if (start > starts.get(starts.size() - 1)) {
+        starts.add(start);
+      }
+    }
+    return starts;
+  }
+
+  /**
+   * @return L'index du flux vidéo indexé.
+   */
+  public int getStreamIndex() {
+    return streamIndex;
+  }
+
+  /**
+   * @return Les timestamps des images clés, triés, dans la base de temps du flux.
+   */
+  public List<Long> getKeyframes() {
+    return keyframes;
+  }
+
+  /**
+   * @return Le nombre de paquets (donc d'images) du flux vidéo.
+   */
+  public long getFrameCount() {
+    return frameCount;
+  }
+}
@@ -0,0 +1,625 @@
+/**
+ *
+ */
+package fr.syrdek.ffmpeg.libav.java.transcode;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import org.bytedeco.ffmpeg.avcodec.AVCodec;
+import org.bytedeco.ffmpeg.avcodec.AVPacket;
+import org.bytedeco.ffmpeg.avformat.AVStream;
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+import org.bytedeco.ffmpeg.avutil.AVRational;
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.ffmpeg.global.avformat;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fr.syrdek.ffmpeg.libav.java.FFmpegException;
+import fr.syrdek.ffmpeg.libav.java.chain.BaseProducer;
+import fr.syrdek.ffmpeg.libav.java.chain.Demuxer;
+import fr.syrdek.ffmpeg.libav.java.chain.Muxer;
+import fr.syrdek.ffmpeg.libav.java.chain.RefCounter;
+import fr.syrdek.ffmpeg.libav.java.chain.decode.VideoDecoder;
+import fr.syrdek.ffmpeg.libav.java.io.AVSeekFlag;
+import fr.syrdek.ffmpeg.libav.java.io.SWSInterpolation;
+import fr.syrdek.ffmpeg.libav.java.io.stream.AudioParameters;
+import fr.syrdek.ffmpeg.libav.java.io.stream.VideoParameters;
+
+/**
+ * Transcode un fichier en découpant son flux vidéo en segments, transcodés en parallèle.<br>
+ * Le flux vidéo est découpé sur des images clés (voir {@link KeyframeIndex}). Chaque segment est lu depuis sa propre
+ * position par une chaine Demuxer → Decoder → Encoder indépendante, et encodé dans un fichier temporaire. Les paquets
+ * encodés sont ensuite recopiés, dans l'ordre, dans le conteneur de sortie. Les timestamps d'origine étant conservés
+ * par chaque segment, dans la base de temps du flux source, ils sont continus dans le fichier final. Leur continuité
+ * est vérifiée à chaque jonction entre segments (voir {@link Result#getDiscontinuities()}).<br>
+ * Le flux audio éventuel est transcodé d'un seul tenant, en parallèle des segments vidéo.<br>
+ * Le temps de transcodage d'un fichier long diminue ainsi avec le nombre de coeurs, au prix du décodage d'un GOP
+ * supplémentaire par segment.
+ *
+ * @author t0087865
+ */
+public class SegmentTranscoder {
+  private static final Logger LOG = LoggerFactory.getLogger(SegmentTranscoder.class);
+
+  // Format des fichiers temporaires. Accepte tous les codecs, et conserve la base de temps demandée pour chaque flux :
+  // les timestamps ne sont pas arrondis avant la concaténation.
+  private static final String TMP_FORMAT = "nut";
+  private static final String TMP_EXTENSION = ".nut";
+
+  /**
+   * Résultat d'un transcodage par segments.
+   *
+   * @author t0087865
+   */
+  public static class Result {
+    private final int segments;
+    private final long sourceFrames;
+    private final long encodedFrames;
+    private final long writtenFrames;
+    private final int discontinuities;
+    private final long duration;
+
+    /**
+     * @param segments
+     *          Le nombre de segments transcodés.
+     * @param sourceFrames
+     *          Le nombre d'images du flux vidéo source.
+     * @param encodedFrames
+     *          Le nombre d'images envoyées aux encodeurs, tous segments confondus.
+     * @param writtenFrames
+     *          Le nombre d'images écrites dans le fichier final.
+     * @param discontinuities
+     *          Le nombre de jonctions entre segments dont les timestamps ne se suivent pas.
+     * @param duration
+     *          La durée du transcodage, en millisecondes.
+     */
+    private Result(final int segments, final long sourceFrames, final long encodedFrames, final long writtenFrames,
+        final int discontinuities, final long duration) {
+      this.segments = segments;
+      this.sourceFrames = sourceFrames;
+      this.encodedFrames = encodedFrames;
+      this.writtenFrames = writtenFrames;
+      this.discontinuities = discontinuities;
+      this.duration = duration;
+    }
+
+    /**
+     * @return Le nombre de segments transcodés.
+     */
+    public int getSegments() {
+      return segments;
+    }
+
+    /**
+     * @return Le nombre d'images du flux vidéo source.
+     */
+    public long getSourceFrames() {
+      return sourceFrames;
+    }
+
+    /**
+     * @return Le nombre d'images envoyées aux encodeurs, tous segments confondus.
+     */
+    public long getEncodedFrames() {
+      return encodedFrames;
+    }
+
+    /**
+     * @return Le nombre d'images écrites dans le fichier final.
+     */
+    public long getWrittenFrames() {
+      return writtenFrames;
+    }
+
+    /**
+     * @return Le nombre de jonctions entre segments où la première image du segment ne suit pas la dernière image du
+     *         segment précédent (chevauchement, ou écart de plus de deux images).
+     */
+    public int getDiscontinuities() {
+      return discontinuities;
+    }
+
+    /**
+     * @return La durée du transcodage, en millisecondes.
+     */
+    public long getDuration() {
+      return duration;
+    }
+
+    /**
+     * @return <code>true</code> si toutes les images encodées ont été écrites dans le fichier final, et si leurs
+     *         timestamps sont continus d'un segment à l'autre.
+     */
+    public boolean isComplete() {
+      return encodedFrames == writtenFrames && discontinuities == 0;
+    }
+
+    @Override
+    public String toString() {
+      return "Result [segments=" + segments + ", sourceFrames=" + sourceFrames + ", encodedFrames=" + encodedFrames
+          + ", writtenFrames=" + writtenFrames + ", discontinuities=" + discontinuities + ", duration=" + duration
+          + "ms]";
+    }
+  }
+
+  /**
+   * Laisse passer les frames dont le timestamp appartient au segment.<br>
+   * Les frames décodées avant le début du segment (suite au positionnement sur l'image clé) ou après sa fin (GOP
+   * suivant, décodé pour récupérer les B-frames du segment) sont ignorées.
+   */
+  private static class SegmentFilter extends BaseProducer<AVFrame> implements Consumer<AVFrame> {
+    private final long start;
+    private final long end;
+
+    SegmentFilter(final long start, final long end) {
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    public void accept(final AVFrame frame) {
+      final long ts = frame.best_effort_timestamp();
+      if (ts >= start && ts < end) {
+        publish(frame);
+      }
+    }
+  }
+
+  /**
+   * Vérifie la continuité des timestamps vidéo aux jonctions entre segments.<br>
+   * Un segment commence par une image clé, qui est la première image affichée du segment : son PTS doit suivre le plus
+   * grand PTS du segment précédent, de moins de deux durées d'image (estimées sur le segment précédent). L'écart
+   * toléré couvre les images retirées par la limitation de la cadence.
+   */
+  private static class ContinuityCheck {
+    private int segment = -1;
+    private long frames = 0;
+    private long firstPts;
+    private long lastPts;
+    private long previousLastPts = avutil.AV_NOPTS_VALUE;
+    private long previousStep = 0;
+    private int discontinuities = 0;
+
+    /**
+     * Signale le début du segment suivant.
+     */
+    void nextSegment() {
+      if (frames > 0) {
+        previousLastPts = lastPts;
+        previousStep = frames > 1 ? (lastPts - firstPts) / (frames - 1) : previousStep;
+      }
+      segment++;
+      frames = 0;
+    }
+
+    /**
+     * Prend en compte le PTS d'un paquet du segment courant.
+     */
+    void accept(final long pts) {
+      if (pts == avutil.AV_NOPTS_VALUE) {
+        return;
+      }
+      if (frames++ > 0) {
+        lastPts = Math.max(lastPts, pts);
+        return;
+      }
+      firstPts = pts;
+      lastPts = pts;
+      if (previousLastPts != avutil.AV_NOPTS_VALUE) {
+        final long gap = pts - previousLastPts;
+        if (gap <= 0 || (previousStep > 0 && gap > previousStep * 2)) {
+          discontinuities++;
+          LOG.warn("Discontinuité à l'entrée du segment {} : PTS {} après {} (durée d'image : {}).", segment, pts,
+              previousLastPts, previousStep);
+        }
+      }
+    }
+  }
+
+  /**
+   * Lit les paquets du premier flux d'un fichier temporaire, un par un.
+   */
+  private static class PacketSource implements AutoCloseable {
+    private final Demuxer demuxer;
+    private AVPacket current;
+
+    PacketSource(final Path path) {
+      demuxer = new Demuxer(path.toString());
+      demuxer.setConsumer(p -> current = RefCounter.PACKET.ref(p));
+    }
+
+    /**
+     * @return Le prochain paquet, à libérer par l'appelant. <code>null</code> à la fin du fichier.
+     */
+    AVPacket next() {
+      current = null;
+      while (current == null && demuxer.readPacket()) {
+        // Le consommateur référence le paquet lu.
+      }
+      return current;
+    }
+
+    AVStream getStream() {
+      return demuxer.getFormatCtx().streams(0);
+    }
+
+    @Override
+    public void close() {
+      demuxer.close();
+    }
+  }
+
+  private final String inputFile;
+  private final String outputFile;
+  private final String format;
+  private final VideoParameters videoParams;
+
+  private AudioParameters audioParams;
+  private SWSInterpolation scalingMethod = SWSInterpolation.DEFAULT;
+  private int nbSegments = Runtime.getRuntime().availableProcessors();
+  private ExecutorService executor;
+  private Path tmpDirectory;
+
+  /**
+   * @param inputFile
+   *          Le fichier à transcoder.
+   * @param outputFile
+   *          Le fichier à écrire.
+   * @param format
+   *          Le format du conteneur de sortie (par exemple "matroska").
+   * @param videoParams
+   *          Les paramètres d'encodage vidéo.
+   */
+  public SegmentTranscoder(final String inputFile, final String outputFile, final String format,
+      final VideoParameters videoParams) {
+    this.inputFile = inputFile;
+    this.outputFile = outputFile;
+    this.format = format;
+    this.videoParams = videoParams;
+  }
+
+  /**
+   * @param nbSegments
+   *          Le nombre de segments à transcoder en parallèle. Par défaut, le nombre de coeurs de la machine.
+   * @return Cette instance.
+   */
+  public SegmentTranscoder withSegments(final int nbSegments) {
+    if (nbSegments <= 0) {
+      throw new IllegalArgumentException("Le nombre de segments doit être positif : " + nbSegments);
+    }
+    this.nbSegments = nbSegments;
+    return this;
+  }
+
+  /**
+   * @param audioParams
+   *          Les paramètres d'encodage audio. Si <code>null</code> (par défaut), le flux audio n'est pas transcodé.
+   * @return Cette instance.
+   */
+  public SegmentTranscoder withAudio(final AudioParameters audioParams) {
+    this.audioParams = audioParams;
+    return this;
+  }
+
+  /**
+   * @param scalingMethod
+   *          La méthode d'interpolation utilisée pour redimensionner les images.
+   * @return Cette instance.
+   */
+  public SegmentTranscoder withScalingMethod(final SWSInterpolation scalingMethod) {
+    this.scalingMethod = scalingMethod;
+    return this;
+  }
+
+  /**
+   * @param executor
+   *          Le pool de threads sur lequel transcoder les segments. Par défaut, un pool est construit pour la durée du
+   *          transcodage.
+   * @return Cette instance.
+   */
+  public SegmentTranscoder withExecutor(final ExecutorService executor) {
+    this.executor = executor;
+    return this;
+  }
+
+  /**
+   * @param tmpDirectory
+   *          Le dossier dans lequel écrire les segments temporaires. Par défaut, le dossier temporaire du système.
+   * @return Cette instance.
+   */
+  public SegmentTranscoder withTempDirectory(final Path tmpDirectory) {
+    this.tmpDirectory = tmpDirectory;
+    return this;
+  }
+
+  /**
+   * Lance le transcodage.
+   *
+   * @return Le résultat du transcodage.
+   * @throws IOException
+   *           Si les fichiers temporaires ne peuvent pas être gérés.
+   * @throws FFmpegException
+   *           Si le transcodage d'un segment échoue.
+   */
+  public Result transcode() throws IOException {
+    final long startTime = System.currentTimeMillis();
+
+    final KeyframeIndex index = KeyframeIndex.scan(inputFile);
+    final List<Long> starts = index.split(nbSegments);
+    if (starts.isEmpty()) {
+      throw new FFmpegException("Aucune image clé n'a été trouvée dans le fichier " + inputFile);
+    }
+    LOG.info("Transcodage de {} en {} segments.", inputFile, starts.size());
+
+    final Path tmp = tmpDirectory != null
+        ? Files.createTempDirectory(tmpDirectory, "segments")
+        : Files.createTempDirectory("segments");
+    final ExecutorService pool = executor != null
+        ? executor
+        : Executors.newFixedThreadPool(Math.min(starts.size() + 1, Runtime.getRuntime().availableProcessors()));
+
+    try {
+      final List<Path> segments = new ArrayList<>();
+      final List<Future<Long>> encoded = new ArrayList<>();
+      for (int i = 0; i < starts.size(); i++) {
+        final long start = starts.get(i);
+        final long end = i + 1 < starts.size() ? starts.get(i + 1) : Long.MAX_VALUE;
+        final Path segment = tmp.resolve("segment-" + i + TMP_EXTENSION);
+        segments.add(segment);
+        encoded.add(pool.submit(() -> encodeSegment(index.getStreamIndex(), start, end, segment)));
+      }
+
+      Future<Long> audio = null;
+      final Path audioPath = tmp.resolve("audio" + TMP_EXTENSION);
+      if (audioParams != null && hasAudio()) {
+        audio = pool.submit(() -> encodeAudio(audioPath));
+      }
+
+      long encodedFrames = 0;
+      for (final Future<Long> f : encoded) {
+        encodedFrames += await(f);
+      }
+      if (audio != null) {
+        await(audio);
+      }
+
+      final ContinuityCheck continuity = new ContinuityCheck();
+      final long writtenFrames = concat(segments, audio != null ? audioPath : null, continuity);
+      final Result result = new Result(starts.size(), index.getFrameCount(), encodedFrames, writtenFrames,
+          continuity.discontinuities, System.currentTimeMillis() - startTime);
+      if (result.isComplete()) {
+        LOG.info("Transcodage par segments terminé : {}", result);
+      } else {
+        LOG.error("Transcodage par segments incomplet : {}", result);
+      }
+      return result;
+    } finally {
+      if (executor == null) {
+        pool.shutdownNow();
+      }
+      deleteRecursively(tmp);
+    }
+  }
+
+  /**
+   * Transcode un segment vidéo dans un fichier temporaire.
+   *
+   * @param streamIndex
+   *          L'index du flux vidéo.
+   * @param start
+   *          Le timestamp de l'image clé de début du segment (inclus).
+   * @param end
+   *          Le timestamp de l'image clé de fin du segment (exclus).
+   * @param segment
+   *          Le fichier temporaire à écrire.
+   * @return Le nombre d'images encodées.
+   */
+  private long encodeSegment(final int streamIndex, final long start, final long end, final Path segment) {
+    LOG.debug("Transcodage du segment [{}, {}[ dans {}.", start, end, segment);
+
+    try (final Demuxer source = new Demuxer(inputFile);
+        final Muxer destination = new Muxer(segment.toString(), TMP_FORMAT);
+        final VideoChain video = new VideoChain(source.openVideoDecoder(null), videoParams, scalingMethod, null,
+            destination)) {
+      final VideoDecoder decoder = video.getDecoder();
+      final SegmentFilter filter = new SegmentFilter(start, end);
+      decoder.sendTo(filter);
+      video.connect(filter);
+      // Le format temporaire conserve la base de temps des paquets : ils y sont écrits sans perte de précision.
+      video.keepTimebase();
+      destination.writeHeaders();
+      video.start();
+
+      // Le segment est lu jusqu'à la deuxième image clé suivant sa fin : le GOP suivant peut contenir des B-frames
+      // affichées avant la fin du segment.
+      final int[] keyframesAfterEnd = { 0 };
+      source.setConsumer(packet -> {
+        if (!decoder.isAddressedBy(packet)) {
+          return;
+        }
+        if ((packet.flags() & avcodec.AV_PKT_FLAG_KEY) != 0 && packet.pts() != avutil.AV_NOPTS_VALUE
+            && packet.pts() >= end) {
+          keyframesAfterEnd[0]++;
+        }
+        if (keyframesAfterEnd[0] < 2) {
+          decoder.accept(packet);
+        }
+      });
+
+      source.seek(streamIndex, start, AVSeekFlag.AVSEEK_FLAG_BACKWARD);
+      while (keyframesAfterEnd[0] < 2 && source.readPacket()) {
+        // Les paquets sont décodés au fil de la lecture.
+      }
+      video.drain();
+      destination.writeTrailer();
+
+      LOG.debug("Segment [{}, {}[ transcodé : {} images.", start, end, video.getFrames());
+      return video.getFrames();
+    }
+  }
+
+  /**
+   * Transcode le flux audio complet dans un fichier temporaire.
+   *
+   * @param path
+   *          Le fichier temporaire à écrire.
+   * @return Le nombre de frames audio décodées.
+   */
+  private long encodeAudio(final Path path) {
+    try (final Demuxer source = new Demuxer(inputFile);
+        final Muxer destination = new Muxer(path.toString(), TMP_FORMAT);
+        final AudioChain audio = new AudioChain(source.openAudioDecoder(null), audioParams, null, destination)) {
+      audio.keepTimebase();
+      destination.writeHeaders();
+      audio.start();
+
+      source.read();
+      audio.drain();
+      destination.writeTrailer();
+      return audio.getFrames();
+    }
+  }
+
+  /**
+   * Recopie les segments vidéo, dans l'ordre, et le flux audio dans le fichier de sortie.
+   *
+   * @param segments
+   *          Les segments vidéo.
+   * @param audioPath
+   *          Le flux audio. Peut être <code>null</code>.
+   * @param continuity
+   *          La vérification de continuité des timestamps vidéo entre segments.
+   * @return Le nombre d'images vidéo écrites.
+   */
+  private long concat(final List<Path> segments, final Path audioPath, final ContinuityCheck continuity) {
+    LOG.debug("Concaténation de {} segments dans {}.", segments.size(), outputFile);
+
+    long written = 0;
+    int segment = 0;
+    PacketSource video = new PacketSource(segments.get(segment));
+    final PacketSource audio = audioPath != null ? new PacketSource(audioPath) : null;
+
+    try (final Muxer destination = new Muxer(outputFile, format)) {
+      final AVStream videoStream = destination.addStream(video.getStream());
+      final AVStream audioStream = audio != null ? destination.addStream(audio.getStream()) : null;
+      destination.writeHeaders();
+
+      final long[] lastDts = { Long.MIN_VALUE, Long.MIN_VALUE };
+      continuity.nextSegment();
+      AVPacket v = video.next();
+      AVPacket a = audio != null ? audio.next() : null;
+      while (v != null || a != null) {
+        if (v != null && (a == null || avutil.av_compare_ts(v.dts(), video.getStream().time_base(),
+            a.dts(), audio.getStream().time_base()) <= 0)) {
+          continuity.accept(v.pts());
+          write(destination, v, video.getStream().time_base(), videoStream, lastDts);
+          written++;
+          v = video.next();
+          // Passe au segment suivant.
+          while (v == null && ++segment < segments.size()) {
+            video.close();
+            video = new PacketSource(segments.get(segment));
+            continuity.nextSegment();
+            v = video.next();
+          }
+        } else {
+          write(destination, a, audio.getStream().time_base(), audioStream, lastDts);
+          a = audio.next();
+        }
+      }
+      destination.writeTrailer();
+    } finally {
+      video.close();
+      if (audio != null) {
+        audio.close();
+      }
+    }
+    return written;
+  }
+
+  /**
+   * Ecrit un paquet lu dans un fichier temporaire dans le conteneur de sortie, puis le libère.
+   *
+   * @param destination
+   *          Le conteneur de sortie.
+   * @param packet
+   *          Le paquet à écrire.
+   * @param sourceTimebase
+   *          La base de temps du flux dont est issu le paquet.
+   * @param stream
+   *          Le flux de sortie.
+   * @param lastDts
+   *          Le dernier DTS écrit pour chaque flux de sortie.
+   * @throws FFmpegException
+   *           Si le DTS du paquet ne suit pas celui du paquet précédent du même flux.
+   */
+  private static void write(final Muxer destination, final AVPacket packet, final AVRational sourceTimebase,
+      final AVStream stream, final long[] lastDts) {
+    try {
+      avcodec.av_packet_rescale_ts(packet, sourceTimebase, stream.time_base());
+      packet.stream_index(stream.index());
+      packet.pos(-1);
+
+      // Les timestamps des segments étant conservés sans arrondi, les DTS restent croissants aux jonctions.
+      final int i = stream.index();
+      if (packet.dts() != avutil.AV_NOPTS_VALUE) {
+        if (packet.dts() <= lastDts[i]) {
+          throw new FFmpegException("DTS non croissant dans le flux " + i + " : " + packet.dts() + " après "
+              + lastDts[i] + ".");
+        }
+        lastDts[i] = packet.dts();
+      }
+      destination.accept(packet);
+    } finally {
+      RefCounter.PACKET.release(packet);
+    }
+  }
+
+  /**
+   * @return <code>true</code> si le fichier d'entrée contient un flux audio.
+   */
+  private boolean hasAudio() {
+    try (final Demuxer source = new Demuxer(inputFile)) {
+      return avformat.av_find_best_stream(source.getFormatCtx(), avutil.AVMEDIA_TYPE_AUDIO, -1, -1,
+          (AVCodec) null, 0) >= 0;
+    }
+  }
+
+  /**
+   * Attend la fin d'une tâche, et propage son erreur éventuelle.
+   */
+  private static long await(final Future<Long> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new FFmpegException("Interruption pendant le transcodage par segments", e);
+    } catch (ExecutionException e) {
+      throw new FFmpegException("Echec du transcodage d'un segment", e.getCause());
+    }
+  }
+
+  /**
+   * Supprime un dossier et son contenu.
+   */
+  private static void deleteRecursively(final Path directory) {
+    try (final Stream<Path> files = Files.walk(directory)) {
+      files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+    } catch (IOException e) {
+      LOG.warn("Impossible de supprimer le dossier temporaire {}", directory, e);
+    }
+  }
+}
@@ -0,0 +1,48 @@
+/**
+ *
+ */
+package fr.syrdek.ffmpeg.libav.java.transcode;
+
+import fr.syrdek.ffmpeg.libav.java.FFmpegException;
+
+/**
+ * Classe statique de fermeture des étapes d'une chaine de transcodage.
+ *
+ * @author t0087865
+ */
+final class Stages {
+  /**
+   * Classe statique, pas de constructeur.
+   */
+  private Stages() {
+    super();
+  }
+
+  /**
+   * Ferme les étapes données dans l'ordre, y compris si l'une d'elles échoue : la première erreur est relancée une fois
+   * toutes les étapes fermées, les suivantes lui sont attachées (voir {@link Throwable#getSuppressed()}).
+   *
+   * @param stages
+   *          Les étapes à fermer. Les étapes <code>null</code> sont ignorées.
+   */
+  static void closeAll(final AutoCloseable... stages) {
+    RuntimeException error = null;
+    for (final AutoCloseable stage : stages) {
+      if (stage == null) {
+        continue;
+      }
+      try {
+        stage.close();
+      } catch (Exception e) {
+        if (error == null) {
+          error = e instanceof RuntimeException ? (RuntimeException) e : new FFmpegException(e);
+        } else {
+          error.addSuppressed(e);
+        }
+      }
+    }
+    if (error != null) {
+      throw error;
+    }
+  }
+}
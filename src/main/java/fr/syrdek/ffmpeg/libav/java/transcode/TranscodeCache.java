@@ -0,0 +1,604 @@
+/**
+ *
+ */
+package fr.syrdek.ffmpeg.libav.java.transcode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.bytedeco.ffmpeg.global.avcodec;
+import org.bytedeco.ffmpeg.global.avformat;
+import org.bytedeco.ffmpeg.global.avutil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fr.syrdek.ffmpeg.libav.java.io.stream.AudioParameters;
+import fr.syrdek.ffmpeg.libav.java.io.stream.ThreadingParameters;
+import fr.syrdek.ffmpeg.libav.java.io.stream.VideoParameters;
+
+/**
+ * Cache disque des fichiers produits par les transcodages.<br>
+ * Un fichier transcodé est identifié par une empreinte :
+ * <ul>
+ * <li>du contenu du fichier à transcoder (et non de son chemin) ;</li>
+ * <li>des paramètres d'encodage vidéo et audio, y compris leur parallélisation (le découpage en slices et le nombre
+ * de threads peuvent changer le flux produit par un encodeur), du format du conteneur et de la méthode
+ * d'interpolation ;</li>
+ * <li>de la version de ffmpeg, et de la version de la chaine de transcodage de cette librairie, incrémentée à chaque
+ * modification qui change les fichiers produits.</li>
+ * </ul>
+ * Les entrées sont publiées par renommage atomique d'un fichier temporaire : une entrée visible est toujours complète,
+ * y compris si plusieurs processus partagent le répertoire. Le cache est borné en taille : les entrées les moins
+ * récemment utilisées sont supprimées au-delà. L'ordre d'utilisation est conservé dans la date de modification des
+ * fichiers, et survit donc au redémarrage.<br>
+ * Si plusieurs processus partagent le répertoire, la taille maximale et l'ordre d'utilisation restent propres à
+ * chacun. Un processus ne connait que les entrées présentes à son ouverture et celles qu'il a écrites : le répertoire
+ * peut donc dépasser la taille maximale. Les fichiers temporaires et les données sans description ne sont supprimés à l'ouverture
+ * que s'ils sont assez anciens pour ne plus appartenir à une écriture en cours.<br>
+ * Les erreurs d'accès au cache ne font jamais échouer un transcodage : elles sont tracées, et l'entrée est ignorée.
+ *
+ * @author t0087865
+ */
+public class TranscodeCache {
+  private static final Logger LOG = LoggerFactory.getLogger(TranscodeCache.class);
+
+  // Version du format des entrées, à incrémenter si l'empreinte ou les fichiers changent.
+  private static final int LAYOUT_VERSION = 2;
+  // Version de la chaine de transcodage, à incrémenter si une modification change les fichiers produits pour un même
+  // transcodage (timestamps, paramètres d'encodage par défaut, ...). La version du jar n'est pas utilisée : elle est
+  // absente hors d'un jar packagé, et change à chaque livraison même si les fichiers produits sont identiques.
+  private static final int OUTPUT_VERSION = 3;
+
+  private static final String DATA_SUFFIX = ".data";
+  private static final String META_SUFFIX = ".meta";
+  private static final String TMP_SUFFIX = ".tmp";
+
+  private static final String META_VIDEO_FRAMES = "videoFrames";
+  private static final String META_AUDIO_FRAMES = "audioFrames";
+
+  // Age à partir duquel un fichier temporaire ou des données sans description sont considérés comme abandonnés, et non
+  // comme une écriture en cours d'un autre processus.
+  private static final long STALE_FILE_AGE_MILLIS = 60 * 60 * 1000;
+
+  // Taille des lectures lors du calcul de l'empreinte d'un fichier.
+  private static final int HASH_BUFFER_SIZE = 1024 * 1024;
+  // Nombre d'empreintes de fichiers source conservées en mémoire.
+  private static final int MAX_HASHED_INPUTS = 1024;
+
+  /**
+   * Entrée du cache.
+   */
+  private static final class Entry {
+    private final long size;
+    private final long videoFrames;
+    private final long audioFrames;
+
+    private Entry(final long size, final long videoFrames, final long audioFrames) {
+      this.size = size;
+      this.videoFrames = videoFrames;
+      this.audioFrames = audioFrames;
+    }
+  }
+
+  private final Path directory;
+  private final long maxBytes;
+  // Entrées, de la moins récemment utilisée à la plus récente.
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  // Empreintes des fichiers source, par chemin, taille et date de modification.
+  private final LinkedHashMap<String, String> inputHashes = new LinkedHashMap<String, String>(16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<String, String> eldest) {
+      return size() > MAX_HASHED_INPUTS;
+    }
+  };
+  private long totalBytes = 0;
+
+  // Statistiques.
+  private long hits = 0;
+  private long misses = 0;
+  private long stores = 0;
+  private long evictions = 0;
+  private long bytesServed = 0;
+
+  /**
+   * Ouvre un cache. Les entrées déjà présentes dans le répertoire sont reprises.
+   *
+   * @param directory
+   *          Le répertoire du cache. Créé s'il n'existe pas.
+   * @param maxBytes
+   *          La taille maximale des fichiers conservés, en octets.
+   * @throws IOException
+   *           Si le répertoire ne peut pas être créé ou lu.
+   */
+  public TranscodeCache(final Path directory, final long maxBytes) throws IOException {
+    if (maxBytes <= 0) {
+      throw new IllegalArgumentException("La taille du cache doit être positive : " + maxBytes);
+    }
+    this.directory = Files.createDirectories(directory);
+    this.maxBytes = maxBytes;
+    load();
+  }
+
+  /**
+   * Calcule l'empreinte d'un transcodage.
+   *
+   * @param job
+   *          Le transcodage.
+   * @return L'empreinte, ou <code>null</code> si le fichier à transcoder ne peut pas être lu (URL, fichier absent,
+   *         ...) : le transcodage n'est alors pas mis en cache.
+   */
+  public String keyOf(final TranscodeJob job) {
+    final String inputHash;
+    try {
+      inputHash = hashInput(Paths.get(job.getInputFile()));
+    } catch (IOException | RuntimeException e) {
+      LOG.debug("Le fichier {} ne peut pas être mis en cache : {}", job.getInputFile(), e.toString());
+      return null;
+    }
+    final StringBuilder desc = new StringBuilder();
+    desc.append("layout=").append(LAYOUT_VERSION);
+    desc.append("\nffmpeg=").append(avutil.av_version_info().getString());
+    desc.append(",").append(avformat.avformat_version());
+    desc.append(",").append(avcodec.avcodec_version());
+    desc.append(",").append(avutil.avutil_version());
+    desc.append("\noutput=").append(OUTPUT_VERSION);
+    desc.append("\ninput=").append(inputHash);
+    desc.append("\nformat=").append(job.getFormat());
+    desc.append("\nscaling=").append(job.getScalingMethod());
+    desc.append("\nrange=").append(job.getStart()).append("-").append(job.getEnd());
+    desc.append("\ncopy=").append(job.isStreamCopy());
+    desc.append("\nvideo=").append(describe(job.getVideoParams()));
+    desc.append("\naudio=").append(describe(job.getAudioParams()));
+    return hex(sha256().digest(desc.toString().getBytes(StandardCharsets.UTF_8)));
+  }
+
+  /**
+   * Ecrit le fichier correspondant à un transcodage, s'il est en cache.
+   *
+   * @param key
+   *          L'empreinte du transcodage.
+   * @param job
+   *          Le transcodage, dont le fichier à écrire reçoit une copie de l'entrée.
+   * @return Le résultat du transcodage mis en cache. <code>null</code> si le transcodage n'est pas en cache.
+   */
+  public TranscodeResult restore(final String key, final TranscodeJob job) {
+    final long start = System.currentTimeMillis();
+    final Entry entry;
+    synchronized (this) {
+      entry = entries.get(key);
+      if (entry == null) {
+        misses++;
+        return null;
+      }
+    }
+    try {
+      final Path data = dataFile(key);
+      Files.setLastModifiedTime(data, FileTime.fromMillis(System.currentTimeMillis()));
+      copy(data, Paths.get(job.getOutputFile()));
+    } catch (NoSuchFileException e) {
+      // Entrée supprimée entre temps (éviction, autre processus, ...).
+      LOG.debug("Entrée {} supprimée du cache.", key);
+      forget(key, true);
+      return null;
+    } catch (IOException e) {
+      LOG.warn("Impossible de lire l'entrée {} du cache : {}", key, e.toString());
+      forget(key, true);
+      return null;
+    }
+    synchronized (this) {
+      hits++;
+      bytesServed += entry.size;
+    }
+    final TranscodeResult result = TranscodeResult.cached(job, System.currentTimeMillis() - start, entry.videoFrames,
+        entry.audioFrames);
+    LOG.debug("Transcodage servi depuis le cache : {}", result);
+    return result;
+  }
+
+  /**
+   * @param key
+   *          L'empreinte d'un transcodage.
+   * @return Le fichier en cache, à ne pas modifier. <code>null</code> si le transcodage n'est pas en cache.
+   */
+  public Path get(final String key) {
+    synchronized (this) {
+      final Entry entry = entries.get(key);
+      if (entry == null) {
+        misses++;
+        return null;
+      }
+      hits++;
+      bytesServed += entry.size;
+    }
+    final Path data = dataFile(key);
+    try {
+      Files.setLastModifiedTime(data, FileTime.fromMillis(System.currentTimeMillis()));
+    } catch (IOException e) {
+      LOG.debug("Impossible de dater l'entrée {} : {}", key, e.toString());
+    }
+    return data;
+  }
+
+  /**
+   * Met en cache le fichier produit par un transcodage réussi.
+   *
+   * @param key
+   *          L'empreinte du transcodage.
+   * @param result
+   *          Le résultat du transcodage. Son fichier de sortie doit être complet et fermé.
+   */
+  public void store(final String key, final TranscodeResult result) {
+    if (!result.isSuccess()) {
+      return;
+    }
+    final Path output = Paths.get(result.getJob().getOutputFile());
+    Path tmpData = null;
+    Path tmpMeta = null;
+    try {
+      final long size = Files.size(output);
+      if (size > maxBytes) {
+        LOG.debug("Fichier {} trop volumineux pour le cache ({} octets).", output, size);
+        return;
+      }
+      tmpData = Files.createTempFile(directory, key, TMP_SUFFIX);
+      copy(output, tmpData);
+
+      final Properties meta = new Properties();
+      meta.setProperty(META_VIDEO_FRAMES, String.valueOf(result.getVideoFrames()));
+      meta.setProperty(META_AUDIO_FRAMES, String.valueOf(result.getAudioFrames()));
+      tmpMeta = Files.createTempFile(directory, key, TMP_SUFFIX);
+      try (final OutputStream out = Files.newOutputStream(tmpMeta)) {
+        meta.store(out, null);
+      }
+
+      // Les données sont publiées avant la description : une description visible désigne toujours des données
+      // complètes.
+      Files.move(tmpData, dataFile(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      Files.move(tmpMeta, metaFile(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+      synchronized (this) {
+        final Entry previous = entries.put(key, new Entry(size, result.getVideoFrames(), result.getAudioFrames()));
+        if (previous != null) {
+          totalBytes -= previous.size;
+        }
+        totalBytes += size;
+        stores++;
+      }
+      LOG.debug("Transcodage {} mis en cache ({} octets).", key, size);
+      evict();
+    } catch (IOException e) {
+      LOG.warn("Impossible de mettre en cache le fichier {} : {}", output, e.toString());
+    } finally {
+      deleteQuietly(tmpData);
+      deleteQuietly(tmpMeta);
+    }
+  }
+
+  /**
+   * Supprime une entrée du cache.
+   *
+   * @param key
+   *          L'empreinte du transcodage.
+   */
+  public void invalidate(final String key) {
+    forget(key, false);
+  }
+
+  /**
+   * @return Le nombre de transcodages servis depuis le cache.
+   */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /**
+   * @return Le nombre de transcodages absents du cache.
+   */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /**
+   * @return La proportion de transcodages servis depuis le cache, entre 0 et 1.
+   */
+  public synchronized double getHitRate() {
+    final long total = hits + misses;
+    return total == 0 ? 0 : (double) hits / total;
+  }
+
+  /**
+   * @return Le nombre de fichiers mis en cache.
+   */
+  public synchronized long getStores() {
+    return stores;
+  }
+
+  /**
+   * @return Le nombre d'entrées supprimées pour respecter la taille maximale.
+   */
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  /**
+   * @return Le nombre d'octets servis depuis le cache.
+   */
+  public synchronized long getBytesServed() {
+    return bytesServed;
+  }
+
+  /**
+   * @return La taille des fichiers en cache, en octets.
+   */
+  public synchronized long getSize() {
+    return totalBytes;
+  }
+
+  /**
+   * @return Le nombre d'entrées du cache.
+   */
+  public synchronized int getEntryCount() {
+    return entries.size();
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "TranscodeCache [" + directory + ", entries=" + entries.size() + ", size=" + totalBytes + "/" + maxBytes
+        + ", hits=" + hits + ", misses=" + misses + ", stores=" + stores + ", evictions=" + evictions + "]";
+  }
+
+  /**
+   * Reprend les entrées présentes dans le répertoire, et supprime les fichiers temporaires et incomplets abandonnés.
+   */
+  private void load() throws IOException {
+    final long staleBefore = System.currentTimeMillis() - STALE_FILE_AGE_MILLIS;
+    final List<Path> metas = new ArrayList<>();
+    final List<Path> datas = new ArrayList<>();
+    try (final DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+      for (final Path file : files) {
+        final String name = file.getFileName().toString();
+        if (name.endsWith(META_SUFFIX)) {
+          metas.add(file);
+        } else if (name.endsWith(DATA_SUFFIX)) {
+          datas.add(file);
+        } else if (name.endsWith(TMP_SUFFIX) && isStale(file, staleBefore)) {
+          // Fichier temporaire d'une écriture interrompue.
+          deleteQuietly(file);
+        }
+      }
+    }
+    for (final Path data : datas) {
+      // Données sans description : publication interrompue entre les deux renommages, ou éviction interrompue entre
+      // les deux suppressions. Elles ne seraient jamais relues, ni comptées dans la taille du cache. Des données
+      // récentes peuvent appartenir à une publication en cours d'un autre processus : elles sont conservées.
+      if (!Files.exists(metaFile(keyOfFile(data))) && isStale(data, staleBefore)) {
+        LOG.debug("Données orphelines {} supprimées du cache.", data);
+        deleteQuietly(data);
+      }
+    }
+
+    // Reprend les entrées de la moins récemment utilisée à la plus récente.
+    final Map<Path, Long> usage = new LinkedHashMap<>();
+    for (final Path meta : metas) {
+      final Path data = dataFile(keyOfFile(meta));
+      usage.put(meta, Files.exists(data) ? Files.getLastModifiedTime(data).toMillis() : -1l);
+    }
+    metas.sort(Comparator.comparing(usage::get));
+
+    for (final Path meta : metas) {
+      final String key = keyOfFile(meta);
+      final Path data = dataFile(key);
+      try (final InputStream in = Files.newInputStream(meta)) {
+        final Properties props = new Properties();
+        props.load(in);
+        final long size = Files.size(data);
+        entries.put(key, new Entry(size,
+            Long.parseLong(props.getProperty(META_VIDEO_FRAMES)),
+            Long.parseLong(props.getProperty(META_AUDIO_FRAMES))));
+        totalBytes += size;
+      } catch (IOException | RuntimeException e) {
+        LOG.warn("Entrée {} du cache illisible, elle est supprimée : {}", key, e.toString());
+        deleteQuietly(meta);
+        deleteQuietly(data);
+      }
+    }
+    LOG.debug("Cache de transcodage {} : {} entrées, {} octets.", directory, entries.size(), totalBytes);
+    evict();
+  }
+
+  /**
+   * @return <code>true</code> si le fichier n'a pas été modifié depuis la date donnée. <code>false</code> s'il a été
+   *         modifié depuis, ou s'il a déjà été supprimé.
+   */
+  private static boolean isStale(final Path file, final long staleBefore) {
+    try {
+      return Files.getLastModifiedTime(file).toMillis() < staleBefore;
+    } catch (IOException e) {
+      LOG.debug("Impossible de dater {} : {}", file, e.toString());
+      return false;
+    }
+  }
+
+  /**
+   * Supprime les entrées les moins récemment utilisées, tant que la taille maximale est dépassée.
+   */
+  private void evict() {
+    final List<String> evicted = new ArrayList<>();
+    synchronized (this) {
+      final Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+      while (totalBytes > maxBytes && it.hasNext()) {
+        final Map.Entry<String, Entry> eldest = it.next();
+        it.remove();
+        totalBytes -= eldest.getValue().size;
+        evictions++;
+        evicted.add(eldest.getKey());
+      }
+    }
+    for (final String key : evicted) {
+      // La description est supprimée en premier : l'entrée n'est plus visible pendant la suppression des données.
+      deleteQuietly(metaFile(key));
+      deleteQuietly(dataFile(key));
+      LOG.debug("Entrée {} supprimée du cache.", key);
+    }
+  }
+
+  /**
+   * Retire une entrée du cache et supprime ses fichiers.
+   */
+  private void forget(final String key, final boolean miss) {
+    synchronized (this) {
+      final Entry entry = entries.remove(key);
+      if (entry != null) {
+        totalBytes -= entry.size;
+      }
+      if (miss) {
+        misses++;
+      }
+    }
+    deleteQuietly(metaFile(key));
+    deleteQuietly(dataFile(key));
+  }
+
+  /**
+   * Calcule l'empreinte du contenu d'un fichier. L'empreinte est conservée en mémoire tant que le fichier n'est pas
+   * modifié.
+   */
+  private String hashInput(final Path input) throws IOException {
+    final Path path = input.toAbsolutePath();
+    final String id = path + ":" + Files.size(path) + ":" + Files.getLastModifiedTime(path).toMillis();
+    synchronized (this) {
+      final String hash = inputHashes.get(id);
+      if (hash != null) {
+        return hash;
+      }
+    }
+
+    final MessageDigest digest = sha256();
+    final ByteBuffer buffer = ByteBuffer.allocateDirect(HASH_BUFFER_SIZE);
+    try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      while (channel.read(buffer) >= 0) {
+        buffer.flip();
+        digest.update(buffer);
+        buffer.clear();
+      }
+    }
+    final String hash = hex(digest.digest());
+    synchronized (this) {
+      inputHashes.put(id, hash);
+    }
+    return hash;
+  }
+
+  /**
+   * Décrit les paramètres d'encodage vidéo qui déterminent le fichier produit.
+   */
+  private static String describe(final VideoParameters params) {
+    if (params == null) {
+      return "none";
+    }
+    return params.getCodec() + "," + params.getBitRate() + "," + params.getWidth() + "x" + params.getHeight() + ","
+        + params.getFrameRate() + "," + params.getPixFormat() + "," + describe(params.getThreading());
+  }
+
+  /**
+   * Décrit les paramètres d'encodage audio qui déterminent le fichier produit.
+   */
+  private static String describe(final AudioParameters params) {
+    if (params == null) {
+      return "none";
+    }
+    return params.getCodec() + "," + params.getBitRate() + "," + params.getChannels() + ","
+        + params.getChannelsLayout() + "," + params.getSampleRate() + "," + params.getSampleFormat() + ","
+        + describe(params.getThreading());
+  }
+
+  /**
+   * Décrit la parallélisation d'un encodeur : le nombre de threads et le découpage en slices peuvent changer le flux
+   * produit.
+   */
+  private static String describe(final ThreadingParameters threading) {
+    if (threading == null) {
+      return "threads=default";
+    }
+    return "threads=" + threading.getThreadCount() + "/" + threading.getThreadType();
+  }
+
+  /**
+   * Copie un fichier, via le noyau si possible.
+   */
+  private static void copy(final Path from, final Path to) throws IOException {
+    try (final FileChannel in = FileChannel.open(from, StandardOpenOption.READ);
+        final FileChannel out = FileChannel.open(to, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      final long size = in.size();
+      long position = 0;
+      while (position < size) {
+        position += in.transferTo(position, size - position, out);
+      }
+    }
+  }
+
+  private Path dataFile(final String key) {
+    return directory.resolve(key + DATA_SUFFIX);
+  }
+
+  private Path metaFile(final String key) {
+    return directory.resolve(key + META_SUFFIX);
+  }
+
+  private static String keyOfFile(final Path file) {
+    // L'empreinte est hexadécimale : le seul point du nom est celui du suffixe.
+    final String name = file.getFileName().toString();
+    return name.substring(0, name.lastIndexOf('.'));
+  }
+
+  private static void deleteQuietly(final Path file) {
+    if (file == null) {
+      return;
+    }
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      LOG.warn("Impossible de supprimer {} : {}", file, e.toString());
+    }
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String hex(final byte[] bytes) {
+    final StringBuilder sb = new StringBuilder(bytes.length * 2);
+    for (final byte b : bytes) {
+      sb.append(String.format("%02x", b));
+    }
+    return sb.toString();
+  }
+}
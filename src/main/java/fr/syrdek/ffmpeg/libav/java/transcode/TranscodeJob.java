@@ -0,0 +1,283 @@
+/**
+ *
+ */
+package fr.syrdek.ffmpeg.libav.java.transcode;
+
+import java.text.MessageFormat;
+
+import fr.syrdek.ffmpeg.libav.java.io.SWSInterpolation;
+import fr.syrdek.ffmpeg.libav.java.io.stream.AudioParameters;
+import fr.syrdek.ffmpeg.libav.java.io.stream.VideoParameters;
+
+/**
+ * Classe immuable décrivant un transcodage de fichier à réaliser.
+ *
+ * @author t0087865
+ */
+public class TranscodeJob {
+  private final String inputFile;
+  private final String outputFile;
+  private final String format;
+  private final VideoParameters videoParams;
+  private final AudioParameters audioParams;
+  private final SWSInterpolation scalingMethod;
+  private final long start;
+  private final long end;
+  private final boolean streamCopy;
+
+  /**
+   * Construit un nouveau TranscodeJob
+   *
+   * @param inputFile
+   *          Le fichier à transcoder.
+   * @param outputFile
+   *          Le fichier à écrire.
+   * @param format
+   *          Le format du conteneur de sortie.
+   * @param videoParams
+   *          Les paramètres d'encodage vidéo.
+   * @param audioParams
+   *          Les paramètres d'encodage audio.
+   * @param scalingMethod
+   *          La méthode d'interpolation utilisée pour redimensionner les images.
+   * @param start
+   *          Le début de l'intervalle à transcoder, en microsecondes depuis le début du fichier.
+   * @param end
+   *          La fin de l'intervalle à transcoder, en microsecondes depuis le début du fichier.
+   * @param streamCopy
+   *          <code>true</code> pour recopier sans les transcoder les flux déjà conformes aux paramètres d'encodage.
+   */
+  private TranscodeJob(final String inputFile, final String outputFile, final String format,
+      final VideoParameters videoParams, final AudioParameters audioParams, final SWSInterpolation scalingMethod,
+      final long start, final long end, final boolean streamCopy) {
+    this.inputFile = inputFile;
+    this.outputFile = outputFile;
+    this.format = format;
+    this.videoParams = videoParams;
+    this.audioParams = audioParams;
+    this.scalingMethod = scalingMethod;
+    this.start = start;
+    this.end = end;
+    this.streamCopy = streamCopy;
+  }
+
+  /**
+   * @return Le fichier à transcoder.
+   */
+  public String getInputFile() {
+    return inputFile;
+  }
+
+  /**
+   * @return Le fichier à écrire.
+   */
+  public String getOutputFile() {
+    return outputFile;
+  }
+
+  /**
+   * @return Le format du conteneur de sortie.
+   */
+  public String getFormat() {
+    return format;
+  }
+
+  /**
+   * @return Les paramètres d'encodage vidéo. <code>null</code> si le flux vidéo est ignoré.
+   */
+  public VideoParameters getVideoParams() {
+    return videoParams;
+  }
+
+  /**
+   * @return Les paramètres d'encodage audio. <code>null</code> si le flux audio est ignoré.
+   */
+  public AudioParameters getAudioParams() {
+    return audioParams;
+  }
+
+  /**
+   * @return La méthode d'interpolation utilisée pour redimensionner les images.
+   */
+  public SWSInterpolation getScalingMethod() {
+    return scalingMethod;
+  }
+
+  /**
+   * @return Le début de l'intervalle à transcoder, en microsecondes depuis le début du fichier.
+   */
+  public long getStart() {
+    return start;
+  }
+
+  /**
+   * @return La fin de l'intervalle à transcoder (exclue), en microsecondes depuis le début du fichier.
+   *         <code>Long.MAX_VALUE</code> pour transcoder jusqu'à la fin du fichier.
+   */
+  public long getEnd() {
+    return end;
+  }
+
+  /**
+   * @return <code>true</code> si seul un intervalle du fichier est transcodé.
+   */
+  public boolean isRange() {
+    return start != 0 || end != Long.MAX_VALUE;
+  }
+
+  /**
+   * @return <code>true</code> si les flux déjà conformes aux paramètres d'encodage sont recopiés sans être transcodés.
+   */
+  public boolean isStreamCopy() {
+    return streamCopy;
+  }
+
+  /**
+   * Permet la construction de TranscodeJob.
+   */
+  public static final class Builder {
+    private String inputFile;
+    private String outputFile;
+    private String format = "matroska";
+    private VideoParameters videoParams;
+    private AudioParameters audioParams;
+    private SWSInterpolation scalingMethod = SWSInterpolation.DEFAULT;
+    private long start = 0;
+    private long end = Long.MAX_VALUE;
+    private boolean streamCopy = false;
+
+    /**
+     * @param inputFile
+     *          Le fichier à transcoder.
+     * @return Cette instance.
+     */
+    public final Builder withInput(final String inputFile) {
+      this.inputFile = inputFile;
+      return this;
+    }
+
+    /**
+     * @param outputFile
+     *          Le fichier à écrire.
+     * @return Cette instance.
+     */
+    public final Builder withOutput(final String outputFile) {
+      this.outputFile = outputFile;
+      return this;
+    }
+
+    /**
+     * @param format
+     *          Le format du conteneur de sortie. "matroska" par défaut.
+     * @return Cette instance.
+     */
+    public final Builder withFormat(final String format) {
+      this.format = format;
+      return this;
+    }
+
+    /**
+     * @param videoParams
+     *          Les paramètres d'encodage vidéo. Si <code>null</code>, le flux vidéo est ignoré.
+     * @return Cette instance.
+     */
+    public final Builder withVideo(final VideoParameters videoParams) {
+      this.videoParams = videoParams;
+      return this;
+    }
+
+    /**
+     * @param audioParams
+     *          Les paramètres d'encodage audio. Si <code>null</code>, le flux audio est ignoré.
+     * @return Cette instance.
+     */
+    public final Builder withAudio(final AudioParameters audioParams) {
+      this.audioParams = audioParams;
+      return this;
+    }
+
+    /**
+     * @param scalingMethod
+     *          La méthode d'interpolation utilisée pour redimensionner les images.
+     * @return Cette instance.
+     */
+    public final Builder withScalingMethod(final SWSInterpolation scalingMethod) {
+      this.scalingMethod = scalingMethod;
+      return this;
+    }
+
+    /**
+     * Limite le transcodage à un intervalle du fichier (extrait, aperçu, ...). Seules les données situées entre l'image
+     * clé précédant le début et la fin de l'intervalle sont lues.
+     *
+     * @param start
+     *          Le début de l'intervalle, en microsecondes depuis le début du fichier. 0 par défaut.
+     * @param end
+     *          La fin de l'intervalle (exclue), en microsecondes depuis le début du fichier.
+     *          <code>Long.MAX_VALUE</code> par défaut, pour transcoder jusqu'à la fin du fichier.
+     * @return Cette instance.
+     */
+    public final Builder withRange(final long start, final long end) {
+      this.start = start;
+      this.end = end;
+      return this;
+    }
+
+    /**
+     * @param streamCopy
+     *          <code>true</code> pour recopier sans les transcoder les flux dont le codec et les paramètres sont déjà
+     *          ceux demandés. <code>false</code> (par défaut) pour toujours les transcoder.<br>
+     *          Un flux avec images B est transcodé si le format écrit exige des DTS strictement croissants (mp4,
+     *          ...).<br>
+     *          Avec un intervalle (voir {@link #withRange(long, long)}), un flux recopié commence à l'image clé
+     *          précédant le début de l'intervalle : ses premiers paquets ont des timestamps négatifs, que le conteneur
+     *          décale ou conserve selon son format (option <code>avoid_negative_ts</code>).
+     * @return Cette instance.
+     */
+    public final Builder withStreamCopy(final boolean streamCopy) {
+      this.streamCopy = streamCopy;
+      return this;
+    }
+
+    /**
+     * @return Le TranscodeJob construit a partir des paramètres donnés.
+     */
+    public final TranscodeJob build() {
+      validate();
+      return new TranscodeJob(inputFile, outputFile, format, videoParams, audioParams, scalingMethod, start, end,
+          streamCopy);
+    }
+
+    /**
+     * Vérifie que les paramètres sont complets.
+     */
+    public void validate() {
+      if (inputFile == null) {
+        throw new IllegalArgumentException("Le fichier à transcoder doit être précisé.");
+      }
+      if (outputFile == null) {
+        throw new IllegalArgumentException("Le fichier à écrire doit être précisé.");
+      }
+      if (format == null) {
+        throw new IllegalArgumentException("Le format du conteneur de sortie doit être précisé.");
+      }
+      if (videoParams == null && audioParams == null) {
+        throw new IllegalArgumentException("Au moins un flux audio ou vidéo doit être transcodé.");
+      }
+      if (start < 0 || end <= start) {
+        throw new IllegalArgumentException("Intervalle à transcoder invalide : [" + start + ", " + end + "[");
+      }
+    }
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return MessageFormat.format("TranscodeJob [{0} -> {1} ({2}), video={3}, audio={4}]",
+        inputFile, outputFile, format, videoParams, audioParams);
+  }
+}
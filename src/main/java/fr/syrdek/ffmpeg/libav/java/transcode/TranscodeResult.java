@@ -0,0 +1,174 @@
+/**
+ *
+ */
+package fr.syrdek.ffmpeg.libav.java.transcode;
+
+import java.text.MessageFormat;
+
+/**
+ * Résultat d'un {@link TranscodeJob}.
+ *
+ * @author t0087865
+ */
+public class TranscodeResult {
+  /**
+   * Etat final d'un transcodage.
+   */
+  public enum Status {
+    /**
+     * Le fichier a été entièrement transcodé.
+     */
+    SUCCESS,
+    /**
+     * Le transcodage a échoué. L'erreur est disponible via {@link TranscodeResult#getError()}.
+     */
+    FAILED,
+    /**
+     * Le transcodage a été annulé avant sa fin.
+     */
+    CANCELLED
+  }
+
+  private final TranscodeJob job;
+  private final Status status;
+  private final long duration;
+  private final long videoFrames;
+  private final long audioFrames;
+  private final Throwable error;
+  private final boolean cached;
+
+  /**
+   * @param job
+   *          Le transcodage réalisé.
+   * @param duration
+   *          La durée du transcodage, en millisecondes.
+   * @param videoFrames
+   *          Le nombre d'images vidéo encodées.
+   * @param audioFrames
+   *          Le nombre de frames audio décodées.
+   * @return Le résultat d'un transcodage réussi.
+   */
+  public static TranscodeResult success(final TranscodeJob job, final long duration, final long videoFrames,
+      final long audioFrames) {
+    return new TranscodeResult(job, Status.SUCCESS, duration, videoFrames, audioFrames, null, false);
+  }
+
+  /**
+   * @param job
+   *          Le transcodage réalisé.
+   * @param duration
+   *          La durée de la copie depuis le cache, en millisecondes.
+   * @param videoFrames
+   *          Le nombre d'images vidéo encodées lors du transcodage mis en cache.
+   * @param audioFrames
+   *          Le nombre de frames audio décodées lors du transcodage mis en cache.
+   * @return Le résultat d'un transcodage servi depuis un {@link TranscodeCache}.
+   */
+  public static TranscodeResult cached(final TranscodeJob job, final long duration, final long videoFrames,
+      final long audioFrames) {
+    return new TranscodeResult(job, Status.SUCCESS, duration, videoFrames, audioFrames, null, true);
+  }
+
+  /**
+   * @param job
+   *          Le transcodage réalisé.
+   * @param duration
+   *          La durée écoulée avant l'échec, en millisecondes.
+   * @param error
+   *          L'erreur ayant interrompu le transcodage.
+   * @return Le résultat d'un transcodage en échec.
+   */
+  public static TranscodeResult failure(final TranscodeJob job, final long duration, final Throwable error) {
+    return new TranscodeResult(job, Status.FAILED, duration, 0, 0, error, false);
+  }
+
+  /**
+   * @param job
+   *          Le transcodage annulé.
+   * @param duration
+   *          La durée écoulée avant l'annulation, en millisecondes.
+   * @return Le résultat d'un transcodage annulé.
+   */
+  public static TranscodeResult cancelled(final TranscodeJob job, final long duration) {
+    return new TranscodeResult(job, Status.CANCELLED, duration, 0, 0, null, false);
+  }
+
+  private TranscodeResult(final TranscodeJob job, final Status status, final long duration, final long videoFrames,
+      final long audioFrames, final Throwable error, final boolean cached) {
+    this.job = job;
+    this.status = status;
+    this.duration = duration;
+    this.videoFrames = videoFrames;
+    this.audioFrames = audioFrames;
+    this.error = error;
+    this.cached = cached;
+  }
+
+  /**
+   * @return Le transcodage réalisé.
+   */
+  public TranscodeJob getJob() {
+    return job;
+  }
+
+  /**
+   * @return L'état final du transcodage.
+   */
+  public Status getStatus() {
+    return status;
+  }
+
+  /**
+   * @return <code>true</code> si le fichier a été entièrement transcodé.
+   */
+  public boolean isSuccess() {
+    return status == Status.SUCCESS;
+  }
+
+  /**
+   * @return La durée du transcodage, en millisecondes.
+   */
+  public long getDuration() {
+    return duration;
+  }
+
+  /**
+   * @return Le nombre d'images vidéo encodées.
+   */
+  public long getVideoFrames() {
+    return videoFrames;
+  }
+
+  /**
+   * @return Le nombre de frames audio décodées.
+   */
+  public long getAudioFrames() {
+    return audioFrames;
+  }
+
+  /**
+   * @return <code>true</code> si le fichier a été copié depuis un {@link TranscodeCache} au lieu d'être transcodé.
+   */
+  public boolean isCached() {
+    return cached;
+  }
+
+  /**
+   * @return L'erreur ayant interrompu le transcodage. <code>null</code> si le transcodage n'a pas échoué.
+   */
+  public Throwable getError() {
+    return error;
+  }
+
+  /*
+   * (non-Javadoc)
+   *
+   * @see java.lang.Object#toString()
+   */
+  @Override
+  public String toString() {
+    return MessageFormat.format("TranscodeResult [{0} -> {1}, status={2}{7}, duration={3}ms, video={4}, audio={5}{6}]",
+        job.getInputFile(), job.getOutputFile(), status, String.valueOf(duration), String.valueOf(videoFrames),
+        String.valueOf(audioFrames), error == null ? "" : ", error=" + error.getMessage(), cached ? " (cache)" : "");
+  }
+}
@@ -0,0 +1,223 @@
+/**
+ *
+ */
+package fr.syrdek.ffmpeg.libav.java.transcode;
+
+import java.util.concurrent.CancellationException;
+
+import org.bytedeco.ffmpeg.avformat.AVStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import fr.syrdek.ffmpeg.libav.java.FFmpegException;
+import fr.syrdek.ffmpeg.libav.java.Media;
+import fr.syrdek.ffmpeg.libav.java.chain.Demuxer;
+import fr.syrdek.ffmpeg.libav.java.chain.FramePool;
+import fr.syrdek.ffmpeg.libav.java.chain.MemoryAccount;
+import fr.syrdek.ffmpeg.libav.java.chain.Muxer;
+import fr.syrdek.ffmpeg.libav.java.chain.decode.AudioDecoder;
+import fr.syrdek.ffmpeg.libav.java.chain.decode.VideoDecoder;
+import fr.syrdek.ffmpeg.libav.java.chain.process.StreamCopier;
+import fr.syrdek.ffmpeg.libav.java.io.stream.AudioParameters;
+import fr.syrdek.ffmpeg.libav.java.io.stream.CodecContextParameters;
+import fr.syrdek.ffmpeg.libav.java.io.stream.ThreadingParameters;
+import fr.syrdek.ffmpeg.libav.java.io.stream.VideoParameters;
+
+/**
+ * Transcode un fichier dans le thread appelant, en construisant la chaine Demuxer → Decoder → Rescaler/Resampler →
+ * Encoder → Muxer décrite par un {@link TranscodeJob}.<br>
+ * Les flux absents du fichier d'entrée, ou pour lesquels le job ne définit pas de paramètres, sont ignorés.<br>
+ * Le transcodage peut être annulé en interrompant le thread qui l'exécute : une {@link CancellationException} est
+ * alors levée entre deux paquets.<br>
+ * La mémoire native retenue par la chaine peut être comptabilisée, et plafonnée, via
+ * {@link #withMemoryAccount(MemoryAccount)}.
+ *
+ * @author t0087865
+ */
+public class Transcoder {
+  private static final Logger LOG = LoggerFactory.getLogger(Transcoder.class);
+
+  private final TranscodeJob job;
+  private ThreadingParameters decoderThreading;
+  private MemoryAccount memoryAccount;
+  private TranscodeCache cache;
+
+  /**
+   * @param job
+   *          Le transcodage à réaliser.
+   */
+  public Transcoder(final TranscodeJob job) {
+    this.job = job;
+  }
+
+  /**
+   * @param decoderThreading
+   *          La parallélisation des décodeurs. Par défaut, celle de libavcodec. La parallélisation des encodeurs est
+   *          définie dans les paramètres de chaque flux.
+   * @return Cette instance.
+   */
+  public Transcoder withDecoderThreading(final ThreadingParameters decoderThreading) {
+    this.decoderThreading = decoderThreading;
+    return this;
+  }
+
+  /**
+   * @param memoryAccount
+   *          Le compte dans lequel comptabiliser la mémoire native retenue par la chaine. Si le compte est plafonné,
+   *          le transcodage échoue dès que le plafond est dépassé. Par défaut, la mémoire n'est pas comptée.
+   * @return Cette instance.
+   */
+  public Transcoder withMemoryAccount(final MemoryAccount memoryAccount) {
+    this.memoryAccount = memoryAccount;
+    return this;
+  }
+
+  /**
+   * @param cache
+   *          Le cache des fichiers transcodés. Si le transcodage y est déjà, le fichier en cache est copié au lieu
+   *          d'être transcodé ; sinon, le fichier produit y est ajouté. Par défaut, aucun cache n'est utilisé.
+   * @return Cette instance.
+   */
+  public Transcoder withCache(final TranscodeCache cache) {
+    this.cache = cache;
+    return this;
+  }
+
+  /**
+   * Réalise le transcodage.
+   *
+   * @return Le résultat du transcodage.
+   * @throws FFmpegException
+   *           Si le transcodage échoue.
+   * @throws CancellationException
+   *           Si le thread appelant a été interrompu pendant le transcodage.
+   */
+  public TranscodeResult transcode() {
+    final String cacheKey = cache == null ? null : cache.keyOf(job);
+    if (cacheKey != null) {
+      final TranscodeResult cached = cache.restore(cacheKey, job);
+      if (cached != null) {
+        return cached;
+      }
+    }
+    final TranscodeResult result = run();
+    // Le fichier produit n'est complet qu'une fois le conteneur fermé.
+    if (cacheKey != null) {
+      cache.store(cacheKey, result);
+    }
+    return result;
+  }
+
+  /**
+   * Réalise le transcodage, sans passer par le cache.
+   */
+  private TranscodeResult run() {
+    final long start = System.currentTimeMillis();
+    final VideoParameters videoParams = job.getVideoParams();
+    final AudioParameters audioParams = job.getAudioParams();
+    LOG.debug("Démarrage du transcodage {}", job);
+
+    try (//
+        final Demuxer source = new Demuxer(job.getInputFile()).withMemoryAccount(memoryAccount);
+        final Muxer destination = new Muxer(job.getOutputFile(), job.getFormat()).withMemoryAccount(memoryAccount);
+        final FramePool framePool = new FramePool(memoryAccount);
+        // Les flux vidéo puis audio sont déclarés dans cet ordre dans le conteneur de sortie.
+        final StreamCopier videoCopier = videoParams == null ? null
+            : openCopy(source, destination, Media.VIDEO, videoParams);
+        final VideoChain video = videoParams == null || videoCopier != null ? null
+            : openVideo(source, destination, videoParams, framePool);
+        final StreamCopier audioCopier = audioParams == null ? null
+            : openCopy(source, destination, Media.AUDIO, audioParams);
+        final AudioChain audio = audioParams == null || audioCopier != null ? null
+            : openAudio(source, destination, audioParams, framePool)//
+    ) {
+      if (video == null && audio == null && videoCopier == null && audioCopier == null) {
+        throw new FFmpegException("Aucun flux à transcoder dans le fichier " + job.getInputFile());
+      }
+      if (video != null) {
+        video.connect();
+      }
+
+      // Les flux recopiés comme les flux transcodés conservent les timestamps du fichier lu : décale-les tous
+      // ensemble, pour que le fichier produit commence au début du fichier lu, ou de l'intervalle.
+      if (job.isRange()) {
+        source.seekRange(job.getStart(), job.getEnd());
+        destination.withTimestampOffset(-(source.getStartTime() + job.getStart()));
+      } else if (videoCopier != null || audioCopier != null) {
+        destination.withTimestampOffset(-source.getStartTime());
+      }
+      destination.writeHeaders();
+      if (video != null) {
+        video.start();
+      }
+      if (audio != null) {
+        audio.start();
+      }
+      while (source.readPacket()) {
+        if (Thread.currentThread().isInterrupted()) {
+          throw new CancellationException("Transcodage de " + job.getInputFile() + " interrompu.");
+        }
+      }
+
+      // Purge les frames et paquets encore retenus dans la chaine.
+      if (video != null) {
+        video.drain();
+      }
+      if (audio != null) {
+        audio.drain();
+      }
+      destination.writeTrailer();
+
+      // Les flux recopiés sont comptés en paquets.
+      final TranscodeResult result = TranscodeResult.success(job, System.currentTimeMillis() - start,
+          videoCopier != null ? videoCopier.getPacketCount() : video != null ? video.getFrames() : 0,
+          audioCopier != null ? audioCopier.getPacketCount() : audio != null ? audio.getFrames() : 0);
+      LOG.debug("Fin du transcodage {}", result);
+      if (memoryAccount != null) {
+        LOG.debug("Mémoire native : {}", memoryAccount);
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Construit la chaine de transcodage du meilleur flux vidéo.
+   *
+   * @return La chaine. <code>null</code> si le fichier d'entrée ne contient pas de flux vidéo.
+   */
+  private VideoChain openVideo(final Demuxer source, final Muxer destination, final VideoParameters params,
+      final FramePool framePool) {
+    final VideoDecoder decoder = source.openVideoDecoder(null, decoderThreading);
+    return decoder == null ? null : new VideoChain(decoder, params, job.getScalingMethod(), framePool, destination);
+  }
+
+  /**
+   * Construit la chaine de transcodage du meilleur flux audio.
+   *
+   * @return La chaine. <code>null</code> si le fichier d'entrée ne contient pas de flux audio.
+   */
+  private AudioChain openAudio(final Demuxer source, final Muxer destination, final AudioParameters params,
+      final FramePool framePool) {
+    final AudioDecoder decoder = source.openAudioDecoder(null, decoderThreading);
+    return decoder == null ? null : new AudioChain(decoder, params, framePool, destination);
+  }
+
+  /**
+   * Recopie le meilleur flux du type donné sans le transcoder, si la copie est autorisée et si le flux est déjà
+   * conforme aux paramètres d'encodage demandés.
+   *
+   * @return La copie du flux. <code>null</code> si le flux doit être transcodé.
+   */
+  private StreamCopier openCopy(final Demuxer source, final Muxer destination, final Media type,
+      final CodecContextParameters params) {
+    if (!job.isStreamCopy()) {
+      return null;
+    }
+    final AVStream input = source.findBestStream(type);
+    if (input == null || !StreamCopier.isCompatible(input, params, destination)) {
+      return null;
+    }
+    LOG.debug("Le flux {} {} est recopié sans être transcodé.", type, input.index());
+    return source.openStreamCopy(input.index(), destination);
+  }
+}
@@ -0,0 +1,147 @@
+/**
+ *
+ */
+package fr.syrdek.ffmpeg.libav.java.transcode;
+
+import org.bytedeco.ffmpeg.avutil.AVFrame;
+
+import fr.syrdek.ffmpeg.libav.java.chain.FramePool;
+import fr.syrdek.ffmpeg.libav.java.chain.Muxer;
+import fr.syrdek.ffmpeg.libav.java.chain.Producer;
+import fr.syrdek.ffmpeg.libav.java.chain.decode.VideoDecoder;
+import fr.syrdek.ffmpeg.libav.java.chain.encode.VideoEncoder;
+import fr.syrdek.ffmpeg.libav.java.chain.process.TimestampScaler;
+import fr.syrdek.ffmpeg.libav.java.chain.process.VideoLimiter;
+import fr.syrdek.ffmpeg.libav.java.chain.process.VideoRescaler;
+import fr.syrdek.ffmpeg.libav.java.io.SWSInterpolation;
+import fr.syrdek.ffmpeg.libav.java.io.stream.VideoParameters;
+
+/**
+ * Chaine de transcodage d'un flux vidéo : Decoder → VideoLimiter → VideoRescaler → VideoEncoder → TimestampScaler →
+ * Muxer, partagée par les différents modes de transcodage.<br>
+ * La construction déclare le flux encodé dans le conteneur de sortie. {@link #connect(Producer)} branche ensuite la
+ * chaine sur les frames décodées, et {@link #start()}, une fois les entêtes du conteneur écrites, branche les paquets
+ * encodés sur le conteneur.<br>
+ * La chaine possède le décodeur donné, et le ferme avec ses autres étapes.
+ *
+ * @author t0087865
+ */
+final class VideoChain implements AutoCloseable {
+  private final VideoDecoder decoder;
+  private final VideoParameters params;
+  private final Muxer destination;
+  private final VideoRescaler rescaler;
+  private final VideoEncoder encoder;
+  private TimestampScaler timestamper;
+  private long frames = 0;
+
+  /**
+   * @param decoder
+   *          Le décodeur du flux à transcoder.
+   * @param params
+   *          Les paramètres d'encodage.
+   * @param scalingMethod
+   *          La méthode d'interpolation utilisée pour redimensionner les images.
+   * @param framePool
+   *          La réserve de frames du redimensionneur. Peut être <code>null</code>.
+   * @param destination
+   *          Le conteneur de sortie. Ses entêtes ne doivent pas encore être écrites.
+   */
+  VideoChain(final VideoDecoder decoder, final VideoParameters params, final SWSInterpolation scalingMethod,
+      final FramePool framePool, final Muxer destination) {
+    this.decoder = decoder;
+    this.params = params;
+    this.destination = destination;
+    VideoRescaler r = null;
+    try {
+      r = new VideoRescaler(decoder.getParameters(), params, scalingMethod, framePool);
+      encoder = new VideoEncoder(params, destination, null);
+    } catch (RuntimeException e) {
+      if (r != null) {
+        r.close();
+      }
+      decoder.close();
+      throw e;
+    }
+    rescaler = r;
+  }
+
+  /**
+   * Branche la chaine sur les frames du décodeur.
+   */
+  void connect() {
+    connect(decoder);
+  }
+
+  /**
+   * Branche la chaine sur les frames données.
+   *
+   * @param frames
+   *          Les frames à encoder : le décodeur, ou un filtre branché sur le décodeur.
+   */
+  void connect(final Producer<AVFrame> frames) {
+    final Producer<AVFrame> limiter = VideoLimiter.limitFps(
+        frames,
+        params.getFrameRate(),
+        decoder.getStream().time_base(),
+        decoder.getStream().r_frame_rate());
+    limiter.sendTo(rescaler);
+    rescaler.sendTo(f -> {
+      this.frames++;
+      encoder.accept(f);
+    });
+  }
+
+  /**
+   * Demande au conteneur de sortie d'écrire le flux dans la base de temps des paquets encodés, qui portent les
+   * timestamps des frames décodées. Doit être appelé avant l'écriture des entêtes du conteneur.
+   */
+  void keepTimebase() {
+    destination.withTimebase(encoder.getStream().index(), decoder.getStream().time_base());
+  }
+
+  /**
+   * Branche les paquets encodés sur le conteneur de sortie. Doit être appelé une fois les entêtes du conteneur
+   * écrites : les paquets sont convertis dans la base de temps retenue par le format pour le flux.
+   */
+  void start() {
+    timestamper = new TimestampScaler(decoder.getStream().time_base(), encoder.getStream().time_base());
+    encoder.sendTo(timestamper);
+    timestamper.sendTo(destination);
+  }
+
+  /**
+   * Purge les frames et paquets encore retenus par le décodeur et l'encodeur, en fin de lecture.
+   */
+  void drain() {
+    decoder.drain();
+    encoder.drain();
+  }
+
+  /**
+   * @return Le décodeur du flux.
+   */
+  VideoDecoder getDecoder() {
+    return decoder;
+  }
+
+  /**
+   * @return L'encodeur du flux.
+   */
+  VideoEncoder getEncoder() {
+    return encoder;
+  }
+
+  /**
+   * @return Le nombre d'images envoyées à l'encodeur.
+   */
+  long getFrames() {
+    return frames;
+  }
+
+  @Override
+  public void close() {
+    // Ferme les étapes dans l'ordre inverse de leur construction.
+    Stages.closeAll(timestamper, encoder, rescaler, decoder);
+  }
+}